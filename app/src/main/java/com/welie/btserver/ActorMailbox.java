@@ -0,0 +1,112 @@
+package com.welie.btserver;
+
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Lock-free mailbox that runs the messages of one actor one at a time, in order, on a shared
+ * executor. Different mailboxes run in parallel. Everything posted to the same mailbox is
+ * serialized, so state that is only touched from messages needs no further synchronization.
+ */
+final class ActorMailbox implements Executor {
+
+    private static final int MAX_BATCH = 64;
+
+    private @NotNull final Executor executor;
+    private @NotNull final ConcurrentLinkedQueue<Runnable> messages = new ConcurrentLinkedQueue<>();
+    private @NotNull final AtomicBoolean active = new AtomicBoolean(false);
+    private @NotNull final Runnable drain = this::drain;
+    private volatile @Nullable Thread owner = null;
+
+    ActorMailbox(@NotNull Executor executor) {
+        this.executor = executor;
+    }
+
+    /**
+     * Post a message. Returns immediately; the message runs after all previously posted messages.
+     */
+    @Override
+    public void execute(@NotNull Runnable message) {
+        messages.offer(message);
+        scheduleDrain();
+    }
+
+    /**
+     * Post a message and wait for its result. When the mailbox is idle the message runs right away on
+     * the calling thread; this keeps GATT request latency low without giving up ordering.
+     */
+    <T> T call(@NotNull Callable<T> message) {
+        if (owner == Thread.currentThread()) {
+            return callNow(message);
+        }
+
+        if (messages.isEmpty() && active.compareAndSet(false, true)) {
+            owner = Thread.currentThread();
+            try {
+                return callNow(message);
+            } finally {
+                owner = null;
+                active.set(false);
+                if (!messages.isEmpty()) scheduleDrain();
+            }
+        }
+
+        final FutureTask<T> future = new FutureTask<>(message);
+        execute(future);
+        try {
+            return future.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("interrupted while waiting for actor", e);
+        } catch (ExecutionException e) {
+            throw rethrow(e.getCause());
+        }
+    }
+
+    boolean isIdle() {
+        return !active.get() && messages.isEmpty();
+    }
+
+    private void scheduleDrain() {
+        if (active.compareAndSet(false, true)) {
+            executor.execute(drain);
+        }
+    }
+
+    private void drain() {
+        owner = Thread.currentThread();
+        try {
+            Runnable message;
+            int count = 0;
+            while (count++ < MAX_BATCH && (message = messages.poll()) != null) {
+                message.run();
+            }
+        } finally {
+            owner = null;
+            active.set(false);
+            // Give other mailboxes a turn before continuing with the rest of the messages
+            if (!messages.isEmpty()) scheduleDrain();
+        }
+    }
+
+    private static <T> T callNow(@NotNull Callable<T> message) {
+        try {
+            return message.call();
+        } catch (Exception e) {
+            throw rethrow(e);
+        }
+    }
+
+    private static RuntimeException rethrow(@Nullable Throwable throwable) {
+        if (throwable instanceof RuntimeException) return (RuntimeException) throwable;
+        if (throwable instanceof Error) throw (Error) throwable;
+        return new IllegalStateException(throwable);
+    }
+}
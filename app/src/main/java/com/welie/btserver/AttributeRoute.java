@@ -0,0 +1,88 @@
+package com.welie.btserver;
+
+import androidx.annotation.NonNull;
+
+import com.welie.blessed.BluetoothCentral;
+import com.welie.blessed.GattStatus;
+import com.welie.blessed.ReadResponse;
+
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+/**
+ * Where requests for one characteristic or descriptor go: the service that owns it and, when the
+ * service registered them, typed handlers for reads and writes. Handlers run in the service's
+ * mailbox, like all other callbacks of the service.
+ */
+final class AttributeRoute {
+
+    interface ReadHandler {
+        @NotNull ReadResponse onRead(@NotNull BluetoothCentral central);
+    }
+
+    interface WriteHandler {
+        @NotNull GattStatus onWrite(@NotNull BluetoothCentral central, @NotNull byte[] value);
+    }
+
+    interface WriteCompletedHandler {
+        void onWriteCompleted(@NotNull BluetoothCentral central, @NonNull byte[] value);
+    }
+
+    /**
+     * The handlers a service registered for one attribute.
+     */
+    static final class Handlers {
+        @Nullable ReadHandler read;
+        @Nullable WriteHandler write;
+        @Nullable WriteCompletedHandler writeCompleted;
+    }
+
+    /**
+     * The owning service, for callbacks without a registered handler.
+     */
+    final @NotNull Service service;
+    private @NotNull final ActorMailbox mailbox;
+    private @Nullable final ReadHandler read;
+    private @Nullable final WriteHandler write;
+    private @Nullable final WriteCompletedHandler writeCompleted;
+
+    AttributeRoute(@NotNull Service service, @NotNull ActorMailbox mailbox, @Nullable Handlers handlers) {
+        this.service = service;
+        this.mailbox = mailbox;
+        this.read = handlers != null ? handlers.read : null;
+        this.write = handlers != null ? handlers.write : null;
+        this.writeCompleted = handlers != null ? handlers.writeCompleted : null;
+    }
+
+    /**
+     * @return the response, or null when there is no read handler
+     */
+    @Nullable ReadResponse read(@NotNull BluetoothCentral central) {
+        final ReadHandler handler = read;
+        if (handler == null) return null;
+        if (handler instanceof CachedReadResponse) {
+            // Immutable, no need to wait for the service
+            final ReadResponse cached = ((CachedReadResponse) handler).cached();
+            if (cached != null) return cached;
+        }
+        return mailbox.call(() -> handler.onRead(central));
+    }
+
+    /**
+     * @return the status, or null when there is no write handler
+     */
+    @Nullable GattStatus write(@NotNull BluetoothCentral central, @NotNull byte[] value) {
+        final WriteHandler handler = write;
+        return handler != null ? mailbox.call(() -> handler.onWrite(central, value)) : null;
+    }
+
+    /**
+     * @return false when there is no write completed handler
+     */
+    boolean writeCompleted(@NotNull BluetoothCentral central, @NonNull byte[] value) {
+        final WriteCompletedHandler handler = writeCompleted;
+        if (handler == null) return false;
+        mailbox.execute(() -> handler.onWriteCompleted(central, value));
+        return true;
+    }
+}
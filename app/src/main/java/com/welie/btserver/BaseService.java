@@ -6,14 +6,14 @@ import android.bluetooth.BluetoothGattService;
 import android.content.Context;
 
 import com.welie.blessed.BluetoothCentral;
-import com.welie.blessed.BluetoothPeripheralManager;
 import com.welie.blessed.GattStatus;
 import com.welie.blessed.ReadResponse;
 
 import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
 
+import java.util.IdentityHashMap;
 import java.util.Objects;
-import java.util.Set;
 import java.util.UUID;
 
 import static android.bluetooth.BluetoothGattDescriptor.PERMISSION_READ;
@@ -27,11 +27,38 @@ class BaseService implements Service {
     public static final UUID CCC_DESCRIPTOR_UUID = UUID.fromString("00002902-0000-1000-8000-00805f9b34fb");
 
     @NotNull
-    protected final BluetoothPeripheralManager peripheralManager;
+    protected final PeripheralManager peripheralManager;
+    @NotNull
+    protected final CentralRegistry<BluetoothCentral, BluetoothGattCharacteristic> centralRegistry;
+    @NotNull
+    protected final PeriodicScheduler scheduler;
+    @NotNull
+    protected final Clock clock;
+    // All callbacks and timer events of this service run through its mailbox, see ServiceActor
+    @NotNull
+    final ActorMailbox mailbox;
+    @NotNull
+    protected final OutboundQueues<BluetoothCentral, BluetoothGattCharacteristic> outboundQueues;
+    @NotNull
+    protected final ObservationBus observationBus;
+    @NotNull
+    protected final ServerMetrics metrics;
+    @NotNull
+    protected final TraceRing trace;
     public Context context;
+    // Registered handlers per characteristic or descriptor; compiled into the dispatch table of BluetoothServer
+    private @NotNull final IdentityHashMap<Object, AttributeRoute.Handlers> attributeHandlers = new IdentityHashMap<>();
 
-    BaseService(@NotNull BluetoothPeripheralManager peripheralManager) {
+    BaseService(@NotNull PeripheralManager peripheralManager, @NotNull ServerRuntime runtime) {
         this.peripheralManager = Objects.requireNonNull(peripheralManager);
+        this.centralRegistry = runtime.centralRegistry;
+        this.scheduler = runtime.scheduler;
+        this.clock = runtime.clock;
+        this.mailbox = new ActorMailbox(runtime.actorExecutor);
+        this.outboundQueues = runtime.outboundQueues;
+        this.observationBus = runtime.observationBus;
+        this.metrics = runtime.metrics;
+        this.trace = runtime.trace;
     }
 
     BluetoothGattDescriptor getCccDescriptor() {
@@ -46,8 +73,82 @@ class BaseService implements Service {
         peripheralManager.notifyCharacteristicChanged(value, characteristic);
     }
 
+    /**
+     * Queue an indication for a central. Indications are sent ahead of queued observation notifications.
+     */
+    protected boolean indicate(@NotNull final BluetoothCentral central, @NotNull final byte[] value, @NotNull final BluetoothGattCharacteristic characteristic) {
+        return outboundQueues.offerIndication(central, characteristic, value);
+    }
+
+    /**
+     * Queue an observation for a central as a train of segments.
+     *
+     * @return false if the train was dropped
+     */
+    protected boolean offerTrain(@NotNull OutboundQueue<BluetoothCentral, BluetoothGattCharacteristic> queue, @NotNull BluetoothGattCharacteristic characteristic,
+                                 @NotNull OutboundQueue.PacketTrain train, @Nullable ObservationSegmenter.SegmentCounter segmentCounter) {
+        return offerTrain(queue, characteristic, train, segmentCounter, false);
+    }
+
+    protected boolean offerTrain(@NotNull OutboundQueue<BluetoothCentral, BluetoothGattCharacteristic> queue, @NotNull BluetoothGattCharacteristic characteristic,
+                                 @NotNull OutboundQueue.PacketTrain train, @Nullable ObservationSegmenter.SegmentCounter segmentCounter, boolean reliable) {
+        metrics.recordSegments(train.count());
+        final boolean queued = queue.offerTrain(characteristic, train, segmentCounter, reliable);
+        trace.record(queued ? TraceRing.TRAIN_QUEUED : TraceRing.TRAIN_DROPPED, TraceRing.centralId(queue.getCentral().getAddress()), train.count());
+        return queued;
+    }
+
+    protected void handleRead(@NotNull BluetoothGattCharacteristic characteristic, @NotNull AttributeRoute.ReadHandler handler) {
+        handlersFor(characteristic).read = handler;
+    }
+
+    /**
+     * Serve a value that never changes. The value must not be modified afterwards.
+     */
+    protected void handleConstantRead(@NotNull BluetoothGattCharacteristic characteristic, @NotNull byte[] value) {
+        handleRead(characteristic, CachedReadResponse.constant(value));
+    }
+
+    /**
+     * Serve a value that is cached until the returned cache is invalidated.
+     */
+    protected @NotNull CachedReadResponse handleCachedRead(@NotNull BluetoothGattDescriptor descriptor, @NotNull CachedReadResponse.ValueSource source) {
+        final CachedReadResponse cache = CachedReadResponse.versioned(source);
+        handleRead(descriptor, cache);
+        return cache;
+    }
+
+    protected void handleWrite(@NotNull BluetoothGattCharacteristic characteristic, @NotNull AttributeRoute.WriteHandler handler, @Nullable AttributeRoute.WriteCompletedHandler completedHandler) {
+        final AttributeRoute.Handlers handlers = handlersFor(characteristic);
+        handlers.write = handler;
+        handlers.writeCompleted = completedHandler;
+    }
+
+    protected void handleRead(@NotNull BluetoothGattDescriptor descriptor, @NotNull AttributeRoute.ReadHandler handler) {
+        handlersFor(descriptor).read = handler;
+    }
+
+    protected void handleWrite(@NotNull BluetoothGattDescriptor descriptor, @NotNull AttributeRoute.WriteHandler handler, @Nullable AttributeRoute.WriteCompletedHandler completedHandler) {
+        final AttributeRoute.Handlers handlers = handlersFor(descriptor);
+        handlers.write = handler;
+        handlers.writeCompleted = completedHandler;
+    }
+
+    @Nullable AttributeRoute.Handlers getHandlers(@NotNull Object attribute) {
+        return attributeHandlers.get(attribute);
+    }
+
+    private @NotNull AttributeRoute.Handlers handlersFor(@NotNull Object attribute) {
+        AttributeRoute.Handlers handlers = attributeHandlers.get(attribute);
+        if (handlers == null) {
+            handlers = new AttributeRoute.Handlers();
+            attributeHandlers.put(attribute, handlers);
+        }
+        return handlers;
+    }
+
     boolean noCentralsConnected() {
-        return peripheralManager.getConnectedCentrals().size() == 0;
+        return centralRegistry.noCentralsConnected();
     }
 
     @Override
@@ -111,8 +212,6 @@ class BaseService implements Service {
     }
 
     int getMinMTU() {
-        Set<BluetoothCentral> allCentrals = peripheralManager.getConnectedCentrals();
-        if (allCentrals.isEmpty()) return 23;
-        return allCentrals.stream().map(BluetoothCentral::getCurrentMtu).min(Integer::compare).get();
+        return centralRegistry.getMinMtu();
     }
 }
@@ -0,0 +1,78 @@
+package com.welie.btserver;
+
+import android.annotation.SuppressLint;
+import android.bluetooth.BluetoothGattCharacteristic;
+import android.bluetooth.BluetoothGattService;
+import android.bluetooth.le.AdvertiseData;
+import android.bluetooth.le.AdvertiseSettings;
+
+import com.welie.blessed.BluetoothCentral;
+import com.welie.blessed.BluetoothPeripheralManager;
+import com.welie.blessed.ConnectionPriority;
+import com.welie.blessed.PhyType;
+
+import org.jetbrains.annotations.NotNull;
+
+@SuppressLint("MissingPermission")
+final class BlessedPeripheralManager implements PeripheralManager {
+
+    private @NotNull final BluetoothPeripheralManager peripheralManager;
+
+    BlessedPeripheralManager(@NotNull BluetoothPeripheralManager peripheralManager) {
+        this.peripheralManager = peripheralManager;
+    }
+
+    @Override
+    public boolean add(@NotNull BluetoothGattService service) {
+        return peripheralManager.add(service);
+    }
+
+    @Override
+    public void removeAllServices() {
+        peripheralManager.removeAllServices();
+    }
+
+    @Override
+    public void startAdvertising(@NotNull AdvertiseSettings settings, @NotNull AdvertiseData advertiseData, @NotNull AdvertiseData scanResponse) {
+        peripheralManager.startAdvertising(settings, advertiseData, scanResponse);
+    }
+
+    @Override
+    public void stopAdvertising() {
+        peripheralManager.stopAdvertising();
+    }
+
+    @Override
+    public boolean notifyCharacteristicChanged(@NotNull byte[] value, @NotNull BluetoothCentral central, @NotNull BluetoothGattCharacteristic characteristic) {
+        return peripheralManager.notifyCharacteristicChanged(value, central, characteristic);
+    }
+
+    @Override
+    public boolean notifyCharacteristicChanged(@NotNull byte[] value, @NotNull BluetoothGattCharacteristic characteristic) {
+        return peripheralManager.notifyCharacteristicChanged(value, characteristic);
+    }
+
+    @Override
+    public void cancelConnection(@NotNull BluetoothCentral central) {
+        peripheralManager.cancelConnection(central);
+    }
+
+    // See requestConnectionPriority and setPreferredPhy
+    @Override
+    public boolean supportsLinkRequests() {
+        return false;
+    }
+
+    // BluetoothGatt.requestConnectionPriority is a GATT client call; BluetoothGattServer has no equivalent
+    @Override
+    public boolean requestConnectionPriority(@NotNull BluetoothCentral central, @NotNull ConnectionPriority priority) {
+        return false;
+    }
+
+    // BluetoothGattServer.setPreferredPhy exists from API 26, but blessed 2.4.0 keeps its
+    // BluetoothGattServer in a private field and has no method that forwards to it
+    @Override
+    public boolean setPreferredPhy(@NotNull BluetoothCentral central, @NotNull PhyType phy) {
+        return false;
+    }
+}
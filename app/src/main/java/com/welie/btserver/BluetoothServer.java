@@ -11,7 +11,11 @@ import android.bluetooth.BluetoothGattService;
 import android.bluetooth.BluetoothManager;
 import android.bluetooth.le.AdvertiseData;
 import android.bluetooth.le.AdvertiseSettings;
+import android.content.BroadcastReceiver;
 import android.content.Context;
+import android.content.Intent;
+import android.content.IntentFilter;
+import android.content.pm.ApplicationInfo;
 import android.os.Build;
 import android.os.ParcelUuid;
 
@@ -22,15 +26,28 @@ import com.welie.blessed.BluetoothBytesParser;
 import com.welie.blessed.BluetoothCentral;
 import com.welie.blessed.BluetoothPeripheralManager;
 import com.welie.blessed.BluetoothPeripheralManagerCallback;
+import com.welie.blessed.ConnectionPriority;
 import com.welie.blessed.GattStatus;
+import com.welie.blessed.PhyType;
 import com.welie.blessed.ReadResponse;
 
 import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
 
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
 import java.nio.ByteOrder;
-import java.util.HashMap;
-import java.util.Objects;
+import java.util.ArrayList;
+import java.util.List;
 import java.util.UUID;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import timber.log.Timber;
 import timber.log.Timber.DebugTree;
@@ -38,9 +55,60 @@ import timber.log.Timber.DebugTree;
 @SuppressLint("MissingPermission")
 class BluetoothServer {
 
+    private static final int TRACE_CAPACITY = 4096;
+    // adb shell am broadcast -a com.welie.btserver.DUMP_TRACE, debuggable builds only
+    static final String ACTION_DUMP_TRACE = "com.welie.btserver.DUMP_TRACE";
+    private static final long LINK_POLICY_PERIOD_MILLIS = 1000;
+    // 31 bytes of advertisement minus the flags, the service UUID, the service data header and the specialization
+    static final int MAX_ADVERTISED_USERS = 16;
     private static BluetoothServer instance = null;
-    private BluetoothPeripheralManager peripheralManager;
-    private final HashMap<BluetoothGattService, Service> serviceImplementations = new HashMap<>();
+    private PeripheralManager peripheralManager;
+    private final ArrayList<ServiceActor> serviceImplementations = new ArrayList<>();
+    // Built once in setupServices, before any request can arrive
+    private volatile DispatchTable<BluetoothGattCharacteristic, AttributeRoute> characteristicRoutes = new DispatchTable.Builder<BluetoothGattCharacteristic, AttributeRoute>().build();
+    private volatile DispatchTable<BluetoothGattDescriptor, AttributeRoute> descriptorRoutes = new DispatchTable.Builder<BluetoothGattDescriptor, AttributeRoute>().build();
+    private final CentralRegistry<BluetoothCentral, BluetoothGattCharacteristic> centralRegistry = new CentralRegistry<>(BluetoothCentral::getCurrentMtu);
+    private final Clock clock;
+    private final ObservationBus observationBus = new ObservationBus(1024);
+    private final ServerMetrics metrics = new ServerMetrics();
+    private final TraceRing trace;
+    private final PeriodicScheduler.TickListener tickListener = new PeriodicScheduler.TickListener() {
+        @Override
+        public void onLateTick(@NotNull PeriodicScheduler.Job job, long latenessNanos, long missedTicks) {
+            Timber.w("%s ran %d ms late, %d ticks missed", job.getName(), TimeUnit.NANOSECONDS.toMillis(latenessNanos), missedTicks);
+            metrics.recordLateTick(job.getName(), missedTicks);
+        }
+
+        @Override
+        public void onTick(@NotNull PeriodicScheduler.Job job, long intervalNanos) {
+            metrics.recordTick(job.getName(), job.getPeriodNanos(), intervalNanos);
+        }
+
+        @Override
+        public void onJobFailed(@NotNull PeriodicScheduler.Job job, @NotNull RuntimeException exception) {
+            Timber.e(exception, "%s failed and was cancelled", job.getName());
+        }
+    };
+    private final PeriodicScheduler scheduler;
+    private final OutboundQueues<BluetoothCentral, BluetoothGattCharacteristic> outboundQueues = new OutboundQueues<>(
+            (central, characteristic, value) -> peripheralManager.notifyCharacteristicChanged(value, central, characteristic));
+    private final LinkPolicy<BluetoothCentral> linkPolicy = new LinkPolicy<>(new LinkPolicy.Link<BluetoothCentral>() {
+        @Override
+        public boolean supportsRequests() {
+            return peripheralManager.supportsLinkRequests();
+        }
+
+        @Override
+        public boolean requestConnectionPriority(@NotNull BluetoothCentral central, @NotNull ConnectionPriority priority) {
+            return peripheralManager.requestConnectionPriority(central, priority);
+        }
+
+        @Override
+        public boolean setPreferredPhy(@NotNull BluetoothCentral central, @NotNull PhyType phy) {
+            return peripheralManager.setPreferredPhy(central, phy);
+        }
+    });
+    private final Executor actorExecutor;
     private Context context;
 
     public static synchronized BluetoothServer getInstance(Context context) {
@@ -51,6 +119,35 @@ class BluetoothServer {
         return instance;
     }
 
+    /**
+     * A snapshot of the runtime metrics.
+     */
+    @NotNull ServerMetrics.Snapshot getMetrics() {
+        return metrics.snapshot(centralRegistry, outboundQueues, linkPolicy, BluetoothCentral::getAddress);
+    }
+
+    /**
+     * Required versus achieved throughput and the link mode of every connected central. When the
+     * peripheral manager cannot change links, the mode is the one the central would need.
+     */
+    @NotNull List<LinkPolicy.Status<BluetoothCentral>> getLinkStatus() {
+        return linkPolicy.statuses();
+    }
+
+    /**
+     * Dump the binary event trace; decode it with the {@code decodeTrace} task of the benchmarks module.
+     */
+    void writeTrace(@NotNull OutputStream stream) throws IOException {
+        trace.writeTo(stream);
+    }
+
+    /**
+     * Observations sampled by the services, for consumers in this process.
+     */
+    @NotNull ObservationBus getObservationBus() {
+        return observationBus;
+    }
+
     private final BluetoothPeripheralManagerCallback peripheralManagerCallback = new BluetoothPeripheralManagerCallback() {
         @Override
         public void onServiceAdded(@NotNull GattStatus status, @NotNull BluetoothGattService service) {
@@ -59,100 +156,139 @@ class BluetoothServer {
 
         @Override
         public @NotNull ReadResponse onCharacteristicRead(@NotNull BluetoothCentral central, @NotNull BluetoothGattCharacteristic characteristic) {
-            Service serviceImplementation = serviceImplementations.get(characteristic.getService());
-            if (serviceImplementation != null) {
-                return serviceImplementation.onCharacteristicRead(central, characteristic);
+            final long start = clock.nanoTime();
+            try {
+                final AttributeRoute route = characteristicRoutes.get(characteristic);
+                if (route != null) {
+                    final ReadResponse response = route.read(central);
+                    return response != null ? response : route.service.onCharacteristicRead(central, characteristic);
+                }
+                return super.onCharacteristicRead(central, characteristic);
+            } finally {
+                metrics.recordCallback(ServerMetrics.Operation.CHARACTERISTIC_READ, clock.nanoTime() - start);
             }
-            return super.onCharacteristicRead(central, characteristic);
         }
 
 
         @Override
         public @NotNull GattStatus onCharacteristicWrite(@NotNull BluetoothCentral central, @NotNull BluetoothGattCharacteristic characteristic, @NotNull byte[] value) {
-            Service serviceImplementation = serviceImplementations.get(characteristic.getService());
-            if (serviceImplementation != null) {
-                return serviceImplementation.onCharacteristicWrite(central, characteristic, value);
+            final long start = clock.nanoTime();
+            try {
+                final AttributeRoute route = characteristicRoutes.get(characteristic);
+                if (route != null) {
+                    final GattStatus status = route.write(central, value);
+                    return status != null ? status : route.service.onCharacteristicWrite(central, characteristic, value);
+                }
+                return GattStatus.REQUEST_NOT_SUPPORTED;
+            } finally {
+                metrics.recordCallback(ServerMetrics.Operation.CHARACTERISTIC_WRITE, clock.nanoTime() - start);
             }
-            return GattStatus.REQUEST_NOT_SUPPORTED;
         }
 
         @Override
         public void onCharacteristicWriteCompleted(@NonNull BluetoothCentral central, @NonNull BluetoothGattCharacteristic characteristic, @NonNull byte[] value) {
-            Service serviceImplementation = serviceImplementations.get(characteristic.getService());
-            if (serviceImplementation != null) {
-                serviceImplementation.onCharacteristicWriteCompleted(central, characteristic, value);
+            final AttributeRoute route = characteristicRoutes.get(characteristic);
+            if (route != null && !route.writeCompleted(central, value)) {
+                route.service.onCharacteristicWriteCompleted(central, characteristic, value);
             }
         }
 
         @Override
         public @NotNull ReadResponse onDescriptorRead(@NotNull BluetoothCentral central, @NotNull BluetoothGattDescriptor descriptor) {
-            BluetoothGattCharacteristic characteristic = Objects.requireNonNull(descriptor.getCharacteristic(), "Descriptor has no Characteristic");
-            BluetoothGattService service = Objects.requireNonNull(characteristic.getService(), "Characteristic has no Service");
-
-            Service serviceImplementation = serviceImplementations.get(service);
-            if (serviceImplementation != null) {
-                return serviceImplementation.onDescriptorRead(central, descriptor);
+            final long start = clock.nanoTime();
+            try {
+                final AttributeRoute route = descriptorRoutes.get(descriptor);
+                if (route != null) {
+                    final ReadResponse response = route.read(central);
+                    return response != null ? response : route.service.onDescriptorRead(central, descriptor);
+                }
+                return super.onDescriptorRead(central, descriptor);
+            } finally {
+                metrics.recordCallback(ServerMetrics.Operation.DESCRIPTOR_READ, clock.nanoTime() - start);
             }
-            return super.onDescriptorRead(central, descriptor);
         }
 
         @NonNull
         @Override
         public GattStatus onDescriptorWrite(@NotNull BluetoothCentral central, @NotNull BluetoothGattDescriptor descriptor, @NotNull byte[] value) {
-            BluetoothGattCharacteristic characteristic = Objects.requireNonNull(descriptor.getCharacteristic(), "Descriptor has no Characteristic");
-            BluetoothGattService service = Objects.requireNonNull(characteristic.getService(), "Characteristic has no Service");
-            Service serviceImplementation = serviceImplementations.get(service);
-            if (serviceImplementation != null) {
-                return serviceImplementation.onDescriptorWrite(central, descriptor, value);
+            final long start = clock.nanoTime();
+            try {
+                final AttributeRoute route = descriptorRoutes.get(descriptor);
+                if (route != null) {
+                    final GattStatus status = route.write(central, value);
+                    return status != null ? status : route.service.onDescriptorWrite(central, descriptor, value);
+                }
+                return GattStatus.REQUEST_NOT_SUPPORTED;
+            } finally {
+                metrics.recordCallback(ServerMetrics.Operation.DESCRIPTOR_WRITE, clock.nanoTime() - start);
             }
-            return GattStatus.REQUEST_NOT_SUPPORTED;
         }
 
         @Override
         public void onDescriptorWriteCompleted(@NonNull BluetoothCentral central, @NonNull BluetoothGattDescriptor descriptor, @NonNull byte[] value) {
-            BluetoothGattCharacteristic characteristic = Objects.requireNonNull(descriptor.getCharacteristic(), "Descriptor has no Characteristic");
-            Service serviceImplementation = serviceImplementations.get(characteristic.getService());
-            if (serviceImplementation != null) {
-                serviceImplementation.onDescriptorWriteCompleted(central, descriptor, value);
+            final AttributeRoute route = descriptorRoutes.get(descriptor);
+            if (route != null && !route.writeCompleted(central, value)) {
+                route.service.onDescriptorWriteCompleted(central, descriptor, value);
             }
         }
 
         @Override
         public void onNotifyingEnabled(@NotNull BluetoothCentral central, @NotNull BluetoothGattCharacteristic characteristic) {
-            Service serviceImplementation = serviceImplementations.get(characteristic.getService());
-            if (serviceImplementation != null) {
-                serviceImplementation.onNotifyingEnabled(central, characteristic);
+            final long start = clock.nanoTime();
+            centralRegistry.onSubscribed(central, characteristic);
+            final AttributeRoute route = characteristicRoutes.get(characteristic);
+            if (route != null) {
+                route.service.onNotifyingEnabled(central, characteristic);
             }
+            metrics.recordCallback(ServerMetrics.Operation.NOTIFYING_ENABLED, clock.nanoTime() - start);
         }
 
         @Override
         public void onNotifyingDisabled(@NotNull BluetoothCentral central, @NotNull BluetoothGattCharacteristic characteristic) {
-            Service serviceImplementation = serviceImplementations.get(characteristic.getService());
-            if (serviceImplementation != null) {
-                serviceImplementation.onNotifyingDisabled(central, characteristic);
+            final long start = clock.nanoTime();
+            centralRegistry.onUnsubscribed(central, characteristic);
+            final AttributeRoute route = characteristicRoutes.get(characteristic);
+            if (route != null) {
+                route.service.onNotifyingDisabled(central, characteristic);
             }
+            metrics.recordCallback(ServerMetrics.Operation.NOTIFYING_DISABLED, clock.nanoTime() - start);
         }
 
         @Override
         public void onNotificationSent(@NotNull BluetoothCentral central, byte[] value, @NotNull BluetoothGattCharacteristic characteristic, @NotNull GattStatus status) {
-            Service serviceImplementation = serviceImplementations.get(characteristic.getService());
-            if (serviceImplementation != null) {
-                serviceImplementation.onNotificationSent(central, value, characteristic, status);
+            final long start = clock.nanoTime();
+            final boolean delivered = status == GattStatus.SUCCESS;
+            outboundQueues.onNotificationSent(central, delivered);
+            metrics.recordNotificationCompleted(delivered);
+            final AttributeRoute route = characteristicRoutes.get(characteristic);
+            if (route != null) {
+                route.service.onNotificationSent(central, value, characteristic, status);
             }
+            metrics.recordCallback(ServerMetrics.Operation.NOTIFICATION_SENT, clock.nanoTime() - start);
         }
 
         @Override
         public void onCentralConnected(@NotNull BluetoothCentral central) {
-            for (Service serviceImplementation : serviceImplementations.values()) {
-                serviceImplementation.onCentralConnected(central);
+            final long start = clock.nanoTime();
+            centralRegistry.onCentralConnected(central);
+            trace.recordCentral(TraceRing.CONNECTED, central.getAddress());
+            for (int i = 0; i < serviceImplementations.size(); i++) {
+                serviceImplementations.get(i).onCentralConnected(central);
             }
+            metrics.recordCallback(ServerMetrics.Operation.CENTRAL_CONNECTED, clock.nanoTime() - start);
         }
 
         @Override
         public void onCentralDisconnected(@NotNull BluetoothCentral central) {
-            for (Service serviceImplementation : serviceImplementations.values()) {
-                serviceImplementation.onCentralDisconnected(central);
+            final long start = clock.nanoTime();
+            centralRegistry.onCentralDisconnected(central);
+            trace.recordCentral(TraceRing.DISCONNECTED, central.getAddress());
+            outboundQueues.onCentralDisconnected(central);
+            linkPolicy.remove(central);
+            for (int i = 0; i < serviceImplementations.size(); i++) {
+                serviceImplementations.get(i).onCentralDisconnected(central);
             }
+            metrics.recordCallback(ServerMetrics.Operation.CENTRAL_DISCONNECTED, clock.nanoTime() - start);
         }
 
         @Override
@@ -171,13 +307,7 @@ class BluetoothServer {
         }
     };
 
-    public void startAdvertising(UUID serviceUUID) {
-        BluetoothBytesParser parser = new BluetoothBytesParser(ByteOrder.LITTLE_ENDIAN);
-        parser.setUInt8(1); // Number of specializations
-        parser.setUInt16(MDC_DEV_SPEC_PROFILE_PULS_OXIM); // 16-bit specialization from partition 8
-        parser.setUInt8(1); // User Index Count
-        parser.setUInt8(1); // User Indices
-
+    public void startAdvertising(UUID serviceUUID, @NotNull byte[] serviceData) {
         AdvertiseSettings advertiseSettings = new AdvertiseSettings.Builder()
                 .setAdvertiseMode(AdvertiseSettings.ADVERTISE_MODE_BALANCED)
                 .setConnectable(true)
@@ -187,7 +317,7 @@ class BluetoothServer {
 
         AdvertiseData advertiseData = new AdvertiseData.Builder()
                 .addServiceUuid(new ParcelUuid(serviceUUID))
-                .addServiceData(new ParcelUuid(serviceUUID), parser.getValue())
+                .addServiceData(new ParcelUuid(serviceUUID), serviceData)
                 .build();
 
         AdvertiseData scanResponse = new AdvertiseData.Builder()
@@ -197,16 +327,130 @@ class BluetoothServer {
         peripheralManager.startAdvertising(advertiseSettings, advertiseData, scanResponse);
     }
 
+    /**
+     * GHS service data: the specialization and the registered user indexes, as many as fit in a
+     * legacy advertisement.
+     */
+    static @NotNull byte[] serviceData(@NotNull UserStore users) {
+        final int listed = Math.min(users.count(), MAX_ADVERTISED_USERS);
+        BluetoothBytesParser parser = new BluetoothBytesParser(ByteOrder.LITTLE_ENDIAN);
+        parser.setUInt8(1); // Number of specializations
+        parser.setUInt16(MDC_DEV_SPEC_PROFILE_PULS_OXIM); // 16-bit specialization from partition 8
+        parser.setUInt8(listed); // User Index Count
+        for (int i = 0, userIndex = users.nextRegistered(0); i < listed; i++, userIndex = users.nextRegistered(userIndex + 1)) {
+            parser.setUInt8(userIndex); // User Indices
+        }
+        return parser.getValue();
+    }
+
     private void setupServices() {
-        for (BluetoothGattService service : serviceImplementations.keySet()) {
-            peripheralManager.add(service);
+        buildRoutes();
+        for (ServiceActor serviceImplementation : serviceImplementations) {
+            peripheralManager.add(serviceImplementation.getService());
         }
     }
 
+    // Compile the routes of all characteristics and descriptors, so every request is a single lookup
+    private void buildRoutes() {
+        final DispatchTable.Builder<BluetoothGattCharacteristic, AttributeRoute> characteristics = new DispatchTable.Builder<>();
+        final DispatchTable.Builder<BluetoothGattDescriptor, AttributeRoute> descriptors = new DispatchTable.Builder<>();
+        for (ServiceActor serviceImplementation : serviceImplementations) {
+            for (BluetoothGattCharacteristic characteristic : serviceImplementation.getService().getCharacteristics()) {
+                characteristics.put(characteristic, serviceImplementation.routeFor(characteristic));
+                for (BluetoothGattDescriptor descriptor : characteristic.getDescriptors()) {
+                    descriptors.put(descriptor, serviceImplementation.routeFor(descriptor));
+                }
+            }
+        }
+        characteristicRoutes = characteristics.build();
+        descriptorRoutes = descriptors.build();
+    }
+
+
+    private static @Nullable ObservationStore openObservationStore(@NotNull Context context) {
+        try {
+            return ObservationStore.open(new File(context.getFilesDir(), "observations"));
+        } catch (IOException e) {
+            Timber.e(e, "cannot open observation store, stored observations are disabled");
+            return null;
+        }
+    }
+
+    private static @NotNull UserStore openUserStore(@NotNull Context context) {
+        try {
+            return UserStore.open(new File(context.getFilesDir(), "users.db"));
+        } catch (IOException e) {
+            Timber.e(e, "cannot open user store, registered users are not kept");
+            return UserStore.inMemory();
+        }
+    }
+
+    private void dumpTrace(@NotNull File file) {
+        try (OutputStream stream = new FileOutputStream(file)) {
+            writeTrace(stream);
+            Timber.i("trace written to %s", file);
+        } catch (IOException e) {
+            Timber.e(e, "cannot write trace to %s", file);
+        }
+    }
+
+    private static @NotNull ExecutorService newActorExecutor() {
+        return Executors.newFixedThreadPool(Math.max(2, Runtime.getRuntime().availableProcessors()), new ThreadFactory() {
+            private final AtomicInteger count = new AtomicInteger(0);
+
+            @Override
+            public Thread newThread(@NotNull Runnable runnable) {
+                Thread thread = new Thread(runnable, "gatt-service-" + count.incrementAndGet());
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+    }
+
+    /**
+     * A server that is not attached to a peripheral manager yet, see {@link #start}. On a
+     * {@link VirtualClock} the scheduler has no thread and time only passes in {@link PeriodicScheduler#runFor}.
+     */
+    BluetoothServer(@NotNull Clock clock, @NotNull Executor actorExecutor) {
+        this.clock = clock;
+        this.actorExecutor = actorExecutor;
+        this.trace = new TraceRing(TRACE_CAPACITY, clock);
+        if (clock instanceof VirtualClock) {
+            this.scheduler = new PeriodicScheduler((VirtualClock) clock, PeriodicScheduler.DEFAULT_TICK_NANOS, PeriodicScheduler.DEFAULT_LATE_THRESHOLD_NANOS, tickListener);
+        } else {
+            this.scheduler = new PeriodicScheduler("gatt-scheduler", clock, tickListener);
+        }
+    }
 
     BluetoothServer(Context context) {
+        this(context, new MonotonicClock());
+    }
+
+    private BluetoothServer(Context context, MonotonicClock clock) {
+        this(clock, newActorExecutor());
         //Timber.plant(new Timber.DebugTree());
 
+        // The clock only reads the wall clock again when it is set
+        final IntentFilter timeChanged = new IntentFilter(Intent.ACTION_TIME_CHANGED);
+        timeChanged.addAction(Intent.ACTION_TIMEZONE_CHANGED);
+        context.registerReceiver(new BroadcastReceiver() {
+            @Override
+            public void onReceive(Context context, Intent intent) {
+                Timber.i("time changed, resyncing clock");
+                clock.resync();
+            }
+        }, timeChanged);
+
+        final boolean debuggable = (context.getApplicationInfo().flags & ApplicationInfo.FLAG_DEBUGGABLE) != 0;
+        if (debuggable) {
+            context.registerReceiver(new BroadcastReceiver() {
+                @Override
+                public void onReceive(Context context, Intent intent) {
+                    dumpTrace(new File(context.getFilesDir(), "trace.bin"));
+                }
+            }, new IntentFilter(ACTION_DUMP_TRACE));
+        }
+
         final BluetoothManager bluetoothManager = (BluetoothManager) context.getSystemService(Context.BLUETOOTH_SERVICE);
         if (bluetoothManager == null) {
             Timber.e("bluetooth not supported");
@@ -222,19 +466,79 @@ class BluetoothServer {
         // Set the adapter name as this is used when advertising
         bluetoothAdapter.setName("PHILIPS POX22");
 
-        this.peripheralManager = new BluetoothPeripheralManager(context, bluetoothManager, peripheralManagerCallback);
-        this.peripheralManager.removeAllServices();
+        start(callback -> new BlessedPeripheralManager(new BluetoothPeripheralManager(context, bluetoothManager, callback)), openObservationStore(context), openUserStore(context), debuggable);
+    }
 
-        DeviceInformationService dis = new DeviceInformationService(peripheralManager);
-        GenericHealthService ghs = new GenericHealthService(peripheralManager);
-        UserDataService uds = new UserDataService(peripheralManager);
-        ghs.context = context;
+    void start(@NotNull PeripheralManager.Factory peripheralManagerFactory, @Nullable ObservationStore store) {
+        start(peripheralManagerFactory, store, UserStore.inMemory(), false);
+    }
 
-        serviceImplementations.put(dis.getService(), dis);
-        serviceImplementations.put(ghs.getService(), ghs);
-        serviceImplementations.put(uds.getService(), uds);
+    /**
+     * Create the peripheral manager and the services, and start advertising.
+     *
+     * @param users       registered UDS users
+     * @param diagnostics add the {@link DiagnosticsService} with the runtime metrics
+     */
+    void start(@NotNull PeripheralManager.Factory peripheralManagerFactory, @Nullable ObservationStore store, @NotNull UserStore users, boolean diagnostics) {
+        this.peripheralManager = peripheralManagerFactory.create(peripheralManagerCallback);
+        this.peripheralManager.removeAllServices();
+
+        ServerRuntime runtime = new ServerRuntime(centralRegistry, clock, scheduler, actorExecutor, outboundQueues, observationBus, metrics, trace);
+        DeviceInformationService dis = new DeviceInformationService(peripheralManager, runtime);
+        GenericHealthService ghs = new GenericHealthService(peripheralManager, runtime, store);
+        UUID ghsUuid = ghs.getService().getUuid();
+        // The store belongs to the UDS actor, so the service data is built there; advertising restarts on the scheduler thread
+        UserDataService uds = new UserDataService(peripheralManager, runtime, users, changed -> {
+            final byte[] serviceData = serviceData(changed);
+            scheduler.execute(() -> {
+                peripheralManager.stopAdvertising();
+                startAdvertising(ghsUuid, serviceData);
+            });
+        });
+
+        serviceImplementations.add(new ServiceActor(dis));
+        serviceImplementations.add(new ServiceActor(ghs));
+        serviceImplementations.add(new ServiceActor(uds));
+        if (diagnostics) {
+            serviceImplementations.add(new ServiceActor(new DiagnosticsService(peripheralManager, runtime, this::getMetrics)));
+        }
 
         setupServices();
-        startAdvertising(ghs.getService().getUuid());
+        startAdvertising(ghsUuid, serviceData(users));
+        scheduler.scheduleAtFixedRate("link policy", () -> updateLinks(ghs), LINK_POLICY_PERIOD_MILLIS, LINK_POLICY_PERIOD_MILLIS, TimeUnit.MILLISECONDS);
+    }
+
+    // Runs on the scheduler thread
+    private void updateLinks(@NotNull GenericHealthService ghs) {
+        final CentralRegistry.CentralSet<BluetoothCentral> connected = centralRegistry.connected();
+        final List<BluetoothCentral> centrals = connected.get();
+        final long now = clock.nanoTime();
+        for (int i = 0; i < centrals.size(); i++) {
+            final BluetoothCentral central = centrals.get(i);
+            final OutboundQueue<BluetoothCentral, BluetoothGattCharacteristic> queue = outboundQueues.find(central);
+            final LinkPolicy.Status<BluetoothCentral> status = linkPolicy.update(central, central.getCurrentMtu(), ghs.requiredBytesPerSecond(central),
+                    queue != null ? queue.getSentBytes() : 0, queue != null ? queue.queuedPackets() : 0, now);
+            if (status.isSaturated()) {
+                Timber.w("link of %s is saturated: %d of %d bytes/s", central.getAddress(), status.achieved, status.required);
+            }
+            // Disconnected while being updated
+            if (!connected.contains(central)) linkPolicy.remove(central);
+        }
+    }
+
+    /**
+     * Stop advertising and stop the scheduler. Used by tests; the app server lives as long as the process.
+     */
+    void close() {
+        if (peripheralManager != null) peripheralManager.stopAdvertising();
+        scheduler.shutdown();
+    }
+
+    @NotNull PeriodicScheduler getScheduler() {
+        return scheduler;
+    }
+
+    @NotNull CentralRegistry<BluetoothCentral, BluetoothGattCharacteristic> getCentralRegistry() {
+        return centralRegistry;
     }
 }
@@ -0,0 +1,80 @@
+package com.welie.btserver;
+
+import com.welie.blessed.BluetoothCentral;
+import com.welie.blessed.GattStatus;
+import com.welie.blessed.ReadResponse;
+
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Read handler that serves one immutable {@link ReadResponse} until it is invalidated. Constant
+ * values are encoded once; versioned values are taken from their source again on the first read
+ * after {@link #invalidate()}. A cached response is shared by all centrals and is returned without
+ * going through the service's mailbox, so a read costs no allocation.
+ * <p>
+ * Values are not copied and must not be modified after they are handed out.
+ */
+final class CachedReadResponse implements AttributeRoute.ReadHandler {
+
+    interface ValueSource {
+        @NotNull byte[] value();
+    }
+
+    private static final class Entry {
+        final int version;
+        final @NotNull ReadResponse response;
+
+        Entry(int version, @NotNull ReadResponse response) {
+            this.version = version;
+            this.response = response;
+        }
+    }
+
+    private @NotNull final ValueSource source;
+    private @NotNull final AtomicInteger version = new AtomicInteger(0);
+    private volatile @Nullable Entry entry = null;
+
+    private CachedReadResponse(@NotNull ValueSource source) {
+        this.source = source;
+    }
+
+    static @NotNull CachedReadResponse constant(@NotNull byte[] value) {
+        final CachedReadResponse cache = new CachedReadResponse(() -> value);
+        cache.entry = new Entry(0, new ReadResponse(GattStatus.SUCCESS, value));
+        return cache;
+    }
+
+    static @NotNull CachedReadResponse versioned(@NotNull ValueSource source) {
+        return new CachedReadResponse(source);
+    }
+
+    /**
+     * The cached response, or null when the value has to be taken from its source first.
+     */
+    @Nullable ReadResponse cached() {
+        final Entry current = entry;
+        return current != null && current.version == version.get() ? current.response : null;
+    }
+
+    @Override
+    public @NotNull ReadResponse onRead(@NotNull BluetoothCentral central) {
+        final ReadResponse cached = cached();
+        if (cached != null) return cached;
+
+        // An invalidation while the value is taken leaves this entry stale, so it is taken again next time
+        final int currentVersion = version.get();
+        final ReadResponse response = new ReadResponse(GattStatus.SUCCESS, source.value());
+        entry = new Entry(currentVersion, response);
+        return response;
+    }
+
+    /**
+     * The value changed; the next read takes it from the source again.
+     */
+    void invalidate() {
+        version.incrementAndGet();
+    }
+}
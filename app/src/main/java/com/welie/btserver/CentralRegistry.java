@@ -0,0 +1,249 @@
+package com.welie.btserver;
+
+import org.jetbrains.annotations.NotNull;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.function.ToIntFunction;
+
+/**
+ * Keeps track of the connected centrals and of the centrals subscribed to each characteristic.
+ * The registry is updated incrementally from the peripheral manager callbacks; readers get
+ * copy-on-write snapshots, so iterating subscribers on the notification path is lock and
+ * allocation free.
+ * <p>
+ * Every connected central has a compact index, the lowest one free when it connected, which is
+ * released when it disconnects. Per-central state such as {@link ConsentSessions} is keyed by it.
+ *
+ * @param <C> central type
+ * @param <K> characteristic type
+ */
+final class CentralRegistry<C, K> {
+
+    static final int DEFAULT_MTU = 23;
+
+    /**
+     * One snapshot of a {@link CentralSet}: the centrals with their compact indexes.
+     */
+    static final class Members<C> {
+        final @NotNull List<C> centrals;
+        private final @NotNull int[] indexes;
+
+        private Members(@NotNull List<C> centrals, @NotNull int[] indexes) {
+            this.centrals = centrals;
+            this.indexes = indexes;
+        }
+
+        int size() {
+            return indexes.length;
+        }
+
+        @NotNull C get(int i) {
+            return centrals.get(i);
+        }
+
+        int indexAt(int i) {
+            return indexes[i];
+        }
+    }
+
+    /**
+     * Copy-on-write set of centrals. Iterate {@link #get()} by index to avoid allocating an iterator.
+     */
+    static final class CentralSet<C> {
+        private volatile @NotNull Members<C> snapshot = new Members<>(Collections.emptyList(), new int[0]);
+
+        @NotNull List<C> get() {
+            return snapshot.centrals;
+        }
+
+        /**
+         * The current centrals together with their compact indexes.
+         */
+        @NotNull Members<C> members() {
+            return snapshot;
+        }
+
+        boolean isEmpty() {
+            return snapshot.size() == 0;
+        }
+
+        int size() {
+            return snapshot.size();
+        }
+
+        boolean contains(@NotNull C central) {
+            return snapshot.centrals.contains(central);
+        }
+
+        private boolean add(@NotNull C central, int index) {
+            final Members<C> current = snapshot;
+            if (current.centrals.contains(central)) return false;
+            List<C> updated = new ArrayList<>(current.size() + 1);
+            updated.addAll(current.centrals);
+            updated.add(central);
+            final int[] indexes = Arrays.copyOf(current.indexes, current.size() + 1);
+            indexes[current.size()] = index;
+            snapshot = new Members<>(Collections.unmodifiableList(updated), indexes);
+            return true;
+        }
+
+        private boolean remove(@NotNull C central) {
+            final Members<C> current = snapshot;
+            final int position = current.centrals.indexOf(central);
+            if (position < 0) return false;
+            List<C> updated = new ArrayList<>(current.centrals);
+            updated.remove(position);
+            final int[] indexes = new int[current.size() - 1];
+            System.arraycopy(current.indexes, 0, indexes, 0, position);
+            System.arraycopy(current.indexes, position + 1, indexes, position, indexes.length - position);
+            snapshot = new Members<>(Collections.unmodifiableList(updated), indexes);
+            return true;
+        }
+    }
+
+    private @NotNull final ToIntFunction<C> mtuOf;
+    private @NotNull final CentralSet<C> connected = new CentralSet<>();
+    private @NotNull final IdentityHashMap<K, CentralSet<C>> subscribers = new IdentityHashMap<>();
+    private @NotNull final IdentityHashMap<C, Integer> indexes = new IdentityHashMap<>();
+    private long[] usedIndexes = new long[1];
+    private @NotNull final ConsentSessions consentSessions = new ConsentSessions();
+    private volatile int minMtu = DEFAULT_MTU;
+    private volatile int maxMtu = DEFAULT_MTU;
+
+    CentralRegistry(@NotNull ToIntFunction<C> mtuOf) {
+        this.mtuOf = mtuOf;
+    }
+
+    synchronized void onCentralConnected(@NotNull C central) {
+        connected.add(central, assignIndex(central));
+        refreshMtu();
+    }
+
+    synchronized void onCentralDisconnected(@NotNull C central) {
+        connected.remove(central);
+        for (CentralSet<C> centralSet : subscribers.values()) {
+            centralSet.remove(central);
+        }
+        final Integer index = indexes.remove(central);
+        if (index != null) {
+            consentSessions.end(index);
+            usedIndexes[index >>> 6] &= ~(1L << index);
+        }
+        refreshMtu();
+    }
+
+    synchronized void onSubscribed(@NotNull C central, @NotNull K characteristic) {
+        final int index = assignIndex(central);
+        connected.add(central, index);
+        subscribers(characteristic).add(central, index);
+        // The MTU is usually exchanged after connecting but before subscribing
+        refreshMtu();
+    }
+
+    synchronized void onUnsubscribed(@NotNull C central, @NotNull K characteristic) {
+        subscribers(characteristic).remove(central);
+    }
+
+    /**
+     * Get the subscribers of a characteristic. The returned set is live and stays valid, so it can
+     * be looked up once and kept.
+     */
+    synchronized @NotNull CentralSet<C> subscribers(@NotNull K characteristic) {
+        CentralSet<C> centralSet = subscribers.get(characteristic);
+        if (centralSet == null) {
+            centralSet = new CentralSet<>();
+            subscribers.put(characteristic, centralSet);
+        }
+        return centralSet;
+    }
+
+    /**
+     * Compact index of a connected central, or -1.
+     */
+    synchronized int indexOf(@NotNull C central) {
+        final Integer index = indexes.get(central);
+        return index != null ? index : -1;
+    }
+
+    /**
+     * Start a consent session for a central that is still connected.
+     *
+     * @return false if the central has disconnected in the meantime
+     */
+    synchronized boolean consent(@NotNull C central, int userIndex, int securityLevel) {
+        final Integer index = indexes.get(central);
+        if (index == null) return false;
+        consentSessions.start(index, userIndex, securityLevel);
+        return true;
+    }
+
+    /**
+     * The consent sessions of the connected centrals, by compact index.
+     */
+    @NotNull ConsentSessions consentSessions() {
+        return consentSessions;
+    }
+
+    /**
+     * Number of subscriptions over all characteristics.
+     */
+    synchronized int subscriptionCount() {
+        int count = 0;
+        for (CentralSet<C> centralSet : subscribers.values()) count += centralSet.size();
+        return count;
+    }
+
+    @NotNull CentralSet<C> connected() {
+        return connected;
+    }
+
+    boolean noCentralsConnected() {
+        return connected.isEmpty();
+    }
+
+    int getMinMtu() {
+        return minMtu;
+    }
+
+    int getMaxMtu() {
+        return maxMtu;
+    }
+
+    private int assignIndex(@NotNull C central) {
+        final Integer existing = indexes.get(central);
+        if (existing != null) return existing;
+        int word = 0;
+        while (word < usedIndexes.length && usedIndexes[word] == -1L) word++;
+        if (word == usedIndexes.length) usedIndexes = Arrays.copyOf(usedIndexes, word + 1);
+        final int index = word * 64 + Long.numberOfTrailingZeros(~usedIndexes[word]);
+        usedIndexes[word] |= 1L << index;
+        indexes.put(central, index);
+        return index;
+    }
+
+    /**
+     * Recompute the minimum and maximum MTU of the connected centrals.
+     */
+    synchronized void refreshMtu() {
+        final List<C> centrals = connected.get();
+        if (centrals.isEmpty()) {
+            minMtu = DEFAULT_MTU;
+            maxMtu = DEFAULT_MTU;
+            return;
+        }
+
+        int min = Integer.MAX_VALUE;
+        int max = Integer.MIN_VALUE;
+        for (int i = 0; i < centrals.size(); i++) {
+            final int mtu = mtuOf.applyAsInt(centrals.get(i));
+            min = Math.min(min, mtu);
+            max = Math.max(max, mtu);
+        }
+        minMtu = min;
+        maxMtu = max;
+    }
+}
@@ -0,0 +1,29 @@
+package com.welie.btserver;
+
+/**
+ * Source of time for the scheduler and the services, so tests can run on virtual time.
+ */
+interface Clock {
+
+    /**
+     * Start of the Elapsed Time Service epoch, 2000-01-01 00:00 UTC, in Unix milliseconds.
+     */
+    long ETS_EPOCH_MILLIS = 946_684_800_000L;
+
+    /**
+     * Monotonic time for measuring intervals, like {@link System#nanoTime()}.
+     */
+    long nanoTime();
+
+    /**
+     * Wall clock time in milliseconds since the Unix epoch.
+     */
+    long currentTimeMillis();
+
+    /**
+     * Wall clock time in seconds since the Elapsed Time Service epoch.
+     */
+    default long etsSeconds() {
+        return (currentTimeMillis() - ETS_EPOCH_MILLIS) / 1000;
+    }
+}
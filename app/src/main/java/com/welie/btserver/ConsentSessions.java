@@ -0,0 +1,98 @@
+package com.welie.btserver;
+
+import org.jetbrains.annotations.NotNull;
+
+import java.util.Arrays;
+
+/**
+ * The UDS user each connected central gave consent for, and the security level of the link it
+ * consented over, keyed by the compact central index of {@link CentralRegistry}. The centrals with
+ * a session are also kept as a copy-on-write bitmask, so the observation fan-out reads one
+ * snapshot per tick and tests one bit per central, without locks or allocation.
+ * <p>
+ * Sessions are changed through {@link CentralRegistry#consent} and ended when the central
+ * disconnects, under the registry's lock, so a released central index never carries a session over.
+ */
+final class ConsentSessions {
+
+    static final int NO_USER = -1;
+    static final int SECURITY_NONE = 0;
+    // Consent over an unauthenticated link
+    static final int SECURITY_UNAUTHENTICATED = 1;
+    // Consent from a bonded central
+    static final int SECURITY_BONDED = 2;
+
+    private int[] users = new int[64];
+    private int[] securityLevels = new int[64];
+    private volatile @NotNull long[] authorized = new long[1];
+
+    ConsentSessions() {
+        Arrays.fill(users, NO_USER);
+    }
+
+    /**
+     * Bit {@code i} is set when central index {@code i} has a session. The array must not be modified.
+     */
+    @NotNull long[] authorized() {
+        return authorized;
+    }
+
+    static boolean isAuthorized(@NotNull long[] authorized, int central) {
+        final int word = central >>> 6;
+        return central >= 0 && word < authorized.length && (authorized[word] & (1L << central)) != 0;
+    }
+
+    synchronized int userOf(int central) {
+        return central >= 0 && central < users.length ? users[central] : NO_USER;
+    }
+
+    synchronized int securityLevelOf(int central) {
+        return central >= 0 && central < securityLevels.length ? securityLevels[central] : SECURITY_NONE;
+    }
+
+    synchronized int count() {
+        int count = 0;
+        for (long word : authorized) count += Long.bitCount(word);
+        return count;
+    }
+
+    synchronized void start(int central, int userIndex, int securityLevel) {
+        if (central >= users.length) {
+            final int length = Math.max(users.length * 2, central + 1);
+            final int oldLength = users.length;
+            users = Arrays.copyOf(users, length);
+            securityLevels = Arrays.copyOf(securityLevels, length);
+            Arrays.fill(users, oldLength, length, NO_USER);
+        }
+        users[central] = userIndex;
+        securityLevels[central] = securityLevel;
+        setAuthorized(central, true);
+    }
+
+    synchronized void end(int central) {
+        if (central < 0 || central >= users.length) return;
+        users[central] = NO_USER;
+        securityLevels[central] = SECURITY_NONE;
+        setAuthorized(central, false);
+    }
+
+    /**
+     * End the sessions of every central that gave consent for a user, when the user is deleted.
+     */
+    synchronized void endUser(int userIndex) {
+        for (int central = 0; central < users.length; central++) {
+            if (users[central] == userIndex) end(central);
+        }
+    }
+
+    private void setAuthorized(int central, boolean set) {
+        final int word = central >>> 6;
+        final long[] updated = Arrays.copyOf(authorized, Math.max(authorized.length, word + 1));
+        if (set) {
+            updated[word] |= 1L << central;
+        } else {
+            updated[word] &= ~(1L << central);
+        }
+        authorized = updated;
+    }
+}
@@ -5,10 +5,6 @@ import android.bluetooth.BluetoothGattService;
 import android.os.Build;
 
 import com.welie.blessed.BluetoothBytesParser;
-import com.welie.blessed.BluetoothCentral;
-import com.welie.blessed.BluetoothPeripheralManager;
-import com.welie.blessed.GattStatus;
-import com.welie.blessed.ReadResponse;
 
 import org.jetbrains.annotations.NotNull;
 
@@ -32,42 +28,28 @@ class DeviceInformationService extends BaseService {
 
     private @NotNull final BluetoothGattService service = new BluetoothGattService(DIS_SERVICE_UUID, BluetoothGattService.SERVICE_TYPE_PRIMARY);
 
-    public DeviceInformationService(@NotNull BluetoothPeripheralManager peripheralManager) {
-        super(peripheralManager);
+    public DeviceInformationService(@NotNull PeripheralManager peripheralManager, @NotNull ServerRuntime runtime) {
+        super(peripheralManager, runtime);
 
         BluetoothGattCharacteristic manufacturer = new BluetoothGattCharacteristic(MANUFACTURER_NAME_CHARACTERISTIC_UUID, PROPERTY_READ, PERMISSION_READ);
         service.addCharacteristic(manufacturer);
+        handleConstantRead(manufacturer, Build.MANUFACTURER.getBytes());
 
         BluetoothGattCharacteristic modelNumber = new BluetoothGattCharacteristic(MODEL_NUMBER_CHARACTERISTIC_UUID, PROPERTY_READ, PERMISSION_READ);
         service.addCharacteristic(modelNumber);
+        handleConstantRead(modelNumber, Build.MODEL.getBytes());
 
         BluetoothGattCharacteristic serialNumber = new BluetoothGattCharacteristic(SERIAL_NUMBER_CHARACTERISTIC_UUID, PROPERTY_READ, PERMISSION_READ);
         service.addCharacteristic(serialNumber);
+        handleConstantRead(serialNumber, "m1".getBytes());
 
 //        BluetoothGattCharacteristic securityLevels = new BluetoothGattCharacteristic(SECURITY_LEVELS_CHARACTERISTIC_UUID, PROPERTY_READ, PERMISSION_READ);
 //        service.addCharacteristic(securityLevels);
 
         BluetoothGattCharacteristic udi = new BluetoothGattCharacteristic(UDI_CHARACTERISTIC_UUID, PROPERTY_READ, PERMISSION_READ_ENCRYPTED_MITM);
         service.addCharacteristic(udi);
-    }
-
-    @Override
-    public ReadResponse onCharacteristicRead(@NotNull BluetoothCentral central, @NotNull BluetoothGattCharacteristic characteristic) {
         final byte[] udiLabel = "Philips POX22-1234".getBytes(StandardCharsets.UTF_8);
-        final byte[] udiValue = BluetoothBytesParser.mergeArrays(new byte[]{0x01}, udiLabel, new byte[]{0x00});
-
-        if (characteristic.getUuid().equals(MANUFACTURER_NAME_CHARACTERISTIC_UUID)) {
-            return new ReadResponse(GattStatus.SUCCESS, Build.MANUFACTURER.getBytes());
-        } else if (characteristic.getUuid().equals(MODEL_NUMBER_CHARACTERISTIC_UUID)) {
-            return new ReadResponse(GattStatus.SUCCESS, Build.MODEL.getBytes());
-        }  else if (characteristic.getUuid().equals(SERIAL_NUMBER_CHARACTERISTIC_UUID)) {
-            return new ReadResponse(GattStatus.SUCCESS, "m1".getBytes());
-//        } else if (characteristic.getUuid().equals(SECURITY_LEVELS_CHARACTERISTIC_UUID)) {
-//            return new ReadResponse(GattStatus.SUCCESS, new byte[]{0x01, 0x03});
-        } else if (characteristic.getUuid().equals(UDI_CHARACTERISTIC_UUID)) {
-            return new ReadResponse(GattStatus.SUCCESS, udiValue);
-        }
-        return super.onCharacteristicRead(central, characteristic);
+        handleConstantRead(udi, BluetoothBytesParser.mergeArrays(new byte[]{0x01}, udiLabel, new byte[]{0x00}));
     }
 
     @Override
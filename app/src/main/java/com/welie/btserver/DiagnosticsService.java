@@ -0,0 +1,45 @@
+package com.welie.btserver;
+
+import android.bluetooth.BluetoothGattCharacteristic;
+import android.bluetooth.BluetoothGattService;
+
+import com.welie.blessed.GattStatus;
+import com.welie.blessed.ReadResponse;
+
+import org.jetbrains.annotations.NotNull;
+
+import java.util.UUID;
+import java.util.function.Supplier;
+
+import static android.bluetooth.BluetoothGattCharacteristic.PERMISSION_READ_ENCRYPTED;
+import static android.bluetooth.BluetoothGattCharacteristic.PROPERTY_READ;
+
+/**
+ * Vendor service exposing the server's runtime metrics as one readable characteristic, see
+ * {@link ServerMetrics.Snapshot#toBytes()}. Only added to debuggable builds.
+ */
+class DiagnosticsService extends BaseService {
+
+    static final UUID DIAGNOSTICS_SERVICE_UUID = UUID.fromString("a0f7d001-3c2e-4b6a-9d51-6e2f0c8b1a47");
+    static final UUID METRICS_CHARACTERISTIC_UUID = UUID.fromString("a0f7d002-3c2e-4b6a-9d51-6e2f0c8b1a47");
+
+    private @NotNull final BluetoothGattService service = new BluetoothGattService(DIAGNOSTICS_SERVICE_UUID, BluetoothGattService.SERVICE_TYPE_PRIMARY);
+
+    DiagnosticsService(@NotNull PeripheralManager peripheralManager, @NotNull ServerRuntime runtime, @NotNull Supplier<ServerMetrics.Snapshot> snapshots) {
+        super(peripheralManager, runtime);
+
+        BluetoothGattCharacteristic metricsCharacteristic = new BluetoothGattCharacteristic(METRICS_CHARACTERISTIC_UUID, PROPERTY_READ, PERMISSION_READ_ENCRYPTED);
+        service.addCharacteristic(metricsCharacteristic);
+        handleRead(metricsCharacteristic, central -> new ReadResponse(GattStatus.SUCCESS, snapshots.get().toBytes()));
+    }
+
+    @Override
+    public @NotNull BluetoothGattService getService() {
+        return service;
+    }
+
+    @Override
+    public String getServiceName() {
+        return "Diagnostics Service";
+    }
+}
@@ -0,0 +1,85 @@
+package com.welie.btserver;
+
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.util.Arrays;
+
+/**
+ * Immutable identity map from attribute objects to their handlers, built once when services are
+ * registered. Keys are compared with {@code ==} and looked up in a small open-addressing table, so
+ * a lookup is one hash and usually one probe, independent of the number of attributes.
+ *
+ * @param <K> key type, compared by identity
+ * @param <V> value type
+ */
+final class DispatchTable<K, V> {
+
+    private final Object[] keys;
+    private final Object[] values;
+    private final int mask;
+    private final int size;
+
+    private DispatchTable(@NotNull Builder<K, V> builder) {
+        int capacity = 2;
+        while (capacity < builder.size * 2) capacity <<= 1;
+        this.keys = new Object[capacity];
+        this.values = new Object[capacity];
+        this.mask = capacity - 1;
+        this.size = builder.size;
+        for (int i = 0; i < builder.size; i++) {
+            int slot = slot(builder.keys[i]);
+            while (keys[slot] != null) slot = (slot + 1) & mask;
+            keys[slot] = builder.keys[i];
+            values[slot] = builder.values[i];
+        }
+    }
+
+    static final class Builder<K, V> {
+        private Object[] keys = new Object[16];
+        private Object[] values = new Object[16];
+        private int size = 0;
+
+        /**
+         * @throws IllegalArgumentException when the key was added before
+         */
+        @NotNull Builder<K, V> put(@NotNull K key, @NotNull V value) {
+            for (int i = 0; i < size; i++) {
+                if (keys[i] == key) throw new IllegalArgumentException("duplicate key " + key);
+            }
+            if (size == keys.length) {
+                keys = Arrays.copyOf(keys, size * 2);
+                values = Arrays.copyOf(values, size * 2);
+            }
+            keys[size] = key;
+            values[size] = value;
+            size++;
+            return this;
+        }
+
+        @NotNull DispatchTable<K, V> build() {
+            return new DispatchTable<>(this);
+        }
+    }
+
+    @SuppressWarnings("unchecked")
+    @Nullable V get(@NotNull K key) {
+        int slot = slot(key);
+        Object candidate;
+        while ((candidate = keys[slot]) != null) {
+            if (candidate == key) return (V) values[slot];
+            slot = (slot + 1) & mask;
+        }
+        return null;
+    }
+
+    int size() {
+        return size;
+    }
+
+    private int slot(@NotNull Object key) {
+        // Spread the identity hash, its low bits are not well distributed on every VM
+        final int hash = System.identityHashCode(key) * 0x9E3779B9;
+        return (hash ^ (hash >>> 16)) & mask;
+    }
+}
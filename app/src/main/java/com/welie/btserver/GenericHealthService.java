@@ -2,36 +2,29 @@ package com.welie.btserver;
 
 import static android.bluetooth.BluetoothGattCharacteristic.*;
 
-import static com.welie.blessed.BluetoothBytesParser.asHexString;
-import static com.welie.blessed.BluetoothBytesParser.mergeArrays;
 
-import static java.lang.Math.min;
 import static java.nio.ByteOrder.LITTLE_ENDIAN;
 
 import android.annotation.SuppressLint;
 import android.bluetooth.BluetoothGattCharacteristic;
 import android.bluetooth.BluetoothGattDescriptor;
 import android.bluetooth.BluetoothGattService;
-import android.content.Intent;
-import android.os.Handler;
-import android.os.Looper;
 
 import androidx.annotation.NonNull;
 
 import com.welie.blessed.BluetoothBytesParser;
 import com.welie.blessed.BluetoothCentral;
-import com.welie.blessed.BluetoothPeripheralManager;
 import com.welie.blessed.GattStatus;
-import com.welie.blessed.ReadResponse;
 
 import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
 
-import java.util.Calendar;
+import java.io.IOException;
+import java.util.HashMap;
 import java.util.Objects;
-import java.util.Set;
-import java.util.TimeZone;
+import java.util.List;
 import java.util.UUID;
-import java.util.stream.Collectors;
+import java.util.concurrent.TimeUnit;
 
 import timber.log.Timber;
 
@@ -42,59 +35,158 @@ public class GenericHealthService extends BaseService {
     private static final UUID GHS_SCHEDULE_CHANGED_CHAR_UUID = UUID.fromString("00007f3f-0000-1000-8000-00805f9b34fb");
     private static final UUID GHS_SCHEDULE_DESCRIPTOR_UUID = UUID.fromString("00007f35-0000-1000-8000-00805f9b34fb");
     private static final UUID SECURITY_LEVELS_CHARACTERISTIC_UUID = UUID.fromString("00002BF5-0000-1000-8000-00805f9b34fb");
-
-    public static final String MEASUREMENT_PULSE_OX = "ghs.observation.pulseox";
-    public static final String MEASUREMENT_PULSE_OX_EXTRA_CONTINUOUS = "ghs.observation.pulseox.extra.value";
+    private static final UUID STORED_OBSERVATION_CHAR_UUID = UUID.fromString("00007f42-0000-1000-8000-00805f9b34fb");
+    private static final UUID RACP_CHAR_UUID = UUID.fromString("00002a52-0000-1000-8000-00805f9b34fb");
 
     private @NotNull final BluetoothGattService service = new BluetoothGattService(GHS_SERVICE_UUID, BluetoothGattService.SERVICE_TYPE_PRIMARY);
     private @NotNull final BluetoothGattCharacteristic scheduleChanged = new BluetoothGattCharacteristic(GHS_SCHEDULE_CHANGED_CHAR_UUID, PROPERTY_INDICATE, 0);
     private @NotNull final BluetoothGattCharacteristic liveObservation = new BluetoothGattCharacteristic(OBSERVATION_CHAR_UUID, PROPERTY_NOTIFY, 0);
+    private @NotNull final BluetoothGattCharacteristic storedObservation = new BluetoothGattCharacteristic(STORED_OBSERVATION_CHAR_UUID, PROPERTY_NOTIFY, 0);
+    private @NotNull final BluetoothGattCharacteristic racp = new BluetoothGattCharacteristic(RACP_CHAR_UUID, PROPERTY_WRITE | PROPERTY_INDICATE, PERMISSION_WRITE);
 
-    private @NotNull final Handler handler = new Handler(Looper.getMainLooper());
     public static final int MDC_PULS_OXIM_SAT_O2 = 150456;
     public static final int MDC_DEV_SPEC_PROFILE_PULS_OXIM = 528388;
-    private volatile byte[] scheduleValue;
-    private float interval = 1.0f;
-    private float measurement_duration = 1.0f;
+    public static final int MDC_PULS_OXIM_PLETH = 150452;
+    public static final int MDC_PULS_OXIM_PULS_RATE = 149530;
+    public static final int MDC_PULS_OXIM_PERF_REL = 150488;
+    public static final int MDC_DIM_PER_CENT = 0x0220;
+    public static final int MDC_DIM_DIMLESS = 0x0200;
+    public static final int MDC_DIM_BEAT_PER_MIN = 0x0AA0;
+    // Stop queueing stored observations for a central while this many of them are waiting
+    private static final int REPORT_QUEUE_LIMIT = 8;
+    private static final int PLETH_DEFAULT_SAMPLE_RATE = 100;
+    // Waveform samples are sent in one observation per window
+    private static final long PLETH_WINDOW_MILLIS = 250;
+    private static final double PULSE_RATE_HZ = 72 / 60.0;
+    private @NotNull final ObservationTypeRegistry observationTypes = new ObservationTypeRegistry();
     private final byte[] featureValue;
-    private @NotNull final Runnable notifyRunnable = this::notifyLiveObservation;
+    private @NotNull final Runnable tickRunnable = this::tickObservations;
+    // Ticks of the shared observation timer since it was started or its period changed
+    private long tickMillis;
+    private long tick = 0;
+    // Latest sample of each observation type, which is what live observations send
+    private @NotNull final float[] latestValues;
+    private @NotNull final long[] latestEtsSeconds;
+    // Observations that are due on the same tick are sent together in one bundle
+    private @NotNull final ObservationBundler dueBundler = new ObservationBundler(ObservationBundler.MAX_SAMPLES);
+    // Runs on the scheduler thread; the tick itself runs in this service's mailbox
+    private @NotNull final Runnable postTickRunnable = () -> mailbox.execute(tickRunnable);
+    // Always on: observations are sampled, published and stored whether or not any central is connected
+    private @NotNull final PeriodicScheduler.Job observationJob;
+    // Non-null when bundle mode is on
+    private @Nullable ObservationBundler bundler = null;
     private boolean isNotifyingLiveObservations = false;
-    private int segmentCounter = 0;
+    private @NotNull final CentralRegistry.CentralSet<BluetoothCentral> observationSubscribers;
+    private @NotNull final CentralRegistry.CentralSet<BluetoothCentral> scheduleSubscribers;
+    // Keyed by observation type index; the schedule is read when the indication is sent
+    private @NotNull final IndicationCoalescer<BluetoothCentral> scheduleIndications =
+            new IndicationCoalescer<>((central, typeIndex) -> indicate(central, observationTypes.get(typeIndex).getScheduleValue(), scheduleChanged));
+    private @NotNull final ConsentSessions consentSessions;
+    private @NotNull final ObservationSegmenter segmenter = new ObservationSegmenter();
+    private @NotNull final HashMap<String, ObservationSegmenter.SegmentCounter> segmentCounters = new HashMap<>();
+    // Segmentation header followed by the observation, reused every tick
+    private @NotNull final byte[] observationPacket = new byte[1 + NumericObservationEncoder.OBSERVATION_LENGTH];
+
+    // Pleth waveform: produced on the scheduler thread, sent from the actor
+    private int plethSampleRate = PLETH_DEFAULT_SAMPLE_RATE;
+    private int plethWindow;
+    private @NotNull SampleArrayObservationEncoder plethEncoder = newPlethEncoder(PLETH_DEFAULT_SAMPLE_RATE);
+    private @NotNull final SampleRingBuffer plethSamples = new SampleRingBuffer(1024);
+    private @NotNull final ObservationSegmenter plethSegmenter = new ObservationSegmenter();
+    private @NotNull byte[] plethPacket = new byte[1];
+    private @Nullable PeriodicScheduler.Job plethJob = null;
+    private long plethStartMillis;
+    private long plethStartIndex;
+    private @NotNull final Runnable flushPlethRunnable = this::flushPleth;
+    // Only touched by the producer
+    private double plethPhase = 0;
+    private int plethSamplesSinceFlush = 0;
+
+    // Observations per second of the current schedule, read by the link policy on the scheduler thread
+    private volatile float numericObservationsPerSecond;
+    private volatile float plethObservationsPerSecond;
+    private volatile int plethObservationLength;
+
+    // Stored observations; null when the store could not be opened
+    private @Nullable final ObservationStore store;
+    private boolean storeGrowPending = false;
+    private @NotNull final Runnable growStoreRunnable = this::growStore;
+    private @NotNull final CentralRegistry.CentralSet<BluetoothCentral> racpSubscribers;
+    private @NotNull final HashMap<String, ReportCursor> reports = new HashMap<>();
+    private @NotNull final RecordAccessControlPoint.Request racpRequest = new RecordAccessControlPoint.Request();
+    private @NotNull final ObservationStore.Record storedRecord = new ObservationStore.Record();
+    private @NotNull final ObservationSegmenter storedSegmenter = new ObservationSegmenter();
+    private @NotNull final HashMap<String, ObservationSegmenter.SegmentCounter> storedSegmentCounters = new HashMap<>();
+    // Segmentation header, record number and observation
+    private @NotNull final byte[] storedPacket = new byte[1 + 4 + NumericObservationEncoder.OBSERVATION_LENGTH];
+
+    // Store positions [position, end) still to be reported to a central
+    private static final class ReportCursor {
+        long position;
+        long end;
+        // Packets of the report in the central's queue, so live traffic filling the queue does not stall it
+        int queuedPackets;
+    }
 
-    GenericHealthService(@NotNull BluetoothPeripheralManager peripheralManager) {
-        super(peripheralManager);
+    GenericHealthService(@NotNull PeripheralManager peripheralManager, @NotNull ServerRuntime runtime, @Nullable ObservationStore store) {
+        super(peripheralManager, runtime);
+        this.store = store;
 
-        BluetoothBytesParser parser = new BluetoothBytesParser();
-        parser.setUInt32(MDC_PULS_OXIM_SAT_O2);
-        parser.setFloatValue(measurement_duration, 1);
-        parser.setFloatValue(interval, 1);
-        scheduleValue = parser.getValue().clone();
+        observationTypes.add(new ObservationType(MDC_PULS_OXIM_SAT_O2, MDC_DIM_PER_CENT, () -> (float) (95.0f + (Math.random() * 2)), 1.0f, 1.0f));
+        observationTypes.add(new ObservationType(MDC_PULS_OXIM_PULS_RATE, MDC_DIM_BEAT_PER_MIN, () -> (float) (70.0f + (Math.random() * 5)), 1.0f, 1.0f));
+        observationTypes.add(new ObservationType(MDC_PULS_OXIM_PERF_REL, MDC_DIM_PER_CENT, () -> (float) (2.0f + (Math.random() * 2)), 1.0f, 5.0f));
+        observationTypes.addStreamed(MDC_PULS_OXIM_PLETH);
 
+        // One schedule descriptor per scheduled observation type
         BluetoothGattCharacteristic feature = new BluetoothGattCharacteristic(GHS_FEATURES_CHAR_UUID, PROPERTY_READ, PERMISSION_READ);
-        BluetoothGattDescriptor scheduleDescriptor = new BluetoothGattDescriptor(GHS_SCHEDULE_DESCRIPTOR_UUID, PERMISSION_READ | PERMISSION_WRITE);
-        feature.addDescriptor(scheduleDescriptor);
+        for (int i = 0; i < observationTypes.size(); i++) {
+            BluetoothGattDescriptor scheduleDescriptor = new BluetoothGattDescriptor(GHS_SCHEDULE_DESCRIPTOR_UUID, PERMISSION_READ | PERMISSION_WRITE);
+            feature.addDescriptor(scheduleDescriptor);
+            final int typeIndex = i;
+            final ObservationType type = observationTypes.get(i);
+            final CachedReadResponse scheduleCache = handleCachedRead(scheduleDescriptor, type::getScheduleValue);
+            handleWrite(scheduleDescriptor, (central, value) -> writeSchedule(central, type, scheduleCache, value), (central, value) -> indicateScheduleChanged(central, typeIndex));
+        }
         BluetoothGattCharacteristic securityLevels = new BluetoothGattCharacteristic(SECURITY_LEVELS_CHARACTERISTIC_UUID, PROPERTY_READ, PERMISSION_READ);
         service.addCharacteristic(securityLevels);
+        handleConstantRead(securityLevels, new byte[]{0x01, 0x03});
 
-        BluetoothBytesParser parser2 = new BluetoothBytesParser();
-        parser2.setUInt8(0); //flags - no device specializations field present
-        parser2.setUInt8(1); // 1 supported observation
-        parser2.setUInt32(MDC_PULS_OXIM_SAT_O2);
-        featureValue = parser2.getValue().clone();
+        featureValue = observationTypes.featureValue();
         service.addCharacteristic(feature);
+        handleConstantRead(feature, featureValue);
 
         scheduleChanged.addDescriptor(getCccDescriptor());
         service.addCharacteristic(scheduleChanged);
 
         liveObservation.addDescriptor(getCccDescriptor());
         service.addCharacteristic(liveObservation);
+
+        if (store != null) {
+            storedObservation.addDescriptor(getCccDescriptor());
+            service.addCharacteristic(storedObservation);
+
+            racp.addDescriptor(getCccDescriptor());
+            service.addCharacteristic(racp);
+            handleWrite(racp, this::writeRacp, this::executeRacp);
+        }
+
+        observationSubscribers = centralRegistry.subscribers(liveObservation);
+        scheduleSubscribers = centralRegistry.subscribers(scheduleChanged);
+        racpSubscribers = centralRegistry.subscribers(racp);
+        consentSessions = centralRegistry.consentSessions();
+        updateDemand();
+
+        latestValues = new float[observationTypes.size()];
+        latestEtsSeconds = new long[observationTypes.size()];
+        tickMillis = getTickMillis();
+        observationJob = scheduler.scheduleAtFixedRate("observations", postTickRunnable, 0, tickMillis, TimeUnit.MILLISECONDS);
     }
 
     @SuppressLint("MissingPermission")
     @Override
     public void onCentralConnected(@NotNull BluetoothCentral central) {
         Timber.d("Central bondstate is %s", central.getBondState());
-        if (!getConnectedCentralsWantingObservations().isEmpty()) {
+        if (!observationSubscribers.isEmpty()) {
             if (!isNotifyingLiveObservations) {
                 startNotifyingLiveObservations();
             }
@@ -103,7 +195,11 @@ public class GenericHealthService extends BaseService {
 
     @Override
     public void onCentralDisconnected(@NotNull BluetoothCentral central) {
-        if (getConnectedCentralsWantingObservations().isEmpty()) {
+        segmentCounters.remove(central.getAddress());
+        storedSegmentCounters.remove(central.getAddress());
+        reports.remove(central.getAddress());
+        scheduleIndications.remove(central);
+        if (observationSubscribers.isEmpty()) {
             stopNotifyingLiveObservations();
         }
     }
@@ -111,145 +207,407 @@ public class GenericHealthService extends BaseService {
     private void startNotifyingLiveObservations() {
         Timber.d("starting sending live observations");
         isNotifyingLiveObservations = true;
-        notifyLiveObservation();
+        startPleth();
     }
 
     private void stopNotifyingLiveObservations() {
         Timber.d("stopping sending live observations");
-        handler.removeCallbacks(notifyRunnable);
+        if (bundler != null) bundler.clear();
+        stopPleth();
         isNotifyingLiveObservations = false;
     }
 
-    @Override
-    public ReadResponse onCharacteristicRead(@NotNull BluetoothCentral central, @NotNull BluetoothGattCharacteristic characteristic) {
-        if (characteristic.getUuid() == GHS_FEATURES_CHAR_UUID) {
-            return new ReadResponse(GattStatus.SUCCESS, featureValue);
-        } else if (characteristic.getUuid().equals(SECURITY_LEVELS_CHARACTERISTIC_UUID)) {
-            return new ReadResponse(GattStatus.SUCCESS, new byte[]{0x01, 0x03});
+    /**
+     * Set the sample rate of the pleth waveform.
+     *
+     * @param samplesPerSecond samples per second, at most 255; 0 turns the waveform off
+     */
+    void setPlethSampleRate(int samplesPerSecond) {
+        if (samplesPerSecond < 0 || samplesPerSecond > SampleArrayObservationEncoder.MAX_SAMPLE_RATE) {
+            throw new IllegalArgumentException("sample rate must be in [0..255]");
         }
-        return new ReadResponse(GattStatus.REQUEST_NOT_SUPPORTED, null);
+        mailbox.execute(() -> {
+            stopPleth();
+            plethSampleRate = samplesPerSecond;
+            if (samplesPerSecond > 0) {
+                plethEncoder = newPlethEncoder(samplesPerSecond);
+                if (isNotifyingLiveObservations) startPleth();
+            }
+            updateDemand();
+        });
     }
 
-    private void broadcastValue(float spo2Value) {
-        Intent intent = new Intent(MEASUREMENT_PULSE_OX);
-        intent.putExtra(MEASUREMENT_PULSE_OX_EXTRA_CONTINUOUS, spo2Value);
-        context.sendBroadcast(intent);
+    private static @NotNull SampleArrayObservationEncoder newPlethEncoder(int sampleRate) {
+        // 16-bit samples of 0.001 arbitrary units
+        return new SampleArrayObservationEncoder(MDC_PULS_OXIM_PLETH, MDC_DIM_DIMLESS, 0.001f, 0, 3, sampleRate, 2);
     }
 
-    private void notifyLiveObservation() {
-        int minMTU = getMinMTU();
+    private void startPleth() {
+        if (plethSampleRate == 0 || plethJob != null) return;
+        final int sampleRate = plethSampleRate;
+        final int window = plethWindowFor(sampleRate);
+        plethWindow = window;
+        plethPacket = new byte[1 + plethEncoder.observationLength(window)];
+        plethSamples.consumeAll();
+        plethStartIndex = plethSamples.readIndex();
+        plethStartMillis = clock.currentTimeMillis();
+        plethJob = scheduler.scheduleAtFixedRate("pleth waveform", () -> samplePleth(sampleRate, window), 0, 1_000_000_000L / sampleRate, TimeUnit.NANOSECONDS);
+    }
 
-        float spo2Value = (float) (95.0f + (Math.random() * 2));
-        broadcastValue(spo2Value);
-        byte[] observation = createObservation(spo2Value);
-        byte[] packet;
-        if (minMTU - 4 >= observation.length) {
-            packet = mergeArrays(new byte[]{(byte) ((segmentCounter << 2) + 3)}, observation);
-            Timber.d("notifying observation <%s>", asHexString(observation));
-            notifyCharacteristicChanged(packet, liveObservation);
+    private static int plethWindowFor(int sampleRate) {
+        return (int) Math.max(1, sampleRate * PLETH_WINDOW_MILLIS / 1000);
+    }
+
+    private void stopPleth() {
+        if (plethJob != null) {
+            plethJob.cancel();
+            plethJob = null;
+        }
+        plethSamples.consumeAll();
+    }
+
+    // Runs on the scheduler thread
+    private void samplePleth(int sampleRate, int window) {
+        plethPhase += PULSE_RATE_HZ / sampleRate;
+        if (plethPhase >= 1) plethPhase -= 1;
+        plethSamples.offer(plethSample(plethPhase));
+        if (++plethSamplesSinceFlush >= window) {
+            plethSamplesSinceFlush = 0;
+            mailbox.execute(flushPlethRunnable);
+        }
+    }
+
+    // Synthetic pulse: systolic peak followed by a dicrotic wave
+    private static int plethSample(double phase) {
+        final double systolic = (phase - 0.15) / 0.07;
+        final double dicrotic = (phase - 0.45) / 0.08;
+        return (int) (20000 + 30000 * Math.exp(-systolic * systolic) + 8000 * Math.exp(-dicrotic * dicrotic));
+    }
+
+    private void flushPleth() {
+        if (plethJob == null) return;
+        final int window = plethWindow;
+        while (plethSamples.size() >= window) {
+            final long sampleMillis = plethStartMillis + (plethSamples.readIndex() - plethStartIndex) * 1000 / plethEncoder.getSampleRate();
+            plethEncoder.encode(plethPacket, 1, (sampleMillis - Clock.ETS_EPOCH_MILLIS) / 1000, plethSamples, window);
+            plethSamples.consume(window);
+            plethSegmenter.setObservation(plethPacket);
+            notifyObservationToCentrals(plethSegmenter);
+        }
+    }
+
+    /**
+     * Turn bundle mode on or off. Each observation type is sampled every measurement period; in
+     * bundle mode all samples, at most {@code maxSamples}, are sent together as observation bundles
+     * sized to each central's MTU whenever an update interval ends, instead of only the latest.
+     *
+     * @param maxSamples maximum samples per bundle, 1 or less turns bundle mode off
+     */
+    void setBundleMode(int maxSamples) {
+        mailbox.execute(() -> {
+            if (bundler != null && bundler.size() > 0) {
+                notifyBundleToCentrals(bundler);
+            }
+            bundler = maxSamples > 1 ? new ObservationBundler(Math.min(maxSamples, ObservationBundler.MAX_SAMPLES)) : null;
+            updateTickPeriod();
+        });
+    }
+
+    // Every measurement period is sampled, also when live observations are not bundled
+    private long getTickMillis() {
+        return observationTypes.getTickMillis(true);
+    }
+
+    private void updateDemand() {
+        float perSecond = 0;
+        for (int i = 0; i < observationTypes.size(); i++) perSecond += 1 / observationTypes.get(i).getUpdateInterval();
+        numericObservationsPerSecond = perSecond;
+        if (plethSampleRate > 0) {
+            final int window = plethWindowFor(plethSampleRate);
+            plethObservationLength = plethEncoder.observationLength(window);
+            plethObservationsPerSecond = plethSampleRate / (float) window;
         } else {
-            int numberOfSegments = (int) Math.ceil((double) observation.length / (minMTU - 4));
-            int observationIndex = 0;
-            int observationRemaining = observation.length;
-            for (int i = 0; i < numberOfSegments; i++) {
-                int segmentsize = min(minMTU - 4, observationRemaining);
-                byte[] segment = new byte[segmentsize];
-                System.arraycopy(observation, observationIndex, segment, 0, segmentsize);
-                observationRemaining -= segmentsize;
-                observationIndex += segmentsize;
-
-                if (i == 0) {
-                    packet = mergeArrays(new byte[]{(byte) ((segmentCounter << 2) + 1)}, segment);
-                } else if (i == numberOfSegments - 1) {
-                    packet = mergeArrays(new byte[]{(byte) ((segmentCounter << 2) + 2)}, segment);
-                } else {
-                    packet = mergeArrays(new byte[]{(byte) (segmentCounter << 2)}, segment);
+            plethObservationsPerSecond = 0;
+        }
+    }
+
+    /**
+     * Bytes per second of live observations sent to {@code central} at its current MTU, or 0 if it
+     * is not subscribed or gave no consent. Bundles need less. Called from any thread.
+     */
+    int requiredBytesPerSecond(@NotNull BluetoothCentral central) {
+        if (!observationSubscribers.contains(central)) return 0;
+        if (!hasConsent(central)) return 0;
+        final int mtu = central.getCurrentMtu();
+        return (int) Math.ceil(numericObservationsPerSecond * LinkPolicy.segmentedBytes(NumericObservationEncoder.OBSERVATION_LENGTH, mtu)
+                + plethObservationsPerSecond * LinkPolicy.segmentedBytes(plethObservationLength, mtu));
+    }
+
+    private void updateTickPeriod() {
+        tick = 0;
+        tickMillis = getTickMillis();
+        observationJob.setPeriod(tickMillis, TimeUnit.MILLISECONDS);
+    }
+
+    // One tick of the shared timer. Every type whose measurement period is due is sampled once; the
+    // sample is published, stored and, while centrals are subscribed, sent when its update interval is due
+    private void tickObservations() {
+        final long currentTick = tick++;
+        final long etsSeconds = getSecondsSinceEtsEpoch();
+        final ObservationBundler bundler = isNotifyingLiveObservations ? this.bundler : null;
+        boolean flush = false;
+        int lastDue = -1;
+        dueBundler.clear();
+        for (int i = 0; i < observationTypes.size(); i++) {
+            final ObservationType type = observationTypes.get(i);
+            if (ObservationTypeRegistry.isDue(currentTick, tickMillis, type.getMeasurementPeriod())) {
+                final float value = type.sample();
+                latestValues[i] = value;
+                latestEtsSeconds[i] = etsSeconds;
+                observationBus.publish(type.mdcCode, value, etsSeconds);
+                storeObservation(type, etsSeconds, value);
+                if (bundler != null) {
+                    if (bundler.isFull()) notifyBundleToCentrals(bundler);
+                    bundler.add(type.encoder, etsSeconds, type.getMeasurementPeriod(), value);
                 }
-                notifyObservationToCentrals(packet);
+            }
+            if (!isNotifyingLiveObservations || !ObservationTypeRegistry.isDue(currentTick, tickMillis, type.getUpdateInterval())) continue;
+            if (bundler != null) {
+                flush = true;
+            } else {
+                // Tick 0 samples every type, so there always is a latest sample
+                dueBundler.add(type.encoder, latestEtsSeconds[i], type.getMeasurementPeriod(), latestValues[i]);
+                lastDue = i;
+            }
+        }
+
+        if (bundler != null) {
+            if (flush && bundler.size() > 0) notifyBundleToCentrals(bundler);
+        } else if (dueBundler.size() > 1) {
+            notifyBundleToCentrals(dueBundler);
+        } else if (lastDue >= 0) {
+            final ObservationType type = observationTypes.get(lastDue);
+            type.encoder.encode(observationPacket, 1, latestEtsSeconds[lastDue], type.getMeasurementPeriod(), latestValues[lastDue]);
+            segmenter.setObservation(observationPacket);
+            trace.record(TraceRing.OBSERVATION, TraceRing.NO_CENTRAL, observationPacket, 1, observationPacket.length - 1);
+            notifyObservationToCentrals(segmenter);
+        }
+    }
+
+    private void notifyObservationToCentrals(@NotNull ObservationSegmenter segmenter) {
+        final CentralRegistry.Members<BluetoothCentral> subscribers = observationSubscribers.members();
+        final long[] authorized = consentSessions.authorized();
+        for (int c = 0; c < subscribers.size(); c++) {
+            // Only centrals that gave consent for a user get observations
+            if (!ConsentSessions.isAuthorized(authorized, subscribers.indexAt(c))) continue;
+            final BluetoothCentral connectedCentral = subscribers.get(c);
+            final ObservationSegmenter.Segments segments = segmenter.segmentsFor(connectedCentral.getCurrentMtu());
+            // Packets are shared by all centrals with this MTU; the queue patches in each central's header
+            offerTrain(outboundQueues.queueFor(connectedCentral), liveObservation, segments, getSegmentCounter(connectedCentral));
+        }
+    }
 
-                segmentCounter++;
-                if (segmentCounter > 63) segmentCounter = 0;
+    private void notifyBundleToCentrals(@NotNull ObservationBundler bundler) {
+        trace.record(TraceRing.BUNDLE, TraceRing.NO_CENTRAL, bundler.size());
+        final CentralRegistry.Members<BluetoothCentral> subscribers = observationSubscribers.members();
+        final long[] authorized = consentSessions.authorized();
+        for (int c = 0; c < subscribers.size(); c++) {
+            if (!ConsentSessions.isAuthorized(authorized, subscribers.indexAt(c))) continue;
+            final BluetoothCentral connectedCentral = subscribers.get(c);
+            final ObservationBundler.Bundles bundles = bundler.bundlesFor(connectedCentral.getCurrentMtu());
+            final ObservationSegmenter.SegmentCounter segmentCounter = getSegmentCounter(connectedCentral);
+            final OutboundQueue<BluetoothCentral, BluetoothGattCharacteristic> queue = outboundQueues.queueFor(connectedCentral);
+            for (int i = 0; i < bundles.count(); i++) {
+                offerTrain(queue, liveObservation, bundles.train(i), segmentCounter);
             }
         }
-        handler.postDelayed(notifyRunnable, (long) (interval * 1000L));
+        bundler.clear();
     }
 
-    private void notifyObservationToCentrals(byte[] packet) {
-        Timber.d("notifying observation <%s>", asHexString(packet));
-        Set<BluetoothCentral> allCentrals = getConnectedCentralsWantingObservations();
-        for (BluetoothCentral connectedCentral : allCentrals) {
-            peripheralManager.notifyCharacteristicChanged(packet, connectedCentral, liveObservation);
+    private @NotNull ObservationSegmenter.SegmentCounter getSegmentCounter(@NotNull BluetoothCentral central) {
+        ObservationSegmenter.SegmentCounter segmentCounter = segmentCounters.get(central.getAddress());
+        if (segmentCounter == null) {
+            segmentCounter = new ObservationSegmenter.SegmentCounter();
+            segmentCounters.put(central.getAddress(), segmentCounter);
         }
+        return segmentCounter;
     }
 
-    private void addElapsedTime(@NotNull BluetoothBytesParser parser) {
-        long elapsed_time_epoch = 946684800;
-        Calendar calendar = Calendar.getInstance();
-        calendar.setTimeZone(TimeZone.getTimeZone("UTC"));
-        long seconds_since_unix_epoch = calendar.getTime().getTime() / 1000;
-        long seconds_since_ets_epoch = seconds_since_unix_epoch - elapsed_time_epoch;
+    private void storeObservation(@NotNull ObservationType type, long etsSeconds, float value) {
+        if (store == null) return;
+        store.append(type.mdcCode, etsSeconds, type.getMeasurementPeriod(), value);
+        if (store.shouldGrow() && !storeGrowPending) {
+            // Map the next chunk of the log in its own message, outside the tick
+            storeGrowPending = true;
+            mailbox.execute(growStoreRunnable);
+        }
+    }
+
+    private void growStore() {
+        storeGrowPending = false;
+        Objects.requireNonNull(store).grow();
+    }
+
+    private @NotNull GattStatus writeRacp(@NotNull BluetoothCentral central, @NotNull byte[] value) {
+        if (!racpSubscribers.contains(central)) return GattStatus.CCCD_CFG_ERROR;
+        // Stored observations are gated on consent like live ones
+        if (!hasConsent(central)) return GattStatus.INSUFFICIENT_AUTHORIZATION;
+        final boolean isAbort = value.length > 0 && value[0] == RecordAccessControlPoint.ABORT_OPERATION;
+        if (reports.containsKey(central.getAddress()) && !isAbort) return GattStatus.PROCEDURE_IN_PROGRESS;
+        return GattStatus.SUCCESS;
+    }
+
+    private void executeRacp(@NotNull BluetoothCentral central, @NonNull byte[] value) {
+        if (store == null) return;
+
+        final RecordAccessControlPoint.Request request = racpRequest;
+        RecordAccessControlPoint.parse(value, store, request);
+        if (request.responseCode != RecordAccessControlPoint.SUCCESS) {
+            indicate(central, RecordAccessControlPoint.responseCode(request.opCode, request.responseCode), racp);
+            return;
+        }
+
+        switch (request.opCode) {
+            case RecordAccessControlPoint.REPORT_NUMBER_OF_STORED_RECORDS:
+                indicate(central, RecordAccessControlPoint.numberOfRecords(store.count(request.from, request.to)), racp);
+                break;
+            case RecordAccessControlPoint.DELETE_STORED_RECORDS:
+                int responseCode;
+                try {
+                    responseCode = store.delete(request.from, request.to) > 0 ? RecordAccessControlPoint.SUCCESS : RecordAccessControlPoint.NO_RECORDS_FOUND;
+                } catch (IOException e) {
+                    Timber.e(e, "deleting stored observations failed");
+                    responseCode = RecordAccessControlPoint.PROCEDURE_NOT_COMPLETED;
+                }
+                indicate(central, RecordAccessControlPoint.responseCode(request.opCode, responseCode), racp);
+                break;
+            case RecordAccessControlPoint.REPORT_STORED_RECORDS:
+                if (store.count(request.from, request.to) == 0) {
+                    indicate(central, RecordAccessControlPoint.responseCode(request.opCode, RecordAccessControlPoint.NO_RECORDS_FOUND), racp);
+                    break;
+                }
+                final ReportCursor cursor = new ReportCursor();
+                cursor.position = request.from;
+                cursor.end = request.to;
+                reports.put(central.getAddress(), cursor);
+                pumpReport(central);
+                break;
+            case RecordAccessControlPoint.ABORT_OPERATION:
+                reports.remove(central.getAddress());
+                indicate(central, RecordAccessControlPoint.responseCode(request.opCode, RecordAccessControlPoint.SUCCESS), racp);
+                break;
+        }
+    }
+
+    @Override
+    public void onNotificationSent(@NotNull BluetoothCentral central, byte[] value, @NotNull BluetoothGattCharacteristic characteristic, @NotNull GattStatus status) {
+        if (characteristic == scheduleChanged) {
+            scheduleIndications.onSent(central);
+        } else {
+            scheduleIndications.retry(central);
+        }
+        if (!reports.isEmpty()) {
+            final ReportCursor cursor = reports.get(central.getAddress());
+            if (cursor != null && characteristic == storedObservation && cursor.queuedPackets > 0) cursor.queuedPackets--;
+            pumpReport(central);
+        }
+    }
+
+    // Queue stored observations until the central's queue is reasonably full; continued when packets are sent
+    private void pumpReport(@NotNull BluetoothCentral central) {
+        final ReportCursor cursor = reports.get(central.getAddress());
+        if (cursor == null || store == null) return;
 
-        parser.setUInt8(0x22);  // Flags
-        parser.setUInt48(seconds_since_ets_epoch);
-        parser.setUInt8(0x06);  // Cellular Network
-        parser.setUInt8(0x00);  // Tz/DST offset
+        if (!hasConsent(central)) {
+            // The session ended during the report, for instance because the user was deleted
+            reports.remove(central.getAddress());
+            indicate(central, RecordAccessControlPoint.responseCode(RecordAccessControlPoint.REPORT_STORED_RECORDS, RecordAccessControlPoint.PROCEDURE_NOT_COMPLETED), racp);
+            return;
+        }
+
+        final OutboundQueue<BluetoothCentral, BluetoothGattCharacteristic> queue = outboundQueues.queueFor(central);
+        final ObservationSegmenter.SegmentCounter segmentCounter = getStoredSegmentCounter(central);
+        while (cursor.queuedPackets < REPORT_QUEUE_LIMIT) {
+            cursor.position = store.nextPresent(cursor.position);
+            if (cursor.position >= cursor.end) {
+                reports.remove(central.getAddress());
+                indicate(central, RecordAccessControlPoint.responseCode(RecordAccessControlPoint.REPORT_STORED_RECORDS, RecordAccessControlPoint.SUCCESS), racp);
+                return;
+            }
+
+            store.read(cursor.position++, storedRecord);
+            final ObservationType type = observationTypes.find(storedRecord.mdcCode);
+            if (type == null) continue;
+            // The record number is the low 32 bits of the sequence number, see ObservationStore.sequenceNumberOf
+            final long recordNumber = storedRecord.sequenceNumber;
+            storedPacket[1] = (byte) recordNumber;
+            storedPacket[2] = (byte) (recordNumber >> 8);
+            storedPacket[3] = (byte) (recordNumber >> 16);
+            storedPacket[4] = (byte) (recordNumber >> 24);
+            type.encoder.encode(storedPacket, 5, storedRecord.timestamp, storedRecord.duration, storedRecord.value);
+            storedSegmenter.setObservation(storedPacket);
+            // Reliable, so live traffic cannot drop a record and leave a silent gap in the report
+            final OutboundQueue.PacketTrain train = storedSegmenter.segmentsFor(central.getCurrentMtu());
+            final int segments = train.count();
+            if (!offerTrain(queue, storedObservation, train, segmentCounter, true)) {
+                // Queue is full; retry this record when packets have been sent
+                cursor.position--;
+                return;
+            }
+            cursor.queuedPackets += segments;
+        }
     }
 
-    private byte[] createObservation(float spo2Value) {
-        BluetoothBytesParser parser = new BluetoothBytesParser();
-        int NUMERIC_OBSERVATION = 0;
+    private boolean hasConsent(@NotNull BluetoothCentral central) {
+        return ConsentSessions.isAuthorized(consentSessions.authorized(), centralRegistry.indexOf(central));
+    }
 
-        parser.setUInt8(NUMERIC_OBSERVATION);
-        parser.setUInt16(28);  // Length
-        parser.setUInt16(0x07);  // Flags
-        parser.setUInt32(MDC_PULS_OXIM_SAT_O2);
-        addElapsedTime(parser);
-        parser.setFloatValue(measurement_duration, 1); // Measurement duration
-        int MDC_DIM_PER_CENT = 0x0220;
-        parser.setUInt16(MDC_DIM_PER_CENT);
-        parser.setFloatValue(spo2Value, 1);
+    private @NotNull ObservationSegmenter.SegmentCounter getStoredSegmentCounter(@NotNull BluetoothCentral central) {
+        ObservationSegmenter.SegmentCounter segmentCounter = storedSegmentCounters.get(central.getAddress());
+        if (segmentCounter == null) {
+            segmentCounter = new ObservationSegmenter.SegmentCounter();
+            storedSegmentCounters.put(central.getAddress(), segmentCounter);
+        }
+        return segmentCounter;
+    }
 
-        return parser.getValue().clone();
+    private long getSecondsSinceEtsEpoch() {
+        return clock.etsSeconds();
     }
 
     @Override
     public void onNotifyingEnabled(@NotNull BluetoothCentral central, @NotNull BluetoothGattCharacteristic characteristic) {
-        if (characteristic.getUuid().equals(OBSERVATION_CHAR_UUID)) {
+        if (characteristic == liveObservation) {
             if (!isNotifyingLiveObservations) {
                 startNotifyingLiveObservations();
             }
         }
-//        if (central.getBondState() == BondState.BONDED && centralsWantingScheduleNotifications.contains(central.getAddress())) {
-//            notifyScheduleChanged(central);
-//        }
-    }
-
-    private void notifyScheduleChanged(@NotNull BluetoothCentral c) {
-        peripheralManager.notifyCharacteristicChanged(scheduleValue, c, scheduleChanged);
     }
 
     @Override
     public void onNotifyingDisabled(@NotNull BluetoothCentral central, @NotNull BluetoothGattCharacteristic characteristic) {
-        if (characteristic.getUuid().equals(OBSERVATION_CHAR_UUID)) {
-            if (getConnectedCentralsWantingObservations().isEmpty()) {
+        if (characteristic == liveObservation) {
+            if (observationSubscribers.isEmpty()) {
                 stopNotifyingLiveObservations();
             }
+        } else if (characteristic == scheduleChanged) {
+            scheduleIndications.remove(central);
         }
     }
 
-    @Override
-    public void onDescriptorWriteCompleted(@NotNull BluetoothCentral central, @NotNull BluetoothGattDescriptor descriptor, @NonNull byte[] value) {
-        Timber.i("Indicating schedule changes");
-        for (BluetoothCentral connectedCentral : getConnectedCentralsWantingScheduleUpdates()) {
-            //if (!(connectedCentral.equals(central))) {
-                peripheralManager.notifyCharacteristicChanged(value, connectedCentral, scheduleChanged);
-                Timber.i("Indicating schedule changed to " + connectedCentral.getName());
-            //}
+    // The writer already knows the new schedule. A storm of writes costs at most one indication per type per central
+    private void indicateScheduleChanged(@NotNull BluetoothCentral writer, int typeIndex) {
+        final List<BluetoothCentral> subscribers = scheduleSubscribers.get();
+        for (int c = 0; c < subscribers.size(); c++) {
+            final BluetoothCentral central = subscribers.get(c);
+            if (!central.equals(writer)) {
+                scheduleIndications.offer(central, typeIndex);
+            }
         }
     }
 
-    @Override
-    public GattStatus onDescriptorWrite(@NotNull BluetoothCentral central, @NotNull BluetoothGattDescriptor descriptor, byte[] value) {
+    private @NotNull GattStatus writeSchedule(@NotNull BluetoothCentral central, @NotNull ObservationType type, @NotNull CachedReadResponse scheduleCache, @NotNull byte[] value) {
+        trace.record(TraceRing.SCHEDULE_WRITE, TraceRing.centralId(central.getAddress()), value, 0, value.length);
         Timber.i("Schedule is being changed.");
         if (value.length != 12) return GattStatus.VALUE_OUT_OF_RANGE;
 
@@ -258,7 +616,7 @@ public class GenericHealthService extends BaseService {
         final float schedule_measurement_period = parser.getFloat();
         final float schedule_update_interval = parser.getFloat();
 
-        if (mdc != MDC_PULS_OXIM_SAT_O2) {
+        if (mdc != type.mdcCode) {
             Timber.i("Schedule change attempt with incorrect MDC code.");
             return GattStatus.VALUE_OUT_OF_RANGE;
         }
@@ -273,23 +631,14 @@ public class GenericHealthService extends BaseService {
             return GattStatus.VALUE_OUT_OF_RANGE;
         }
 
-        scheduleValue = value;
-        measurement_duration = schedule_measurement_period;
-        interval = schedule_update_interval;
+        type.setSchedule(schedule_measurement_period, schedule_update_interval, value);
+        scheduleCache.invalidate();
+        updateTickPeriod();
+        updateDemand();
         Timber.i("Schedule change succeeded.");
         return GattStatus.SUCCESS;
     }
 
-    @Override
-    public ReadResponse onDescriptorRead(@NotNull BluetoothCentral central, @NotNull BluetoothGattDescriptor descriptor) {
-        BluetoothGattCharacteristic characteristic = Objects.requireNonNull(descriptor.getCharacteristic(), "Descriptor has no Characteristic");
-        if (characteristic.getUuid().equals(GHS_FEATURES_CHAR_UUID) && descriptor.getUuid().equals(GHS_SCHEDULE_DESCRIPTOR_UUID)) {
-            Timber.d("returning <%s> for schedule descriptor", asHexString(scheduleValue));
-            return new ReadResponse(GattStatus.SUCCESS, scheduleValue);
-        }
-        return new ReadResponse(GattStatus.REQUEST_NOT_SUPPORTED, null);
-    }
-
     @Override
     public @NotNull BluetoothGattService getService() {
         return service;
@@ -299,14 +648,4 @@ public class GenericHealthService extends BaseService {
     public String getServiceName() {
         return "Generic Health Service";
     }
-
-    private Set<BluetoothCentral> getConnectedCentralsWantingObservations() {
-        final Set<BluetoothCentral> centralsWantingObsNotifications = peripheralManager.getCentralsWantingNotifications(liveObservation);
-        return peripheralManager.getConnectedCentrals().stream().filter(centralsWantingObsNotifications::contains).collect(Collectors.toSet());
-    }
-
-    private Set<BluetoothCentral> getConnectedCentralsWantingScheduleUpdates() {
-        final Set<BluetoothCentral> centralsWantingObsIndications = peripheralManager.getCentralsWantingIndications(scheduleChanged);
-        return peripheralManager.getConnectedCentrals().stream().filter(centralsWantingObsIndications::contains).collect(Collectors.toSet());
-    }
-}
\ No newline at end of file
+}
@@ -0,0 +1,136 @@
+package com.welie.btserver;
+
+import org.jetbrains.annotations.NotNull;
+
+import java.util.HashMap;
+
+/**
+ * Indications of values that supersede each other, like the schedule of each observation type.
+ * An indication must be confirmed before the next one can be sent, so each central has at most one
+ * in flight; the rest are kept as a bit per key. The value is only read when the indication is
+ * sent, so changes to a key that is still pending are folded into one indication with the latest
+ * value. However many changes are made, a central never has more than one indication per key waiting.
+ * <p>
+ * Not thread safe: used from the owning service's actor.
+ *
+ * @param <C> central type
+ */
+final class IndicationCoalescer<C> {
+
+    static final int MAX_KEYS = 64;
+
+    interface Sender<C> {
+        /**
+         * Queue the indication of the current value of {@code key}.
+         *
+         * @return false if it could not be queued; it is tried again on {@link #retry(Object)}
+         */
+        boolean send(@NotNull C central, int key);
+    }
+
+    private static final class State {
+        long pending;
+        boolean inFlight;
+        // Keys are sent round-robin starting here, so a busy key cannot starve the others
+        int nextKey;
+        // Pending keys and nothing in flight because the queue was full
+        boolean blocked;
+    }
+
+    private @NotNull final Sender<C> sender;
+    private @NotNull final HashMap<C, State> states = new HashMap<>();
+    // Number of blocked states, so retry returns at once while there are none
+    private int blocked = 0;
+    private long offered = 0;
+    private long sent = 0;
+
+    IndicationCoalescer(@NotNull Sender<C> sender) {
+        this.sender = sender;
+    }
+
+    /**
+     * The value of {@code key} changed and should be indicated to {@code central}.
+     */
+    void offer(@NotNull C central, int key) {
+        if (key < 0 || key >= MAX_KEYS) throw new IllegalArgumentException("key must be in [0..63]");
+        offered++;
+        State state = states.get(central);
+        if (state == null) {
+            state = new State();
+            states.put(central, state);
+        }
+        state.pending |= 1L << key;
+        if (!state.inFlight) sendNext(central, state);
+    }
+
+    /**
+     * The indication in flight to {@code central} was confirmed or failed.
+     */
+    void onSent(@NotNull C central) {
+        final State state = states.get(central);
+        if (state == null || !state.inFlight) return;
+        state.inFlight = false;
+        sendNext(central, state);
+    }
+
+    /**
+     * Try again to send to a central whose queue was full, after it has sent something.
+     */
+    void retry(@NotNull C central) {
+        if (blocked == 0) return;
+        final State state = states.get(central);
+        if (state != null && state.blocked) sendNext(central, state);
+    }
+
+    /**
+     * Forget a central that disconnected or stopped listening.
+     */
+    void remove(@NotNull C central) {
+        final State state = states.remove(central);
+        if (state != null && state.blocked) blocked--;
+    }
+
+    boolean isPending(@NotNull C central, int key) {
+        final State state = states.get(central);
+        return state != null && (state.pending & (1L << key)) != 0;
+    }
+
+    /**
+     * Number of changes offered, and of indications sent for them; the difference was coalesced.
+     */
+    long getOffered() {
+        return offered;
+    }
+
+    long getSent() {
+        return sent;
+    }
+
+    /**
+     * Number of centrals waiting for {@link #retry(Object)}.
+     */
+    int getBlocked() {
+        return blocked;
+    }
+
+    private void sendNext(@NotNull C central, @NotNull State state) {
+        if (state.pending == 0) return;
+        final long rotated = Long.rotateRight(state.pending, state.nextKey);
+        final int key = (Long.numberOfTrailingZeros(rotated) + state.nextKey) & (MAX_KEYS - 1);
+        if (!sender.send(central, key)) {
+            if (!state.blocked) {
+                state.blocked = true;
+                blocked++;
+            }
+            return;
+        }
+        if (state.blocked) {
+            state.blocked = false;
+            blocked--;
+        }
+        state.pending &= ~(1L << key);
+        state.inFlight = true;
+        state.nextKey = (key + 1) & (MAX_KEYS - 1);
+        sent++;
+    }
+}
@@ -0,0 +1,240 @@
+package com.welie.btserver;
+
+import com.welie.blessed.ConnectionPriority;
+import com.welie.blessed.PhyType;
+
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Chooses the link mode of every central from the throughput its subscriptions need. Each mode
+ * has an estimated capacity; a central gets the cheapest mode whose capacity covers what it needs
+ * with some headroom. When the estimate turns out optimistic, because packets pile up while less
+ * than the required throughput is achieved, it goes one mode up anyway. Going down waits until
+ * the lower mode has been enough for several updates in a row and nothing is queued, so a link
+ * does not flap between modes.
+ * <p>
+ * The policy only decides; the requests go to a {@link Link}, so it can be run against a simulated one.
+ * When the link cannot take requests the policy still measures, and the mode is the one the
+ * central would need.
+ *
+ * @param <C> central type
+ */
+final class LinkPolicy<C> {
+
+    // Required throughput is multiplied by 3/2 before comparing it with a mode's capacity
+    static final int HEADROOM_NUMERATOR = 3;
+    static final int HEADROOM_DENOMINATOR = 2;
+    // Queued packets that count as the link falling behind
+    static final int BACKLOG_PACKETS = 8;
+    static final int RELAX_UPDATES = 5;
+
+    /**
+     * Link modes from cheapest to fastest. Capacities assume a connection interval in the middle of
+     * what Android negotiates for the priority, and a conservative number of packets per connection
+     * event, twice as many on the 2M PHY.
+     */
+    enum Mode {
+        BALANCED(ConnectionPriority.BALANCED, PhyType.LE_1M, 45, 4),
+        BALANCED_2M(ConnectionPriority.BALANCED, PhyType.LE_2M, 45, 8),
+        HIGH_2M(ConnectionPriority.HIGH, PhyType.LE_2M, 15, 8);
+
+        final @NotNull ConnectionPriority priority;
+        final @NotNull PhyType phy;
+        final int intervalMillis;
+        final int packetsPerEvent;
+
+        Mode(@NotNull ConnectionPriority priority, @NotNull PhyType phy, int intervalMillis, int packetsPerEvent) {
+            this.priority = priority;
+            this.phy = phy;
+            this.intervalMillis = intervalMillis;
+            this.packetsPerEvent = packetsPerEvent;
+        }
+
+        /**
+         * Estimated bytes per second of notification values at {@code mtu}.
+         */
+        int capacity(int mtu) {
+            return packetsPerEvent * (mtu - 3) * 1000 / intervalMillis;
+        }
+    }
+
+    interface Link<C> {
+        /**
+         * @return false if requests can never be made; they are then not made at all
+         */
+        boolean supportsRequests();
+
+        /**
+         * @return false if the request could not be made
+         */
+        boolean requestConnectionPriority(@NotNull C central, @NotNull ConnectionPriority priority);
+
+        /**
+         * @return false if the request could not be made
+         */
+        boolean setPreferredPhy(@NotNull C central, @NotNull PhyType phy);
+    }
+
+    /**
+     * Throughput of one central at its last update, in bytes per second of notification values.
+     */
+    static final class Status<C> {
+        final @NotNull C central;
+        final @NotNull Mode mode;
+        final int required;
+        final int achieved;
+        final int queuedPackets;
+
+        private Status(@NotNull C central, @NotNull Mode mode, int required, int achieved, int queuedPackets) {
+            this.central = central;
+            this.mode = mode;
+            this.required = required;
+            this.achieved = achieved;
+            this.queuedPackets = queuedPackets;
+        }
+
+        /**
+         * The link is in its fastest mode and still cannot keep up.
+         */
+        boolean isSaturated() {
+            return mode == Mode.HIGH_2M && queuedPackets >= BACKLOG_PACKETS && achieved < required;
+        }
+    }
+
+    private static final class LinkState {
+        @NotNull Mode mode = Mode.BALANCED;
+        long sentBytes;
+        long updatedAtNanos;
+        boolean updated = false;
+        int required;
+        int achieved;
+        int queuedPackets;
+        // Consecutive updates in which a cheaper mode would have been enough
+        int relaxUpdates;
+    }
+
+    private static final Mode[] MODES = Mode.values();
+
+    private @NotNull final Link<C> link;
+    private @NotNull final HashMap<C, LinkState> links = new HashMap<>();
+    private long modeChanges = 0;
+    private long refusedRequests = 0;
+
+    LinkPolicy(@NotNull Link<C> link) {
+        this.link = link;
+    }
+
+    /**
+     * Bytes of notification values needed to send one observation of {@code observationLength} bytes
+     * at {@code mtu}, including the GHS segmentation header of every segment.
+     */
+    static int segmentedBytes(int observationLength, int mtu) {
+        final int perSegment = mtu - 4;
+        return observationLength + (observationLength + perSegment - 1) / perSegment;
+    }
+
+    /**
+     * Update the link mode of a central.
+     *
+     * @param required      bytes per second its subscriptions need
+     * @param sentBytes     total bytes sent to it so far
+     * @param queuedPackets packets waiting to be sent to it
+     * @return its throughput and the mode of its link
+     */
+    synchronized @NotNull Status<C> update(@NotNull C central, int mtu, int required, long sentBytes, int queuedPackets, long nowNanos) {
+        LinkState state = links.get(central);
+        if (state == null) {
+            state = new LinkState();
+            links.put(central, state);
+        }
+        final long elapsedNanos = nowNanos - state.updatedAtNanos;
+        state.achieved = state.updated && elapsedNanos > 0 ? (int) ((sentBytes - state.sentBytes) * 1_000_000_000L / elapsedNanos) : 0;
+        state.required = required;
+        state.queuedPackets = queuedPackets;
+        state.sentBytes = sentBytes;
+        state.updatedAtNanos = nowNanos;
+        final boolean first = !state.updated;
+        state.updated = true;
+
+        Mode target = cheapestModeFor(required, mtu);
+        final boolean behind = !first && required > 0 && queuedPackets >= BACKLOG_PACKETS && state.achieved < required;
+        if (behind && state.mode.ordinal() + 1 < MODES.length) {
+            target = max(target, MODES[state.mode.ordinal() + 1]);
+        } else if (behind || queuedPackets > 0) {
+            target = max(target, state.mode);
+        }
+
+        if (target.ordinal() > state.mode.ordinal()) {
+            state.relaxUpdates = 0;
+            apply(central, state, target);
+        } else if (target.ordinal() < state.mode.ordinal()) {
+            if (++state.relaxUpdates >= RELAX_UPDATES) {
+                state.relaxUpdates = 0;
+                apply(central, state, target);
+            }
+        } else {
+            state.relaxUpdates = 0;
+        }
+        return status(central, state);
+    }
+
+    synchronized void remove(@NotNull C central) {
+        links.remove(central);
+    }
+
+    synchronized @Nullable Status<C> statusOf(@NotNull C central) {
+        final LinkState state = links.get(central);
+        return state != null ? status(central, state) : null;
+    }
+
+    /**
+     * Required versus achieved throughput of every central.
+     */
+    synchronized @NotNull List<Status<C>> statuses() {
+        final List<Status<C>> statuses = new ArrayList<>(links.size());
+        for (Map.Entry<C, LinkState> entry : links.entrySet()) {
+            statuses.add(status(entry.getKey(), entry.getValue()));
+        }
+        return statuses;
+    }
+
+    synchronized long getModeChanges() {
+        return modeChanges;
+    }
+
+    synchronized long getRefusedRequests() {
+        return refusedRequests;
+    }
+
+    private static @NotNull Mode cheapestModeFor(int required, int mtu) {
+        final long needed = (long) required * HEADROOM_NUMERATOR / HEADROOM_DENOMINATOR;
+        for (Mode mode : MODES) {
+            if (mode.capacity(mtu) >= needed) return mode;
+        }
+        return MODES[MODES.length - 1];
+    }
+
+    private static @NotNull Mode max(@NotNull Mode a, @NotNull Mode b) {
+        return a.ordinal() >= b.ordinal() ? a : b;
+    }
+
+    // A refused request is not retried until the mode changes again; falling behind moves the link up anyway
+    private void apply(@NotNull C central, @NotNull LinkState state, @NotNull Mode mode) {
+        if (link.supportsRequests()) {
+            if (mode.priority != state.mode.priority && !link.requestConnectionPriority(central, mode.priority)) refusedRequests++;
+            if (mode.phy != state.mode.phy && !link.setPreferredPhy(central, mode.phy)) refusedRequests++;
+        }
+        state.mode = mode;
+        modeChanges++;
+    }
+
+    private static @NotNull <C> Status<C> status(@NotNull C central, @NotNull LinkState state) {
+        return new Status<>(central, state.mode, state.required, state.achieved, state.queuedPackets);
+    }
+}
@@ -0,0 +1,80 @@
+package com.welie.btserver;
+
+import org.jetbrains.annotations.NotNull;
+
+/**
+ * Largest-Triangle-Three-Buckets downsampling. Reduces a series to a fixed number of points while
+ * keeping its visual shape, so the cost of drawing a chart does not grow with the sample rate.
+ */
+final class Lttb {
+
+    private Lttb() {
+    }
+
+    /**
+     * Downsample the first {@code count} points of {@code x}/{@code y}, which must be ordered by x.
+     * The first and last points are always kept.
+     *
+     * @param threshold maximum number of points in the result, at least 3
+     * @return the number of points written to {@code outX}/{@code outY}
+     */
+    static int downsample(@NotNull float[] x, @NotNull float[] y, int count, int threshold, @NotNull float[] outX, @NotNull float[] outY) {
+        if (threshold < 3) throw new IllegalArgumentException("threshold must be at least 3");
+        if (count <= threshold) {
+            System.arraycopy(x, 0, outX, 0, count);
+            System.arraycopy(y, 0, outY, 0, count);
+            return count;
+        }
+
+        // Points between the first and the last are divided over threshold - 2 buckets
+        final double bucketSize = (double) (count - 2) / (threshold - 2);
+        int selected = 0;
+        outX[0] = x[0];
+        outY[0] = y[0];
+        int out = 1;
+
+        for (int bucket = 0; bucket < threshold - 2; bucket++) {
+            final int start = (int) (bucket * bucketSize) + 1;
+            final int end = (int) ((bucket + 1) * bucketSize) + 1;
+
+            // Third vertex: average of the next bucket, or the last point for the last bucket
+            final int nextStart = end;
+            final int nextEnd = Math.min((int) ((bucket + 2) * bucketSize) + 1, count);
+            double averageX = 0;
+            double averageY = 0;
+            if (bucket == threshold - 3) {
+                averageX = x[count - 1];
+                averageY = y[count - 1];
+            } else {
+                for (int i = nextStart; i < nextEnd; i++) {
+                    averageX += x[i];
+                    averageY += y[i];
+                }
+                averageX /= nextEnd - nextStart;
+                averageY /= nextEnd - nextStart;
+            }
+
+            final double selectedX = x[selected];
+            final double selectedY = y[selected];
+            double maxArea = -1;
+            int next = start;
+            for (int i = start; i < end; i++) {
+                // Twice the triangle area, the factor does not change which point is largest
+                final double area = Math.abs((selectedX - averageX) * (y[i] - selectedY) - (selectedX - x[i]) * (averageY - selectedY));
+                if (area > maxArea) {
+                    maxArea = area;
+                    next = i;
+                }
+            }
+
+            outX[out] = x[next];
+            outY[out] = y[next];
+            out++;
+            selected = next;
+        }
+
+        outX[out] = x[count - 1];
+        outY[out] = y[count - 1];
+        return out + 1;
+    }
+}
@@ -1,6 +1,6 @@
 package com.welie.btserver;
 
-import static com.welie.btserver.GenericHealthService.MEASUREMENT_PULSE_OX_EXTRA_CONTINUOUS;
+import static com.welie.btserver.GenericHealthService.MDC_PULS_OXIM_SAT_O2;
 
 import androidx.annotation.NonNull;
 import androidx.appcompat.app.AppCompatActivity;
@@ -8,22 +8,20 @@ import androidx.appcompat.app.AppCompatActivity;
 import android.Manifest;
 import android.app.AlertDialog;
 import android.bluetooth.BluetoothAdapter;
-import android.content.BroadcastReceiver;
 import android.content.Context;
 import android.content.DialogInterface;
 import android.content.Intent;
-import android.content.IntentFilter;
 import android.content.pm.PackageManager;
 import android.location.LocationManager;
 import android.os.Build;
 import android.os.Bundle;
+import android.view.Choreographer;
 import android.widget.TextView;
 
 import com.welie.blessed.BluetoothPeripheral;
 
 import java.util.ArrayList;
 import java.util.List;
-import java.util.Locale;
 
 import timber.log.Timber;
 
@@ -31,19 +29,37 @@ public class MainActivity extends AppCompatActivity {
 
     private static final int REQUEST_ENABLE_BT = 1;
     private static final int ACCESS_LOCATION_REQUEST = 2;
+    // 15 minutes of SpO2 at 1 Hz, drawn with at most 300 points
+    private static final int TREND_HISTORY_SIZE = 900;
+    private static final int TREND_POINTS = 300;
     private TextView measurementValue;
+    private TrendChartView spo2Trend;
+    private Choreographer choreographer;
+    private ObservationPresenter spo2Presenter = null;
+    private final Choreographer.FrameCallback renderFrame = frameTimeNanos -> {
+        if (spo2Presenter != null) spo2Presenter.onFrame();
+    };
 
     @Override
     protected void onCreate(Bundle savedInstanceState) {
         super.onCreate(savedInstanceState);
         setContentView(R.layout.activity_main);
         measurementValue = (TextView) findViewById(R.id.spo2Value);
+        spo2Trend = (TrendChartView) findViewById(R.id.spo2Trend);
+        choreographer = Choreographer.getInstance();
 
         if (BuildConfig.DEBUG) {
             Timber.plant(new Timber.DebugTree());
         }
+    }
 
-        registerReceiver(pulseOxDataReceiver, new IntentFilter( GenericHealthService.MEASUREMENT_PULSE_OX ));
+    @Override
+    protected void onDestroy() {
+        super.onDestroy();
+        if (spo2Presenter != null) {
+            spo2Presenter.stop();
+            spo2Presenter = null;
+        }
     }
 
     @Override
@@ -178,16 +194,26 @@ public class MainActivity extends AppCompatActivity {
         }
     }
 
-    private final BroadcastReceiver pulseOxDataReceiver = new BroadcastReceiver() {
+    private final ObservationPresenter.Display spo2Display = new ObservationPresenter.Display() {
         @Override
-        public void onReceive(Context context, Intent intent) {
-            float value = intent.getFloatExtra(MEASUREMENT_PULSE_OX_EXTRA_CONTINUOUS, 0.0f);
-             measurementValue.setText(String.format(Locale.ENGLISH, "%.1f%%", value));
+        public void showValue(@NonNull String text) {
+            measurementValue.setText(text);
+        }
+
+        @Override
+        public void showTrend(@NonNull float[] x, @NonNull float[] y, int count) {
+            spo2Trend.setTrend(x, y, count);
         }
     };
 
     private void initBluetoothHandler()
     {
-        BluetoothServer.getInstance(getApplicationContext());
+        BluetoothServer server = BluetoothServer.getInstance(getApplicationContext());
+        if (spo2Presenter == null) {
+            // Choreographer accepts callbacks from any thread and runs them on the main thread
+            spo2Presenter = new ObservationPresenter(server.getObservationBus(), MDC_PULS_OXIM_SAT_O2, TREND_HISTORY_SIZE, TREND_POINTS,
+                    spo2Display, () -> choreographer.postFrameCallback(renderFrame));
+            spo2Presenter.start();
+        }
     }
 }
\ No newline at end of file
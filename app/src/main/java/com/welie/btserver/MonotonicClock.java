@@ -0,0 +1,56 @@
+package com.welie.btserver;
+
+import android.os.SystemClock;
+
+import org.jetbrains.annotations.NotNull;
+
+import java.util.concurrent.TimeUnit;
+import java.util.function.LongSupplier;
+
+/**
+ * The production clock. The wall clock is read once; after that wall time is derived from the
+ * elapsed realtime clock, which is cheaper, never jumps and keeps counting in deep sleep. Call
+ * {@link #resync()} to pick up a changed wall clock; {@link BluetoothServer} does so whenever the
+ * time or time zone is changed.
+ */
+final class MonotonicClock implements Clock {
+
+    private @NotNull final LongSupplier elapsedRealtimeNanos;
+    // Wall clock minus elapsed realtime, in milliseconds since the ETS epoch
+    private volatile long offsetMillis;
+
+    MonotonicClock() {
+        this(SystemClock::elapsedRealtimeNanos);
+    }
+
+    /**
+     * @param elapsedRealtimeNanos source of elapsed realtime, so the clock can run outside Android
+     */
+    MonotonicClock(@NotNull LongSupplier elapsedRealtimeNanos) {
+        this.elapsedRealtimeNanos = elapsedRealtimeNanos;
+        resync();
+    }
+
+    void resync() {
+        offsetMillis = System.currentTimeMillis() - ETS_EPOCH_MILLIS - TimeUnit.NANOSECONDS.toMillis(elapsedRealtimeNanos.getAsLong());
+    }
+
+    @Override
+    public long nanoTime() {
+        return System.nanoTime();
+    }
+
+    @Override
+    public long currentTimeMillis() {
+        return etsMillis() + ETS_EPOCH_MILLIS;
+    }
+
+    @Override
+    public long etsSeconds() {
+        return etsMillis() / 1000;
+    }
+
+    private long etsMillis() {
+        return offsetMillis + TimeUnit.NANOSECONDS.toMillis(elapsedRealtimeNanos.getAsLong());
+    }
+}
@@ -0,0 +1,75 @@
+package com.welie.btserver;
+
+import org.jetbrains.annotations.NotNull;
+
+/**
+ * Encodes GHS numeric observations without allocating. The constant part of the observation
+ * (type, length, flags, MDC code, time flags and unit) is encoded once; each call only patches the
+ * timestamp, measurement duration and value.
+ */
+final class NumericObservationEncoder {
+
+    static final int OBSERVATION_LENGTH = 28;
+
+    private static final int NUMERIC_OBSERVATION = 0;
+    private static final int FLAGS = 0x07;
+    private static final int TIME_FLAGS = 0x22;
+    private static final int TIME_SOURCE_CELLULAR_NETWORK = 0x06;
+    private static final int TIME_OFFSET = 0x00;
+
+    private static final int TIMESTAMP_OFFSET = 10;
+    private static final int DURATION_OFFSET = 18;
+    private static final int VALUE_OFFSET = 24;
+
+    private final byte[] template = new byte[OBSERVATION_LENGTH];
+
+    NumericObservationEncoder(int mdcCode, int unitCode) {
+        template[0] = (byte) NUMERIC_OBSERVATION;
+        putUInt16(template, 1, OBSERVATION_LENGTH);
+        putUInt16(template, 3, FLAGS);
+        putUInt32(template, 5, mdcCode);
+        template[9] = (byte) TIME_FLAGS;
+        template[16] = (byte) TIME_SOURCE_CELLULAR_NETWORK;
+        template[17] = (byte) TIME_OFFSET;
+        putUInt16(template, 22, unitCode);
+    }
+
+    /**
+     * Write an observation into {@code destination} starting at {@code offset}.
+     *
+     * @param etsSeconds seconds since the Elapsed Time Service epoch (2000-01-01 UTC)
+     * @param duration   measurement duration in seconds
+     * @param value      observation value, encoded with one decimal
+     */
+    void encode(@NotNull byte[] destination, int offset, long etsSeconds, float duration, float value) {
+        System.arraycopy(template, 0, destination, offset, OBSERVATION_LENGTH);
+        putUInt48(destination, offset + TIMESTAMP_OFFSET, etsSeconds);
+        putFloat(destination, offset + DURATION_OFFSET, duration, 1);
+        putFloat(destination, offset + VALUE_OFFSET, value, 1);
+    }
+
+    static void putUInt16(byte[] buffer, int offset, int value) {
+        buffer[offset] = (byte) value;
+        buffer[offset + 1] = (byte) (value >> 8);
+    }
+
+    static void putUInt32(byte[] buffer, int offset, int value) {
+        putUInt16(buffer, offset, value);
+        putUInt16(buffer, offset + 2, value >> 16);
+    }
+
+    static void putUInt48(byte[] buffer, int offset, long value) {
+        for (int i = 0; i < 6; i++) {
+            buffer[offset + i] = (byte) (value >> (8 * i));
+        }
+    }
+
+    // IEEE-11073 32-bit FLOAT, rounded the same way as BluetoothBytesParser.setFloatValue
+    static void putFloat(byte[] buffer, int offset, float value, int precision) {
+        final int mantissa = (int) (float) (value * Math.pow(10, precision));
+        buffer[offset] = (byte) mantissa;
+        buffer[offset + 1] = (byte) (mantissa >> 8);
+        buffer[offset + 2] = (byte) (mantissa >> 16);
+        buffer[offset + 3] = (byte) -precision;
+    }
+}
@@ -0,0 +1,181 @@
+package com.welie.btserver;
+
+import org.jetbrains.annotations.NotNull;
+
+import java.util.Arrays;
+
+/**
+ * Accumulates numeric samples, of one or more observation types, and packs them into GHS observation bundles. Bundles are sized per
+ * MTU: each bundle holds as many samples as fit in a single segment, so a central with a large MTU
+ * gets few packets. When not even one sample fits in a segment, bundles are segmented, and hold as
+ * many samples as fit in {@link #MAX_SEGMENTS_PER_BUNDLE} segments so that a bundle always fits in
+ * an outbound queue. Encoded bundles are cached per MTU until the next {@link #clear()}.
+ */
+final class ObservationBundler {
+
+    static final int OBSERVATION_BUNDLE = 0xFF;
+    // Type, length, flags and number of observations
+    static final int BUNDLE_HEADER_LENGTH = 6;
+    static final int MAX_SAMPLES = 255;
+    // A quarter of the bulk queue, leaving room for other trains
+    static final int MAX_SEGMENTS_PER_BUNDLE = OutboundQueues.DEFAULT_BULK_CAPACITY / 4;
+
+    // ATT notification overhead (3) plus the segmentation header (1)
+    private static final int SEGMENT_OVERHEAD = 4;
+    private static final int SAMPLE_LENGTH = NumericObservationEncoder.OBSERVATION_LENGTH;
+
+    private final NumericObservationEncoder[] encoders;
+    private final long[] timestamps;
+    private final float[] durations;
+    private final float[] values;
+    private int size = 0;
+    private int generation = 0;
+    private @NotNull Bundles[] cache = new Bundles[4];
+    private int cacheSize = 0;
+
+    ObservationBundler(int capacity) {
+        if (capacity < 1 || capacity > MAX_SAMPLES) throw new IllegalArgumentException("capacity must be in [1..255]");
+        this.encoders = new NumericObservationEncoder[capacity];
+        this.timestamps = new long[capacity];
+        this.durations = new float[capacity];
+        this.values = new float[capacity];
+    }
+
+    /**
+     * The bundles for one MTU. Each bundle is a separate segment train.
+     */
+    static final class Bundles {
+        final int mtu;
+        private int generation = -1;
+        private @NotNull BundleTrain[] trains = new BundleTrain[0];
+        private int count = 0;
+
+        private Bundles(int mtu) {
+            this.mtu = mtu;
+        }
+
+        int count() {
+            return count;
+        }
+
+        @NotNull OutboundQueue.PacketTrain train(int index) {
+            return trains[index];
+        }
+    }
+
+    private static final class BundleTrain implements OutboundQueue.PacketTrain {
+        private byte[] packet = new byte[0];
+        private ObservationSegmenter segmenter;
+        private ObservationSegmenter.Segments segments;
+
+        @Override
+        public int count() {
+            return segments != null ? segments.count() : 1;
+        }
+
+        @Override
+        public @NotNull byte[] packet(int index) {
+            return segments != null ? segments.packet(index) : packet;
+        }
+    }
+
+    static int bundleLength(int samples) {
+        return BUNDLE_HEADER_LENGTH + samples * SAMPLE_LENGTH;
+    }
+
+    boolean add(@NotNull NumericObservationEncoder encoder, long etsSeconds, float duration, float value) {
+        if (size == values.length) return false;
+        encoders[size] = encoder;
+        timestamps[size] = etsSeconds;
+        durations[size] = duration;
+        values[size] = value;
+        size++;
+        generation++;
+        return true;
+    }
+
+    int size() {
+        return size;
+    }
+
+    boolean isFull() {
+        return size == values.length;
+    }
+
+    void clear() {
+        size = 0;
+        generation++;
+    }
+
+    @NotNull Bundles bundlesFor(int mtu) {
+        final int effectiveMtu = Math.max(mtu, ObservationSegmenter.MIN_MTU);
+        Bundles bundles = find(effectiveMtu);
+        if (bundles.generation != generation) {
+            encode(bundles);
+            bundles.generation = generation;
+        }
+        return bundles;
+    }
+
+    private @NotNull Bundles find(int mtu) {
+        for (int i = 0; i < cacheSize; i++) {
+            if (cache[i].mtu == mtu) return cache[i];
+        }
+        if (cacheSize == cache.length) {
+            cache = Arrays.copyOf(cache, cacheSize * 2);
+        }
+        Bundles bundles = new Bundles(mtu);
+        cache[cacheSize++] = bundles;
+        return bundles;
+    }
+
+    private void encode(@NotNull Bundles bundles) {
+        final int segmentSize = bundles.mtu - SEGMENT_OVERHEAD;
+        final int fitting = (segmentSize - BUNDLE_HEADER_LENGTH) / SAMPLE_LENGTH;
+        final int samplesPerBundle = fitting >= 1 ? fitting : (MAX_SEGMENTS_PER_BUNDLE * segmentSize - BUNDLE_HEADER_LENGTH) / SAMPLE_LENGTH;
+        final int numberOfBundles = (size + samplesPerBundle - 1) / samplesPerBundle;
+        if (bundles.trains.length < numberOfBundles) {
+            final int oldLength = bundles.trains.length;
+            bundles.trains = Arrays.copyOf(bundles.trains, numberOfBundles);
+            for (int i = oldLength; i < numberOfBundles; i++) {
+                bundles.trains[i] = new BundleTrain();
+            }
+        }
+        bundles.count = numberOfBundles;
+
+        for (int b = 0; b < numberOfBundles; b++) {
+            final int from = b * samplesPerBundle;
+            final int to = Math.min(from + samplesPerBundle, size);
+            final BundleTrain train = bundles.trains[b];
+            final int packetLength = 1 + bundleLength(to - from);
+            if (train.packet.length != packetLength) {
+                train.packet = new byte[packetLength];
+            }
+            encodeBundle(train.packet, 1, from, to);
+
+            if (fitting >= 1) {
+                train.segments = null;
+            } else {
+                if (train.segmenter == null) train.segmenter = new ObservationSegmenter();
+                train.segmenter.setObservation(train.packet);
+                train.segments = train.segmenter.segmentsFor(bundles.mtu);
+            }
+        }
+    }
+
+    private void encodeBundle(@NotNull byte[] destination, int offset, int from, int to) {
+        final int length = bundleLength(to - from);
+        destination[offset] = (byte) OBSERVATION_BUNDLE;
+        destination[offset + 1] = (byte) length;
+        destination[offset + 2] = (byte) (length >> 8);
+        destination[offset + 3] = 0; // Flags - no common fields, every observation carries its own
+        destination[offset + 4] = 0;
+        destination[offset + 5] = (byte) (to - from);
+
+        int position = offset + BUNDLE_HEADER_LENGTH;
+        for (int i = from; i < to; i++) {
+            encoders[i].encode(destination, position, timestamps[i], durations[i], values[i]);
+            position += SAMPLE_LENGTH;
+        }
+    }
+}
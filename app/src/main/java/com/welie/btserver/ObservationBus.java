@@ -0,0 +1,166 @@
+package com.welie.btserver;
+
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * In-process publish/subscribe ring for sampled observations. One producer publishes into a ring
+ * of fixed size; every {@link Subscription} reads it with its own cursor, so the UI, storage and
+ * metrics each see every observation without a copy per consumer.
+ * <p>
+ * The producer never waits. A subscription that falls more than the capacity behind skips the
+ * observations that were overwritten and counts them in {@link Subscription#getMissed()}.
+ * Publishing costs no allocation.
+ */
+final class ObservationBus {
+
+    interface Handler {
+        void onObservation(long sequence, int mdcCode, float value, long etsSeconds);
+    }
+
+    // Per slot: sequence, mdc code and value bits, timestamp
+    private static final int SLOT_WORDS = 3;
+    // Slot sequence while the producer is writing it
+    private static final long WRITING = -1;
+
+    private final int capacity;
+    private final int mask;
+    private @NotNull final AtomicLongArray slots;
+    // Number of observations published so far, which is also the sequence of the next one
+    private @NotNull final AtomicLong published = new AtomicLong(0);
+    private volatile @NotNull Subscription[] subscriptions = new Subscription[0];
+
+    ObservationBus(int capacity) {
+        if (capacity <= 0 || Integer.bitCount(capacity) != 1) throw new IllegalArgumentException("capacity must be a power of two");
+        this.capacity = capacity;
+        this.mask = capacity - 1;
+        this.slots = new AtomicLongArray(capacity * SLOT_WORDS);
+        for (int i = 0; i < capacity; i++) {
+            slots.set(i * SLOT_WORDS, WRITING);
+        }
+    }
+
+    final class Subscription {
+        private long cursor;
+        private long missed = 0;
+        private @Nullable final Runnable wakeUp;
+
+        private Subscription(long cursor, @Nullable Runnable wakeUp) {
+            this.cursor = cursor;
+            this.wakeUp = wakeUp;
+        }
+
+        /**
+         * Hand up to {@code max} observations that were published since the last poll to {@code handler}.
+         * Call from one thread at a time.
+         *
+         * @return the number of observations handled
+         */
+        int poll(@NotNull Handler handler, int max) {
+            int count = 0;
+            while (count < max) {
+                final long end = published.get();
+                if (cursor >= end) break;
+                if (end - cursor > capacity) {
+                    // Lapped by the producer
+                    missed += end - capacity - cursor;
+                    cursor = end - capacity;
+                }
+
+                final int base = (int) (cursor & mask) * SLOT_WORDS;
+                final long word = slots.get(base + 1);
+                final long etsSeconds = slots.get(base + 2);
+                if (slots.get(base) != cursor) {
+                    // Overwritten while it was read
+                    missed++;
+                    cursor++;
+                    continue;
+                }
+                handler.onObservation(cursor, (int) (word >>> 32), Float.intBitsToFloat((int) word), etsSeconds);
+                cursor++;
+                count++;
+            }
+            return count;
+        }
+
+        /**
+         * Number of observations that were overwritten before this subscription read them.
+         */
+        long getMissed() {
+            return missed;
+        }
+
+        /**
+         * Number of published observations this subscription has not read yet.
+         */
+        long getBacklog() {
+            return Math.min(published.get() - cursor, capacity);
+        }
+
+        void cancel() {
+            removeSubscription(this);
+        }
+    }
+
+    /**
+     * Subscribe to observations published from now on.
+     *
+     * @param wakeUp called on the producer's thread after every publish, or null to only poll.
+     *               It must be cheap and must not poll itself.
+     */
+    @NotNull Subscription subscribe(@Nullable Runnable wakeUp) {
+        final Subscription subscription = new Subscription(published.get(), wakeUp);
+        synchronized (this) {
+            final Subscription[] current = subscriptions;
+            final Subscription[] updated = Arrays.copyOf(current, current.length + 1);
+            updated[current.length] = subscription;
+            subscriptions = updated;
+        }
+        return subscription;
+    }
+
+    /**
+     * Publish one observation. Only one thread at a time may publish.
+     */
+    void publish(int mdcCode, float value, long etsSeconds) {
+        final long sequence = published.get();
+        final int base = (int) (sequence & mask) * SLOT_WORDS;
+        // Readers that see the old sequence after reading the new fields discard what they read
+        slots.set(base, WRITING);
+        slots.lazySet(base + 1, ((long) mdcCode << 32) | (Float.floatToRawIntBits(value) & 0xFFFFFFFFL));
+        slots.lazySet(base + 2, etsSeconds);
+        slots.lazySet(base, sequence);
+        published.lazySet(sequence + 1);
+
+        final Subscription[] current = subscriptions;
+        for (int i = 0; i < current.length; i++) {
+            final Runnable wakeUp = current[i].wakeUp;
+            if (wakeUp != null) wakeUp.run();
+        }
+    }
+
+    long getPublished() {
+        return published.get();
+    }
+
+    int getCapacity() {
+        return capacity;
+    }
+
+    private synchronized void removeSubscription(@NotNull Subscription subscription) {
+        final Subscription[] current = subscriptions;
+        for (int i = 0; i < current.length; i++) {
+            if (current[i] == subscription) {
+                final Subscription[] updated = new Subscription[current.length - 1];
+                System.arraycopy(current, 0, updated, 0, i);
+                System.arraycopy(current, i + 1, updated, i, current.length - i - 1);
+                subscriptions = updated;
+                return;
+            }
+        }
+    }
+}
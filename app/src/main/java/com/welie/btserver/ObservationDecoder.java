@@ -0,0 +1,155 @@
+package com.welie.btserver;
+
+import org.jetbrains.annotations.NotNull;
+
+/**
+ * Decodes the GHS observations this server sends (numeric, sample array and bundles of them) into
+ * primitive values, for loopback tests and load harnesses. Nothing is allocated; sample arrays are
+ * handed out as a range of the received bytes.
+ * <p>
+ * Only the layout the server itself produces is supported: all optional fields present
+ * (flags 0x07) and a 48-bit timestamp in seconds. Anything else is reported as malformed.
+ */
+final class ObservationDecoder {
+
+    static final int NUMERIC_OBSERVATION = 0x00;
+    static final int SAMPLE_ARRAY_OBSERVATION = 0x03;
+
+    private static final int FLAGS = 0x07;
+    private static final int MDC_OFFSET = 5;
+    private static final int TIMESTAMP_OFFSET = 10;
+    private static final int DURATION_OFFSET = 18;
+    private static final int UNIT_OFFSET = 22;
+    private static final int NUMERIC_VALUE_OFFSET = 24;
+    private static final int SCALE_FACTOR_OFFSET = 24;
+    private static final int SAMPLE_OFFSET_OFFSET = 28;
+    private static final int SAMPLES_PER_PERIOD_OFFSET = 36;
+    private static final int BYTES_PER_SAMPLE_OFFSET = 37;
+    private static final int NUMBER_OF_SAMPLES_OFFSET = 38;
+    private static final float[] POWERS_OF_TEN = {1f, 1e1f, 1e2f, 1e3f, 1e4f, 1e5f, 1e6f, 1e7f, 1e8f};
+
+    interface Handler {
+        void onNumeric(int mdcCode, long etsSeconds, float duration, int unitCode, float value);
+
+        /**
+         * The value of sample {@code i} is {@code offset + scaleFactor * sample(i)}, where the
+         * samples are unsigned little-endian integers of {@code bytesPerSample} bytes starting at
+         * {@code samples[samplesOffset]}. The bytes are only valid during the call.
+         */
+        void onSampleArray(int mdcCode, long etsSeconds, float duration, int unitCode, float scaleFactor, float offset, int samplesPerSecond,
+                           int bytesPerSample, @NotNull byte[] samples, int samplesOffset, int count);
+
+        /**
+         * An observation could not be decoded; {@code type} is its first byte.
+         */
+        void onMalformed(int type, int length);
+    }
+
+    private ObservationDecoder() {
+    }
+
+    /**
+     * Decode one reassembled observation.
+     *
+     * @return the number of observations decoded: 1, the number in a bundle, or 0 when malformed
+     */
+    static int decode(@NotNull byte[] buffer, int offset, int length, @NotNull Handler handler) {
+        if (length < 3) {
+            handler.onMalformed(length > 0 ? buffer[offset] & 0xFF : -1, length);
+            return 0;
+        }
+        final int type = buffer[offset] & 0xFF;
+        if (uint16(buffer, offset + 1) != length) {
+            handler.onMalformed(type, length);
+            return 0;
+        }
+
+        if (type == ObservationBundler.OBSERVATION_BUNDLE) {
+            if (length < ObservationBundler.BUNDLE_HEADER_LENGTH) {
+                handler.onMalformed(type, length);
+                return 0;
+            }
+            final int count = buffer[offset + 5] & 0xFF;
+            int position = offset + ObservationBundler.BUNDLE_HEADER_LENGTH;
+            final int end = offset + length;
+            int decoded = 0;
+            for (int i = 0; i < count; i++) {
+                if (end - position < 3) {
+                    handler.onMalformed(type, length);
+                    return decoded;
+                }
+                final int innerLength = uint16(buffer, position + 1);
+                if (innerLength > end - position || innerLength == 0) {
+                    handler.onMalformed(type, length);
+                    return decoded;
+                }
+                decoded += decodeSingle(buffer, position, innerLength, handler);
+                position += innerLength;
+            }
+            return decoded;
+        }
+        return decodeSingle(buffer, offset, length, handler);
+    }
+
+    private static int decodeSingle(@NotNull byte[] buffer, int offset, int length, @NotNull Handler handler) {
+        final int type = buffer[offset] & 0xFF;
+        if (length < NumericObservationEncoder.OBSERVATION_LENGTH || uint16(buffer, offset + 3) != FLAGS || uint16(buffer, offset + 1) != length) {
+            handler.onMalformed(type, length);
+            return 0;
+        }
+
+        final int mdcCode = (int) uint32(buffer, offset + MDC_OFFSET);
+        final long etsSeconds = uint48(buffer, offset + TIMESTAMP_OFFSET);
+        final float duration = float32(buffer, offset + DURATION_OFFSET);
+        final int unitCode = uint16(buffer, offset + UNIT_OFFSET);
+
+        if (type == NUMERIC_OBSERVATION && length == NumericObservationEncoder.OBSERVATION_LENGTH) {
+            handler.onNumeric(mdcCode, etsSeconds, duration, unitCode, float32(buffer, offset + NUMERIC_VALUE_OFFSET));
+            return 1;
+        }
+        if (type == SAMPLE_ARRAY_OBSERVATION && length >= SampleArrayObservationEncoder.HEADER_LENGTH) {
+            final int bytesPerSample = buffer[offset + BYTES_PER_SAMPLE_OFFSET] & 0xFF;
+            final long count = uint32(buffer, offset + NUMBER_OF_SAMPLES_OFFSET);
+            if (bytesPerSample >= 1 && bytesPerSample <= 4 && SampleArrayObservationEncoder.HEADER_LENGTH + count * bytesPerSample == length) {
+                handler.onSampleArray(mdcCode, etsSeconds, duration, unitCode, float32(buffer, offset + SCALE_FACTOR_OFFSET), float32(buffer, offset + SAMPLE_OFFSET_OFFSET),
+                        buffer[offset + SAMPLES_PER_PERIOD_OFFSET] & 0xFF, bytesPerSample, buffer, offset + SampleArrayObservationEncoder.HEADER_LENGTH, (int) count);
+                return 1;
+            }
+        }
+        handler.onMalformed(type, length);
+        return 0;
+    }
+
+    static int uint16(@NotNull byte[] buffer, int offset) {
+        return (buffer[offset] & 0xFF) | (buffer[offset + 1] & 0xFF) << 8;
+    }
+
+    static long uint32(@NotNull byte[] buffer, int offset) {
+        return uint16(buffer, offset) | (long) uint16(buffer, offset + 2) << 16;
+    }
+
+    static long uint48(@NotNull byte[] buffer, int offset) {
+        return uint32(buffer, offset) | (long) uint16(buffer, offset + 4) << 32;
+    }
+
+    // IEEE-11073 32-bit FLOAT: 24-bit signed mantissa, 8-bit signed base-10 exponent
+    static float float32(@NotNull byte[] buffer, int offset) {
+        final int mantissa = ((buffer[offset] & 0xFF) | (buffer[offset + 1] & 0xFF) << 8 | buffer[offset + 2] << 16);
+        final int exponent = buffer[offset + 3];
+        switch (mantissa) {
+            case 0x7FFFFF:
+            case 0x800000 - 0x1000000:
+            case 0x800001 - 0x1000000:
+                return Float.NaN;
+            case 0x7FFFFE:
+                return Float.POSITIVE_INFINITY;
+            case 0x800002 - 0x1000000:
+                return Float.NEGATIVE_INFINITY;
+            default:
+                // Dividing by an exact power of ten gives the same float as the encoder's input
+                if (exponent < 0 && exponent >= -8) return mantissa / POWERS_OF_TEN[-exponent];
+                if (exponent >= 0 && exponent <= 8) return mantissa * POWERS_OF_TEN[exponent];
+                return (float) (mantissa * Math.pow(10, exponent));
+        }
+    }
+}
@@ -0,0 +1,122 @@
+package com.welie.btserver;
+
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.util.Locale;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Presents the live value and trend of one observation type. Observations are read from the
+ * {@link ObservationBus} at most once per display frame, however fast they are published, and the
+ * trend is downsampled to a fixed number of points before it is drawn.
+ */
+final class ObservationPresenter {
+
+    interface Display {
+        void showValue(@NotNull String text);
+
+        /**
+         * @param x seconds since the oldest point shown
+         */
+        void showTrend(@NotNull float[] x, @NotNull float[] y, int count);
+    }
+
+    interface FrameRequester {
+        /**
+         * Call {@link #onFrame()} on the UI thread before the next frame is drawn. Called from any thread.
+         */
+        void requestFrame();
+    }
+
+    private @NotNull final ObservationBus bus;
+    private final int mdcCode;
+    private @NotNull final Display display;
+    private @NotNull final FrameRequester frames;
+    private @NotNull final TrendHistory history;
+    private final int trendPoints;
+    private @NotNull final float[] historyX;
+    private @NotNull final float[] historyY;
+    private @NotNull final float[] trendX;
+    private @NotNull final float[] trendY;
+    // At most one frame is requested at a time
+    private @NotNull final AtomicBoolean framePending = new AtomicBoolean(false);
+    private @NotNull final Runnable wakeUp = this::wakeUp;
+    private @NotNull final ObservationBus.Handler collect = this::collect;
+    private @Nullable ObservationBus.Subscription subscription = null;
+    private boolean changed = false;
+    private float lastValue = Float.NaN;
+    private float shownValue = Float.NaN;
+    private long renderedFrames = 0;
+
+    /**
+     * @param historySize number of samples kept for the trend
+     * @param trendPoints maximum number of points drawn, at least 3
+     */
+    ObservationPresenter(@NotNull ObservationBus bus, int mdcCode, int historySize, int trendPoints, @NotNull Display display, @NotNull FrameRequester frames) {
+        if (trendPoints < 3) throw new IllegalArgumentException("trend needs at least 3 points");
+        this.bus = bus;
+        this.mdcCode = mdcCode;
+        this.display = display;
+        this.frames = frames;
+        this.history = new TrendHistory(historySize);
+        this.trendPoints = trendPoints;
+        this.historyX = new float[historySize];
+        this.historyY = new float[historySize];
+        this.trendX = new float[trendPoints];
+        this.trendY = new float[trendPoints];
+    }
+
+    void start() {
+        if (subscription == null) subscription = bus.subscribe(wakeUp);
+    }
+
+    void stop() {
+        if (subscription != null) {
+            subscription.cancel();
+            subscription = null;
+        }
+    }
+
+    /**
+     * Render everything that was published since the last frame. Call on the UI thread.
+     */
+    void onFrame() {
+        framePending.set(false);
+        final ObservationBus.Subscription current = subscription;
+        if (current == null) return;
+
+        current.poll(collect, Integer.MAX_VALUE);
+        if (!changed) return;
+        changed = false;
+        renderedFrames++;
+
+        if (Float.compare(lastValue, shownValue) != 0) {
+            shownValue = lastValue;
+            display.showValue(String.format(Locale.ENGLISH, "%.1f%%", lastValue));
+        }
+
+        final int count = history.copyTo(historyX, historyY, history.timestamp(0));
+        final int points = Lttb.downsample(historyX, historyY, count, trendPoints, trendX, trendY);
+        display.showTrend(trendX, trendY, points);
+    }
+
+    /**
+     * Number of frames that were rendered.
+     */
+    long getRenderedFrames() {
+        return renderedFrames;
+    }
+
+    // Called on the publishing thread
+    private void wakeUp() {
+        if (framePending.compareAndSet(false, true)) frames.requestFrame();
+    }
+
+    private void collect(long sequence, int mdcCode, float value, long etsSeconds) {
+        if (mdcCode != this.mdcCode) return;
+        history.add(etsSeconds, value);
+        lastValue = value;
+        changed = true;
+    }
+}
@@ -0,0 +1,127 @@
+package com.welie.btserver;
+
+import org.jetbrains.annotations.NotNull;
+
+import java.util.Arrays;
+
+/**
+ * Receiving end of the GHS segmentation, for loopback tests and load harnesses: turns the packets
+ * of one central's notification stream back into observations, see {@link ObservationSegmenter}.
+ * A train of a single segment is handed out from the packet itself; longer trains are collected in
+ * one buffer that is reused. Nothing is allocated once the buffer has grown to the largest observation.
+ * <p>
+ * The 6-bit segment counter must go up by one with every packet. When it does not, packets were
+ * lost: the gap is reported, the observation in progress is discarded and reassembly restarts at
+ * the next first segment. Use one reassembler per central and characteristic; not thread-safe.
+ */
+final class ObservationReassembler {
+
+    interface Listener {
+        /**
+         * A complete observation. The bytes are only valid during the call.
+         */
+        void onObservation(@NotNull byte[] buffer, int offset, int length);
+
+        /**
+         * Packets were lost between {@code expectedCounter} and {@code receivedCounter}.
+         */
+        void onGap(int expectedCounter, int receivedCounter);
+    }
+
+    private @NotNull final Listener listener;
+    private byte[] buffer = new byte[256];
+    private int length = 0;
+    private boolean inObservation = false;
+    private int pendingSegments = 0;
+    private int expectedCounter = -1;
+    private long packets = 0;
+    private long observations = 0;
+    private long gaps = 0;
+    private long discardedSegments = 0;
+
+    ObservationReassembler(@NotNull Listener listener) {
+        this.listener = listener;
+    }
+
+    /**
+     * Feed one received packet: the segmentation header followed by a part of an observation.
+     */
+    void onPacket(@NotNull byte[] packet, int offset, int packetLength) {
+        if (packetLength < 1) return;
+        packets++;
+        final int header = packet[offset] & 0xFF;
+        final int counter = header >> 2;
+        final boolean first = (header & 0x01) != 0;
+        final boolean last = (header & 0x02) != 0;
+
+        if (expectedCounter >= 0 && counter != expectedCounter) {
+            gaps++;
+            listener.onGap(expectedCounter, counter);
+            discardInProgress();
+        }
+        expectedCounter = (counter + 1) & 0x3F;
+
+        if (first) {
+            // A new observation while one is in progress means its last segment was never marked
+            discardInProgress();
+            if (last) {
+                observations++;
+                listener.onObservation(packet, offset + 1, packetLength - 1);
+                return;
+            }
+            inObservation = true;
+        } else if (!inObservation) {
+            // Rest of an observation whose start was lost
+            discardedSegments++;
+            return;
+        }
+
+        append(packet, offset + 1, packetLength - 1);
+        pendingSegments++;
+        if (last) {
+            inObservation = false;
+            pendingSegments = 0;
+            observations++;
+            listener.onObservation(buffer, 0, length);
+            length = 0;
+        }
+    }
+
+    void onPacket(@NotNull byte[] packet) {
+        onPacket(packet, 0, packet.length);
+    }
+
+    long getPackets() {
+        return packets;
+    }
+
+    long getObservations() {
+        return observations;
+    }
+
+    long getGaps() {
+        return gaps;
+    }
+
+    /**
+     * Segments thrown away because the observation they belong to was incomplete.
+     */
+    long getDiscardedSegments() {
+        return discardedSegments;
+    }
+
+    private void append(@NotNull byte[] source, int offset, int count) {
+        if (length + count > buffer.length) {
+            buffer = Arrays.copyOf(buffer, Math.max(buffer.length * 2, length + count));
+        }
+        System.arraycopy(source, offset, buffer, length, count);
+        length += count;
+    }
+
+    private void discardInProgress() {
+        discardedSegments += pendingSegments;
+        pendingSegments = 0;
+        inObservation = false;
+        length = 0;
+    }
+}
@@ -0,0 +1,123 @@
+package com.welie.btserver;
+
+import static java.lang.Math.min;
+
+import org.jetbrains.annotations.NotNull;
+
+import java.util.Arrays;
+
+/**
+ * Splits an observation into GHS segments, once per distinct MTU. Packets are cached and reused
+ * between observations; byte 0 of every packet is the segmentation header, which the caller
+ * patches per central right before sending.
+ */
+final class ObservationSegmenter {
+
+    static final int MIN_MTU = 23;
+
+    // ATT notification overhead (3) plus the segmentation header (1)
+    private static final int SEGMENT_OVERHEAD = 4;
+
+    private @NotNull Segments[] cache = new Segments[4];
+    private int cacheSize = 0;
+    private int generation = 0;
+    private byte[] packet = new byte[1];
+    private int observationLength = 0;
+
+    static final class Segments implements OutboundQueue.PacketTrain {
+        final int mtu;
+        private int generation = -1;
+        private byte[][] packets = new byte[0][];
+        private int count = 0;
+
+        private Segments(int mtu) {
+            this.mtu = mtu;
+        }
+
+        @Override
+        public int count() {
+            return count;
+        }
+
+        @Override
+        public @NotNull byte[] packet(int index) {
+            return packets[index];
+        }
+    }
+
+    /**
+     * Rolling 6-bit segment counter of a single receiver.
+     */
+    static final class SegmentCounter {
+        private int value = 0;
+
+        int next() {
+            final int current = value;
+            value = (value + 1) & 0x3F;
+            return current;
+        }
+    }
+
+    static byte header(int segmentCounter, boolean first, boolean last) {
+        return (byte) ((segmentCounter << 2) + (last ? 2 : 0) + (first ? 1 : 0));
+    }
+
+    /**
+     * Set the observation to segment. {@code packet[0]} is reserved for the segmentation header and
+     * the observation follows it, so observations that fit in a single segment are sent from
+     * {@code packet} itself.
+     */
+    void setObservation(@NotNull byte[] packet) {
+        this.packet = packet;
+        this.observationLength = packet.length - 1;
+        generation++;
+    }
+
+    @NotNull Segments segmentsFor(int mtu) {
+        final int effectiveMtu = Math.max(mtu, MIN_MTU);
+        Segments segments = find(effectiveMtu);
+        if (segments.generation != generation) {
+            segment(segments);
+            segments.generation = generation;
+        }
+        return segments;
+    }
+
+    private @NotNull Segments find(int mtu) {
+        for (int i = 0; i < cacheSize; i++) {
+            if (cache[i].mtu == mtu) return cache[i];
+        }
+        if (cacheSize == cache.length) {
+            cache = Arrays.copyOf(cache, cacheSize * 2);
+        }
+        Segments segments = new Segments(mtu);
+        cache[cacheSize++] = segments;
+        return segments;
+    }
+
+    private void segment(@NotNull Segments segments) {
+        final int maxSegmentSize = segments.mtu - SEGMENT_OVERHEAD;
+        final int numberOfSegments = (observationLength + maxSegmentSize - 1) / maxSegmentSize;
+        if (segments.packets.length < numberOfSegments) {
+            segments.packets = Arrays.copyOf(segments.packets, numberOfSegments);
+        }
+        segments.count = numberOfSegments;
+
+        if (numberOfSegments == 1) {
+            segments.packets[0] = packet;
+            return;
+        }
+
+        int observationIndex = 0;
+        for (int i = 0; i < numberOfSegments; i++) {
+            final int segmentSize = min(maxSegmentSize, observationLength - observationIndex);
+            byte[] segmentPacket = segments.packets[i];
+            if (segmentPacket == null || segmentPacket == packet || segmentPacket.length != segmentSize + 1) {
+                segmentPacket = new byte[segmentSize + 1];
+                segments.packets[i] = segmentPacket;
+            }
+            System.arraycopy(packet, 1 + observationIndex, segmentPacket, 1, segmentSize);
+            observationIndex += segmentSize;
+        }
+    }
+}
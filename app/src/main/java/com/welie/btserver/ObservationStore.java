@@ -0,0 +1,438 @@
+package com.welie.btserver;
+
+import org.jetbrains.annotations.NotNull;
+
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+
+/**
+ * Append-only store of numeric observations in a memory-mapped log of fixed-size records.
+ * <p>
+ * Records get consecutive sequence numbers, so a sequence number maps directly to a record
+ * position. Every record also holds the highest timestamp stored so far, which is non-decreasing
+ * and is binary searched to find timestamp ranges. Deleted records are kept as a sorted list of
+ * position ranges, so counting and skipping them is logarithmic as well. Appending only writes to
+ * mapped memory; the file grows in chunks that are mapped ahead of time by {@link #grow()}.
+ * <p>
+ * The log is a ring of at most a fixed number of chunks. When it is full, the oldest chunk is
+ * dropped and its space in the file is reused for new records. A chunk is also released as soon as
+ * deletions cover it and everything before it. Released positions count as deleted, so positions
+ * and sequence numbers are never reused.
+ * <p>
+ * Not thread safe: the store is owned by the Generic Health Service actor.
+ */
+final class ObservationStore implements Closeable {
+
+    static final int RECORD_SIZE = 32;
+    static final int CHUNK_RECORDS = 32 * 1024;
+    // 64 MiB, about a week of the default observation types
+    static final int DEFAULT_CAPACITY_CHUNKS = 64;
+    private static final long CHUNK_SIZE = (long) CHUNK_RECORDS * RECORD_SIZE;
+    private static final int HEADER_SIZE = 32;
+    private static final int MAGIC = 0x47485332; // GHS2
+
+    // Header layout
+    private static final int CAPACITY_CHUNKS = 4;
+    private static final int FIRST_SEQUENCE_NUMBER = 8;
+    private static final int SIZE = 16;
+    private static final int FIRST_POSITION = 24;
+
+    // Record layout; the sequence number follows from the position
+    private static final int MDC_CODE = 0;
+    private static final int DURATION = 4;
+    private static final int TIMESTAMP = 8;
+    private static final int MAX_TIMESTAMP = 16;
+    private static final int VALUE = 24;
+
+    private @NotNull final RandomAccessFile file;
+    private @NotNull final FileChannel channel;
+    private @NotNull final File deletionsFile;
+    private @NotNull final MappedByteBuffer header;
+    // Mapped chunks, starting with the one holding firstPosition
+    private @NotNull final ArrayList<MappedByteBuffer> chunks = new ArrayList<>();
+    private final int capacityChunks;
+    private final long firstSequenceNumber;
+    private long size;
+    // First position that has not been released, always at the start of a chunk
+    private long firstPosition;
+    private long maxTimestamp;
+
+    // Deleted positions as sorted, disjoint [from, to) ranges
+    private long[] deletedFrom = new long[0];
+    private long[] deletedTo = new long[0];
+    // deletedBefore[i] is the number of deleted records in ranges 0..i-1
+    private long[] deletedBefore = new long[]{0};
+
+    /**
+     * A stored record, filled by {@link #read(long, Record)}.
+     */
+    static final class Record {
+        long sequenceNumber;
+        int mdcCode;
+        long timestamp;
+        float duration;
+        float value;
+    }
+
+    private ObservationStore(@NotNull File logFile, @NotNull File deletionsFile, int capacityChunks) throws IOException {
+        this.file = new RandomAccessFile(logFile, "rw");
+        this.channel = file.getChannel();
+        this.deletionsFile = deletionsFile;
+        final boolean created = channel.size() < HEADER_SIZE;
+        if (created) file.setLength(HEADER_SIZE);
+        this.header = channel.map(FileChannel.MapMode.READ_WRITE, 0, HEADER_SIZE);
+        header.order(ByteOrder.LITTLE_ENDIAN);
+        if (created) {
+            header.putInt(0, MAGIC);
+            header.putInt(CAPACITY_CHUNKS, capacityChunks);
+            header.putLong(FIRST_SEQUENCE_NUMBER, 1);
+            header.putLong(SIZE, 0);
+            header.putLong(FIRST_POSITION, 0);
+        } else if (header.getInt(0) != MAGIC) {
+            throw new IOException("not an observation store: " + logFile);
+        }
+        // The ring keeps the capacity it was created with
+        this.capacityChunks = header.getInt(CAPACITY_CHUNKS);
+        this.firstSequenceNumber = header.getLong(FIRST_SEQUENCE_NUMBER);
+        this.size = header.getLong(SIZE);
+        this.firstPosition = header.getLong(FIRST_POSITION);
+
+        final long chunksNeeded = Math.min(this.capacityChunks, Math.max(1, (size - firstPosition + CHUNK_RECORDS) / CHUNK_RECORDS));
+        for (int i = 0; i < chunksNeeded; i++) {
+            mapChunk();
+        }
+        this.maxTimestamp = size > firstPosition ? chunk(size - 1).getLong(offset(size - 1) + MAX_TIMESTAMP) : Long.MIN_VALUE;
+        readDeletions();
+        if (firstPosition > 0) markDeleted(0, firstPosition);
+    }
+
+    static @NotNull ObservationStore open(@NotNull File directory) throws IOException {
+        return open(directory, DEFAULT_CAPACITY_CHUNKS);
+    }
+
+    /**
+     * @param capacityChunks maximum number of chunks of {@link #CHUNK_RECORDS} records kept, used
+     *                       when the store is created
+     */
+    static @NotNull ObservationStore open(@NotNull File directory, int capacityChunks) throws IOException {
+        if (capacityChunks < 2) throw new IllegalArgumentException("capacity must be at least 2 chunks");
+        if (!directory.isDirectory() && !directory.mkdirs()) {
+            throw new IOException("cannot create " + directory);
+        }
+        return new ObservationStore(new File(directory, "observations.log"), new File(directory, "observations.del"), capacityChunks);
+    }
+
+    /**
+     * Append an observation.
+     *
+     * @return the sequence number of the new record
+     */
+    long append(int mdcCode, long timestamp, float duration, float value) {
+        final long position = size;
+        if (position / CHUNK_RECORDS - firstPosition / CHUNK_RECORDS >= chunks.size()) {
+            if (chunks.size() == capacityChunks) {
+                recycleOldestChunk();
+            } else {
+                // Normally grow() has mapped the chunk ahead of time
+                grow();
+            }
+        }
+        maxTimestamp = Math.max(maxTimestamp, timestamp);
+        final long sequenceNumber = firstSequenceNumber + position;
+        final MappedByteBuffer target = chunk(position);
+        final int offset = offset(position);
+        target.putInt(offset + MDC_CODE, mdcCode);
+        target.putLong(offset + TIMESTAMP, timestamp);
+        target.putLong(offset + MAX_TIMESTAMP, maxTimestamp);
+        target.putFloat(offset + DURATION, duration);
+        target.putFloat(offset + VALUE, value);
+        size++;
+        header.putLong(SIZE, size);
+        return sequenceNumber;
+    }
+
+    /**
+     * @return true when the mapped space is running out and {@link #grow()} should be called
+     */
+    boolean shouldGrow() {
+        return chunks.size() < capacityChunks && firstPosition + (long) chunks.size() * CHUNK_RECORDS - size < CHUNK_RECORDS / 4;
+    }
+
+    /**
+     * Map the next chunk of the log, unless the ring is full.
+     */
+    void grow() {
+        if (chunks.size() == capacityChunks) return;
+        try {
+            mapChunk();
+        } catch (IOException e) {
+            throw new IllegalStateException("cannot grow observation store", e);
+        }
+    }
+
+    /**
+     * Number of positions in the log, including deleted records.
+     */
+    long size() {
+        return size;
+    }
+
+    long firstSequenceNumber() {
+        return firstSequenceNumber;
+    }
+
+    /**
+     * Positions before this one have been released and are counted as deleted.
+     */
+    long firstPosition() {
+        return firstPosition;
+    }
+
+    /**
+     * Record numbers on air are the low 32 bits of sequence numbers. A record number refers to the
+     * highest sequence number with those low bits that is not beyond the next record to be stored.
+     */
+    long sequenceNumberOf(long recordNumber) {
+        final long next = firstSequenceNumber + size;
+        final long sequenceNumber = (next & ~0xFFFFFFFFL) | (recordNumber & 0xFFFFFFFFL);
+        return sequenceNumber > next && sequenceNumber >= 1L << 32 ? sequenceNumber - (1L << 32) : sequenceNumber;
+    }
+
+    /**
+     * Position of the first record with a sequence number of at least {@code sequenceNumber}.
+     */
+    long positionOfSequenceNumber(long sequenceNumber) {
+        return Math.max(0, Math.min(size, sequenceNumber - firstSequenceNumber));
+    }
+
+    /**
+     * Position of the first record stored after all records with a timestamp before {@code timestamp}.
+     */
+    long positionOfTimestamp(long timestamp) {
+        long low = firstPosition;
+        long high = size;
+        while (low < high) {
+            final long middle = (low + high) >>> 1;
+            if (chunk(middle).getLong(offset(middle) + MAX_TIMESTAMP) < timestamp) {
+                low = middle + 1;
+            } else {
+                high = middle;
+            }
+        }
+        return low;
+    }
+
+    /**
+     * Number of records that are not deleted in positions [from, to).
+     */
+    long count(long from, long to) {
+        if (to <= from) return 0;
+        return (to - from) - deletedIn(from, to);
+    }
+
+    /**
+     * First position at or after {@code position} that is not deleted, or {@link #size()}.
+     */
+    long nextPresent(long position) {
+        final int range = rangeContaining(position);
+        return range >= 0 ? deletedTo[range] : position;
+    }
+
+    /**
+     * Last position before {@code position} that is not deleted, or -1.
+     */
+    long previousPresent(long position) {
+        long candidate = position - 1;
+        while (candidate >= 0) {
+            final int range = rangeContaining(candidate);
+            if (range < 0) return candidate;
+            candidate = deletedFrom[range] - 1;
+        }
+        return -1;
+    }
+
+    void read(long position, @NotNull Record record) {
+        final MappedByteBuffer chunk = chunk(position);
+        final int offset = offset(position);
+        record.sequenceNumber = firstSequenceNumber + position;
+        record.mdcCode = chunk.getInt(offset + MDC_CODE);
+        record.timestamp = chunk.getLong(offset + TIMESTAMP);
+        record.duration = chunk.getFloat(offset + DURATION);
+        record.value = chunk.getFloat(offset + VALUE);
+    }
+
+    /**
+     * Delete the records in positions [from, to).
+     *
+     * @return the number of records that were deleted
+     */
+    long delete(long from, long to) throws IOException {
+        from = Math.max(0, from);
+        to = Math.min(size, to);
+        final long deleted = count(from, to);
+        if (deleted == 0) return 0;
+
+        markDeleted(from, to);
+        writeDeletions();
+        releaseDeletedChunks();
+        return deleted;
+    }
+
+    void flush() {
+        header.force();
+        for (MappedByteBuffer chunk : chunks) {
+            chunk.force();
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        flush();
+        channel.close();
+        file.close();
+    }
+
+    private void markDeleted(long from, long to) {
+        // Merge [from, to) with all ranges it overlaps or touches
+        int first = 0;
+        while (first < deletedFrom.length && deletedTo[first] < from) first++;
+        int last = first;
+        while (last < deletedFrom.length && deletedFrom[last] <= to) {
+            from = Math.min(from, deletedFrom[last]);
+            to = Math.max(to, deletedTo[last]);
+            last++;
+        }
+
+        final int newLength = deletedFrom.length - (last - first) + 1;
+        final long[] newFrom = new long[newLength];
+        final long[] newTo = new long[newLength];
+        System.arraycopy(deletedFrom, 0, newFrom, 0, first);
+        System.arraycopy(deletedTo, 0, newTo, 0, first);
+        newFrom[first] = from;
+        newTo[first] = to;
+        System.arraycopy(deletedFrom, last, newFrom, first + 1, deletedFrom.length - last);
+        System.arraycopy(deletedTo, last, newTo, first + 1, deletedTo.length - last);
+        setDeletions(newFrom, newTo);
+    }
+
+    // The ring is full: drop the oldest chunk and reuse its space in the file, which is the slot of the next chunk
+    private void recycleOldestChunk() {
+        final MappedByteBuffer oldest = chunks.remove(0);
+        setFirstPosition(firstPosition + CHUNK_RECORDS);
+        chunks.add(oldest);
+    }
+
+    // Release the chunks that are deleted entirely, together with everything before them
+    private void releaseDeletedChunks() {
+        if (deletedFrom.length == 0 || deletedFrom[0] != 0) return;
+        final long first = Math.min(deletedTo[0], size) / CHUNK_RECORDS * CHUNK_RECORDS;
+        if (first <= firstPosition) return;
+        // Dropping the buffers unmaps them; their space in the file is reused by later chunks
+        final int released = (int) Math.min(chunks.size(), (first - firstPosition) / CHUNK_RECORDS);
+        chunks.subList(0, released).clear();
+        setFirstPosition(first);
+    }
+
+    private void setFirstPosition(long position) {
+        firstPosition = position;
+        header.putLong(FIRST_POSITION, position);
+        markDeleted(0, position);
+    }
+
+    private void mapChunk() throws IOException {
+        final long slot = (firstPosition / CHUNK_RECORDS + chunks.size()) % capacityChunks;
+        final long start = HEADER_SIZE + slot * CHUNK_SIZE;
+        if (file.length() < start + CHUNK_SIZE) file.setLength(start + CHUNK_SIZE);
+        final MappedByteBuffer chunk = channel.map(FileChannel.MapMode.READ_WRITE, start, CHUNK_SIZE);
+        chunk.order(ByteOrder.LITTLE_ENDIAN);
+        chunks.add(chunk);
+    }
+
+    private @NotNull MappedByteBuffer chunk(long position) {
+        return chunks.get((int) (position / CHUNK_RECORDS - firstPosition / CHUNK_RECORDS));
+    }
+
+    private static int offset(long position) {
+        return (int) (position % CHUNK_RECORDS) * RECORD_SIZE;
+    }
+
+    // Index of the deleted range that contains position, or -1
+    private int rangeContaining(long position) {
+        final int index = upperBound(deletedFrom, position) - 1;
+        return index >= 0 && position < deletedTo[index] ? index : -1;
+    }
+
+    private long deletedIn(long from, long to) {
+        return deletedBefore(to) - deletedBefore(from);
+    }
+
+    // Number of deleted records in positions [0, position)
+    private long deletedBefore(long position) {
+        final int ranges = upperBound(deletedFrom, position);
+        if (ranges == 0) return 0;
+        final int last = ranges - 1;
+        return deletedBefore[last] + Math.min(position, deletedTo[last]) - deletedFrom[last];
+    }
+
+    // Number of elements in the sorted array that are <= value
+    private static int upperBound(@NotNull long[] sorted, long value) {
+        int low = 0;
+        int high = sorted.length;
+        while (low < high) {
+            final int middle = (low + high) >>> 1;
+            if (sorted[middle] <= value) {
+                low = middle + 1;
+            } else {
+                high = middle;
+            }
+        }
+        return low;
+    }
+
+    private void setDeletions(@NotNull long[] from, @NotNull long[] to) {
+        deletedFrom = from;
+        deletedTo = to;
+        deletedBefore = new long[from.length + 1];
+        for (int i = 0; i < from.length; i++) {
+            deletedBefore[i + 1] = deletedBefore[i] + (to[i] - from[i]);
+        }
+    }
+
+    private void readDeletions() throws IOException {
+        if (!deletionsFile.exists()) return;
+        try (DataInputStream input = new DataInputStream(new FileInputStream(deletionsFile))) {
+            final int count = input.readInt();
+            final long[] from = new long[count];
+            final long[] to = new long[count];
+            for (int i = 0; i < count; i++) {
+                from[i] = input.readLong();
+                to[i] = input.readLong();
+            }
+            setDeletions(from, to);
+        }
+    }
+
+    private void writeDeletions() throws IOException {
+        final File temporary = new File(deletionsFile.getPath() + ".tmp");
+        try (DataOutputStream output = new DataOutputStream(new FileOutputStream(temporary))) {
+            output.writeInt(deletedFrom.length);
+            for (int i = 0; i < deletedFrom.length; i++) {
+                output.writeLong(deletedFrom[i]);
+                output.writeLong(deletedTo[i]);
+            }
+        }
+        if (!temporary.renameTo(deletionsFile)) {
+            throw new IOException("cannot replace " + deletionsFile);
+        }
+    }
+}
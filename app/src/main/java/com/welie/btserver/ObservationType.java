@@ -0,0 +1,73 @@
+package com.welie.btserver;
+
+import static com.welie.btserver.NumericObservationEncoder.putFloat;
+import static com.welie.btserver.NumericObservationEncoder.putUInt32;
+
+import org.jetbrains.annotations.NotNull;
+
+/**
+ * A numeric observation type with its own schedule. The schedule is kept both as numbers and as the
+ * encoded GHS schedule descriptor value: MDC code, measurement period and update interval.
+ */
+final class ObservationType {
+
+    static final int SCHEDULE_LENGTH = 12;
+
+    interface Source {
+        /**
+         * Take the next sample.
+         */
+        float sample();
+    }
+
+    final int mdcCode;
+    final @NotNull NumericObservationEncoder encoder;
+    private @NotNull final Source source;
+    private float measurementPeriod;
+    private float updateInterval;
+    private @NotNull byte[] scheduleValue = new byte[SCHEDULE_LENGTH];
+
+    ObservationType(int mdcCode, int unitCode, @NotNull Source source, float measurementPeriod, float updateInterval) {
+        this.mdcCode = mdcCode;
+        this.encoder = new NumericObservationEncoder(mdcCode, unitCode);
+        this.source = source;
+        setSchedule(measurementPeriod, updateInterval);
+    }
+
+    float sample() {
+        return source.sample();
+    }
+
+    float getMeasurementPeriod() {
+        return measurementPeriod;
+    }
+
+    float getUpdateInterval() {
+        return updateInterval;
+    }
+
+    void setSchedule(float measurementPeriod, float updateInterval) {
+        // A new array, the previous value may still be queued for sending
+        final byte[] value = new byte[SCHEDULE_LENGTH];
+        putUInt32(value, 0, mdcCode);
+        putFloat(value, 4, measurementPeriod, 1);
+        putFloat(value, 8, updateInterval, 1);
+        setSchedule(measurementPeriod, updateInterval, value);
+    }
+
+    /**
+     * Set the schedule as written by a central; {@code scheduleValue} is kept as is and returned on reads.
+     */
+    void setSchedule(float measurementPeriod, float updateInterval, @NotNull byte[] scheduleValue) {
+        this.measurementPeriod = measurementPeriod;
+        this.updateInterval = updateInterval;
+        this.scheduleValue = scheduleValue;
+    }
+
+    /**
+     * The schedule descriptor value. Do not modify.
+     */
+    @NotNull byte[] getScheduleValue() {
+        return scheduleValue;
+    }
+}
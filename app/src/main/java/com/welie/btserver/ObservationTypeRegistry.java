@@ -0,0 +1,106 @@
+package com.welie.btserver;
+
+import static com.welie.btserver.NumericObservationEncoder.putUInt32;
+
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.util.ArrayList;
+
+/**
+ * The observation types of the Generic Health Service. Scheduled types are numeric observations
+ * with their own schedule; streamed types (waveforms) are only listed as supported.
+ * <p>
+ * All scheduled types run off one shared timer. The timer ticks at the greatest common divisor of
+ * all periods, and a type is due on every tick that is a multiple of its period, so types with
+ * equal or related periods are due on the same tick and can be sent together.
+ */
+final class ObservationTypeRegistry {
+
+    private static final long MIN_TICK_MILLIS = 10;
+
+    private @NotNull final ArrayList<ObservationType> types = new ArrayList<>();
+    private @NotNull final ArrayList<Integer> streamedMdcCodes = new ArrayList<>();
+
+    void add(@NotNull ObservationType type) {
+        if (isSupported(type.mdcCode)) throw new IllegalArgumentException("duplicate MDC code " + type.mdcCode);
+        types.add(type);
+    }
+
+    void addStreamed(int mdcCode) {
+        if (isSupported(mdcCode)) throw new IllegalArgumentException("duplicate MDC code " + mdcCode);
+        streamedMdcCodes.add(mdcCode);
+    }
+
+    int size() {
+        return types.size();
+    }
+
+    @NotNull ObservationType get(int index) {
+        return types.get(index);
+    }
+
+    @Nullable ObservationType find(int mdcCode) {
+        for (int i = 0; i < types.size(); i++) {
+            if (types.get(i).mdcCode == mdcCode) return types.get(i);
+        }
+        return null;
+    }
+
+    /**
+     * The GHS feature value: flags, number of supported observation types and their MDC codes.
+     */
+    @NotNull byte[] featureValue() {
+        final int count = types.size() + streamedMdcCodes.size();
+        final byte[] value = new byte[2 + 4 * count];
+        value[0] = 0; // flags - no device specializations field present
+        value[1] = (byte) count;
+        int offset = 2;
+        for (int i = 0; i < types.size(); i++, offset += 4) {
+            putUInt32(value, offset, types.get(i).mdcCode);
+        }
+        for (int i = 0; i < streamedMdcCodes.size(); i++, offset += 4) {
+            putUInt32(value, offset, streamedMdcCodes.get(i));
+        }
+        return value;
+    }
+
+    /**
+     * Tick period of the shared timer. In bundle mode samples are taken every measurement period and
+     * sent every update interval, otherwise one sample is taken and sent every update interval.
+     */
+    long getTickMillis(boolean bundleMode) {
+        long tick = 0;
+        for (int i = 0; i < types.size(); i++) {
+            final ObservationType type = types.get(i);
+            tick = gcd(tick, toMillis(type.getUpdateInterval()));
+            if (bundleMode) tick = gcd(tick, toMillis(type.getMeasurementPeriod()));
+        }
+        return tick == 0 ? 1000 : Math.max(tick, MIN_TICK_MILLIS);
+    }
+
+    /**
+     * @return true if {@code tick}, counted from the start of the timer, is due for a period of {@code seconds}
+     */
+    static boolean isDue(long tick, long tickMillis, float seconds) {
+        final long ticks = Math.max(1, Math.round((double) toMillis(seconds) / tickMillis));
+        return tick % ticks == 0;
+    }
+
+    private static long toMillis(float seconds) {
+        return Math.round(seconds * 1000.0);
+    }
+
+    private static long gcd(long a, long b) {
+        while (b != 0) {
+            final long remainder = a % b;
+            a = b;
+            b = remainder;
+        }
+        return a;
+    }
+
+    private boolean isSupported(int mdcCode) {
+        return find(mdcCode) != null || streamedMdcCodes.contains(mdcCode);
+    }
+}
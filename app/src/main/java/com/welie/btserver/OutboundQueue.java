@@ -0,0 +1,358 @@
+package com.welie.btserver;
+
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+/**
+ * Flow-controlled outbound queue of a single central. At most {@code maxCredits} packets are handed
+ * to the stack before it reports them sent; the rest wait here in bounded queues. Indications go
+ * before bulk packets. Segment trains are queued and dropped as a whole, never partially; reliable
+ * trains, like stored records, are never dropped to make room and are refused instead.
+ * <p>
+ * Packets are sent from the caller's array when a credit is available and only copied, into
+ * buffers that are reused, when they have to wait.
+ *
+ * @param <C> central type
+ * @param <K> characteristic type
+ */
+final class OutboundQueue<C, K> {
+
+    enum DropPolicy {
+        /**
+         * Make room for a new train by dropping the oldest queued train that has not been started yet.
+         */
+        DROP_OLDEST,
+        /**
+         * Refuse new trains while the queue is full.
+         */
+        DROP_NEWEST
+    }
+
+    interface Sender<C, K> {
+        /**
+         * Hand a packet to the stack. The value must be copied if it is kept after returning.
+         *
+         * @return false if the stack refused the packet
+         */
+        boolean send(@NotNull C central, @NotNull K characteristic, @NotNull byte[] value);
+    }
+
+    interface PacketTrain {
+        int count();
+
+        @NotNull byte[] packet(int index);
+    }
+
+    private @NotNull final C central;
+    private @NotNull final Sender<C, K> sender;
+    private @NotNull final DropPolicy dropPolicy;
+    private final int maxCredits;
+    private final PacketRing<K> priority;
+    private final PacketRing<K> bulk;
+    private int credits;
+    private long sentPackets = 0;
+    private long sentBytes = 0;
+    private long failedPackets = 0;
+    private long undeliveredPackets = 0;
+    private long droppedTrains = 0;
+    private long refusedTrains = 0;
+    private long droppedIndications = 0;
+
+    OutboundQueue(@NotNull C central, @NotNull Sender<C, K> sender, int maxCredits, int priorityCapacity, int bulkCapacity, @NotNull DropPolicy dropPolicy) {
+        this.central = central;
+        this.sender = sender;
+        this.maxCredits = maxCredits;
+        this.credits = maxCredits;
+        this.priority = new PacketRing<>(priorityCapacity);
+        this.bulk = new PacketRing<>(bulkCapacity);
+        this.dropPolicy = dropPolicy;
+    }
+
+    /**
+     * Queue an indication. Indications are sent before any queued bulk packets.
+     *
+     * @return false if the indication was dropped because the priority queue is full
+     */
+    synchronized boolean offerIndication(@NotNull K characteristic, @NotNull byte[] value) {
+        if (priority.size == 0 && credits > 0) {
+            sendNow(characteristic, value);
+            return true;
+        }
+        if (priority.free() == 0) {
+            droppedIndications++;
+            return false;
+        }
+        priority.add(characteristic, value, true);
+        return true;
+    }
+
+    /**
+     * Queue a segment train. When {@code segmentCounter} is given, byte 0 of every packet is set to the
+     * GHS segmentation header before the packet is sent or copied.
+     *
+     * @return false if the train was dropped
+     */
+    synchronized boolean offerTrain(@NotNull K characteristic, @NotNull PacketTrain train, @Nullable ObservationSegmenter.SegmentCounter segmentCounter) {
+        return offerTrain(characteristic, train, segmentCounter, false);
+    }
+
+    /**
+     * Queue a segment train.
+     *
+     * @param reliable when true, the train is never dropped once queued; other trains are dropped to make room for it
+     * @return false if the train was dropped, or refused when it is reliable; a refused reliable train can be offered again
+     */
+    synchronized boolean offerTrain(@NotNull K characteristic, @NotNull PacketTrain train, @Nullable ObservationSegmenter.SegmentCounter segmentCounter, boolean reliable) {
+        final int count = train.count();
+        final int sendableNow = (priority.size == 0 && bulk.size == 0) ? Math.min(credits, count) : 0;
+        if (!makeRoom(count - sendableNow)) {
+            if (reliable) {
+                refusedTrains++;
+            } else {
+                droppedTrains++;
+            }
+            return false;
+        }
+
+        for (int i = 0; i < count; i++) {
+            final byte[] packet = train.packet(i);
+            if (segmentCounter != null) {
+                packet[0] = ObservationSegmenter.header(segmentCounter.next(), i == 0, i == count - 1);
+            }
+            if (priority.size == 0 && bulk.size == 0 && credits > 0) {
+                sendNow(characteristic, packet);
+            } else {
+                bulk.add(characteristic, packet, i == 0, reliable);
+            }
+        }
+        return true;
+    }
+
+    /**
+     * The stack finished sending one packet, successfully or not.
+     */
+    synchronized void onSent() {
+        onSent(true);
+    }
+
+    /**
+     * The stack finished sending one packet.
+     *
+     * @param delivered false if the stack reported that the packet was not delivered
+     */
+    synchronized void onSent(boolean delivered) {
+        if (!delivered) undeliveredPackets++;
+        if (credits < maxCredits) credits++;
+        pump();
+    }
+
+    synchronized void clear() {
+        priority.clear();
+        bulk.clear();
+        credits = maxCredits;
+    }
+
+    @NotNull C getCentral() {
+        return central;
+    }
+
+    synchronized int queuedPackets() {
+        return priority.size + bulk.size;
+    }
+
+    synchronized int inFlight() {
+        return maxCredits - credits;
+    }
+
+    synchronized long getSentPackets() {
+        return sentPackets;
+    }
+
+    /**
+     * Bytes of the values handed to the stack.
+     */
+    synchronized long getSentBytes() {
+        return sentBytes;
+    }
+
+    synchronized long getFailedPackets() {
+        return failedPackets;
+    }
+
+    synchronized long getUndeliveredPackets() {
+        return undeliveredPackets;
+    }
+
+    synchronized long getDroppedTrains() {
+        return droppedTrains;
+    }
+
+    /**
+     * Reliable trains that did not fit; they are offered again later, so they are not lost.
+     */
+    synchronized long getRefusedTrains() {
+        return refusedTrains;
+    }
+
+    synchronized long getDroppedIndications() {
+        return droppedIndications;
+    }
+
+    private void pump() {
+        while (credits > 0) {
+            final PacketRing<K> ring = priority.size > 0 ? priority : bulk.size > 0 ? bulk : null;
+            if (ring == null) return;
+            final K characteristic = ring.characteristicAt(0);
+            final byte[] value = ring.valueAt(0);
+            ring.removeFirst();
+            sendNow(characteristic, value);
+        }
+    }
+
+    private void sendNow(@NotNull K characteristic, @NotNull byte[] value) {
+        credits--;
+        if (sender.send(central, characteristic, value)) {
+            sentPackets++;
+            sentBytes += value.length;
+        } else {
+            // The stack will not report this packet as sent
+            credits++;
+            failedPackets++;
+        }
+    }
+
+    private boolean makeRoom(int needed) {
+        if (bulk.free() >= needed) return true;
+        if (dropPolicy == DropPolicy.DROP_NEWEST) return false;
+
+        // The train at the head may already be partially sent; it must be completed. Reliable trains are
+        // kept. Nothing is dropped unless dropping the others makes enough room.
+        int droppable = 0;
+        boolean inDroppableTrain = false;
+        for (int i = 0; i < bulk.size; i++) {
+            if (bulk.trainStartAt(i)) inDroppableTrain = !bulk.reliableAt(i);
+            if (inDroppableTrain) droppable++;
+        }
+        if (bulk.free() + droppable < needed) return false;
+
+        while (bulk.free() < needed) {
+            int from = 0;
+            while (from < bulk.size && !(bulk.trainStartAt(from) && !bulk.reliableAt(from))) from++;
+            int to = from + 1;
+            while (to < bulk.size && !bulk.trainStartAt(to)) to++;
+
+            bulk.removeRange(from, to);
+            droppedTrains++;
+        }
+        return true;
+    }
+
+    /**
+     * Fixed-capacity ring of packets. Slot buffers are kept and reused for packets of the same length.
+     */
+    private static final class PacketRing<K> {
+        private final Object[] characteristics;
+        private final byte[][] values;
+        private final boolean[] trainStarts;
+        private final boolean[] reliables;
+        private int head = 0;
+        int size = 0;
+
+        PacketRing(int capacity) {
+            characteristics = new Object[capacity];
+            values = new byte[capacity][];
+            trainStarts = new boolean[capacity];
+            reliables = new boolean[capacity];
+        }
+
+        int capacity() {
+            return values.length;
+        }
+
+        int free() {
+            return values.length - size;
+        }
+
+        void add(@NotNull K characteristic, @NotNull byte[] value, boolean trainStart) {
+            add(characteristic, value, trainStart, false);
+        }
+
+        void add(@NotNull K characteristic, @NotNull byte[] value, boolean trainStart, boolean reliable) {
+            final int slot = slot(size);
+            byte[] buffer = values[slot];
+            if (buffer == null || buffer.length != value.length) {
+                buffer = new byte[value.length];
+                values[slot] = buffer;
+            }
+            System.arraycopy(value, 0, buffer, 0, value.length);
+            characteristics[slot] = characteristic;
+            trainStarts[slot] = trainStart;
+            reliables[slot] = reliable;
+            size++;
+        }
+
+        @SuppressWarnings("unchecked")
+        @NotNull K characteristicAt(int index) {
+            return (K) characteristics[slot(index)];
+        }
+
+        @NotNull byte[] valueAt(int index) {
+            return values[slot(index)];
+        }
+
+        boolean trainStartAt(int index) {
+            return trainStarts[slot(index)];
+        }
+
+        boolean reliableAt(int index) {
+            return reliables[slot(index)];
+        }
+
+        void removeFirst() {
+            characteristics[head] = null;
+            head = slot(1);
+            size--;
+        }
+
+        /**
+         * Remove the entries at [from, to), moving later entries forward. Buffers are swapped, not lost.
+         */
+        void removeRange(int from, int to) {
+            final int removed = to - from;
+            for (int i = from; i + removed < size; i++) {
+                swap(slot(i), slot(i + removed));
+            }
+            for (int i = size - removed; i < size; i++) {
+                characteristics[slot(i)] = null;
+            }
+            size -= removed;
+        }
+
+        void clear() {
+            for (int i = 0; i < size; i++) {
+                characteristics[slot(i)] = null;
+            }
+            head = 0;
+            size = 0;
+        }
+
+        private int slot(int index) {
+            return (head + index) % values.length;
+        }
+
+        private void swap(int a, int b) {
+            final Object characteristic = characteristics[a];
+            characteristics[a] = characteristics[b];
+            characteristics[b] = characteristic;
+            final byte[] value = values[a];
+            values[a] = values[b];
+            values[b] = value;
+            final boolean trainStart = trainStarts[a];
+            trainStarts[a] = trainStarts[b];
+            trainStarts[b] = trainStart;
+            final boolean reliable = reliables[a];
+            reliables[a] = reliables[b];
+            reliables[b] = reliable;
+        }
+    }
+}
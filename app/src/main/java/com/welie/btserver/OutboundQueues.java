@@ -0,0 +1,87 @@
+package com.welie.btserver;
+
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.util.Collection;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * The {@link OutboundQueue}s of all connected centrals. Every central has its own credits and its
+ * own bounded queue, so a slow central cannot delay the others or make their memory grow.
+ *
+ * @param <C> central type
+ * @param <K> characteristic type
+ */
+final class OutboundQueues<C, K> {
+
+    static final int DEFAULT_CREDITS = 2;
+    static final int DEFAULT_PRIORITY_CAPACITY = 8;
+    static final int DEFAULT_BULK_CAPACITY = 64;
+
+    private @NotNull final OutboundQueue.Sender<C, K> sender;
+    private final int credits;
+    private final int priorityCapacity;
+    private final int bulkCapacity;
+    private @NotNull final OutboundQueue.DropPolicy dropPolicy;
+    private @NotNull final ConcurrentHashMap<C, OutboundQueue<C, K>> queues = new ConcurrentHashMap<>();
+
+    OutboundQueues(@NotNull OutboundQueue.Sender<C, K> sender) {
+        this(sender, DEFAULT_CREDITS, DEFAULT_PRIORITY_CAPACITY, DEFAULT_BULK_CAPACITY, OutboundQueue.DropPolicy.DROP_OLDEST);
+    }
+
+    OutboundQueues(@NotNull OutboundQueue.Sender<C, K> sender, int credits, int priorityCapacity, int bulkCapacity, @NotNull OutboundQueue.DropPolicy dropPolicy) {
+        if (credits < 1) throw new IllegalArgumentException("at least one credit is needed");
+        this.sender = sender;
+        this.credits = credits;
+        this.priorityCapacity = priorityCapacity;
+        this.bulkCapacity = bulkCapacity;
+        this.dropPolicy = dropPolicy;
+    }
+
+    @NotNull OutboundQueue<C, K> queueFor(@NotNull C central) {
+        OutboundQueue<C, K> queue = queues.get(central);
+        if (queue == null) {
+            queue = new OutboundQueue<>(central, sender, credits, priorityCapacity, bulkCapacity, dropPolicy);
+            final OutboundQueue<C, K> existing = queues.putIfAbsent(central, queue);
+            if (existing != null) queue = existing;
+        }
+        return queue;
+    }
+
+    /**
+     * The queue of a central, without creating one.
+     */
+    @Nullable OutboundQueue<C, K> find(@NotNull C central) {
+        return queues.get(central);
+    }
+
+    boolean offerIndication(@NotNull C central, @NotNull K characteristic, @NotNull byte[] value) {
+        return queueFor(central).offerIndication(characteristic, value);
+    }
+
+    boolean offerTrain(@NotNull C central, @NotNull K characteristic, @NotNull OutboundQueue.PacketTrain train, @Nullable ObservationSegmenter.SegmentCounter segmentCounter) {
+        return queueFor(central).offerTrain(characteristic, train, segmentCounter);
+    }
+
+    void onNotificationSent(@NotNull C central) {
+        onNotificationSent(central, true);
+    }
+
+    void onNotificationSent(@NotNull C central, boolean delivered) {
+        final OutboundQueue<C, K> queue = queues.get(central);
+        if (queue != null) queue.onSent(delivered);
+    }
+
+    /**
+     * The queues of the connected centrals, for reading their counters.
+     */
+    @NotNull Collection<OutboundQueue<C, K>> queues() {
+        return queues.values();
+    }
+
+    void onCentralDisconnected(@NotNull C central) {
+        final OutboundQueue<C, K> queue = queues.remove(central);
+        if (queue != null) queue.clear();
+    }
+}
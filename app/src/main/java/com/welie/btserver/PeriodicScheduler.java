@@ -0,0 +1,248 @@
+package com.welie.btserver;
+
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+import java.util.function.Consumer;
+
+/**
+ * Runs periodic jobs at a fixed rate on a dedicated thread. All jobs share one {@link TimerWheel}.
+ * Deadlines are absolute, so the time a job takes to run does not add to its period. When a job
+ * runs too late, the ticks it missed are skipped and reported instead of being run in a burst.
+ * <p>
+ * A scheduler on a {@link VirtualClock} has no thread; its jobs run in {@link #runFor(long, TimeUnit)}.
+ */
+final class PeriodicScheduler {
+
+    static final long DEFAULT_TICK_NANOS = TimeUnit.MILLISECONDS.toNanos(1);
+    static final long DEFAULT_LATE_THRESHOLD_NANOS = TimeUnit.MILLISECONDS.toNanos(20);
+    private static final int TICKS_PER_WHEEL = 512;
+
+    interface TickListener {
+        /**
+         * Called on the scheduler thread when a job runs more than the late threshold after its deadline.
+         *
+         * @param missedTicks number of whole periods that were skipped
+         */
+        void onLateTick(@NotNull Job job, long latenessNanos, long missedTicks);
+
+        /**
+         * Called on the scheduler thread when a job throws. The job is cancelled, other jobs keep running.
+         */
+        void onJobFailed(@NotNull Job job, @NotNull RuntimeException exception);
+
+        /**
+         * Called on the scheduler thread every time a job runs, except the first time.
+         *
+         * @param intervalNanos time since the previous run, to compare with the job's period
+         */
+        default void onTick(@NotNull Job job, long intervalNanos) {
+        }
+    }
+
+    final class Job extends TimerWheel.Timeout {
+        private @NotNull final String name;
+        private @NotNull final Runnable action;
+        private volatile long periodNanos;
+        private volatile boolean cancelled = false;
+        private volatile long ticks = 0;
+        private volatile long lateTicks = 0;
+        private volatile long missedTicks = 0;
+        private long lastRunNanos = Long.MIN_VALUE;
+
+        private Job(@NotNull String name, @NotNull Runnable action, long periodNanos) {
+            this.name = name;
+            this.action = action;
+            this.periodNanos = periodNanos;
+        }
+
+        @NotNull String getName() {
+            return name;
+        }
+
+        long getPeriodNanos() {
+            return periodNanos;
+        }
+
+        /**
+         * Change the period. The next run stays at its current deadline; the new period applies from there on.
+         */
+        void setPeriod(long periodNanos, @NotNull TimeUnit unit) {
+            this.periodNanos = checkPeriod(unit.toNanos(periodNanos));
+        }
+
+        void cancel() {
+            cancelled = true;
+            submit(() -> wheel.cancel(this));
+        }
+
+        boolean isCancelled() {
+            return cancelled;
+        }
+
+        long getTicks() {
+            return ticks;
+        }
+
+        long getLateTicks() {
+            return lateTicks;
+        }
+
+        long getMissedTicks() {
+            return missedTicks;
+        }
+    }
+
+    private @NotNull final Clock clock;
+    private @Nullable final VirtualClock virtualClock;
+    private @NotNull final TimerWheel wheel;
+    private @NotNull final TickListener tickListener;
+    private final long lateThresholdNanos;
+    private @NotNull final ConcurrentLinkedQueue<Runnable> commands = new ConcurrentLinkedQueue<>();
+    private @NotNull final Consumer<TimerWheel.Timeout> runExpired = this::runExpired;
+    private @Nullable final Thread thread;
+    private volatile boolean running = true;
+
+    PeriodicScheduler(@NotNull String threadName, @NotNull Clock clock, @NotNull TickListener tickListener) {
+        this(threadName, clock, DEFAULT_TICK_NANOS, DEFAULT_LATE_THRESHOLD_NANOS, tickListener);
+    }
+
+    PeriodicScheduler(@NotNull String threadName, @NotNull Clock clock, long tickNanos, long lateThresholdNanos, @NotNull TickListener tickListener) {
+        this(threadName, clock, null, tickNanos, lateThresholdNanos, tickListener);
+    }
+
+    /**
+     * A scheduler without a thread, driven by {@link #runFor(long, TimeUnit)}.
+     */
+    PeriodicScheduler(@NotNull VirtualClock clock, long tickNanos, long lateThresholdNanos, @NotNull TickListener tickListener) {
+        this(null, clock, clock, tickNanos, lateThresholdNanos, tickListener);
+    }
+
+    private PeriodicScheduler(@Nullable String threadName, @NotNull Clock clock, @Nullable VirtualClock virtualClock, long tickNanos, long lateThresholdNanos, @NotNull TickListener tickListener) {
+        this.clock = clock;
+        this.virtualClock = virtualClock;
+        this.wheel = new TimerWheel(tickNanos, TICKS_PER_WHEEL, clock.nanoTime());
+        this.tickListener = tickListener;
+        this.lateThresholdNanos = lateThresholdNanos;
+        if (threadName != null) {
+            this.thread = new Thread(this::run, threadName);
+            this.thread.setDaemon(true);
+            this.thread.start();
+        } else {
+            this.thread = null;
+        }
+    }
+
+    /**
+     * Run {@code action} every {@code period}, starting after {@code initialDelay}.
+     */
+    @NotNull Job scheduleAtFixedRate(@NotNull String name, @NotNull Runnable action, long initialDelay, long period, @NotNull TimeUnit unit) {
+        final Job job = new Job(name, action, checkPeriod(unit.toNanos(period)));
+        job.deadline = clock.nanoTime() + unit.toNanos(initialDelay);
+        submit(() -> {
+            if (!job.cancelled) wheel.schedule(job);
+        });
+        return job;
+    }
+
+    /**
+     * Run {@code command} once on the scheduler thread, or in the next {@link #runFor(long, TimeUnit)}.
+     */
+    void execute(@NotNull Runnable command) {
+        submit(command);
+    }
+
+    void shutdown() {
+        running = false;
+        if (thread != null) LockSupport.unpark(thread);
+    }
+
+    /**
+     * Advance the virtual clock by {@code duration}, running every job that becomes due on the way
+     * at its own deadline. Only for schedulers on a {@link VirtualClock}; call from one thread.
+     */
+    void runFor(long duration, @NotNull TimeUnit unit) {
+        final VirtualClock virtual = virtualClock;
+        if (virtual == null) throw new IllegalStateException("scheduler does not run on virtual time");
+
+        final long end = virtual.nanoTime() + unit.toNanos(duration);
+        while (running) {
+            runCommands();
+            wheel.advance(virtual.nanoTime(), runExpired);
+            if (!commands.isEmpty()) continue;
+
+            final long nextTickTime = wheel.nextBusyTickTime();
+            if (nextTickTime > end) break;
+            virtual.advanceTo(nextTickTime);
+        }
+        virtual.advanceTo(end);
+    }
+
+    private long checkPeriod(long periodNanos) {
+        if (periodNanos < wheel.getTickNanos()) throw new IllegalArgumentException("period shorter than scheduler tick");
+        return periodNanos;
+    }
+
+    private void submit(@NotNull Runnable command) {
+        commands.add(command);
+        if (thread != null) LockSupport.unpark(thread);
+    }
+
+    private void run() {
+        while (running) {
+            runCommands();
+
+            wheel.advance(clock.nanoTime(), runExpired);
+
+            final long nextTickTime = wheel.nextBusyTickTime();
+            if (!commands.isEmpty()) continue;
+            if (nextTickTime == Long.MAX_VALUE) {
+                LockSupport.park(this);
+            } else {
+                final long waitNanos = nextTickTime - clock.nanoTime();
+                if (waitNanos > 0) LockSupport.parkNanos(this, waitNanos);
+            }
+        }
+    }
+
+    private void runCommands() {
+        Runnable command;
+        while ((command = commands.poll()) != null) {
+            command.run();
+        }
+    }
+
+    private void runExpired(@NotNull TimerWheel.Timeout timeout) {
+        final Job job = (Job) timeout;
+        if (job.cancelled) return;
+
+        final long now = clock.nanoTime();
+        final long period = job.periodNanos;
+        final long lateness = now - job.deadline;
+        final long missed = lateness / period;
+        job.ticks++;
+        if (lateness > lateThresholdNanos) {
+            job.lateTicks++;
+            job.missedTicks += missed;
+            tickListener.onLateTick(job, lateness, missed);
+        }
+
+        if (job.lastRunNanos != Long.MIN_VALUE) tickListener.onTick(job, now - job.lastRunNanos);
+        job.lastRunNanos = now;
+
+        // Next deadline stays on the original grid, skipping ticks that can no longer be made
+        job.deadline += (missed + 1) * period;
+        wheel.schedule(job);
+
+        try {
+            job.action.run();
+        } catch (RuntimeException e) {
+            job.cancelled = true;
+            wheel.cancel(job);
+            tickListener.onJobFailed(job, e);
+        }
+    }
+}
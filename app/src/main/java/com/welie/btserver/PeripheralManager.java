@@ -0,0 +1,64 @@
+package com.welie.btserver;
+
+import android.bluetooth.BluetoothGattCharacteristic;
+import android.bluetooth.BluetoothGattService;
+import android.bluetooth.le.AdvertiseData;
+import android.bluetooth.le.AdvertiseSettings;
+
+import com.welie.blessed.BluetoothCentral;
+import com.welie.blessed.BluetoothPeripheralManagerCallback;
+import com.welie.blessed.ConnectionPriority;
+import com.welie.blessed.PhyType;
+
+import org.jetbrains.annotations.NotNull;
+
+/**
+ * The part of the peripheral manager the server and its services use. Implemented on top of
+ * blessed by {@link BlessedPeripheralManager}; tests run the server on a simulated one.
+ * Requests from centrals come in through a {@link BluetoothPeripheralManagerCallback}.
+ */
+interface PeripheralManager {
+
+    interface Factory {
+        @NotNull PeripheralManager create(@NotNull BluetoothPeripheralManagerCallback callback);
+    }
+
+    boolean add(@NotNull BluetoothGattService service);
+
+    void removeAllServices();
+
+    void startAdvertising(@NotNull AdvertiseSettings settings, @NotNull AdvertiseData advertiseData, @NotNull AdvertiseData scanResponse);
+
+    void stopAdvertising();
+
+    /**
+     * Send a notification or indication to one central. The value is copied.
+     */
+    boolean notifyCharacteristicChanged(@NotNull byte[] value, @NotNull BluetoothCentral central, @NotNull BluetoothGattCharacteristic characteristic);
+
+    /**
+     * Send a notification or indication to every central that enabled them for {@code characteristic}.
+     */
+    boolean notifyCharacteristicChanged(@NotNull byte[] value, @NotNull BluetoothGattCharacteristic characteristic);
+
+    void cancelConnection(@NotNull BluetoothCentral central);
+
+    /**
+     * @return false if {@link #requestConnectionPriority} and {@link #setPreferredPhy} can never succeed
+     */
+    boolean supportsLinkRequests();
+
+    /**
+     * Ask for a shorter or longer connection interval.
+     *
+     * @return false if the request could not be made
+     */
+    boolean requestConnectionPriority(@NotNull BluetoothCentral central, @NotNull ConnectionPriority priority);
+
+    /**
+     * Ask for a PHY for both directions; the central may keep the current one.
+     *
+     * @return false if the request could not be made
+     */
+    boolean setPreferredPhy(@NotNull BluetoothCentral central, @NotNull PhyType phy);
+}
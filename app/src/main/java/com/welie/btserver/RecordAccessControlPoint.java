@@ -0,0 +1,176 @@
+package com.welie.btserver;
+
+import org.jetbrains.annotations.NotNull;
+
+/**
+ * Parses Record Access Control Point requests and resolves them to a range of positions in an
+ * {@link ObservationStore}; builds the RACP responses.
+ */
+final class RecordAccessControlPoint {
+
+    // Op codes
+    static final int REPORT_STORED_RECORDS = 0x01;
+    static final int DELETE_STORED_RECORDS = 0x02;
+    static final int ABORT_OPERATION = 0x03;
+    static final int REPORT_NUMBER_OF_STORED_RECORDS = 0x04;
+    static final int NUMBER_OF_STORED_RECORDS_RESPONSE = 0x05;
+    static final int RESPONSE_CODE = 0x06;
+
+    // Operators
+    static final int OPERATOR_NULL = 0x00;
+    static final int OPERATOR_ALL_RECORDS = 0x01;
+    static final int OPERATOR_LESS_THAN_OR_EQUAL = 0x02;
+    static final int OPERATOR_GREATER_THAN_OR_EQUAL = 0x03;
+    static final int OPERATOR_WITHIN_RANGE = 0x04;
+    static final int OPERATOR_FIRST_RECORD = 0x05;
+    static final int OPERATOR_LAST_RECORD = 0x06;
+
+    // Filter types
+    static final int FILTER_SEQUENCE_NUMBER = 0x01;
+    static final int FILTER_TIMESTAMP = 0x02;
+
+    // Response codes
+    static final int SUCCESS = 0x01;
+    static final int OP_CODE_NOT_SUPPORTED = 0x02;
+    static final int INVALID_OPERATOR = 0x03;
+    static final int OPERATOR_NOT_SUPPORTED = 0x04;
+    static final int INVALID_OPERAND = 0x05;
+    static final int NO_RECORDS_FOUND = 0x06;
+    static final int ABORT_UNSUCCESSFUL = 0x07;
+    static final int PROCEDURE_NOT_COMPLETED = 0x08;
+    static final int OPERAND_NOT_SUPPORTED = 0x09;
+
+    /**
+     * A parsed request. When {@link #responseCode} is {@link #SUCCESS} the request selects the store
+     * positions [{@link #from}, {@link #to}).
+     */
+    static final class Request {
+        int opCode;
+        int operator;
+        int responseCode;
+        long from;
+        long to;
+    }
+
+    private RecordAccessControlPoint() {
+    }
+
+    static void parse(@NotNull byte[] value, @NotNull ObservationStore store, @NotNull Request request) {
+        request.opCode = value.length > 0 ? value[0] & 0xFF : 0;
+        request.operator = value.length > 1 ? value[1] & 0xFF : -1;
+        request.from = 0;
+        request.to = 0;
+        request.responseCode = SUCCESS;
+
+        switch (request.opCode) {
+            case ABORT_OPERATION:
+                if (request.operator != OPERATOR_NULL || value.length != 2) request.responseCode = INVALID_OPERATOR;
+                return;
+            case REPORT_STORED_RECORDS:
+            case DELETE_STORED_RECORDS:
+            case REPORT_NUMBER_OF_STORED_RECORDS:
+                resolve(value, store, request);
+                return;
+            default:
+                request.responseCode = OP_CODE_NOT_SUPPORTED;
+        }
+    }
+
+    private static void resolve(@NotNull byte[] value, @NotNull ObservationStore store, @NotNull Request request) {
+        final long size = store.size();
+        switch (request.operator) {
+            case OPERATOR_ALL_RECORDS:
+            case OPERATOR_FIRST_RECORD:
+            case OPERATOR_LAST_RECORD:
+                if (value.length != 2) {
+                    request.responseCode = INVALID_OPERAND;
+                } else if (request.operator == OPERATOR_ALL_RECORDS) {
+                    request.to = size;
+                } else {
+                    final long position = request.operator == OPERATOR_FIRST_RECORD ? store.nextPresent(0) : store.previousPresent(size);
+                    if (position >= 0 && position < size) {
+                        request.from = position;
+                        request.to = position + 1;
+                    }
+                }
+                return;
+            case OPERATOR_LESS_THAN_OR_EQUAL:
+            case OPERATOR_GREATER_THAN_OR_EQUAL:
+            case OPERATOR_WITHIN_RANGE:
+                break;
+            case -1:
+            case OPERATOR_NULL:
+                request.responseCode = INVALID_OPERATOR;
+                return;
+            default:
+                request.responseCode = OPERATOR_NOT_SUPPORTED;
+                return;
+        }
+
+        if (value.length < 3) {
+            request.responseCode = INVALID_OPERAND;
+            return;
+        }
+        final int filterType = value[2] & 0xFF;
+        final int operandSize;
+        if (filterType == FILTER_SEQUENCE_NUMBER) {
+            operandSize = 4;
+        } else if (filterType == FILTER_TIMESTAMP) {
+            operandSize = 6;
+        } else {
+            request.responseCode = OPERAND_NOT_SUPPORTED;
+            return;
+        }
+        final int operands = request.operator == OPERATOR_WITHIN_RANGE ? 2 : 1;
+        if (value.length != 3 + operands * operandSize) {
+            request.responseCode = INVALID_OPERAND;
+            return;
+        }
+
+        long first = readUnsigned(value, 3, operandSize);
+        long last = operands == 2 ? readUnsigned(value, 3 + operandSize, operandSize) : first;
+        if (filterType == FILTER_SEQUENCE_NUMBER) {
+            first = store.sequenceNumberOf(first);
+            last = store.sequenceNumberOf(last);
+        }
+        if (last < first) {
+            request.responseCode = INVALID_OPERAND;
+            return;
+        }
+
+        if (request.operator == OPERATOR_LESS_THAN_OR_EQUAL) {
+            request.from = 0;
+            request.to = positionAfter(store, filterType, last);
+        } else if (request.operator == OPERATOR_GREATER_THAN_OR_EQUAL) {
+            request.from = positionOf(store, filterType, first);
+            request.to = size;
+        } else {
+            request.from = positionOf(store, filterType, first);
+            request.to = positionAfter(store, filterType, last);
+        }
+    }
+
+    private static long positionOf(@NotNull ObservationStore store, int filterType, long operand) {
+        return filterType == FILTER_SEQUENCE_NUMBER ? store.positionOfSequenceNumber(operand) : store.positionOfTimestamp(operand);
+    }
+
+    private static long positionAfter(@NotNull ObservationStore store, int filterType, long operand) {
+        return positionOf(store, filterType, operand + 1);
+    }
+
+    private static long readUnsigned(@NotNull byte[] value, int offset, int size) {
+        long result = 0;
+        for (int i = 0; i < size; i++) {
+            result |= (long) (value[offset + i] & 0xFF) << (8 * i);
+        }
+        return result;
+    }
+
+    static @NotNull byte[] responseCode(int requestOpCode, int responseCode) {
+        return new byte[]{RESPONSE_CODE, OPERATOR_NULL, (byte) requestOpCode, (byte) responseCode};
+    }
+
+    static @NotNull byte[] numberOfRecords(long count) {
+        return new byte[]{NUMBER_OF_STORED_RECORDS_RESPONSE, OPERATOR_NULL, (byte) count, (byte) (count >> 8), (byte) (count >> 16), (byte) (count >> 24)};
+    }
+}
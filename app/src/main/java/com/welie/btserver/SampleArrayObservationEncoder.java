@@ -0,0 +1,105 @@
+package com.welie.btserver;
+
+import static com.welie.btserver.NumericObservationEncoder.putFloat;
+import static com.welie.btserver.NumericObservationEncoder.putUInt16;
+import static com.welie.btserver.NumericObservationEncoder.putUInt32;
+import static com.welie.btserver.NumericObservationEncoder.putUInt48;
+
+import org.jetbrains.annotations.NotNull;
+
+/**
+ * Encodes GHS sample array observations without allocating. Samples are unsigned fixed-width
+ * integers of one or two bytes; a receiver gets the actual value as {@code offset + scaleFactor * sample}.
+ * The sample rate is sent as a sample period of one second and the number of samples per period.
+ */
+final class SampleArrayObservationEncoder {
+
+    static final int HEADER_LENGTH = 42;
+    static final int MAX_SAMPLE_RATE = 255;
+
+    private static final int SAMPLE_ARRAY_OBSERVATION = 3;
+    private static final int FLAGS = 0x07;
+    private static final int TIME_FLAGS = 0x22;
+    private static final int TIME_SOURCE_CELLULAR_NETWORK = 0x06;
+    private static final int TIME_OFFSET = 0x00;
+
+    private static final int TIMESTAMP_OFFSET = 10;
+    private static final int DURATION_OFFSET = 18;
+    private static final int NUMBER_OF_SAMPLES_OFFSET = 38;
+
+    private final byte[] template = new byte[HEADER_LENGTH];
+    private final int sampleRate;
+    private final int bytesPerSample;
+
+    /**
+     * @param scaleFactor    value of one sample step, sent with {@code precision} decimals
+     * @param offset         value of sample 0, sent with {@code precision} decimals
+     * @param sampleRate     samples per second, [1..255]
+     * @param bytesPerSample 1 or 2
+     */
+    SampleArrayObservationEncoder(int mdcCode, int unitCode, float scaleFactor, float offset, int precision, int sampleRate, int bytesPerSample) {
+        if (sampleRate < 1 || sampleRate > MAX_SAMPLE_RATE) throw new IllegalArgumentException("sample rate must be in [1..255]");
+        if (bytesPerSample != 1 && bytesPerSample != 2) throw new IllegalArgumentException("bytes per sample must be 1 or 2");
+        this.sampleRate = sampleRate;
+        this.bytesPerSample = bytesPerSample;
+
+        template[0] = (byte) SAMPLE_ARRAY_OBSERVATION;
+        putUInt16(template, 3, FLAGS);
+        putUInt32(template, 5, mdcCode);
+        template[9] = (byte) TIME_FLAGS;
+        template[16] = (byte) TIME_SOURCE_CELLULAR_NETWORK;
+        template[17] = (byte) TIME_OFFSET;
+        putUInt16(template, 22, unitCode);
+        putFloat(template, 24, scaleFactor, precision);
+        putFloat(template, 28, offset, precision);
+        putFloat(template, 32, 1.0f, 0);
+        template[36] = (byte) sampleRate;
+        template[37] = (byte) bytesPerSample;
+    }
+
+    int getSampleRate() {
+        return sampleRate;
+    }
+
+    int getBytesPerSample() {
+        return bytesPerSample;
+    }
+
+    int observationLength(int samples) {
+        return HEADER_LENGTH + samples * bytesPerSample;
+    }
+
+    /**
+     * Most samples that fit in one observation of at most {@code maxLength} bytes.
+     */
+    int maxSamples(int maxLength) {
+        return Math.max(0, (maxLength - HEADER_LENGTH) / bytesPerSample);
+    }
+
+    /**
+     * Write an observation of the oldest {@code count} samples in {@code samples} into {@code destination}
+     * starting at {@code offset}. The samples are not consumed.
+     *
+     * @param etsSeconds time of the first sample in seconds since the Elapsed Time Service epoch
+     */
+    void encode(@NotNull byte[] destination, int offset, long etsSeconds, @NotNull SampleRingBuffer samples, int count) {
+        System.arraycopy(template, 0, destination, offset, HEADER_LENGTH);
+        putUInt16(destination, offset + 1, observationLength(count));
+        putUInt48(destination, offset + TIMESTAMP_OFFSET, etsSeconds);
+        putFloat(destination, offset + DURATION_OFFSET, (float) count / sampleRate, 3);
+        putUInt32(destination, offset + NUMBER_OF_SAMPLES_OFFSET, count);
+
+        int position = offset + HEADER_LENGTH;
+        if (bytesPerSample == 1) {
+            for (int i = 0; i < count; i++) {
+                destination[position++] = (byte) samples.get(i);
+            }
+        } else {
+            for (int i = 0; i < count; i++) {
+                final int sample = samples.get(i);
+                destination[position++] = (byte) sample;
+                destination[position++] = (byte) (sample >> 8);
+            }
+        }
+    }
+}
@@ -0,0 +1,79 @@
+package com.welie.btserver;
+
+/**
+ * Single-producer, single-consumer ring of raw 16-bit waveform samples. The producer and the
+ * consumer may run on different threads; neither side locks or allocates. When the ring is full
+ * new samples are dropped and counted as overruns.
+ */
+final class SampleRingBuffer {
+
+    private final short[] samples;
+    private final int mask;
+    // Written by the producer only
+    private volatile long writeIndex = 0;
+    // Written by the consumer only
+    private volatile long readIndex = 0;
+    private volatile long overruns = 0;
+
+    /**
+     * @param capacity number of samples, rounded up to a power of two
+     */
+    SampleRingBuffer(int capacity) {
+        if (capacity < 1 || capacity > (1 << 30)) throw new IllegalArgumentException("capacity must be in [1..2^30]");
+        final int size = Integer.highestOneBit(capacity - 1) << 1;
+        this.samples = new short[Math.max(size, 1)];
+        this.mask = samples.length - 1;
+    }
+
+    int capacity() {
+        return samples.length;
+    }
+
+    // Producer side
+
+    /**
+     * @return false if the ring was full and the sample was dropped
+     */
+    boolean offer(int sample) {
+        final long index = writeIndex;
+        if (index - readIndex == samples.length) {
+            overruns++;
+            return false;
+        }
+        samples[(int) index & mask] = (short) sample;
+        writeIndex = index + 1;
+        return true;
+    }
+
+    long getOverruns() {
+        return overruns;
+    }
+
+    // Consumer side
+
+    int size() {
+        return (int) (writeIndex - readIndex);
+    }
+
+    /**
+     * Index of the oldest buffered sample, counted from the first sample ever offered.
+     */
+    long readIndex() {
+        return readIndex;
+    }
+
+    /**
+     * Raw sample at {@code index} samples after the oldest buffered sample, as an unsigned value.
+     */
+    int get(int index) {
+        return samples[(int) (readIndex + index) & mask] & 0xFFFF;
+    }
+
+    void consume(int count) {
+        readIndex = readIndex + Math.min(count, size());
+    }
+
+    void consumeAll() {
+        readIndex = writeIndex;
+    }
+}
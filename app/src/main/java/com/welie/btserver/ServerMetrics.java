@@ -0,0 +1,360 @@
+package com.welie.btserver;
+
+import org.jetbrains.annotations.NotNull;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Function;
+
+/**
+ * Runtime metrics of the server. Counters written from the GATT callbacks are striped
+ * ({@link LongAdder}), so threads recording at the same time do not contend. Per-central packet
+ * counts are not recorded here at all; they are read from each central's {@link OutboundQueue}
+ * and {@link LinkPolicy} status when a {@link Snapshot} is taken.
+ */
+final class ServerMetrics {
+
+    static final int MAX_SEGMENTS_BUCKET = 16;
+    private static final int LATENCY_BUCKETS = 32;
+    private static final byte SNAPSHOT_VERSION = 2;
+
+    enum Operation {
+        CHARACTERISTIC_READ,
+        CHARACTERISTIC_WRITE,
+        DESCRIPTOR_READ,
+        DESCRIPTOR_WRITE,
+        NOTIFYING_ENABLED,
+        NOTIFYING_DISABLED,
+        NOTIFICATION_SENT,
+        CENTRAL_CONNECTED,
+        CENTRAL_DISCONNECTED
+    }
+
+    // Callback latencies of one operation, with power-of-two microsecond buckets for percentiles
+    private static final class Latency {
+        final LongAdder count = new LongAdder();
+        final LongAdder totalNanos = new LongAdder();
+        final LongAccumulator maxNanos = new LongAccumulator(Math::max, 0);
+        final LongAdder[] buckets = new LongAdder[LATENCY_BUCKETS];
+
+        Latency() {
+            for (int i = 0; i < buckets.length; i++) buckets[i] = new LongAdder();
+        }
+
+        void record(long nanos) {
+            count.increment();
+            totalNanos.add(nanos);
+            maxNanos.accumulate(nanos);
+            final long micros = TimeUnit.NANOSECONDS.toMicros(nanos);
+            buckets[Math.min(64 - Long.numberOfLeadingZeros(micros), LATENCY_BUCKETS - 1)].increment();
+        }
+    }
+
+    // Written only by the scheduler thread
+    private static final class Ticks {
+        volatile long periodNanos;
+        volatile long count = 0;
+        volatile long totalIntervalNanos = 0;
+        volatile long maxIntervalNanos = 0;
+        volatile long lateTicks = 0;
+        volatile long missedTicks = 0;
+    }
+
+    private final Latency[] latencies = new Latency[Operation.values().length];
+    private final LongAdder notificationsCompleted = new LongAdder();
+    private final LongAdder notificationsUndelivered = new LongAdder();
+    private final LongAdder[] segmentsPerObservation = new LongAdder[MAX_SEGMENTS_BUCKET + 1];
+    private final ConcurrentHashMap<String, Ticks> ticks = new ConcurrentHashMap<>();
+
+    ServerMetrics() {
+        for (int i = 0; i < latencies.length; i++) latencies[i] = new Latency();
+        for (int i = 0; i < segmentsPerObservation.length; i++) segmentsPerObservation[i] = new LongAdder();
+    }
+
+    void recordCallback(@NotNull Operation operation, long nanos) {
+        latencies[operation.ordinal()].record(nanos);
+    }
+
+    /**
+     * The stack reported a notification or indication as sent.
+     */
+    void recordNotificationCompleted(boolean delivered) {
+        notificationsCompleted.increment();
+        if (!delivered) notificationsUndelivered.increment();
+    }
+
+    /**
+     * An observation was queued for a central as a train of {@code segments} packets.
+     */
+    void recordSegments(int segments) {
+        segmentsPerObservation[Math.min(segments, MAX_SEGMENTS_BUCKET)].increment();
+    }
+
+    /**
+     * A periodic job ran. Call from the scheduler thread only.
+     */
+    void recordTick(@NotNull String job, long periodNanos, long intervalNanos) {
+        Ticks stats = ticks.get(job);
+        if (stats == null) {
+            stats = new Ticks();
+            ticks.put(job, stats);
+        }
+        stats.periodNanos = periodNanos;
+        stats.count++;
+        stats.totalIntervalNanos += intervalNanos;
+        if (intervalNanos > stats.maxIntervalNanos) stats.maxIntervalNanos = intervalNanos;
+    }
+
+    /**
+     * A periodic job ran late. Call from the scheduler thread only.
+     */
+    void recordLateTick(@NotNull String job, long missedTicks) {
+        final Ticks stats = ticks.get(job);
+        if (stats == null) return;
+        stats.lateTicks++;
+        stats.missedTicks += missedTicks;
+    }
+
+    /**
+     * Take a snapshot. The counters are read one by one, not atomically; a snapshot taken while the
+     * server runs may be off by the few events recorded in the meantime.
+     */
+    <C, K> @NotNull Snapshot snapshot(@NotNull CentralRegistry<C, K> centralRegistry, @NotNull OutboundQueues<C, K> outboundQueues, @NotNull LinkPolicy<C> linkPolicy,
+                                      @NotNull Function<C, String> addressOf) {
+        final List<CentralStats> centrals = new ArrayList<>();
+        for (OutboundQueue<C, K> queue : outboundQueues.queues()) {
+            final LinkPolicy.Status<C> link = linkPolicy.statusOf(queue.getCentral());
+            centrals.add(new CentralStats(addressOf.apply(queue.getCentral()), queue.getSentPackets(), queue.getFailedPackets(), queue.getUndeliveredPackets(),
+                    queue.queuedPackets(), queue.getDroppedTrains(), queue.getDroppedIndications(), link != null ? link.required : 0, link != null ? link.achieved : 0,
+                    link != null && link.isSaturated()));
+        }
+
+        final OperationStats[] operations = new OperationStats[latencies.length];
+        for (int i = 0; i < latencies.length; i++) {
+            final Latency latency = latencies[i];
+            final long[] buckets = new long[LATENCY_BUCKETS];
+            for (int b = 0; b < buckets.length; b++) buckets[b] = latency.buckets[b].sum();
+            operations[i] = new OperationStats(Operation.values()[i], latency.count.sum(), latency.totalNanos.sum(), latency.maxNanos.get(), buckets);
+        }
+
+        final long[] segments = new long[segmentsPerObservation.length];
+        for (int i = 0; i < segments.length; i++) segments[i] = segmentsPerObservation[i].sum();
+
+        final List<TickStats> jobs = new ArrayList<>();
+        for (Map.Entry<String, Ticks> entry : ticks.entrySet()) {
+            final Ticks stats = entry.getValue();
+            jobs.add(new TickStats(entry.getKey(), stats.periodNanos, stats.count, stats.totalIntervalNanos, stats.maxIntervalNanos, stats.lateTicks, stats.missedTicks));
+        }
+        Collections.sort(jobs, (a, b) -> a.job.compareTo(b.job));
+
+        return new Snapshot(centralRegistry.connected().size(), centralRegistry.subscriptionCount(), notificationsCompleted.sum(), notificationsUndelivered.sum(),
+                Collections.unmodifiableList(centrals), operations, segments, Collections.unmodifiableList(jobs));
+    }
+
+    static final class CentralStats {
+        final @NotNull String address;
+        final long sent;
+        // Refused by the stack
+        final long failed;
+        // Reported by the stack as not delivered
+        final long undelivered;
+        final int queued;
+        final long droppedTrains;
+        final long droppedIndications;
+        // Bytes per second of notification values at the last link policy update
+        final int requiredBytesPerSecond;
+        final int achievedBytesPerSecond;
+        final boolean saturated;
+
+        CentralStats(@NotNull String address, long sent, long failed, long undelivered, int queued, long droppedTrains, long droppedIndications,
+                     int requiredBytesPerSecond, int achievedBytesPerSecond, boolean saturated) {
+            this.address = address;
+            this.sent = sent;
+            this.failed = failed;
+            this.undelivered = undelivered;
+            this.queued = queued;
+            this.droppedTrains = droppedTrains;
+            this.droppedIndications = droppedIndications;
+            this.requiredBytesPerSecond = requiredBytesPerSecond;
+            this.achievedBytesPerSecond = achievedBytesPerSecond;
+            this.saturated = saturated;
+        }
+    }
+
+    static final class OperationStats {
+        final @NotNull Operation operation;
+        final long count;
+        final long totalNanos;
+        final long maxNanos;
+        private final long[] buckets;
+
+        OperationStats(@NotNull Operation operation, long count, long totalNanos, long maxNanos, long[] buckets) {
+            this.operation = operation;
+            this.count = count;
+            this.totalNanos = totalNanos;
+            this.maxNanos = maxNanos;
+            this.buckets = buckets;
+        }
+
+        long getMeanNanos() {
+            return count == 0 ? 0 : totalNanos / count;
+        }
+
+        /**
+         * Upper bound of the latency below which {@code percentile} percent of the callbacks finished,
+         * rounded up to a power of two microseconds.
+         */
+        long getPercentileMicros(double percentile) {
+            final long threshold = (long) Math.ceil(count * percentile / 100);
+            long seen = 0;
+            for (int i = 0; i < buckets.length; i++) {
+                seen += buckets[i];
+                if (seen >= threshold && seen > 0) return i == 0 ? 0 : 1L << i;
+            }
+            return 0;
+        }
+    }
+
+    static final class TickStats {
+        final @NotNull String job;
+        final long periodNanos;
+        final long ticks;
+        final long totalIntervalNanos;
+        final long maxIntervalNanos;
+        final long lateTicks;
+        final long missedTicks;
+
+        TickStats(@NotNull String job, long periodNanos, long ticks, long totalIntervalNanos, long maxIntervalNanos, long lateTicks, long missedTicks) {
+            this.job = job;
+            this.periodNanos = periodNanos;
+            this.ticks = ticks;
+            this.totalIntervalNanos = totalIntervalNanos;
+            this.maxIntervalNanos = maxIntervalNanos;
+            this.lateTicks = lateTicks;
+            this.missedTicks = missedTicks;
+        }
+
+        /**
+         * Mean time between two runs, to compare with {@link #periodNanos}.
+         */
+        long getMeanIntervalNanos() {
+            return ticks == 0 ? 0 : totalIntervalNanos / ticks;
+        }
+    }
+
+    static final class Snapshot {
+        final int connectedCentrals;
+        final int subscriptions;
+        final long notificationsCompleted;
+        final long notificationsUndelivered;
+        final @NotNull List<CentralStats> centrals;
+        private final @NotNull OperationStats[] operations;
+        // Index is the number of segments; the last bucket counts longer trains
+        private final @NotNull long[] segmentsPerObservation;
+        final @NotNull List<TickStats> ticks;
+
+        Snapshot(int connectedCentrals, int subscriptions, long notificationsCompleted, long notificationsUndelivered, @NotNull List<CentralStats> centrals,
+                 @NotNull OperationStats[] operations, @NotNull long[] segmentsPerObservation, @NotNull List<TickStats> ticks) {
+            this.connectedCentrals = connectedCentrals;
+            this.subscriptions = subscriptions;
+            this.notificationsCompleted = notificationsCompleted;
+            this.notificationsUndelivered = notificationsUndelivered;
+            this.centrals = centrals;
+            this.operations = operations;
+            this.segmentsPerObservation = segmentsPerObservation;
+            this.ticks = ticks;
+        }
+
+        @NotNull OperationStats operation(@NotNull Operation operation) {
+            return operations[operation.ordinal()];
+        }
+
+        long getObservationsWithSegments(int segments) {
+            return segmentsPerObservation[Math.min(segments, MAX_SEGMENTS_BUCKET)];
+        }
+
+        long getSentPackets() {
+            long sent = 0;
+            for (CentralStats central : centrals) sent += central.sent;
+            return sent;
+        }
+
+        long getQueuedPackets() {
+            long queued = 0;
+            for (CentralStats central : centrals) queued += central.queued;
+            return queued;
+        }
+
+        /**
+         * Compact little-endian encoding for the diagnostics characteristic: totals, then count, mean
+         * and max in microseconds per operation, then period, mean interval, max interval and late
+         * ticks in microseconds per job, then required and achieved bytes per second summed over the
+         * centrals and the number of saturated links. Per-central counts are left out to keep it in
+         * one long read.
+         */
+        @NotNull byte[] toBytes() {
+            long failed = 0;
+            long droppedTrains = 0;
+            long required = 0;
+            long achieved = 0;
+            int saturated = 0;
+            for (CentralStats central : centrals) {
+                failed += central.failed;
+                droppedTrains += central.droppedTrains;
+                required += central.requiredBytesPerSecond;
+                achieved += central.achievedBytesPerSecond;
+                if (central.saturated) saturated++;
+            }
+            long observations = 0;
+            long segments = 0;
+            for (int i = 0; i < segmentsPerObservation.length; i++) {
+                observations += segmentsPerObservation[i];
+                segments += i * segmentsPerObservation[i];
+            }
+
+            final ByteBuffer buffer = ByteBuffer.allocate(33 + 1 + operations.length * 13 + 1 + ticks.size() * 16 + 10).order(ByteOrder.LITTLE_ENDIAN);
+            buffer.put(SNAPSHOT_VERSION);
+            buffer.putShort((short) connectedCentrals);
+            buffer.putShort((short) subscriptions);
+            buffer.putInt((int) getSentPackets());
+            buffer.putInt((int) failed);
+            buffer.putInt((int) notificationsUndelivered);
+            buffer.putInt((int) getQueuedPackets());
+            buffer.putInt((int) droppedTrains);
+            buffer.putInt((int) observations);
+            // Mean segments per observation in hundredths
+            buffer.putShort((short) (observations == 0 ? 0 : segments * 100 / observations));
+            buffer.putShort((short) 0);
+            buffer.put((byte) operations.length);
+            for (OperationStats operation : operations) {
+                buffer.put((byte) operation.operation.ordinal());
+                buffer.putInt((int) operation.count);
+                buffer.putInt(micros(operation.getMeanNanos()));
+                buffer.putInt(micros(operation.maxNanos));
+            }
+            buffer.put((byte) ticks.size());
+            for (TickStats job : ticks) {
+                buffer.putInt(micros(job.periodNanos));
+                buffer.putInt(micros(job.getMeanIntervalNanos()));
+                buffer.putInt(micros(job.maxIntervalNanos));
+                buffer.putInt((int) job.lateTicks);
+            }
+            buffer.putInt((int) Math.min(required, Integer.MAX_VALUE));
+            buffer.putInt((int) Math.min(achieved, Integer.MAX_VALUE));
+            buffer.putShort((short) saturated);
+            return buffer.array();
+        }
+
+        private static int micros(long nanos) {
+            return (int) Math.min(TimeUnit.NANOSECONDS.toMicros(nanos), Integer.MAX_VALUE);
+        }
+    }
+}
@@ -0,0 +1,47 @@
+package com.welie.btserver;
+
+import android.bluetooth.BluetoothGattCharacteristic;
+
+import com.welie.blessed.BluetoothCentral;
+
+import org.jetbrains.annotations.NotNull;
+
+import java.util.Objects;
+import java.util.concurrent.Executor;
+
+/**
+ * Infrastructure shared by all services of the server.
+ */
+final class ServerRuntime {
+
+    @NotNull
+    final CentralRegistry<BluetoothCentral, BluetoothGattCharacteristic> centralRegistry;
+    @NotNull
+    final Clock clock;
+    @NotNull
+    final PeriodicScheduler scheduler;
+    // Runs the service mailboxes
+    @NotNull
+    final Executor actorExecutor;
+    @NotNull
+    final OutboundQueues<BluetoothCentral, BluetoothGattCharacteristic> outboundQueues;
+    @NotNull
+    final ObservationBus observationBus;
+    @NotNull
+    final ServerMetrics metrics;
+    @NotNull
+    final TraceRing trace;
+
+    ServerRuntime(@NotNull CentralRegistry<BluetoothCentral, BluetoothGattCharacteristic> centralRegistry, @NotNull Clock clock, @NotNull PeriodicScheduler scheduler, @NotNull Executor actorExecutor,
+                  @NotNull OutboundQueues<BluetoothCentral, BluetoothGattCharacteristic> outboundQueues, @NotNull ObservationBus observationBus, @NotNull ServerMetrics metrics,
+                  @NotNull TraceRing trace) {
+        this.centralRegistry = Objects.requireNonNull(centralRegistry);
+        this.clock = Objects.requireNonNull(clock);
+        this.scheduler = Objects.requireNonNull(scheduler);
+        this.actorExecutor = Objects.requireNonNull(actorExecutor);
+        this.outboundQueues = Objects.requireNonNull(outboundQueues);
+        this.observationBus = Objects.requireNonNull(observationBus);
+        this.metrics = Objects.requireNonNull(metrics);
+        this.trace = Objects.requireNonNull(trace);
+    }
+}
@@ -0,0 +1,103 @@
+package com.welie.btserver;
+
+import android.bluetooth.BluetoothGattCharacteristic;
+import android.bluetooth.BluetoothGattDescriptor;
+import android.bluetooth.BluetoothGattService;
+
+import androidx.annotation.NonNull;
+
+import com.welie.blessed.BluetoothCentral;
+import com.welie.blessed.GattStatus;
+import com.welie.blessed.ReadResponse;
+
+import org.jetbrains.annotations.NotNull;
+
+import java.util.Objects;
+
+/**
+ * Runs all callbacks of a service through the service's {@link ActorMailbox}, so a service only
+ * ever sees one callback or timer event at a time. Reads and writes wait for the service's answer;
+ * all other callbacks are posted.
+ */
+final class ServiceActor implements Service {
+
+    private @NotNull final BaseService service;
+    private @NotNull final ActorMailbox mailbox;
+
+    ServiceActor(@NotNull BaseService service) {
+        this.service = Objects.requireNonNull(service);
+        this.mailbox = service.mailbox;
+    }
+
+    /**
+     * The route for one of this service's characteristics or descriptors.
+     */
+    @NotNull AttributeRoute routeFor(@NotNull Object attribute) {
+        return new AttributeRoute(this, mailbox, service.getHandlers(attribute));
+    }
+
+    @Override
+    public BluetoothGattService getService() {
+        return service.getService();
+    }
+
+    @Override
+    public String getServiceName() {
+        return service.getServiceName();
+    }
+
+    @Override
+    public ReadResponse onCharacteristicRead(@NotNull BluetoothCentral central, @NotNull BluetoothGattCharacteristic characteristic) {
+        return mailbox.call(() -> service.onCharacteristicRead(central, characteristic));
+    }
+
+    @Override
+    public GattStatus onCharacteristicWrite(@NotNull BluetoothCentral central, @NotNull BluetoothGattCharacteristic characteristic, @NotNull byte[] value) {
+        return mailbox.call(() -> service.onCharacteristicWrite(central, characteristic, value));
+    }
+
+    @Override
+    public void onCharacteristicWriteCompleted(@NonNull BluetoothCentral central, @NonNull BluetoothGattCharacteristic characteristic, @NonNull byte[] value) {
+        mailbox.execute(() -> service.onCharacteristicWriteCompleted(central, characteristic, value));
+    }
+
+    @Override
+    public ReadResponse onDescriptorRead(@NotNull BluetoothCentral central, @NotNull BluetoothGattDescriptor descriptor) {
+        return mailbox.call(() -> service.onDescriptorRead(central, descriptor));
+    }
+
+    @Override
+    public GattStatus onDescriptorWrite(@NotNull BluetoothCentral central, @NotNull BluetoothGattDescriptor descriptor, @NotNull byte[] value) {
+        return mailbox.call(() -> service.onDescriptorWrite(central, descriptor, value));
+    }
+
+    @Override
+    public void onDescriptorWriteCompleted(@NotNull BluetoothCentral central, @NotNull BluetoothGattDescriptor descriptor, @NonNull byte[] value) {
+        mailbox.execute(() -> service.onDescriptorWriteCompleted(central, descriptor, value));
+    }
+
+    @Override
+    public void onNotifyingEnabled(@NotNull BluetoothCentral central, @NotNull BluetoothGattCharacteristic characteristic) {
+        mailbox.execute(() -> service.onNotifyingEnabled(central, characteristic));
+    }
+
+    @Override
+    public void onNotifyingDisabled(@NotNull BluetoothCentral central, @NotNull BluetoothGattCharacteristic characteristic) {
+        mailbox.execute(() -> service.onNotifyingDisabled(central, characteristic));
+    }
+
+    @Override
+    public void onNotificationSent(@NotNull BluetoothCentral central, @NotNull byte[] value, @NotNull BluetoothGattCharacteristic characteristic, @NotNull GattStatus status) {
+        mailbox.execute(() -> service.onNotificationSent(central, value, characteristic, status));
+    }
+
+    @Override
+    public void onCentralConnected(@NotNull BluetoothCentral central) {
+        mailbox.execute(() -> service.onCentralConnected(central));
+    }
+
+    @Override
+    public void onCentralDisconnected(@NotNull BluetoothCentral central) {
+        mailbox.execute(() -> service.onCentralDisconnected(central));
+    }
+}
@@ -0,0 +1,145 @@
+package com.welie.btserver;
+
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.util.function.Consumer;
+
+/**
+ * Hashed timer wheel. Scheduling and cancelling are O(1); advancing costs O(1) per tick plus the
+ * timeouts in the slot being processed. Timeouts never fire before their deadline and fire at most
+ * one tick after it.
+ * <p>
+ * Not thread safe: a wheel is owned by a single thread, see {@link PeriodicScheduler}.
+ */
+final class TimerWheel {
+
+    static class Timeout {
+        long deadline;
+        private long remainingRounds;
+        private int slot = -1;
+        private @Nullable Timeout previous;
+        private @Nullable Timeout next;
+
+        boolean isScheduled() {
+            return slot >= 0;
+        }
+    }
+
+    private final long tickNanos;
+    private final long startTime;
+    private final @NotNull Timeout[] slots;
+    private final int mask;
+    private long currentTick = 0;
+    private int size = 0;
+
+    /**
+     * @param ticksPerWheel number of slots, rounded up to a power of two
+     */
+    TimerWheel(long tickNanos, int ticksPerWheel, long startTime) {
+        if (tickNanos <= 0) throw new IllegalArgumentException("tick must be positive");
+        this.tickNanos = tickNanos;
+        this.startTime = startTime;
+        int size = Integer.highestOneBit(Math.max(ticksPerWheel, 2) - 1) << 1;
+        this.slots = new Timeout[size];
+        this.mask = size - 1;
+    }
+
+    long getTickNanos() {
+        return tickNanos;
+    }
+
+    /**
+     * Time at which the next tick is due.
+     */
+    long nextTickTime() {
+        return startTime + currentTick * tickNanos;
+    }
+
+    /**
+     * Time at which the next non-empty slot is due, so the owner can sleep through empty ticks.
+     *
+     * @return the time, or {@link Long#MAX_VALUE} if no timeouts are scheduled
+     */
+    long nextBusyTickTime() {
+        if (size == 0) return Long.MAX_VALUE;
+        for (int i = 0; i < slots.length; i++) {
+            if (slots[(int) ((currentTick + i) & mask)] != null) {
+                return startTime + (currentTick + i) * tickNanos;
+            }
+        }
+        return nextTickTime();
+    }
+
+    int size() {
+        return size;
+    }
+
+    void schedule(@NotNull Timeout timeout) {
+        if (timeout.isScheduled()) cancel(timeout);
+
+        long tick = Math.max(ceilDiv(timeout.deadline - startTime, tickNanos), currentTick);
+        timeout.remainingRounds = (tick - currentTick) / slots.length;
+        timeout.slot = (int) (tick & mask);
+
+        Timeout head = slots[timeout.slot];
+        timeout.previous = null;
+        timeout.next = head;
+        if (head != null) head.previous = timeout;
+        slots[timeout.slot] = timeout;
+        size++;
+    }
+
+    void cancel(@NotNull Timeout timeout) {
+        if (!timeout.isScheduled()) return;
+
+        if (timeout.previous != null) {
+            timeout.previous.next = timeout.next;
+        } else {
+            slots[timeout.slot] = timeout.next;
+        }
+        if (timeout.next != null) timeout.next.previous = timeout.previous;
+        timeout.previous = null;
+        timeout.next = null;
+        timeout.slot = -1;
+        size--;
+    }
+
+    /**
+     * Process all ticks that are due at {@code now}, handing expired timeouts to {@code expired}.
+     * Timeouts may be (re)scheduled from within the callback.
+     *
+     * @return the number of expired timeouts
+     */
+    int advance(long now, @NotNull Consumer<Timeout> expired) {
+        if (size == 0) {
+            // Nothing to expire, skip the elapsed ticks at once
+            if (nextTickTime() <= now) currentTick = Math.floorDiv(now - startTime, tickNanos) + 1;
+            return 0;
+        }
+
+        int count = 0;
+        while (nextTickTime() <= now) {
+            final int slot = (int) (currentTick & mask);
+            currentTick++;
+
+            Timeout timeout = slots[slot];
+            while (timeout != null) {
+                final Timeout next = timeout.next;
+                if (timeout.remainingRounds <= 0) {
+                    cancel(timeout);
+                    expired.accept(timeout);
+                    count++;
+                } else {
+                    timeout.remainingRounds--;
+                }
+                timeout = next;
+            }
+        }
+        return count;
+    }
+
+    private static long ceilDiv(long x, long y) {
+        return -Math.floorDiv(-x, y);
+    }
+}
@@ -0,0 +1,168 @@
+package com.welie.btserver;
+
+import org.jetbrains.annotations.NotNull;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Fixed-size binary trace of server events, for what used to be hex dumps in debug logging.
+ * Recording an event writes a few primitive words into a preallocated ring: no strings are built
+ * and nothing is allocated, so tracing can stay on in release builds. When the ring is full the
+ * oldest events are overwritten.
+ * <p>
+ * Dump the ring with {@link #writeTo(OutputStream)} and render it offline with the
+ * {@code decodeTrace} task of the benchmarks module.
+ */
+final class TraceRing {
+
+    static final int CONNECTED = 1;
+    static final int DISCONNECTED = 2;
+    // An observation packet was built for the subscribers; data is the packet
+    static final int OBSERVATION = 3;
+    // A bundle was built; length is the number of observations in it
+    static final int BUNDLE = 4;
+    // A train was queued for a central; length is the number of segments
+    static final int TRAIN_QUEUED = 5;
+    static final int TRAIN_DROPPED = 6;
+    static final int UDS_CONTROL_POINT = 7;
+    static final int SCHEDULE_WRITE = 8;
+
+    /**
+     * Central id of events that are not for one central.
+     */
+    static final int NO_CENTRAL = 0xFFFF;
+    static final int DATA_BYTES = 16;
+    static final int DUMP_MAGIC = 0x42545452; // "BTTR"
+    static final int DUMP_VERSION = 1;
+    // Header bit telling the data words are used
+    static final long HAS_DATA = 1L << 32;
+    // Words per record: sequence, timestamp, event/central/length, and two words of data
+    static final int WORDS = 5;
+
+    private final int mask;
+    private @NotNull final Clock clock;
+    private @NotNull final AtomicLongArray words;
+    private @NotNull final AtomicLong next = new AtomicLong(0);
+
+    /**
+     * @param capacity number of records, a power of two
+     */
+    TraceRing(int capacity, @NotNull Clock clock) {
+        if (capacity <= 0 || Integer.bitCount(capacity) != 1) throw new IllegalArgumentException("capacity must be a power of two");
+        this.mask = capacity - 1;
+        this.clock = clock;
+        this.words = new AtomicLongArray(capacity * WORDS);
+    }
+
+    /**
+     * Compact id of a central: the hash of its address. {@link #CONNECTED} records carry the
+     * address itself, so the decoder can show it.
+     */
+    static int centralId(@NotNull String address) {
+        return address.hashCode() & 0x7FFF;
+    }
+
+    /**
+     * Record a connect or disconnect with the six bytes of the central's address, most significant first.
+     */
+    void recordCentral(int event, @NotNull String address) {
+        final byte[] bytes = new byte[6];
+        for (int i = 0, b = 0; i < address.length() && b < 2 * bytes.length; i++) {
+            final int digit = Character.digit(address.charAt(i), 16);
+            if (digit < 0) continue;
+            bytes[b >> 1] = (byte) ((bytes[b >> 1] << 4) | digit);
+            b++;
+        }
+        record(event, centralId(address), bytes, 0, bytes.length);
+    }
+
+    void record(int event, int central) {
+        record(event, central, 0, null, 0, 0);
+    }
+
+    /**
+     * Record an event with a length but no data, like the number of segments of a train.
+     */
+    void record(int event, int central, int length) {
+        record(event, central, length, null, 0, 0);
+    }
+
+    /**
+     * Record an event with the first {@link #DATA_BYTES} bytes of {@code data}. The full length is kept.
+     */
+    void record(int event, int central, @NotNull byte[] data, int offset, int length) {
+        record(event, central, length, data, offset, length);
+    }
+
+    private void record(int event, int central, int length, byte[] data, int offset, int dataLength) {
+        final long sequence = next.getAndIncrement();
+        final int base = (int) (sequence & mask) * WORDS;
+        // Readers ignore the record while its sequence is not yet set
+        words.lazySet(base, -1);
+        words.lazySet(base + 1, clock.nanoTime());
+        words.lazySet(base + 2, ((long) (event & 0xFF) << 56) | ((long) (central & 0xFFFF) << 40) | (data != null ? HAS_DATA : 0) | (length & 0xFFFFFFFFL));
+        long first = 0;
+        long second = 0;
+        if (data != null) {
+            final int count = Math.min(dataLength, DATA_BYTES);
+            for (int i = 0; i < count; i++) {
+                final long b = data[offset + i] & 0xFFL;
+                if (i < 8) {
+                    first |= b << (8 * i);
+                } else {
+                    second |= b << (8 * (i - 8));
+                }
+            }
+        }
+        words.lazySet(base + 3, first);
+        words.lazySet(base + 4, second);
+        words.lazySet(base, sequence);
+    }
+
+    int capacity() {
+        return mask + 1;
+    }
+
+    /**
+     * Number of events recorded since the ring was created, including overwritten ones.
+     */
+    long getRecorded() {
+        return next.get();
+    }
+
+    /**
+     * Write the records in the ring, oldest first. Records that are overwritten while writing are
+     * skipped. The header has the clock's wall time and nanoTime at the moment of the dump, so the
+     * decoder can show wall-clock times.
+     */
+    void writeTo(@NotNull OutputStream stream) throws IOException {
+        final DataOutputStream out = new DataOutputStream(stream);
+        final long end = next.get();
+        final long start = Math.max(0, end - capacity());
+        out.writeInt(DUMP_MAGIC);
+        out.writeInt(DUMP_VERSION);
+        out.writeLong(clock.currentTimeMillis());
+        out.writeLong(clock.nanoTime());
+
+        final long[] record = new long[WORDS - 1];
+        int count = 0;
+        final ByteArrayOutputStream records = new ByteArrayOutputStream((int) (end - start) * (WORDS - 1) * 8);
+        final DataOutputStream recordOut = new DataOutputStream(records);
+        for (long sequence = start; sequence < end; sequence++) {
+            final int base = (int) (sequence & mask) * WORDS;
+            if (words.get(base) != sequence) continue;
+            for (int w = 1; w < WORDS; w++) record[w - 1] = words.get(base + w);
+            if (words.get(base) != sequence) continue;
+            for (long word : record) recordOut.writeLong(word);
+            count++;
+        }
+        out.writeInt(count);
+        records.writeTo(out);
+        out.flush();
+    }
+}
@@ -0,0 +1,78 @@
+package com.welie.btserver;
+
+import android.content.Context;
+import android.graphics.Canvas;
+import android.graphics.Color;
+import android.graphics.Paint;
+import android.util.AttributeSet;
+import android.view.View;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+/**
+ * Line chart of a downsampled trend. The points are copied into a line buffer that is reused, so
+ * drawing allocates nothing.
+ */
+public class TrendChartView extends View {
+
+    // Keep the line from touching the top and bottom edges
+    private static final float VERTICAL_MARGIN = 0.1f;
+    private final Paint linePaint = new Paint(Paint.ANTI_ALIAS_FLAG);
+    private float[] x = new float[0];
+    private float[] y = new float[0];
+    private float[] lines = new float[0];
+    private int count = 0;
+
+    public TrendChartView(@NonNull Context context, @Nullable AttributeSet attrs) {
+        super(context, attrs);
+        linePaint.setColor(Color.rgb(0x62, 0x00, 0xEE));
+        linePaint.setStrokeWidth(4 * getResources().getDisplayMetrics().density);
+        linePaint.setStyle(Paint.Style.STROKE);
+    }
+
+    void setTrend(@NonNull float[] x, @NonNull float[] y, int count) {
+        if (this.x.length < count) {
+            this.x = new float[count];
+            this.y = new float[count];
+            this.lines = new float[4 * count];
+        }
+        System.arraycopy(x, 0, this.x, 0, count);
+        System.arraycopy(y, 0, this.y, 0, count);
+        this.count = count;
+        invalidate();
+    }
+
+    @Override
+    protected void onDraw(Canvas canvas) {
+        super.onDraw(canvas);
+        if (count < 2) return;
+
+        float minY = y[0];
+        float maxY = y[0];
+        for (int i = 1; i < count; i++) {
+            minY = Math.min(minY, y[i]);
+            maxY = Math.max(maxY, y[i]);
+        }
+        final float rangeX = Math.max(x[count - 1] - x[0], 1);
+        final float rangeY = Math.max(maxY - minY, 1);
+        final float width = getWidth() - getPaddingLeft() - getPaddingRight();
+        final float height = (getHeight() - getPaddingTop() - getPaddingBottom()) * (1 - 2 * VERTICAL_MARGIN);
+        final float top = getPaddingTop() + height * VERTICAL_MARGIN / (1 - 2 * VERTICAL_MARGIN);
+
+        int n = 0;
+        float previousX = getPaddingLeft();
+        float previousY = top + height - (y[0] - minY) / rangeY * height;
+        for (int i = 1; i < count; i++) {
+            final float pointX = getPaddingLeft() + (x[i] - x[0]) / rangeX * width;
+            final float pointY = top + height - (y[i] - minY) / rangeY * height;
+            lines[n++] = previousX;
+            lines[n++] = previousY;
+            lines[n++] = pointX;
+            lines[n++] = pointY;
+            previousX = pointX;
+            previousY = pointY;
+        }
+        canvas.drawLines(lines, 0, n, linePaint);
+    }
+}
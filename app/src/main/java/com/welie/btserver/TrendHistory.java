@@ -0,0 +1,69 @@
+package com.welie.btserver;
+
+import org.jetbrains.annotations.NotNull;
+
+/**
+ * Bounded history of one observation type, kept in primitive arrays. When it is full the oldest
+ * sample is overwritten, so memory use does not depend on how long the app runs.
+ */
+final class TrendHistory {
+
+    private final long[] timestamps;
+    private final float[] values;
+    private int head = 0;
+    private int size = 0;
+
+    TrendHistory(int capacity) {
+        if (capacity < 2) throw new IllegalArgumentException("capacity must be at least 2");
+        this.timestamps = new long[capacity];
+        this.values = new float[capacity];
+    }
+
+    void add(long timestamp, float value) {
+        final int index = (head + size) % values.length;
+        timestamps[index] = timestamp;
+        values[index] = value;
+        if (size < values.length) {
+            size++;
+        } else {
+            head = (head + 1) % values.length;
+        }
+    }
+
+    int size() {
+        return size;
+    }
+
+    int capacity() {
+        return values.length;
+    }
+
+    /**
+     * @param i 0 for the oldest sample
+     */
+    long timestamp(int i) {
+        return timestamps[(head + i) % timestamps.length];
+    }
+
+    float value(int i) {
+        return values[(head + i) % values.length];
+    }
+
+    /**
+     * Copy the samples, oldest first, with timestamps relative to {@code origin}.
+     *
+     * @return the number of samples copied
+     */
+    int copyTo(@NotNull float[] x, @NotNull float[] y, long origin) {
+        for (int i = 0; i < size; i++) {
+            x[i] = timestamp(i) - origin;
+            y[i] = value(i);
+        }
+        return size;
+    }
+
+    void clear() {
+        head = 0;
+        size = 0;
+    }
+}
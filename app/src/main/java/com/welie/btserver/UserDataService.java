@@ -13,15 +13,16 @@ import android.bluetooth.BluetoothGattService;
 
 import com.welie.blessed.BluetoothBytesParser;
 import com.welie.blessed.BluetoothCentral;
-import com.welie.blessed.BluetoothPeripheralManager;
+import com.welie.blessed.BondState;
 import com.welie.blessed.GattStatus;
 
 import org.jetbrains.annotations.NotNull;
 
+import androidx.annotation.NonNull;
+
 import java.nio.ByteOrder;
-import java.util.HashMap;
 import java.util.UUID;
-import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Consumer;
 
 import timber.log.Timber;
 
@@ -31,17 +32,42 @@ public class UserDataService extends BaseService {
     private static final UUID USER_CONTROL_POINT_CHARACTERISTIC_UUID = UUID.fromString("00002A9F-0000-1000-8000-00805f9b34fb");
     private static final UUID REGISTERED_USER_CHARACTERISTIC_UUID = UUID.fromString("00007F00-0000-1000-8000-00805f9b34fb");
 
-    private @NotNull final BluetoothGattService service = new BluetoothGattService(UDS_SERVICE_UUID, BluetoothGattService.SERVICE_TYPE_PRIMARY);
-    private @NotNull final ConcurrentHashMap<Integer, Integer> registeredUsers = new ConcurrentHashMap<>();
+    // Control point op codes
+    static final int REGISTER_NEW_USER = 0x01;
+    static final int CONSENT = 0x02;
+    static final int LIST_ALL_USERS = 0x04;
+    static final int DELETE_USERS = 0x05;
+    static final int RESPONSE_CODE = 0x20;
+
+    // Control point response values
+    static final int SUCCESS = 0x01;
+    static final int OP_CODE_NOT_SUPPORTED = 0x02;
+    static final int INVALID_PARAMETER = 0x03;
+    static final int OPERATION_FAILED = 0x04;
+    static final int USER_NOT_AUTHORIZED = 0x05;
 
-    UserDataService(@NotNull BluetoothPeripheralManager peripheralManager) {
-        super(peripheralManager);
+    static final int ALL_USERS = 0xFF;
+
+    private @NotNull final BluetoothGattService service = new BluetoothGattService(UDS_SERVICE_UUID, BluetoothGattService.SERVICE_TYPE_PRIMARY);
+    private @NotNull final BluetoothGattCharacteristic controlPoint = new BluetoothGattCharacteristic(USER_CONTROL_POINT_CHARACTERISTIC_UUID, PROPERTY_WRITE | PROPERTY_INDICATE, PERMISSION_WRITE);
+    private @NotNull final CentralRegistry.CentralSet<BluetoothCentral> controlPointSubscribers;
+    private @NotNull final UserStore users;
+    private @NotNull final ConsentSessions consentSessions;
+    private @NotNull final Consumer<UserStore> usersChanged;
+
+    /**
+     * @param usersChanged called on this service's actor after users were registered or deleted
+     */
+    UserDataService(@NotNull PeripheralManager peripheralManager, @NotNull ServerRuntime runtime, @NotNull UserStore users, @NotNull Consumer<UserStore> usersChanged) {
+        super(peripheralManager, runtime);
+        this.users = users;
+        this.usersChanged = usersChanged;
+        this.consentSessions = centralRegistry.consentSessions();
 
-        registeredUsers.put(1, 8);
-        registeredUsers.put(2, 16);
-        BluetoothGattCharacteristic controlPoint = new BluetoothGattCharacteristic(USER_CONTROL_POINT_CHARACTERISTIC_UUID, PROPERTY_WRITE | PROPERTY_INDICATE, PERMISSION_WRITE);
         controlPoint.addDescriptor(getCccDescriptor());
         service.addCharacteristic(controlPoint);
+        handleWrite(controlPoint, this::writeControlPoint, this::executeControlPoint);
+        controlPointSubscribers = centralRegistry.subscribers(controlPoint);
     }
 
     @Override
@@ -56,29 +82,102 @@ public class UserDataService extends BaseService {
         Timber.i("UDS notify disabled");
     }
 
-    @Override
-    public GattStatus onCharacteristicWrite(@NotNull BluetoothCentral central, @NotNull BluetoothGattCharacteristic characteristic, @NotNull byte[] value) {
-        final int UDS_CP_CONSENT = 0x02;
-
-        Timber.i("Got %s", BluetoothBytesParser.asHexString(value));
-        if (characteristic.getUuid().equals(USER_CONTROL_POINT_CHARACTERISTIC_UUID)) {
-            BluetoothBytesParser parser = new BluetoothBytesParser(value, ByteOrder.LITTLE_ENDIAN);
-            final int code = parser.getUInt8();
+    private @NotNull GattStatus writeControlPoint(@NotNull BluetoothCentral central, @NotNull byte[] value) {
+        trace.record(TraceRing.UDS_CONTROL_POINT, TraceRing.centralId(central.getAddress()), value, 0, value.length);
+        // Every request is answered with an indication
+        if (!controlPointSubscribers.contains(central)) return GattStatus.CCCD_CFG_ERROR;
+        return GattStatus.SUCCESS;
+    }
 
-            if (code == UDS_CP_CONSENT && value.length == 4) {
+    private void executeControlPoint(@NotNull BluetoothCentral central, @NonNull byte[] value) {
+        if (value.length == 0) return;
+        final BluetoothBytesParser parser = new BluetoothBytesParser(value, ByteOrder.LITTLE_ENDIAN);
+        final int opCode = parser.getUInt8();
+
+        switch (opCode) {
+            case REGISTER_NEW_USER: {
+                final int consentCode = value.length == 3 ? parser.getUInt16() : -1;
+                if (!UserStore.isValidConsentCode(consentCode)) {
+                    indicate(central, response(opCode, INVALID_PARAMETER), controlPoint);
+                    return;
+                }
+                final int userIndex = users.register(consentCode);
+                if (userIndex < 0) {
+                    indicate(central, response(opCode, OPERATION_FAILED), controlPoint);
+                    return;
+                }
+                users.flush();
+                usersChanged.accept(users);
+                indicate(central, new byte[]{RESPONSE_CODE, (byte) opCode, SUCCESS, (byte) userIndex}, controlPoint);
+                return;
+            }
+            case CONSENT: {
+                if (value.length != 4) {
+                    indicate(central, response(opCode, INVALID_PARAMETER), controlPoint);
+                    return;
+                }
                 final int userIndex = parser.getUInt8();
                 final int consentCode = parser.getUInt16();
-
-                final Integer registeredCode = registeredUsers.get(userIndex);
-                if (registeredCode != null && registeredCode == consentCode) {
-                    return GattStatus.SUCCESS;
+                if (!UserStore.isValidConsentCode(consentCode)) {
+                    indicate(central, response(opCode, INVALID_PARAMETER), controlPoint);
+                } else if (users.checkConsent(userIndex, consentCode)) {
+                    // A central that has disconnected in the meantime gets no session and no answer
+                    final int securityLevel = central.getBondState() == BondState.BONDED ? ConsentSessions.SECURITY_BONDED : ConsentSessions.SECURITY_UNAUTHENTICATED;
+                    if (centralRegistry.consent(central, userIndex, securityLevel)) {
+                        indicate(central, response(opCode, SUCCESS), controlPoint);
+                    }
                 } else {
-                    return GattStatus.VALUE_NOT_ALLOWED;
+                    indicate(central, response(opCode, USER_NOT_AUTHORIZED), controlPoint);
+                }
+                return;
+            }
+            case LIST_ALL_USERS: {
+                if (value.length != 1) {
+                    indicate(central, response(opCode, INVALID_PARAMETER), controlPoint);
+                    return;
+                }
+                indicate(central, listAllUsers(central.getCurrentMtu()), controlPoint);
+                return;
+            }
+            case DELETE_USERS: {
+                if (value.length != 2) {
+                    indicate(central, response(opCode, INVALID_PARAMETER), controlPoint);
+                    return;
+                }
+                final int userIndex = parser.getUInt8();
+                // A central may only delete the user it gave consent for; deleting all users is left to the device itself
+                if (userIndex == ALL_USERS || consentSessions.userOf(centralRegistry.indexOf(central)) != userIndex) {
+                    indicate(central, response(opCode, USER_NOT_AUTHORIZED), controlPoint);
+                    return;
                 }
+                users.delete(userIndex);
+                users.flush();
+                consentSessions.endUser(userIndex);
+                usersChanged.accept(users);
+                indicate(central, new byte[]{RESPONSE_CODE, (byte) opCode, SUCCESS, (byte) userIndex}, controlPoint);
+                return;
             }
-            return GattStatus.REQUEST_NOT_SUPPORTED;
+            default:
+                indicate(central, response(opCode, OP_CODE_NOT_SUPPORTED), controlPoint);
+        }
+    }
+
+    // The number of users followed by as many of their indexes as fit in one indication
+    private @NotNull byte[] listAllUsers(int mtu) {
+        final int listed = Math.min(users.count(), Math.max(mtu, 23) - 3 - 4);
+        final byte[] response = new byte[4 + listed];
+        response[0] = RESPONSE_CODE;
+        response[1] = LIST_ALL_USERS;
+        response[2] = SUCCESS;
+        response[3] = (byte) users.count();
+        for (int i = 0, userIndex = users.nextRegistered(0); i < listed; i++, userIndex = users.nextRegistered(userIndex + 1)) {
+            response[4 + i] = (byte) userIndex;
         }
-        return GattStatus.REQUEST_NOT_SUPPORTED;
+        return response;
+    }
+
+    static @NotNull byte[] response(int opCode, int responseValue) {
+        return new byte[]{RESPONSE_CODE, (byte) opCode, (byte) responseValue};
     }
 
     @Override
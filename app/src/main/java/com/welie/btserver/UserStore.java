@@ -0,0 +1,154 @@
+package com.welie.btserver;
+
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * Registered UDS users in a small memory-mapped table with one fixed-size slot per user index, so
+ * registrations survive restarts. A consent check reads a single slot: constant time and no
+ * allocation, however many users there are.
+ * <p>
+ * Not thread safe: the store is owned by the User Data Service actor.
+ */
+final class UserStore implements Closeable {
+
+    // User index 0xFF means "unknown user" in UDS
+    static final int MAX_USERS = 255;
+    static final int MAX_CONSENT_CODE = 9999;
+    private static final int HEADER_SIZE = 16;
+    private static final int SLOT_SIZE = 4;
+    private static final int SIZE = HEADER_SIZE + MAX_USERS * SLOT_SIZE;
+    private static final int MAGIC = 0x55445331; // UDS1
+
+    // Header layout
+    private static final int COUNT = 4;
+    // Slot layout
+    private static final int CONSENT_CODE = 0;
+    private static final int FLAGS = 2;
+    private static final int REGISTERED = 0x01;
+
+    private @Nullable final RandomAccessFile file;
+    private @NotNull final ByteBuffer table;
+    private int count;
+
+    private UserStore(@Nullable RandomAccessFile file, @NotNull ByteBuffer table, @NotNull String name) throws IOException {
+        this.file = file;
+        this.table = table;
+        table.order(ByteOrder.LITTLE_ENDIAN);
+        if (table.getInt(0) == 0) {
+            table.putInt(0, MAGIC);
+        } else if (table.getInt(0) != MAGIC) {
+            throw new IOException("not a user store: " + name);
+        }
+        this.count = table.getInt(COUNT);
+    }
+
+    static @NotNull UserStore open(@NotNull File file) throws IOException {
+        final File directory = file.getParentFile();
+        if (directory != null && !directory.isDirectory() && !directory.mkdirs()) {
+            throw new IOException("cannot create " + directory);
+        }
+        final RandomAccessFile randomAccessFile = new RandomAccessFile(file, "rw");
+        try {
+            if (randomAccessFile.length() < SIZE) randomAccessFile.setLength(SIZE);
+            final MappedByteBuffer table = randomAccessFile.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, SIZE);
+            return new UserStore(randomAccessFile, table, file.getPath());
+        } catch (IOException e) {
+            randomAccessFile.close();
+            throw e;
+        }
+    }
+
+    /**
+     * A store that is not persisted, for tests and for when the file cannot be opened.
+     */
+    static @NotNull UserStore inMemory() {
+        try {
+            return new UserStore(null, ByteBuffer.allocate(SIZE), "memory");
+        } catch (IOException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    static boolean isValidConsentCode(int consentCode) {
+        return consentCode >= 0 && consentCode <= MAX_CONSENT_CODE;
+    }
+
+    /**
+     * Register a user under the lowest free user index.
+     *
+     * @return the user index, or -1 if all indexes are taken
+     */
+    int register(int consentCode) {
+        if (!isValidConsentCode(consentCode)) throw new IllegalArgumentException("consent code must be in [0..9999]");
+        for (int userIndex = 0; userIndex < MAX_USERS; userIndex++) {
+            if (!isRegistered(userIndex)) {
+                table.putShort(slot(userIndex) + CONSENT_CODE, (short) consentCode);
+                table.put(slot(userIndex) + FLAGS, (byte) REGISTERED);
+                setCount(count + 1);
+                return userIndex;
+            }
+        }
+        return -1;
+    }
+
+    boolean isRegistered(int userIndex) {
+        return userIndex >= 0 && userIndex < MAX_USERS && (table.get(slot(userIndex) + FLAGS) & REGISTERED) != 0;
+    }
+
+    boolean checkConsent(int userIndex, int consentCode) {
+        return isRegistered(userIndex) && (table.getShort(slot(userIndex) + CONSENT_CODE) & 0xFFFF) == consentCode;
+    }
+
+    /**
+     * @return false if the user was not registered
+     */
+    boolean delete(int userIndex) {
+        if (!isRegistered(userIndex)) return false;
+        table.putInt(slot(userIndex), 0);
+        setCount(count - 1);
+        return true;
+    }
+
+    int count() {
+        return count;
+    }
+
+    /**
+     * The lowest registered user index at or above {@code userIndex}, or -1.
+     */
+    int nextRegistered(int userIndex) {
+        for (int i = Math.max(userIndex, 0); i < MAX_USERS; i++) {
+            if (isRegistered(i)) return i;
+        }
+        return -1;
+    }
+
+    void flush() {
+        if (table instanceof MappedByteBuffer) ((MappedByteBuffer) table).force();
+    }
+
+    @Override
+    public void close() throws IOException {
+        flush();
+        if (file != null) file.close();
+    }
+
+    private void setCount(int count) {
+        this.count = count;
+        table.putInt(COUNT, count);
+    }
+
+    private static int slot(int userIndex) {
+        return HEADER_SIZE + userIndex * SLOT_SIZE;
+    }
+}
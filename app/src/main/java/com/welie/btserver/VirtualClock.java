@@ -0,0 +1,40 @@
+package com.welie.btserver;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Clock that only moves when told to. Used with {@link PeriodicScheduler#runFor(long, TimeUnit)}
+ * to run hours of schedules in milliseconds.
+ */
+final class VirtualClock implements Clock {
+
+    private final long startMillis;
+    private volatile long nanos = 0;
+
+    /**
+     * @param startMillis wall clock time at the start, in milliseconds since the Unix epoch
+     */
+    VirtualClock(long startMillis) {
+        this.startMillis = startMillis;
+    }
+
+    @Override
+    public long nanoTime() {
+        return nanos;
+    }
+
+    @Override
+    public long currentTimeMillis() {
+        return startMillis + TimeUnit.NANOSECONDS.toMillis(nanos);
+    }
+
+    void advance(long duration, TimeUnit unit) {
+        if (duration < 0) throw new IllegalArgumentException("time cannot go back");
+        nanos += unit.toNanos(duration);
+    }
+
+    void advanceTo(long nanoTime) {
+        if (nanoTime < nanos) throw new IllegalArgumentException("time cannot go back");
+        nanos = nanoTime;
+    }
+}
@@ -0,0 +1,19 @@
+package com.welie.blessed;
+
+import org.jetbrains.annotations.NotNull;
+
+/**
+ * Creates {@link BluetoothCentral}s for the simulated peripheral manager. Lives in the blessed
+ * package because centrals are normally only created by {@link BluetoothPeripheralManager}.
+ */
+public final class SimulatedCentrals {
+
+    private SimulatedCentrals() {
+    }
+
+    public static @NotNull BluetoothCentral create(@NotNull String address, @NotNull String name, int mtu) {
+        final BluetoothCentral central = new BluetoothCentral(address, name);
+        central.setCurrentMtu(mtu);
+        return central;
+    }
+}
@@ -0,0 +1,62 @@
+package com.welie.btserver;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+
+import org.junit.After;
+import org.junit.Test;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+public class ActorMailboxTest {
+
+    private final ExecutorService executor = Executors.newFixedThreadPool(4);
+
+    @After
+    public void tearDown() {
+        executor.shutdownNow();
+    }
+
+    // Deliberately unsynchronized: the mailbox is what makes this safe
+    private int counter = 0;
+
+    @Test
+    public void messages_runOneAtATimeInOrder() throws InterruptedException {
+        ActorMailbox mailbox = new ActorMailbox(executor);
+        AtomicBoolean running = new AtomicBoolean(false);
+        AtomicBoolean overlapped = new AtomicBoolean(false);
+        int producers = 4;
+        int messagesPerProducer = 10_000;
+        CountDownLatch done = new CountDownLatch(producers);
+
+        for (int p = 0; p < producers; p++) {
+            new Thread(() -> {
+                for (int i = 0; i < messagesPerProducer; i++) {
+                    mailbox.execute(() -> {
+                        if (!running.compareAndSet(false, true)) overlapped.set(true);
+                        counter++;
+                        running.set(false);
+                    });
+                    if (i % 1000 == 0) {
+                        mailbox.call(() -> counter);
+                    }
+                }
+                done.countDown();
+            }).start();
+        }
+
+        done.await(10, TimeUnit.SECONDS);
+        assertEquals(producers * messagesPerProducer, (int) mailbox.call(() -> counter));
+        assertFalse(overlapped.get());
+    }
+
+    @Test
+    public void call_fromInsideActor_doesNotDeadlock() {
+        ActorMailbox mailbox = new ActorMailbox(executor);
+        assertEquals(2, (int) mailbox.call(() -> mailbox.call(() -> 2)));
+    }
+}
@@ -0,0 +1,51 @@
+package com.welie.btserver;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+
+import com.welie.blessed.GattStatus;
+import com.welie.blessed.ReadResponse;
+
+import org.junit.Test;
+
+public class CachedReadResponseTest {
+
+    @Test
+    public void constant_isEncodedOnce() {
+        byte[] value = {0x01, 0x03};
+        CachedReadResponse cache = CachedReadResponse.constant(value);
+
+        ReadResponse response = cache.cached();
+        assertEquals(GattStatus.SUCCESS, response.status);
+        assertSame(value, response.value);
+        assertSame(response, cache.onRead(null));
+        assertSame(response, cache.onRead(null));
+    }
+
+    @Test
+    public void versioned_isTakenAgainAfterInvalidate() {
+        final int[] calls = {0};
+        final byte[][] current = {{1}};
+        CachedReadResponse cache = CachedReadResponse.versioned(() -> {
+            calls[0]++;
+            return current[0];
+        });
+
+        assertNull(cache.cached());
+        ReadResponse first = cache.onRead(null);
+        assertSame(first, cache.onRead(null));
+        assertEquals(1, calls[0]);
+
+        current[0] = new byte[]{2};
+        cache.invalidate();
+        assertNull(cache.cached());
+        ReadResponse second = cache.onRead(null);
+        assertNotSame(first, second);
+        assertArrayEquals(new byte[]{2}, second.value);
+        assertSame(second, cache.cached());
+        assertEquals(2, calls[0]);
+    }
+}
@@ -0,0 +1,112 @@
+package com.welie.btserver;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+import java.util.HashMap;
+import java.util.List;
+
+public class CentralRegistryTest {
+
+    private final HashMap<String, Integer> mtus = new HashMap<>();
+    private final CentralRegistry<String, String> registry = new CentralRegistry<>(mtus::get);
+
+    @Test
+    public void subscribers_areMaintainedIncrementally() {
+        CentralRegistry.CentralSet<String> observers = registry.subscribers("observation");
+        mtus.put("a", 23);
+        mtus.put("b", 247);
+
+        registry.onCentralConnected("a");
+        registry.onCentralConnected("b");
+        assertTrue(observers.isEmpty());
+
+        registry.onSubscribed("a", "observation");
+        registry.onSubscribed("b", "observation");
+        registry.onSubscribed("b", "observation");
+        assertEquals(2, observers.size());
+        assertSame(observers, registry.subscribers("observation"));
+
+        registry.onUnsubscribed("a", "observation");
+        assertEquals(1, observers.size());
+        assertTrue(observers.contains("b"));
+
+        registry.onCentralDisconnected("b");
+        assertTrue(observers.isEmpty());
+    }
+
+    @Test
+    public void snapshots_areNotAffectedByLaterChanges() {
+        mtus.put("a", 23);
+        mtus.put("b", 23);
+        registry.onSubscribed("a", "observation");
+        List<String> snapshot = registry.subscribers("observation").get();
+
+        registry.onSubscribed("b", "observation");
+        assertEquals(1, snapshot.size());
+        assertEquals(2, registry.subscribers("observation").size());
+    }
+
+    @Test
+    public void mtuRange_followsConnectedCentrals() {
+        assertEquals(CentralRegistry.DEFAULT_MTU, registry.getMinMtu());
+        assertTrue(registry.noCentralsConnected());
+
+        mtus.put("a", 185);
+        mtus.put("b", 247);
+        registry.onCentralConnected("a");
+        registry.onCentralConnected("b");
+        assertFalse(registry.noCentralsConnected());
+        assertEquals(185, registry.getMinMtu());
+        assertEquals(247, registry.getMaxMtu());
+
+        registry.onCentralDisconnected("a");
+        assertEquals(247, registry.getMinMtu());
+
+        mtus.put("b", 100);
+        registry.onSubscribed("b", "observation");
+        assertEquals(100, registry.getMaxMtu());
+    }
+
+    @Test
+    public void indexes_areCompactAndReusedAfterDisconnect() {
+        mtus.put("a", 23);
+        mtus.put("b", 23);
+        mtus.put("c", 23);
+        registry.onCentralConnected("a");
+        registry.onCentralConnected("b");
+        registry.onSubscribed("b", "observation");
+        assertEquals(0, registry.indexOf("a"));
+        assertEquals(1, registry.indexOf("b"));
+        assertEquals(1, registry.subscribers("observation").members().indexAt(0));
+
+        registry.onCentralDisconnected("a");
+        assertEquals(-1, registry.indexOf("a"));
+        registry.onSubscribed("c", "observation");
+        assertEquals(0, registry.indexOf("c"));
+        CentralRegistry.Members<String> members = registry.subscribers("observation").members();
+        assertEquals("c", members.get(1));
+        assertEquals(0, members.indexAt(1));
+    }
+
+    @Test
+    public void consent_endsWithTheConnection() {
+        mtus.put("a", 23);
+        mtus.put("b", 23);
+        assertFalse(registry.consent("a", 3, ConsentSessions.SECURITY_UNAUTHENTICATED));
+        registry.onCentralConnected("a");
+        assertTrue(registry.consent("a", 3, ConsentSessions.SECURITY_UNAUTHENTICATED));
+        assertTrue(ConsentSessions.isAuthorized(registry.consentSessions().authorized(), registry.indexOf("a")));
+
+        registry.onCentralDisconnected("a");
+        // The next central gets the same index but not the session
+        registry.onCentralConnected("b");
+        assertEquals(0, registry.indexOf("b"));
+        assertFalse(ConsentSessions.isAuthorized(registry.consentSessions().authorized(), 0));
+        assertEquals(ConsentSessions.NO_USER, registry.consentSessions().userOf(0));
+    }
+}
@@ -0,0 +1,56 @@
+package com.welie.btserver;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+public class ConsentSessionsTest {
+
+    private final ConsentSessions sessions = new ConsentSessions();
+
+    @Test
+    public void start_recordsUserAndSecurityLevel() {
+        sessions.start(5, 2, ConsentSessions.SECURITY_BONDED);
+        assertEquals(2, sessions.userOf(5));
+        assertEquals(ConsentSessions.SECURITY_BONDED, sessions.securityLevelOf(5));
+        assertEquals(ConsentSessions.NO_USER, sessions.userOf(4));
+        assertEquals(ConsentSessions.SECURITY_NONE, sessions.securityLevelOf(4));
+        assertTrue(ConsentSessions.isAuthorized(sessions.authorized(), 5));
+        assertFalse(ConsentSessions.isAuthorized(sessions.authorized(), 4));
+    }
+
+    @Test
+    public void authorized_growsPast64CentralsAndIsCopiedOnWrite() {
+        sessions.start(1, 0, ConsentSessions.SECURITY_UNAUTHENTICATED);
+        final long[] before = sessions.authorized();
+        sessions.start(130, 0, ConsentSessions.SECURITY_UNAUTHENTICATED);
+        final long[] after = sessions.authorized();
+
+        assertNotSame(before, after);
+        assertFalse(ConsentSessions.isAuthorized(before, 130));
+        assertTrue(ConsentSessions.isAuthorized(after, 130));
+        assertTrue(ConsentSessions.isAuthorized(after, 1));
+        assertFalse(ConsentSessions.isAuthorized(after, 1000));
+        assertFalse(ConsentSessions.isAuthorized(after, -1));
+        assertEquals(2, sessions.count());
+    }
+
+    @Test
+    public void endUser_endsEverySessionOfTheUser() {
+        sessions.start(0, 7, ConsentSessions.SECURITY_UNAUTHENTICATED);
+        sessions.start(1, 8, ConsentSessions.SECURITY_UNAUTHENTICATED);
+        sessions.start(70, 7, ConsentSessions.SECURITY_BONDED);
+
+        sessions.endUser(7);
+        assertEquals(1, sessions.count());
+        assertTrue(ConsentSessions.isAuthorized(sessions.authorized(), 1));
+        assertEquals(ConsentSessions.NO_USER, sessions.userOf(70));
+
+        sessions.end(1);
+        sessions.end(1000);
+        assertEquals(0, sessions.count());
+    }
+}
@@ -0,0 +1,80 @@
+package com.welie.btserver;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.fail;
+
+import org.junit.Test;
+
+import java.util.UUID;
+
+public class DispatchTableTest {
+
+    // Equal but distinct keys, like two descriptors with the same UUID
+    private static final class Attribute {
+        final UUID uuid;
+
+        Attribute(UUID uuid) {
+            this.uuid = uuid;
+        }
+
+        @Override
+        public boolean equals(Object other) {
+            return other instanceof Attribute && ((Attribute) other).uuid.equals(uuid);
+        }
+
+        @Override
+        public int hashCode() {
+            return uuid.hashCode();
+        }
+    }
+
+    @Test
+    public void get_findsEveryKeyByIdentity() {
+        DispatchTable.Builder<Attribute, String> builder = new DispatchTable.Builder<>();
+        Attribute[] attributes = new Attribute[500];
+        for (int i = 0; i < attributes.length; i++) {
+            attributes[i] = new Attribute(UUID.randomUUID());
+            builder.put(attributes[i], "handler" + i);
+        }
+        DispatchTable<Attribute, String> table = builder.build();
+
+        assertEquals(500, table.size());
+        for (int i = 0; i < attributes.length; i++) {
+            assertEquals("handler" + i, table.get(attributes[i]));
+        }
+        assertNull(table.get(new Attribute(attributes[0].uuid)));
+    }
+
+    @Test
+    public void equalKeys_getTheirOwnHandler() {
+        UUID uuid = UUID.randomUUID();
+        Attribute first = new Attribute(uuid);
+        Attribute second = new Attribute(uuid);
+        DispatchTable<Attribute, String> table = new DispatchTable.Builder<Attribute, String>()
+                .put(first, "first")
+                .put(second, "second")
+                .build();
+
+        assertSame("first", table.get(first));
+        assertSame("second", table.get(second));
+    }
+
+    @Test
+    public void duplicateKey_isRejected() {
+        Attribute attribute = new Attribute(UUID.randomUUID());
+        DispatchTable.Builder<Attribute, String> builder = new DispatchTable.Builder<Attribute, String>().put(attribute, "a");
+        try {
+            builder.put(attribute, "b");
+            fail("duplicate key accepted");
+        } catch (IllegalArgumentException expected) {
+            // expected
+        }
+    }
+
+    @Test
+    public void emptyTable_findsNothing() {
+        assertNull(new DispatchTable.Builder<Attribute, String>().build().get(new Attribute(UUID.randomUUID())));
+    }
+}
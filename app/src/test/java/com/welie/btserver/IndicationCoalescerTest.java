@@ -0,0 +1,109 @@
+package com.welie.btserver;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+public class IndicationCoalescerTest {
+
+    private final List<String> sent = new ArrayList<>();
+    private boolean queueFull = false;
+    private final IndicationCoalescer<String> coalescer = new IndicationCoalescer<>((central, key) -> {
+        if (queueFull) return false;
+        sent.add(central + key);
+        return true;
+    });
+
+    @Test
+    public void offer_keepsOneIndicationInFlightPerCentral() {
+        coalescer.offer("a", 0);
+        coalescer.offer("a", 1);
+        coalescer.offer("b", 1);
+        assertEquals(2, sent.size());
+        assertEquals("a0", sent.get(0));
+        assertEquals("b1", sent.get(1));
+        assertTrue(coalescer.isPending("a", 1));
+
+        coalescer.onSent("a");
+        assertEquals("a1", sent.get(2));
+        coalescer.onSent("a");
+        coalescer.onSent("b");
+        assertEquals(3, sent.size());
+    }
+
+    @Test
+    public void offer_coalescesChangesToAPendingKey() {
+        coalescer.offer("a", 0);
+        for (int i = 0; i < 100; i++) coalescer.offer("a", 2);
+        coalescer.onSent("a");
+        coalescer.onSent("a");
+        assertEquals(2, sent.size());
+        assertEquals(101, coalescer.getOffered());
+        assertEquals(2, coalescer.getSent());
+    }
+
+    @Test
+    public void onSent_sendsKeysRoundRobin() {
+        coalescer.offer("a", 0);
+        coalescer.offer("a", 1);
+        coalescer.offer("a", 2);
+        coalescer.onSent("a");
+        // Key 0 changed again, but 2 was waiting longer
+        coalescer.offer("a", 0);
+        coalescer.onSent("a");
+        coalescer.onSent("a");
+        assertEquals("a0", sent.get(0));
+        assertEquals("a1", sent.get(1));
+        assertEquals("a2", sent.get(2));
+        assertEquals("a0", sent.get(3));
+    }
+
+    @Test
+    public void retry_sendsWhatAFullQueueRefused() {
+        queueFull = true;
+        coalescer.offer("a", 63);
+        assertTrue(sent.isEmpty());
+        assertTrue(coalescer.isPending("a", 63));
+
+        queueFull = false;
+        coalescer.retry("a");
+        assertEquals("a63", sent.get(0));
+        assertFalse(coalescer.isPending("a", 63));
+    }
+
+    @Test
+    public void offer_countsACentralBlockedOnceAfterRepeatedFailures() {
+        queueFull = true;
+        coalescer.offer("a", 0);
+        coalescer.offer("a", 1);
+        coalescer.offer("b", 0);
+        assertEquals(2, coalescer.getBlocked());
+        coalescer.retry("a");
+        assertEquals(2, coalescer.getBlocked());
+
+        // A later offer gets through without a retry
+        queueFull = false;
+        coalescer.offer("a", 2);
+        assertEquals("a0", sent.get(0));
+        assertEquals(1, coalescer.getBlocked());
+        coalescer.remove("b");
+        assertEquals(0, coalescer.getBlocked());
+        coalescer.remove("a");
+        assertEquals(0, coalescer.getBlocked());
+    }
+
+    @Test
+    public void remove_dropsPendingKeys() {
+        coalescer.offer("a", 0);
+        coalescer.offer("a", 1);
+        coalescer.remove("a");
+        coalescer.onSent("a");
+        assertEquals(1, sent.size());
+        assertFalse(coalescer.isPending("a", 1));
+    }
+}
@@ -0,0 +1,139 @@
+package com.welie.btserver;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import com.welie.blessed.ConnectionPriority;
+import com.welie.blessed.PhyType;
+
+import org.jetbrains.annotations.NotNull;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+public class LinkPolicyTest {
+
+    private static final long SECOND = 1_000_000_000L;
+    private static final int MTU = 23;
+
+    private final List<String> requests = new ArrayList<>();
+    private boolean refuse = false;
+    private boolean supported = true;
+    private final LinkPolicy<String> policy = new LinkPolicy<>(new LinkPolicy.Link<String>() {
+        @Override
+        public boolean supportsRequests() {
+            return supported;
+        }
+
+        @Override
+        public boolean requestConnectionPriority(@NotNull String central, @NotNull ConnectionPriority priority) {
+            requests.add(central + " " + priority);
+            return !refuse;
+        }
+
+        @Override
+        public boolean setPreferredPhy(@NotNull String central, @NotNull PhyType phy) {
+            requests.add(central + " " + phy);
+            return !refuse;
+        }
+    });
+
+    @Test
+    public void segmentedBytes_addsOneHeaderPerSegment() {
+        assertEquals(30, LinkPolicy.segmentedBytes(NumericObservationEncoder.OBSERVATION_LENGTH, 23));
+        assertEquals(29, LinkPolicy.segmentedBytes(NumericObservationEncoder.OBSERVATION_LENGTH, 247));
+        assertEquals(19 + 1, LinkPolicy.segmentedBytes(19, 23));
+    }
+
+    @Test
+    public void update_keepsIdleCentralsBalanced() {
+        for (int i = 0; i < 10; i++) {
+            assertEquals(LinkPolicy.Mode.BALANCED, policy.update("a", MTU, 0, 0, 0, i * SECOND).mode);
+        }
+        assertTrue(requests.isEmpty());
+    }
+
+    @Test
+    public void update_picksTheCheapestModeWithHeadroom() {
+        final int balanced = LinkPolicy.Mode.BALANCED.capacity(MTU);
+        assertEquals(LinkPolicy.Mode.BALANCED, policy.update("a", MTU, balanced / 2, 0, 0, 0).mode);
+        assertEquals(LinkPolicy.Mode.BALANCED_2M, policy.update("b", MTU, balanced, 0, 0, 0).mode);
+        assertEquals(LinkPolicy.Mode.HIGH_2M, policy.update("c", MTU, LinkPolicy.Mode.BALANCED_2M.capacity(MTU), 0, 0, 0).mode);
+        assertEquals(3, requests.size());
+        assertEquals("b LE_2M", requests.get(0));
+        assertTrue(requests.contains("c HIGH"));
+        assertTrue(requests.contains("c LE_2M"));
+
+        // A larger MTU needs fewer packets
+        assertEquals(LinkPolicy.Mode.BALANCED, policy.update("d", 247, balanced, 0, 0, 0).mode);
+    }
+
+    @Test
+    public void update_goesUpWhenTheLinkFallsBehind() {
+        policy.update("a", MTU, 500, 0, 0, 0);
+        // Only 200 bytes/s get out and packets pile up
+        final LinkPolicy.Status<String> status = policy.update("a", MTU, 500, 200, LinkPolicy.BACKLOG_PACKETS, SECOND);
+        assertEquals(LinkPolicy.Mode.BALANCED_2M, status.mode);
+        assertEquals(200, status.achieved);
+        assertEquals(500, status.required);
+        assertFalse(status.isSaturated());
+
+        assertEquals(LinkPolicy.Mode.HIGH_2M, policy.update("a", MTU, 500, 400, LinkPolicy.BACKLOG_PACKETS, 2 * SECOND).mode);
+        assertTrue(policy.update("a", MTU, 500, 600, LinkPolicy.BACKLOG_PACKETS, 3 * SECOND).isSaturated());
+    }
+
+    @Test
+    public void update_relaxesOnlyAfterTheStreamStaysIdle() {
+        policy.update("a", MTU, 100_000, 0, 0, 0);
+        requests.clear();
+
+        // Still draining the queue
+        for (int i = 1; i <= LinkPolicy.RELAX_UPDATES; i++) {
+            assertEquals(LinkPolicy.Mode.HIGH_2M, policy.update("a", MTU, 0, 0, 3, i * SECOND).mode);
+        }
+        for (int i = 1; i < LinkPolicy.RELAX_UPDATES; i++) {
+            assertEquals(LinkPolicy.Mode.HIGH_2M, policy.update("a", MTU, 0, 0, 0, (10 + i) * SECOND).mode);
+        }
+        assertTrue(requests.isEmpty());
+        assertEquals(LinkPolicy.Mode.BALANCED, policy.update("a", MTU, 0, 0, 0, 20 * SECOND).mode);
+        assertEquals(2, requests.size());
+        assertTrue(requests.contains("a BALANCED"));
+        assertTrue(requests.contains("a LE_1M"));
+    }
+
+    @Test
+    public void update_countsRefusedRequests() {
+        refuse = true;
+        assertEquals(LinkPolicy.Mode.HIGH_2M, policy.update("a", MTU, 100_000, 0, 0, 0).mode);
+        assertEquals(2, policy.getRefusedRequests());
+        assertEquals(1, policy.getModeChanges());
+        // Not asked again while the mode stays the same
+        policy.update("a", MTU, 100_000, 0, 0, SECOND);
+        assertEquals(2, requests.size());
+    }
+
+    @Test
+    public void update_onlyMeasuresWhenRequestsAreUnsupported() {
+        supported = false;
+        policy.update("a", MTU, 500, 0, 0, 0);
+        final LinkPolicy.Status<String> status = policy.update("a", MTU, 500, 200, LinkPolicy.BACKLOG_PACKETS, SECOND);
+        assertEquals(LinkPolicy.Mode.BALANCED_2M, status.mode);
+        assertEquals(200, status.achieved);
+        assertEquals(500, status.required);
+        assertTrue(requests.isEmpty());
+        assertEquals(0, policy.getRefusedRequests());
+    }
+
+    @Test
+    public void remove_forgetsTheCentral() {
+        policy.update("a", MTU, 100, 0, 0, 0);
+        policy.update("b", MTU, 100, 0, 0, 0);
+        policy.remove("a");
+        assertNull(policy.statusOf("a"));
+        assertEquals(1, policy.statuses().size());
+        assertEquals("b", policy.statuses().get(0).central);
+    }
+}
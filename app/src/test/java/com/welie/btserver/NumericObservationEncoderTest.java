@@ -0,0 +1,67 @@
+package com.welie.btserver;
+
+import static com.welie.btserver.GenericHealthService.MDC_DIM_PER_CENT;
+import static com.welie.btserver.GenericHealthService.MDC_PULS_OXIM_SAT_O2;
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+import com.welie.blessed.BluetoothBytesParser;
+
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.Random;
+
+public class NumericObservationEncoderTest {
+
+    private final NumericObservationEncoder encoder = new NumericObservationEncoder(MDC_PULS_OXIM_SAT_O2, MDC_DIM_PER_CENT);
+
+    // The encoding as it was done with BluetoothBytesParser before the encoder existed
+    private static byte[] referenceObservation(long etsSeconds, float duration, float value) {
+        BluetoothBytesParser parser = new BluetoothBytesParser();
+        parser.setUInt8(0);
+        parser.setUInt16(28);
+        parser.setUInt16(0x07);
+        parser.setUInt32(MDC_PULS_OXIM_SAT_O2);
+        parser.setUInt8(0x22);
+        parser.setUInt48(etsSeconds);
+        parser.setUInt8(0x06);
+        parser.setUInt8(0x00);
+        parser.setFloatValue(duration, 1);
+        parser.setUInt16(MDC_DIM_PER_CENT);
+        parser.setFloatValue(value, 1);
+        return parser.getValue().clone();
+    }
+
+    @Test
+    public void encoding_isByteIdenticalToParser() {
+        Random random = new Random(42);
+        byte[] buffer = new byte[NumericObservationEncoder.OBSERVATION_LENGTH];
+        for (int i = 0; i < 10000; i++) {
+            long etsSeconds = random.nextInt(Integer.MAX_VALUE);
+            float duration = 1 + random.nextInt(5);
+            float value = (float) (95.0f + (random.nextDouble() * 2));
+
+            encoder.encode(buffer, 0, etsSeconds, duration, value);
+            assertArrayEquals(referenceObservation(etsSeconds, duration, value), buffer);
+        }
+    }
+
+    @Test
+    public void encoding_respectsOffsetAndLeavesHeaderUntouched() {
+        byte[] buffer = new byte[1 + NumericObservationEncoder.OBSERVATION_LENGTH];
+        buffer[0] = 0x07;
+        encoder.encode(buffer, 1, 719_000_000L, 1.0f, 96.4f);
+
+        assertEquals(0x07, buffer[0]);
+        assertArrayEquals(referenceObservation(719_000_000L, 1.0f, 96.4f), Arrays.copyOfRange(buffer, 1, buffer.length));
+    }
+
+    @Test
+    public void reusedBuffer_isFullyOverwritten() {
+        byte[] buffer = new byte[NumericObservationEncoder.OBSERVATION_LENGTH];
+        Arrays.fill(buffer, (byte) 0xFF);
+        encoder.encode(buffer, 0, 1, 1.0f, 95.0f);
+        assertArrayEquals(referenceObservation(1, 1.0f, 95.0f), buffer);
+    }
+}
@@ -0,0 +1,111 @@
+package com.welie.btserver;
+
+import static com.welie.btserver.GenericHealthService.MDC_DIM_PER_CENT;
+import static com.welie.btserver.GenericHealthService.MDC_PULS_OXIM_SAT_O2;
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+public class ObservationBundlerTest {
+
+    private final NumericObservationEncoder encoder = new NumericObservationEncoder(MDC_PULS_OXIM_SAT_O2, MDC_DIM_PER_CENT);
+
+    private ObservationBundler bundlerWith(int samples) {
+        ObservationBundler bundler = new ObservationBundler(16);
+        for (int i = 0; i < samples; i++) {
+            bundler.add(encoder, 1000 + i, 1.0f, 95.0f + i / 10f);
+        }
+        return bundler;
+    }
+
+    @Test
+    public void bundles_fillTheMtu() {
+        ObservationBundler bundler = bundlerWith(10);
+
+        // (247 - 4 - 6) / 28 = 8 samples per bundle
+        ObservationBundler.Bundles bundles = bundler.bundlesFor(247);
+        assertEquals(2, bundles.count());
+        assertEquals(1, bundles.train(0).count());
+        byte[] first = bundles.train(0).packet(0);
+        assertEquals(1 + ObservationBundler.bundleLength(8), first.length);
+        assertEquals((byte) ObservationBundler.OBSERVATION_BUNDLE, first[1]);
+        assertEquals(8, first[6]);
+        assertEquals(2, bundles.train(1).packet(0)[6]);
+
+        byte[] expected = new byte[NumericObservationEncoder.OBSERVATION_LENGTH];
+        encoder.encode(expected, 0, 1000, 1.0f, 95.0f);
+        assertArrayEquals(expected, Arrays.copyOfRange(first, 7, 7 + expected.length));
+    }
+
+    @Test
+    public void smallMtu_getsOneSegmentedBundle() {
+        ObservationBundler bundler = bundlerWith(3);
+
+        ObservationBundler.Bundles bundles = bundler.bundlesFor(23);
+        assertEquals(1, bundles.count());
+        OutboundQueue.PacketTrain train = bundles.train(0);
+        ByteArrayOutputStream reassembled = new ByteArrayOutputStream();
+        for (int i = 0; i < train.count(); i++) {
+            reassembled.write(train.packet(i), 1, train.packet(i).length - 1);
+        }
+        assertEquals(ObservationBundler.bundleLength(3), reassembled.size());
+        assertEquals(3, reassembled.toByteArray()[5]);
+    }
+
+    @Test
+    public void smallMtu_bundlesFitInTheOutboundQueue() {
+        ObservationBundler bundler = new ObservationBundler(ObservationBundler.MAX_SAMPLES);
+        for (int i = 0; i < ObservationBundler.MAX_SAMPLES; i++) {
+            bundler.add(encoder, 1000 + i, 1.0f, 95.0f);
+        }
+
+        List<byte[]> sent = new ArrayList<>();
+        OutboundQueue<String, String> queue = new OutboundQueue<>("c", (central, characteristic, value) -> sent.add(value.clone()),
+                OutboundQueues.DEFAULT_CREDITS, OutboundQueues.DEFAULT_PRIORITY_CAPACITY, OutboundQueues.DEFAULT_BULK_CAPACITY, OutboundQueue.DropPolicy.DROP_OLDEST);
+        ObservationSegmenter.SegmentCounter segmentCounter = new ObservationSegmenter.SegmentCounter();
+        // (16 * 19 - 6) / 28 = 10 samples per bundle
+        ObservationBundler.Bundles bundles = bundler.bundlesFor(23);
+        assertEquals(26, bundles.count());
+        for (int i = 0; i < bundles.count(); i++) {
+            assertTrue(bundles.train(i).count() <= ObservationBundler.MAX_SEGMENTS_PER_BUNDLE);
+            assertTrue(queue.offerTrain("obs", bundles.train(i), segmentCounter));
+        }
+        while (queue.queuedPackets() > 0) queue.onSent();
+
+        // Older bundles make room for newer ones, but every bundle that is sent is complete
+        List<Integer> delivered = new ArrayList<>();
+        ByteArrayOutputStream reassembled = new ByteArrayOutputStream();
+        for (byte[] packet : sent) {
+            reassembled.write(packet, 1, packet.length - 1);
+            if ((packet[0] & 0x02) != 0) {
+                byte[] bundle = reassembled.toByteArray();
+                assertEquals(ObservationBundler.bundleLength(bundle[5] & 0xFF), bundle.length);
+                delivered.add(bundle[5] & 0xFF);
+                reassembled.reset();
+            }
+        }
+        assertEquals(bundles.count(), delivered.size() + queue.getDroppedTrains());
+        assertTrue(delivered.size() >= OutboundQueues.DEFAULT_BULK_CAPACITY / ObservationBundler.MAX_SEGMENTS_PER_BUNDLE);
+        // The newest bundle holds the last 5 samples
+        assertEquals(5, (int) delivered.get(delivered.size() - 1));
+    }
+
+    @Test
+    public void clear_startsANewBundle() {
+        ObservationBundler bundler = bundlerWith(16);
+        assertFalse(bundler.add(encoder, 0, 1.0f, 95.0f));
+
+        bundler.clear();
+        bundler.add(encoder, 0, 1.0f, 95.0f);
+        assertEquals(1, bundler.bundlesFor(247).count());
+        assertEquals(1, bundler.bundlesFor(247).train(0).packet(0)[6]);
+    }
+}
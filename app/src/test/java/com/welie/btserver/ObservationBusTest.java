@@ -0,0 +1,114 @@
+package com.welie.btserver;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+public class ObservationBusTest {
+
+    private static final class Received implements ObservationBus.Handler {
+        final List<Long> sequences = new ArrayList<>();
+        final List<Float> values = new ArrayList<>();
+
+        @Override
+        public void onObservation(long sequence, int mdcCode, float value, long etsSeconds) {
+            assertEquals(1000 + sequence, etsSeconds);
+            sequences.add(sequence);
+            values.add(value);
+        }
+    }
+
+    @Test
+    public void everySubscription_seesEveryObservation() {
+        ObservationBus bus = new ObservationBus(16);
+        ObservationBus.Subscription ui = bus.subscribe(null);
+        ObservationBus.Subscription storage = bus.subscribe(null);
+        for (int i = 0; i < 10; i++) {
+            bus.publish(GenericHealthService.MDC_PULS_OXIM_SAT_O2, 95.0f + i, 1000 + i);
+        }
+
+        Received first = new Received();
+        assertEquals(4, ui.poll(first, 4));
+        assertEquals(6, ui.poll(first, 100));
+        assertEquals(0, ui.poll(first, 100));
+        Received second = new Received();
+        assertEquals(10, storage.poll(second, 100));
+
+        assertEquals(first.values, second.values);
+        assertEquals(95.0f, first.values.get(0), 0);
+        assertEquals(104.0f, first.values.get(9), 0);
+        assertEquals(9L, (long) first.sequences.get(9));
+        assertEquals(0, ui.getMissed());
+    }
+
+    @Test
+    public void slowSubscription_skipsOverwrittenObservations() {
+        ObservationBus bus = new ObservationBus(8);
+        ObservationBus.Subscription slow = bus.subscribe(null);
+        for (int i = 0; i < 20; i++) {
+            bus.publish(1, i, 1000 + i);
+        }
+
+        assertEquals(8, slow.getBacklog());
+        Received received = new Received();
+        assertEquals(8, slow.poll(received, 100));
+        assertEquals(12, slow.getMissed());
+        assertEquals(12L, (long) received.sequences.get(0));
+        assertEquals(19L, (long) received.sequences.get(7));
+    }
+
+    @Test
+    public void subscription_startsAtNextObservation_andStopsWhenCancelled() {
+        ObservationBus bus = new ObservationBus(8);
+        bus.publish(1, 1.0f, 1000);
+        AtomicInteger wakeUps = new AtomicInteger(0);
+        ObservationBus.Subscription subscription = bus.subscribe(wakeUps::incrementAndGet);
+        bus.publish(1, 2.0f, 1001);
+
+        Received received = new Received();
+        assertEquals(1, subscription.poll(received, 100));
+        assertEquals(2.0f, received.values.get(0), 0);
+        assertEquals(1, wakeUps.get());
+
+        subscription.cancel();
+        bus.publish(1, 3.0f, 1002);
+        assertEquals(1, wakeUps.get());
+    }
+
+    @Test
+    public void concurrentConsumer_neverSeesTornObservations() throws InterruptedException {
+        final ObservationBus bus = new ObservationBus(64);
+        final int total = 2_000_000;
+        final ObservationBus.Subscription subscription = bus.subscribe(null);
+        final long[] received = {0, -1};
+        final String[] error = {null};
+
+        Thread consumer = new Thread(() -> {
+            final ObservationBus.Handler handler = (sequence, mdcCode, value, etsSeconds) -> {
+                if (mdcCode != (int) (sequence & 0xFFFF) || value != (float) (sequence % 1000) || etsSeconds != sequence) {
+                    error[0] = "torn observation " + sequence;
+                }
+                if (sequence <= received[1]) error[0] = "out of order " + sequence;
+                received[0]++;
+                received[1] = sequence;
+            };
+            while (received[1] < total - 1 && error[0] == null) {
+                subscription.poll(handler, 256);
+            }
+        });
+        consumer.start();
+        for (long i = 0; i < total; i++) {
+            bus.publish((int) (i & 0xFFFF), (float) (i % 1000), i);
+        }
+        consumer.join(30_000);
+
+        assertEquals(null, error[0]);
+        assertEquals(total, received[0] + subscription.getMissed());
+        assertTrue(received[0] > 0);
+    }
+}
@@ -0,0 +1,107 @@
+package com.welie.btserver;
+
+import static com.welie.btserver.GenericHealthService.MDC_DIM_DIMLESS;
+import static com.welie.btserver.GenericHealthService.MDC_DIM_PER_CENT;
+import static com.welie.btserver.GenericHealthService.MDC_PULS_OXIM_PLETH;
+import static com.welie.btserver.GenericHealthService.MDC_PULS_OXIM_SAT_O2;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import org.jetbrains.annotations.NotNull;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+public class ObservationDecoderTest {
+
+    private static final class Recorder implements ObservationDecoder.Handler {
+        final List<String> decoded = new ArrayList<>();
+        int malformed = 0;
+
+        @Override
+        public void onNumeric(int mdcCode, long etsSeconds, float duration, int unitCode, float value) {
+            decoded.add(mdcCode + " " + etsSeconds + " " + duration + " " + unitCode + " " + value);
+        }
+
+        @Override
+        public void onSampleArray(int mdcCode, long etsSeconds, float duration, int unitCode, float scaleFactor, float offset, int samplesPerSecond,
+                                  int bytesPerSample, @NotNull byte[] samples, int samplesOffset, int count) {
+            StringBuilder text = new StringBuilder(mdcCode + " " + etsSeconds + " " + duration + " " + unitCode + " " + scaleFactor + " " + offset + " " + samplesPerSecond + " " + bytesPerSample);
+            for (int i = 0; i < count; i++) {
+                text.append(' ').append(ObservationDecoder.uint16(samples, samplesOffset + i * bytesPerSample));
+            }
+            decoded.add(text.toString());
+        }
+
+        @Override
+        public void onMalformed(int type, int length) {
+            malformed++;
+        }
+    }
+
+    @Test
+    public void decode_numericObservation() {
+        NumericObservationEncoder encoder = new NumericObservationEncoder(MDC_PULS_OXIM_SAT_O2, MDC_DIM_PER_CENT);
+        byte[] buffer = new byte[NumericObservationEncoder.OBSERVATION_LENGTH];
+        encoder.encode(buffer, 0, 0x123456789AL, 1.0f, 97.3f);
+
+        Recorder recorder = new Recorder();
+        assertEquals(1, ObservationDecoder.decode(buffer, 0, buffer.length, recorder));
+        assertEquals(MDC_PULS_OXIM_SAT_O2 + " " + 0x123456789AL + " 1.0 " + MDC_DIM_PER_CENT + " 97.3", recorder.decoded.get(0));
+    }
+
+    @Test
+    public void decode_sampleArray() {
+        SampleArrayObservationEncoder encoder = new SampleArrayObservationEncoder(MDC_PULS_OXIM_PLETH, MDC_DIM_DIMLESS, 0.001f, 0, 3, 100, 2);
+        SampleRingBuffer samples = new SampleRingBuffer(4);
+        samples.offer(0x1234);
+        samples.offer(0xFFFF);
+        samples.offer(7);
+        byte[] buffer = new byte[encoder.observationLength(3)];
+        encoder.encode(buffer, 0, 42, samples, 3);
+
+        Recorder recorder = new Recorder();
+        assertEquals(1, ObservationDecoder.decode(buffer, 0, buffer.length, recorder));
+        assertEquals(MDC_PULS_OXIM_PLETH + " 42 0.03 " + MDC_DIM_DIMLESS + " 0.001 0.0 100 2 4660 65535 7", recorder.decoded.get(0));
+    }
+
+    @Test
+    public void decode_bundleReportsEveryObservation() {
+        NumericObservationEncoder encoder = new NumericObservationEncoder(MDC_PULS_OXIM_SAT_O2, MDC_DIM_PER_CENT);
+        ObservationBundler bundler = new ObservationBundler(8);
+        for (int i = 0; i < 3; i++) bundler.add(encoder, 1000 + i, 1.0f, 95.0f + i);
+        byte[] packet = bundler.bundlesFor(247).train(0).packet(0);
+
+        Recorder recorder = new Recorder();
+        assertEquals(3, ObservationDecoder.decode(packet, 1, packet.length - 1, recorder));
+        assertEquals(3, recorder.decoded.size());
+        assertTrue(recorder.decoded.get(2), recorder.decoded.get(2).endsWith(" 1002 1.0 " + MDC_DIM_PER_CENT + " 97.0"));
+        assertEquals(0, recorder.malformed);
+    }
+
+    @Test
+    public void decode_rejectsInconsistentLengths() {
+        NumericObservationEncoder encoder = new NumericObservationEncoder(MDC_PULS_OXIM_SAT_O2, MDC_DIM_PER_CENT);
+        byte[] buffer = new byte[NumericObservationEncoder.OBSERVATION_LENGTH];
+        encoder.encode(buffer, 0, 1, 1.0f, 97.3f);
+
+        Recorder recorder = new Recorder();
+        assertEquals(0, ObservationDecoder.decode(buffer, 0, buffer.length - 1, recorder));
+        buffer[1]++;
+        assertEquals(0, ObservationDecoder.decode(buffer, 0, buffer.length, recorder));
+        assertEquals(0, ObservationDecoder.decode(buffer, 0, 2, recorder));
+        assertEquals(3, recorder.malformed);
+        assertTrue(recorder.decoded.isEmpty());
+    }
+
+    @Test
+    public void float32_decodesSpecialValues() {
+        byte[] nan = {(byte) 0xFF, (byte) 0xFF, 0x7F, 0x00};
+        byte[] infinity = {(byte) 0xFE, (byte) 0xFF, 0x7F, 0x00};
+        byte[] negative = {(byte) 0xF6, (byte) 0xFF, (byte) 0xFF, (byte) 0xFF};
+        assertTrue(Float.isNaN(ObservationDecoder.float32(nan, 0)));
+        assertEquals(Float.POSITIVE_INFINITY, ObservationDecoder.float32(infinity, 0), 0);
+        assertEquals(-1.0f, ObservationDecoder.float32(negative, 0), 0);
+    }
+}
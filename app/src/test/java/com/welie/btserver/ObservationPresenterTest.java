@@ -0,0 +1,128 @@
+package com.welie.btserver;
+
+import static com.welie.btserver.GenericHealthService.MDC_PULS_OXIM_PULS_RATE;
+import static com.welie.btserver.GenericHealthService.MDC_PULS_OXIM_SAT_O2;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import org.jetbrains.annotations.NotNull;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+public class ObservationPresenterTest {
+
+    private final ObservationBus bus = new ObservationBus(1024);
+    private final List<String> values = new ArrayList<>();
+    private int frameRequests = 0;
+    private int trendCount = -1;
+    private float[] trendX;
+    private float[] trendY;
+
+    private final ObservationPresenter presenter = new ObservationPresenter(bus, MDC_PULS_OXIM_SAT_O2, 600, 50, new ObservationPresenter.Display() {
+        @Override
+        public void showValue(@NotNull String text) {
+            values.add(text);
+        }
+
+        @Override
+        public void showTrend(@NotNull float[] x, @NotNull float[] y, int count) {
+            trendX = x;
+            trendY = y;
+            trendCount = count;
+        }
+    }, () -> frameRequests++);
+
+    @Test
+    public void manyObservations_renderOncePerFrame() {
+        presenter.start();
+        for (int i = 0; i < 200; i++) {
+            bus.publish(MDC_PULS_OXIM_SAT_O2, 95.0f + (i % 3), 1000 + i);
+            bus.publish(MDC_PULS_OXIM_PULS_RATE, 72.0f, 1000 + i);
+        }
+        assertEquals(1, frameRequests);
+
+        presenter.onFrame();
+        assertEquals(1, presenter.getRenderedFrames());
+        assertEquals(1, values.size());
+        assertEquals("96.0%", values.get(0));
+        assertEquals(50, trendCount);
+        assertEquals(0.0f, trendX[0], 0);
+        assertEquals(199.0f, trendX[49], 0);
+
+        // Nothing new, nothing drawn
+        presenter.onFrame();
+        assertEquals(1, presenter.getRenderedFrames());
+
+        bus.publish(MDC_PULS_OXIM_PULS_RATE, 72.0f, 1200);
+        bus.publish(MDC_PULS_OXIM_SAT_O2, 96.0f, 1200);
+        assertEquals(2, frameRequests);
+        presenter.onFrame();
+        // Same value, the text is left alone
+        assertEquals(1, values.size());
+        assertEquals(2, presenter.getRenderedFrames());
+    }
+
+    @Test
+    public void stoppedPresenter_rendersNothing() {
+        presenter.start();
+        presenter.stop();
+        bus.publish(MDC_PULS_OXIM_SAT_O2, 95.0f, 1000);
+        presenter.onFrame();
+        assertEquals(0, frameRequests);
+        assertEquals(0, presenter.getRenderedFrames());
+    }
+
+    @Test
+    public void history_keepsMostRecentSamples() {
+        TrendHistory history = new TrendHistory(4);
+        for (int i = 0; i < 10; i++) {
+            history.add(100 + i, i);
+        }
+        assertEquals(4, history.size());
+        assertEquals(106, history.timestamp(0));
+        assertEquals(9.0f, history.value(3), 0);
+
+        float[] x = new float[4];
+        float[] y = new float[4];
+        assertEquals(4, history.copyTo(x, y, 106));
+        assertEquals(3.0f, x[3], 0);
+        assertEquals(6.0f, y[0], 0);
+    }
+
+    @Test
+    public void lttb_keepsEndpointsAndPeaks() {
+        final int count = 10_000;
+        float[] x = new float[count];
+        float[] y = new float[count];
+        for (int i = 0; i < count; i++) {
+            x[i] = i;
+            y[i] = 95.0f;
+        }
+        // A short desaturation must survive downsampling
+        y[4321] = 85.0f;
+
+        float[] outX = new float[100];
+        float[] outY = new float[100];
+        assertEquals(100, Lttb.downsample(x, y, count, 100, outX, outY));
+        assertEquals(0.0f, outX[0], 0);
+        assertEquals(count - 1, outX[99], 0);
+        boolean foundDip = false;
+        for (int i = 1; i < 100; i++) {
+            assertTrue(outX[i] > outX[i - 1]);
+            if (outY[i] == 85.0f) foundDip = outX[i] == 4321;
+        }
+        assertTrue(foundDip);
+    }
+
+    @Test
+    public void lttb_keepsShortSeriesAsIs() {
+        float[] x = {0, 1, 2};
+        float[] y = {95, 96, 97};
+        float[] outX = new float[10];
+        float[] outY = new float[10];
+        assertEquals(3, Lttb.downsample(x, y, 3, 10, outX, outY));
+        assertEquals(97.0f, outY[2], 0);
+    }
+}
@@ -0,0 +1,103 @@
+package com.welie.btserver;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+
+import org.jetbrains.annotations.NotNull;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+public class ObservationReassemblerTest {
+
+    private final List<byte[]> observations = new ArrayList<>();
+    private final List<int[]> gaps = new ArrayList<>();
+    private byte[] lastBuffer;
+
+    private final ObservationReassembler reassembler = new ObservationReassembler(new ObservationReassembler.Listener() {
+        @Override
+        public void onObservation(@NotNull byte[] buffer, int offset, int length) {
+            lastBuffer = buffer;
+            observations.add(Arrays.copyOfRange(buffer, offset, offset + length));
+        }
+
+        @Override
+        public void onGap(int expectedCounter, int receivedCounter) {
+            gaps.add(new int[]{expectedCounter, receivedCounter});
+        }
+    });
+
+    private final ObservationSegmenter.SegmentCounter counter = new ObservationSegmenter.SegmentCounter();
+
+    private static byte[] packetWithObservation(int length, int seed) {
+        byte[] packet = new byte[length + 1];
+        for (int i = 1; i < packet.length; i++) {
+            packet[i] = (byte) (i + seed);
+        }
+        return packet;
+    }
+
+    // Stamp the headers the way the server does and return the packets
+    private byte[][] send(byte[] packet, int mtu) {
+        ObservationSegmenter segmenter = new ObservationSegmenter();
+        segmenter.setObservation(packet);
+        ObservationSegmenter.Segments segments = segmenter.segmentsFor(mtu);
+        byte[][] sent = new byte[segments.count()][];
+        for (int i = 0; i < segments.count(); i++) {
+            sent[i] = segments.packet(i).clone();
+            sent[i][0] = ObservationSegmenter.header(counter.next(), i == 0, i == segments.count() - 1);
+        }
+        return sent;
+    }
+
+    @Test
+    public void singleSegment_isDeliveredFromThePacket() {
+        byte[] packet = send(packetWithObservation(28, 0), 247)[0];
+        reassembler.onPacket(packet);
+
+        assertEquals(1, observations.size());
+        assertSame(packet, lastBuffer);
+        assertArrayEquals(Arrays.copyOfRange(packet, 1, packet.length), observations.get(0));
+    }
+
+    @Test
+    public void segments_areJoinedInOrder() {
+        for (int i = 0; i < 100; i++) {
+            byte[] observation = packetWithObservation(300, i);
+            for (byte[] packet : send(observation, 23)) reassembler.onPacket(packet);
+            assertArrayEquals(Arrays.copyOfRange(observation, 1, observation.length), observations.get(i));
+        }
+        assertEquals(100, reassembler.getObservations());
+        assertEquals(0, reassembler.getGaps());
+    }
+
+    @Test
+    public void lostSegment_isReportedAndItsObservationDiscarded() {
+        byte[][] first = send(packetWithObservation(100, 1), 23);
+        byte[][] second = send(packetWithObservation(100, 2), 23);
+        byte[] secondObservation = packetWithObservation(100, 2);
+
+        reassembler.onPacket(first[0]);
+        // first[1] is lost
+        for (int i = 2; i < first.length; i++) reassembler.onPacket(first[i]);
+        for (byte[] packet : second) reassembler.onPacket(packet);
+
+        assertEquals(1, gaps.size());
+        assertArrayEquals(new int[]{1, 2}, gaps.get(0));
+        assertEquals(1, observations.size());
+        assertArrayEquals(Arrays.copyOfRange(secondObservation, 1, secondObservation.length), observations.get(0));
+        assertEquals(1 + first.length - 2, reassembler.getDiscardedSegments());
+    }
+
+    @Test
+    public void counter_wrapsAfter63() {
+        for (int i = 0; i < 130; i++) {
+            reassembler.onPacket(send(packetWithObservation(10, i), 247)[0]);
+        }
+        assertEquals(130, reassembler.getObservations());
+        assertEquals(0, reassembler.getGaps());
+    }
+}
@@ -0,0 +1,87 @@
+package com.welie.btserver;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+
+public class ObservationSegmenterTest {
+
+    private static byte[] packetWithObservation(int length) {
+        byte[] packet = new byte[length + 1];
+        for (int i = 1; i < packet.length; i++) {
+            packet[i] = (byte) i;
+        }
+        return packet;
+    }
+
+    private static byte[] reassemble(ObservationSegmenter.Segments segments) {
+        ByteArrayOutputStream stream = new ByteArrayOutputStream();
+        for (int i = 0; i < segments.count(); i++) {
+            byte[] packet = segments.packet(i);
+            stream.write(packet, 1, packet.length - 1);
+        }
+        return stream.toByteArray();
+    }
+
+    @Test
+    public void observationFittingInMtu_isSentFromSourcePacket() {
+        ObservationSegmenter segmenter = new ObservationSegmenter();
+        byte[] packet = packetWithObservation(28);
+        segmenter.setObservation(packet);
+
+        ObservationSegmenter.Segments segments = segmenter.segmentsFor(247);
+        assertEquals(1, segments.count());
+        assertSame(packet, segments.packet(0));
+    }
+
+    @Test
+    public void observation_isSplitAccordingToMtu() {
+        ObservationSegmenter segmenter = new ObservationSegmenter();
+        byte[] packet = packetWithObservation(28);
+        segmenter.setObservation(packet);
+
+        ObservationSegmenter.Segments segments = segmenter.segmentsFor(23);
+        assertEquals(2, segments.count());
+        assertEquals(20, segments.packet(0).length);
+        assertEquals(10, segments.packet(1).length);
+        byte[] expected = new byte[28];
+        System.arraycopy(packet, 1, expected, 0, 28);
+        assertArrayEquals(expected, reassemble(segments));
+    }
+
+    @Test
+    public void segments_areCachedPerMtuAndObservation() {
+        ObservationSegmenter segmenter = new ObservationSegmenter();
+        segmenter.setObservation(packetWithObservation(28));
+
+        ObservationSegmenter.Segments first = segmenter.segmentsFor(23);
+        byte[] firstPacket = first.packet(0);
+        assertSame(first, segmenter.segmentsFor(23));
+        assertNotSame(first, segmenter.segmentsFor(185));
+
+        byte[] next = packetWithObservation(28);
+        next[1] = 0x55;
+        segmenter.setObservation(next);
+        ObservationSegmenter.Segments second = segmenter.segmentsFor(23);
+        assertSame(firstPacket, second.packet(0));
+        assertEquals(0x55, second.packet(0)[1]);
+    }
+
+    @Test
+    public void header_encodesCounterAndFlags() {
+        assertEquals(3, ObservationSegmenter.header(0, true, true));
+        assertEquals((5 << 2) + 1, ObservationSegmenter.header(5, true, false));
+        assertEquals((63 << 2) + 2, ObservationSegmenter.header(63, false, true) & 0xFF);
+
+        ObservationSegmenter.SegmentCounter counter = new ObservationSegmenter.SegmentCounter();
+        for (int i = 0; i < 64; i++) {
+            assertEquals(i, counter.next());
+        }
+        assertEquals(0, counter.next());
+    }
+}
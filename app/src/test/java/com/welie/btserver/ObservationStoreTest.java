@@ -0,0 +1,206 @@
+package com.welie.btserver;
+
+import static com.welie.btserver.GenericHealthService.MDC_PULS_OXIM_SAT_O2;
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.file.Files;
+
+public class ObservationStoreTest {
+
+    private File directory;
+    private ObservationStore store;
+
+    @Before
+    public void setUp() throws IOException {
+        directory = Files.createTempDirectory("store").toFile();
+        store = ObservationStore.open(directory);
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        store.close();
+        deleteFiles();
+        directory.delete();
+    }
+
+    private void deleteFiles() {
+        File[] files = directory.listFiles();
+        if (files != null) {
+            for (File file : files) file.delete();
+        }
+    }
+
+    private void appendSamples(int count) {
+        for (int i = 0; i < count; i++) {
+            store.append(MDC_PULS_OXIM_SAT_O2, 1000 + i, 1.0f, 95.0f + i / 100f);
+        }
+    }
+
+    @Test
+    public void append_assignsConsecutiveSequenceNumbers() {
+        assertEquals(1, store.append(MDC_PULS_OXIM_SAT_O2, 1000, 1.0f, 96.0f));
+        assertEquals(2, store.append(MDC_PULS_OXIM_SAT_O2, 1001, 1.0f, 97.5f));
+
+        ObservationStore.Record record = new ObservationStore.Record();
+        store.read(1, record);
+        assertEquals(2, record.sequenceNumber);
+        assertEquals(MDC_PULS_OXIM_SAT_O2, record.mdcCode);
+        assertEquals(1001, record.timestamp);
+        assertEquals(1.0f, record.duration, 0f);
+        assertEquals(97.5f, record.value, 0f);
+    }
+
+    @Test
+    public void append_growsPastTheFirstChunk() {
+        appendSamples(ObservationStore.CHUNK_RECORDS + 10);
+
+        ObservationStore.Record record = new ObservationStore.Record();
+        store.read(ObservationStore.CHUNK_RECORDS + 5, record);
+        assertEquals(ObservationStore.CHUNK_RECORDS + 6, record.sequenceNumber);
+        assertEquals(ObservationStore.CHUNK_RECORDS + 10, store.count(0, store.size()));
+    }
+
+    @Test
+    public void positionOfTimestamp_usesTheRunningMaximum() {
+        store.append(MDC_PULS_OXIM_SAT_O2, 100, 1.0f, 95f);
+        store.append(MDC_PULS_OXIM_SAT_O2, 200, 1.0f, 95f);
+        // Clock stepped back; the record is still considered to be at 200
+        store.append(MDC_PULS_OXIM_SAT_O2, 150, 1.0f, 95f);
+        store.append(MDC_PULS_OXIM_SAT_O2, 300, 1.0f, 95f);
+
+        assertEquals(0, store.positionOfTimestamp(50));
+        assertEquals(1, store.positionOfTimestamp(101));
+        assertEquals(1, store.positionOfTimestamp(200));
+        assertEquals(3, store.positionOfTimestamp(201));
+        assertEquals(4, store.positionOfTimestamp(301));
+    }
+
+    @Test
+    public void delete_isSkippedByCountAndIteration() throws IOException {
+        appendSamples(100);
+
+        assertEquals(10, store.delete(10, 20));
+        assertEquals(5, store.delete(15, 25));
+        assertEquals(0, store.delete(12, 18));
+        assertEquals(85, store.count(0, 100));
+        assertEquals(10, store.count(5, 30));
+        assertEquals(25, store.nextPresent(10));
+        assertEquals(9, store.previousPresent(25));
+
+        assertEquals(10, store.delete(0, 10));
+        assertEquals(25, store.nextPresent(0));
+        assertEquals(-1, store.previousPresent(25));
+    }
+
+    @Test
+    public void reopen_keepsRecordsAndDeletions() throws IOException {
+        appendSamples(50);
+        store.delete(0, 10);
+        store.close();
+
+        store = ObservationStore.open(directory);
+        assertEquals(50, store.size());
+        assertEquals(40, store.count(0, 50));
+        assertEquals(51, store.append(MDC_PULS_OXIM_SAT_O2, 2000, 1.0f, 96f));
+        assertEquals(49, store.positionOfTimestamp(1049));
+    }
+
+    @Test
+    public void append_reusesTheOldestChunkWhenTheRingIsFull() throws IOException {
+        store.close();
+        deleteFiles();
+        store = ObservationStore.open(directory, 2);
+        appendSamples(2 * ObservationStore.CHUNK_RECORDS + 10);
+
+        assertEquals(ObservationStore.CHUNK_RECORDS, store.firstPosition());
+        assertEquals(ObservationStore.CHUNK_RECORDS + 10, store.count(0, store.size()));
+        assertEquals(ObservationStore.CHUNK_RECORDS, store.nextPresent(0));
+        assertEquals(ObservationStore.CHUNK_RECORDS, store.positionOfTimestamp(0));
+        ObservationStore.Record record = new ObservationStore.Record();
+        store.read(2 * ObservationStore.CHUNK_RECORDS + 9, record);
+        assertEquals(2 * ObservationStore.CHUNK_RECORDS + 10, record.sequenceNumber);
+        assertEquals(1000 + 2 * ObservationStore.CHUNK_RECORDS + 9, record.timestamp);
+        assertTrue(new File(directory, "observations.log").length() <= 32 + 2L * ObservationStore.CHUNK_RECORDS * ObservationStore.RECORD_SIZE);
+
+        store.close();
+        store = ObservationStore.open(directory);
+        assertEquals(ObservationStore.CHUNK_RECORDS + 10, store.count(0, store.size()));
+        store.read(ObservationStore.CHUNK_RECORDS, record);
+        assertEquals(ObservationStore.CHUNK_RECORDS + 1, record.sequenceNumber);
+    }
+
+    @Test
+    public void delete_releasesChunksItCovers() throws IOException {
+        appendSamples(2 * ObservationStore.CHUNK_RECORDS + 10);
+
+        store.delete(10, ObservationStore.CHUNK_RECORDS + 5);
+        assertEquals(0, store.firstPosition());
+        store.delete(0, 10);
+        assertEquals(ObservationStore.CHUNK_RECORDS, store.firstPosition());
+        assertEquals(ObservationStore.CHUNK_RECORDS + 5, store.nextPresent(0));
+        assertEquals(ObservationStore.CHUNK_RECORDS + 5, store.count(0, store.size()));
+
+        appendSamples(10);
+        ObservationStore.Record record = new ObservationStore.Record();
+        store.read(2 * ObservationStore.CHUNK_RECORDS + 19, record);
+        assertEquals(2 * ObservationStore.CHUNK_RECORDS + 20, record.sequenceNumber);
+    }
+
+    @Test
+    public void racp_widensRecordNumbersPastTheirLow32Bits() throws IOException {
+        store.close();
+        try (RandomAccessFile file = new RandomAccessFile(new File(directory, "observations.log"), "rw")) {
+            // First sequence number, little endian, just below 2^32
+            file.seek(8);
+            file.write(new byte[]{(byte) 0xF6, (byte) 0xFF, (byte) 0xFF, (byte) 0xFF, 0, 0, 0, 0});
+        }
+        store = ObservationStore.open(directory);
+        appendSamples(20);
+
+        ObservationStore.Record record = new ObservationStore.Record();
+        store.read(19, record);
+        assertEquals((1L << 32) + 9, record.sequenceNumber);
+
+        // Within range 0xFFFFFFFF..4 crosses 2^32
+        RecordAccessControlPoint.Request request = new RecordAccessControlPoint.Request();
+        RecordAccessControlPoint.parse(new byte[]{0x01, 0x04, 0x01, (byte) 0xFF, (byte) 0xFF, (byte) 0xFF, (byte) 0xFF, 4, 0, 0, 0}, store, request);
+        assertEquals(RecordAccessControlPoint.SUCCESS, request.responseCode);
+        assertEquals(9, request.from);
+        assertEquals(15, request.to);
+    }
+
+    @Test
+    public void racp_resolvesSequenceNumberRanges() {
+        appendSamples(20);
+        RecordAccessControlPoint.Request request = new RecordAccessControlPoint.Request();
+
+        // Within range 5..8
+        RecordAccessControlPoint.parse(new byte[]{0x01, 0x04, 0x01, 5, 0, 0, 0, 8, 0, 0, 0}, store, request);
+        assertEquals(RecordAccessControlPoint.SUCCESS, request.responseCode);
+        assertEquals(4, request.from);
+        assertEquals(8, request.to);
+
+        // Greater than or equal to timestamp 1015
+        RecordAccessControlPoint.parse(new byte[]{0x04, 0x03, 0x02, (byte) 0xF7, 0x03, 0, 0, 0, 0}, store, request);
+        assertEquals(RecordAccessControlPoint.SUCCESS, request.responseCode);
+        assertEquals(15, request.from);
+        assertEquals(20, request.to);
+
+        RecordAccessControlPoint.parse(new byte[]{0x01, 0x04, 0x01, 8, 0, 0, 0, 5, 0, 0, 0}, store, request);
+        assertEquals(RecordAccessControlPoint.INVALID_OPERAND, request.responseCode);
+
+        RecordAccessControlPoint.parse(new byte[]{0x01, 0x03, 0x03, 0}, store, request);
+        assertEquals(RecordAccessControlPoint.OPERAND_NOT_SUPPORTED, request.responseCode);
+
+        assertArrayEquals(new byte[]{0x05, 0x00, 20, 0, 0, 0}, RecordAccessControlPoint.numberOfRecords(20));
+    }
+}
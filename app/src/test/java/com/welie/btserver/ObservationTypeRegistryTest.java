@@ -0,0 +1,114 @@
+package com.welie.btserver;
+
+import static com.welie.btserver.GenericHealthService.MDC_DIM_BEAT_PER_MIN;
+import static com.welie.btserver.GenericHealthService.MDC_DIM_PER_CENT;
+import static com.welie.btserver.GenericHealthService.MDC_PULS_OXIM_PERF_REL;
+import static com.welie.btserver.GenericHealthService.MDC_PULS_OXIM_PLETH;
+import static com.welie.btserver.GenericHealthService.MDC_PULS_OXIM_PULS_RATE;
+import static com.welie.btserver.GenericHealthService.MDC_PULS_OXIM_SAT_O2;
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import com.welie.blessed.BluetoothBytesParser;
+
+import org.junit.Test;
+
+public class ObservationTypeRegistryTest {
+
+    private final ObservationType spo2 = new ObservationType(MDC_PULS_OXIM_SAT_O2, MDC_DIM_PER_CENT, () -> 96.0f, 1.0f, 1.0f);
+    private final ObservationType pulseRate = new ObservationType(MDC_PULS_OXIM_PULS_RATE, MDC_DIM_BEAT_PER_MIN, () -> 72.0f, 1.0f, 1.5f);
+    private final ObservationType perfusion = new ObservationType(MDC_PULS_OXIM_PERF_REL, MDC_DIM_PER_CENT, () -> 3.0f, 2.0f, 5.0f);
+
+    private ObservationTypeRegistry registry() {
+        ObservationTypeRegistry registry = new ObservationTypeRegistry();
+        registry.add(spo2);
+        registry.add(pulseRate);
+        registry.add(perfusion);
+        registry.addStreamed(MDC_PULS_OXIM_PLETH);
+        return registry;
+    }
+
+    @Test
+    public void featureValue_listsAllTypes() {
+        BluetoothBytesParser parser = new BluetoothBytesParser();
+        parser.setUInt8(0);
+        parser.setUInt8(4);
+        parser.setUInt32(MDC_PULS_OXIM_SAT_O2);
+        parser.setUInt32(MDC_PULS_OXIM_PULS_RATE);
+        parser.setUInt32(MDC_PULS_OXIM_PERF_REL);
+        parser.setUInt32(MDC_PULS_OXIM_PLETH);
+        assertArrayEquals(parser.getValue(), registry().featureValue());
+    }
+
+    @Test
+    public void scheduleValue_matchesDescriptorEncoding() {
+        BluetoothBytesParser parser = new BluetoothBytesParser();
+        parser.setUInt32(MDC_PULS_OXIM_PULS_RATE);
+        parser.setFloatValue(1.0f, 1);
+        parser.setFloatValue(1.5f, 1);
+        assertArrayEquals(parser.getValue(), pulseRate.getScheduleValue());
+    }
+
+    @Test
+    public void find_returnsScheduledTypesOnly() {
+        ObservationTypeRegistry registry = registry();
+        assertSame(pulseRate, registry.find(MDC_PULS_OXIM_PULS_RATE));
+        assertNull(registry.find(MDC_PULS_OXIM_PLETH));
+        try {
+            registry.addStreamed(MDC_PULS_OXIM_SAT_O2);
+            fail("duplicate MDC code accepted");
+        } catch (IllegalArgumentException expected) {
+            // expected
+        }
+    }
+
+    @Test
+    public void sharedTimer_ticksAtCommonDivisorOfPeriods() {
+        ObservationTypeRegistry registry = registry();
+        // Update intervals 1.0, 1.5 and 5.0 s
+        assertEquals(500, registry.getTickMillis(false));
+        // Measurement periods 1.0 and 2.0 s are multiples of that as well
+        assertEquals(500, registry.getTickMillis(true));
+
+        pulseRate.setSchedule(1.0f, 2.0f);
+        assertEquals(1000, registry.getTickMillis(false));
+    }
+
+    @Test
+    public void typesWithRelatedPeriods_areDueOnTheSameTick() {
+        final long tickMillis = 500;
+        int together = 0;
+        for (long tick = 0; tick < 60; tick++) {
+            final boolean spo2Due = ObservationTypeRegistry.isDue(tick, tickMillis, spo2.getUpdateInterval());
+            final boolean pulseRateDue = ObservationTypeRegistry.isDue(tick, tickMillis, pulseRate.getUpdateInterval());
+            final boolean perfusionDue = ObservationTypeRegistry.isDue(tick, tickMillis, perfusion.getUpdateInterval());
+            assertEquals(tick % 2 == 0, spo2Due);
+            assertEquals(tick % 3 == 0, pulseRateDue);
+            assertEquals(tick % 10 == 0, perfusionDue);
+            if (spo2Due && pulseRateDue && perfusionDue) together++;
+        }
+        // Every 15 s in 30 s
+        assertEquals(2, together);
+        assertFalse(ObservationTypeRegistry.isDue(1, tickMillis, 1.0f));
+        assertTrue(ObservationTypeRegistry.isDue(0, tickMillis, 1.0f));
+    }
+
+    @Test
+    public void bundle_mixesObservationTypes() {
+        ObservationBundler bundler = new ObservationBundler(4);
+        bundler.add(spo2.encoder, 1000, 1.0f, 96.0f);
+        bundler.add(pulseRate.encoder, 1000, 1.0f, 72.0f);
+
+        byte[] packet = bundler.bundlesFor(247).train(0).packet(0);
+        byte[] expected = new byte[NumericObservationEncoder.OBSERVATION_LENGTH];
+        pulseRate.encoder.encode(expected, 0, 1000, 1.0f, 72.0f);
+        byte[] second = new byte[NumericObservationEncoder.OBSERVATION_LENGTH];
+        System.arraycopy(packet, 1 + ObservationBundler.BUNDLE_HEADER_LENGTH + NumericObservationEncoder.OBSERVATION_LENGTH, second, 0, second.length);
+        assertArrayEquals(expected, second);
+    }
+}
@@ -0,0 +1,144 @@
+package com.welie.btserver;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+public class OutboundQueueTest {
+
+    private final List<String> sent = new ArrayList<>();
+
+    private final OutboundQueue.Sender<String, String> sender = (central, characteristic, value) -> {
+        sent.add(characteristic + ":" + value[1]);
+        return true;
+    };
+
+    private static OutboundQueue.PacketTrain train(int id, int count) {
+        return new OutboundQueue.PacketTrain() {
+            @Override
+            public int count() {
+                return count;
+            }
+
+            @Override
+            public byte[] packet(int index) {
+                return new byte[]{0, (byte) (id * 10 + index)};
+            }
+        };
+    }
+
+    @Test
+    public void packets_areLimitedByCredits() {
+        OutboundQueue<String, String> queue = new OutboundQueue<>("c", sender, 2, 4, 16, OutboundQueue.DropPolicy.DROP_OLDEST);
+        assertTrue(queue.offerTrain("obs", train(1, 3), null));
+        assertEquals(2, sent.size());
+        assertEquals(1, queue.queuedPackets());
+
+        queue.onSent();
+        assertEquals(3, sent.size());
+        assertEquals(0, queue.queuedPackets());
+    }
+
+    @Test
+    public void indications_overtakeQueuedBulkPackets() {
+        OutboundQueue<String, String> queue = new OutboundQueue<>("c", sender, 1, 4, 16, OutboundQueue.DropPolicy.DROP_OLDEST);
+        queue.offerTrain("obs", train(1, 3), null);
+        queue.offerIndication("schedule", new byte[]{0, 99});
+
+        queue.onSent();
+        queue.onSent();
+        queue.onSent();
+        assertEquals("obs:10", sent.get(0));
+        assertEquals("schedule:99", sent.get(1));
+        assertEquals("obs:11", sent.get(2));
+        assertEquals("obs:12", sent.get(3));
+    }
+
+    @Test
+    public void dropOldest_neverDropsAPartiallySentTrain() {
+        OutboundQueue<String, String> queue = new OutboundQueue<>("c", sender, 1, 4, 4, OutboundQueue.DropPolicy.DROP_OLDEST);
+        assertTrue(queue.offerTrain("obs", train(1, 3), null)); // 10 sent, 11 and 12 queued
+        assertTrue(queue.offerTrain("obs", train(2, 2), null)); // 20 and 21 queued
+        assertTrue(queue.offerTrain("obs", train(3, 2), null)); // drops train 2
+        assertEquals(1, queue.getDroppedTrains());
+
+        for (int i = 0; i < 4; i++) queue.onSent();
+        List<String> expected = new ArrayList<>();
+        expected.add("obs:10");
+        expected.add("obs:11");
+        expected.add("obs:12");
+        expected.add("obs:30");
+        expected.add("obs:31");
+        assertEquals(expected, sent);
+    }
+
+    @Test
+    public void dropOldest_neverDropsAReliableTrain() {
+        OutboundQueue<String, String> queue = new OutboundQueue<>("c", sender, 1, 4, 4, OutboundQueue.DropPolicy.DROP_OLDEST);
+        assertTrue(queue.offerTrain("obs", train(1, 1), null)); // 10 sent
+        assertTrue(queue.offerTrain("stored", train(2, 2), null, true)); // 20 and 21 queued
+        assertTrue(queue.offerTrain("obs", train(3, 2), null)); // 30 and 31 queued
+        assertTrue(queue.offerTrain("obs", train(4, 2), null)); // drops train 3, not train 2
+        assertTrue(queue.offerTrain("stored", train(5, 2), null, true)); // drops train 4
+        // Only reliable trains are left, so there is no room
+        assertFalse(queue.offerTrain("stored", train(6, 2), null, true));
+        assertEquals(2, queue.getDroppedTrains());
+        assertEquals(1, queue.getRefusedTrains());
+
+        for (int i = 0; i < 4; i++) queue.onSent();
+        List<String> expected = new ArrayList<>();
+        expected.add("obs:10");
+        expected.add("stored:20");
+        expected.add("stored:21");
+        expected.add("stored:50");
+        expected.add("stored:51");
+        assertEquals(expected, sent);
+    }
+
+    @Test
+    public void dropOldest_dropsNothingWhenDroppingCannotMakeRoom() {
+        OutboundQueue<String, String> queue = new OutboundQueue<>("c", sender, 1, 4, 4, OutboundQueue.DropPolicy.DROP_OLDEST);
+        assertTrue(queue.offerTrain("obs", train(1, 3), null)); // 10 sent, 11 and 12 queued
+        assertTrue(queue.offerTrain("stored", train(2, 1), null, true)); // 20 queued
+        assertTrue(queue.offerTrain("obs", train(3, 1), null)); // 30 queued
+        // Dropping train 3 would free one packet of the three needed
+        assertFalse(queue.offerTrain("obs", train(4, 3), null));
+        // Only the offered train is dropped
+        assertEquals(1, queue.getDroppedTrains());
+
+        for (int i = 0; i < 4; i++) queue.onSent();
+        List<String> expected = new ArrayList<>();
+        expected.add("obs:10");
+        expected.add("obs:11");
+        expected.add("obs:12");
+        expected.add("stored:20");
+        expected.add("obs:30");
+        assertEquals(expected, sent);
+    }
+
+    @Test
+    public void dropNewest_refusesTrainsThatDoNotFit() {
+        OutboundQueue<String, String> queue = new OutboundQueue<>("c", sender, 1, 4, 2, OutboundQueue.DropPolicy.DROP_NEWEST);
+        assertTrue(queue.offerTrain("obs", train(1, 3), null));
+        assertFalse(queue.offerTrain("obs", train(2, 1), null));
+        assertEquals(1, queue.getDroppedTrains());
+    }
+
+    @Test
+    public void segmentHeaders_arePatchedPerQueue() {
+        List<byte[]> values = new ArrayList<>();
+        OutboundQueue<String, String> queue = new OutboundQueue<>("c", (central, characteristic, value) -> values.add(value.clone()), 8, 4, 16, OutboundQueue.DropPolicy.DROP_OLDEST);
+        ObservationSegmenter.SegmentCounter counter = new ObservationSegmenter.SegmentCounter();
+        queue.offerTrain("obs", train(1, 2), counter);
+        queue.offerTrain("obs", train(2, 1), counter);
+
+        assertEquals(ObservationSegmenter.header(0, true, false), values.get(0)[0]);
+        assertEquals(ObservationSegmenter.header(1, false, true), values.get(1)[0]);
+        assertEquals(ObservationSegmenter.header(2, true, true), values.get(2)[0]);
+    }
+}
@@ -0,0 +1,128 @@
+package com.welie.btserver;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import org.jetbrains.annotations.NotNull;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+public class PeriodicSchedulerTest {
+
+    // 2021-01-01 00:00 UTC
+    private static final long START_MILLIS = 1_609_459_200_000L;
+
+    private final VirtualClock clock = new VirtualClock(START_MILLIS);
+    private final List<String> failures = new ArrayList<>();
+    private final PeriodicScheduler.TickListener listener = new PeriodicScheduler.TickListener() {
+        @Override
+        public void onLateTick(@NotNull PeriodicScheduler.Job job, long latenessNanos, long missedTicks) {
+            failures.add(job.getName() + " late");
+        }
+
+        @Override
+        public void onJobFailed(@NotNull PeriodicScheduler.Job job, @NotNull RuntimeException exception) {
+            failures.add(job.getName() + " failed");
+        }
+    };
+    private final PeriodicScheduler scheduler = new PeriodicScheduler(clock, PeriodicScheduler.DEFAULT_TICK_NANOS, PeriodicScheduler.DEFAULT_LATE_THRESHOLD_NANOS, listener);
+
+    @Test
+    public void runFor_runsHoursOfScheduleOnVirtualTime() {
+        final long[] lastRun = {0};
+        PeriodicScheduler.Job spo2 = scheduler.scheduleAtFixedRate("spo2", () -> lastRun[0] = clock.nanoTime(), 1, 1, TimeUnit.SECONDS);
+        PeriodicScheduler.Job pleth = scheduler.scheduleAtFixedRate("pleth", () -> { }, 250, 250, TimeUnit.MILLISECONDS);
+
+        final long started = System.nanoTime();
+        scheduler.runFor(3, TimeUnit.HOURS);
+        final long tookMillis = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - started);
+
+        assertEquals(3 * 3600, spo2.getTicks());
+        assertEquals(4 * 3 * 3600, pleth.getTicks());
+        assertEquals(TimeUnit.HOURS.toNanos(3), lastRun[0]);
+        assertEquals(TimeUnit.HOURS.toNanos(3), clock.nanoTime());
+        assertTrue(failures.isEmpty());
+        assertTrue("took " + tookMillis + " ms", tookMillis < 5000);
+    }
+
+    @Test
+    public void jobsRunAtTheirOwnDeadline() {
+        final List<Long> runs = new ArrayList<>();
+        scheduler.scheduleAtFixedRate("job", () -> runs.add(TimeUnit.NANOSECONDS.toMillis(clock.nanoTime())), 100, 300, TimeUnit.MILLISECONDS);
+
+        scheduler.runFor(1, TimeUnit.SECONDS);
+
+        assertEquals(4, runs.size());
+        assertEquals(100L, (long) runs.get(0));
+        assertEquals(400L, (long) runs.get(1));
+        assertEquals(700L, (long) runs.get(2));
+        assertEquals(1000L, (long) runs.get(3));
+    }
+
+    @Test
+    public void setPeriod_appliesAfterTheNextRun() {
+        PeriodicScheduler.Job job = scheduler.scheduleAtFixedRate("job", () -> { }, 1, 1, TimeUnit.SECONDS);
+        scheduler.runFor(10, TimeUnit.SECONDS);
+        assertEquals(10, job.getTicks());
+
+        job.setPeriod(5, TimeUnit.SECONDS);
+        scheduler.runFor(60, TimeUnit.SECONDS);
+        // At 11 s on the old period, then every 5 s up to 66 s
+        assertEquals(10 + 12, job.getTicks());
+    }
+
+    @Test
+    public void cancelledJob_stopsRunning() {
+        PeriodicScheduler.Job job = scheduler.scheduleAtFixedRate("job", () -> { }, 1, 1, TimeUnit.SECONDS);
+        scheduler.runFor(5, TimeUnit.SECONDS);
+        job.cancel();
+        scheduler.runFor(1, TimeUnit.HOURS);
+        assertEquals(5, job.getTicks());
+    }
+
+    @Test
+    public void virtualClock_convertsToEtsSeconds() {
+        // ETS epoch is 2000-01-01 00:00 UTC
+        assertEquals(662_774_400L, clock.etsSeconds());
+        scheduler.runFor(90, TimeUnit.MINUTES);
+        assertEquals(662_774_400L + 90 * 60, clock.etsSeconds());
+        assertEquals(START_MILLIS + 90 * 60 * 1000, clock.currentTimeMillis());
+    }
+
+    @Test
+    public void monotonicClock_followsWallClock() {
+        MonotonicClock monotonic = new MonotonicClock(System::nanoTime);
+        assertTrue(Math.abs(monotonic.currentTimeMillis() - System.currentTimeMillis()) < 1000);
+        assertTrue(Math.abs(monotonic.etsSeconds() - (System.currentTimeMillis() - Clock.ETS_EPOCH_MILLIS) / 1000) <= 1);
+    }
+
+    @Test
+    public void monotonicClock_countsElapsedRealtime() {
+        final long[] elapsed = {0};
+        MonotonicClock monotonic = new MonotonicClock(() -> elapsed[0]);
+        final long start = monotonic.currentTimeMillis();
+        // Deep sleep: elapsed realtime keeps going
+        elapsed[0] = TimeUnit.HOURS.toNanos(1);
+        assertEquals(start + TimeUnit.HOURS.toMillis(1), monotonic.currentTimeMillis());
+
+        monotonic.resync();
+        assertTrue(Math.abs(monotonic.currentTimeMillis() - System.currentTimeMillis()) < 1000);
+    }
+
+    @Test
+    public void runFor_needsVirtualClock() {
+        PeriodicScheduler threaded = new PeriodicScheduler("test-scheduler", new MonotonicClock(System::nanoTime), listener);
+        try {
+            threaded.runFor(1, TimeUnit.SECONDS);
+            fail("threaded scheduler accepted virtual time");
+        } catch (IllegalStateException expected) {
+            // expected
+        } finally {
+            threaded.shutdown();
+        }
+    }
+}
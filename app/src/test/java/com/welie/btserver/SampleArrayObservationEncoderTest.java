@@ -0,0 +1,114 @@
+package com.welie.btserver;
+
+import static com.welie.btserver.GenericHealthService.MDC_DIM_DIMLESS;
+import static com.welie.btserver.GenericHealthService.MDC_PULS_OXIM_PLETH;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+public class SampleArrayObservationEncoderTest {
+
+    private final SampleArrayObservationEncoder encoder = new SampleArrayObservationEncoder(MDC_PULS_OXIM_PLETH, MDC_DIM_DIMLESS, 0.001f, 0, 3, 100, 2);
+
+    private static int uint16(byte[] buffer, int offset) {
+        return (buffer[offset] & 0xFF) | (buffer[offset + 1] & 0xFF) << 8;
+    }
+
+    private static int uint32(byte[] buffer, int offset) {
+        return uint16(buffer, offset) | uint16(buffer, offset + 2) << 16;
+    }
+
+    @Test
+    public void encode_writesHeaderAndLittleEndianSamples() {
+        SampleRingBuffer samples = new SampleRingBuffer(8);
+        samples.offer(0x1234);
+        samples.offer(0xFFFF);
+        samples.offer(7);
+
+        byte[] buffer = new byte[1 + encoder.observationLength(3)];
+        encoder.encode(buffer, 1, 0x010203, samples, 3);
+
+        assertEquals(3, buffer[1]);
+        assertEquals(SampleArrayObservationEncoder.HEADER_LENGTH + 6, uint16(buffer, 2));
+        assertEquals(MDC_PULS_OXIM_PLETH, uint32(buffer, 6));
+        assertEquals(0x010203, uint32(buffer, 11));
+        // Duration 0.030 s
+        assertEquals(30, uint16(buffer, 19));
+        assertEquals(-3, buffer[22]);
+        assertEquals(MDC_DIM_DIMLESS, uint16(buffer, 23));
+        // Scale factor 0.001
+        assertEquals(1, uint16(buffer, 25));
+        assertEquals(-3, buffer[28]);
+        assertEquals(100, buffer[37] & 0xFF);
+        assertEquals(2, buffer[38]);
+        assertEquals(3, uint32(buffer, 39));
+        assertEquals(0x1234, uint16(buffer, 43));
+        assertEquals(0xFFFF, uint16(buffer, 45));
+        assertEquals(7, uint16(buffer, 47));
+        assertEquals(3, samples.size());
+    }
+
+    @Test
+    public void ring_wrapsAndCountsOverruns() {
+        SampleRingBuffer samples = new SampleRingBuffer(5);
+        assertEquals(8, samples.capacity());
+        for (int i = 0; i < 8; i++) {
+            assertTrue(samples.offer(i));
+        }
+        assertFalse(samples.offer(8));
+        assertEquals(1, samples.getOverruns());
+
+        samples.consume(6);
+        assertTrue(samples.offer(100));
+        assertTrue(samples.offer(101));
+        assertEquals(4, samples.size());
+        assertEquals(6, samples.get(0));
+        assertEquals(101, samples.get(3));
+        assertEquals(6, samples.readIndex());
+    }
+
+    @Test
+    public void window_fitsOneSegmentOn247Mtu() {
+        // ATT overhead 3 and the segmentation header 1
+        assertEquals(100, encoder.maxSamples(247 - 4));
+        // On the minimum MTU every waveform observation is segmented
+        assertEquals(0, encoder.maxSamples(23 - 4));
+    }
+
+    // Streams 10 minutes of 100 Hz waveform, in 250 ms windows, through the encoder and segmenter
+    // for a 247-byte MTU and checks that no samples are lost, that every window fits in one packet,
+    // and the bytes sent per second.
+    @Test
+    public void sustainedRate_on247Mtu() {
+        final int mtu = 247;
+        final int sampleRate = 100;
+        final int window = sampleRate / 4;
+        final int seconds = 600;
+        SampleRingBuffer samples = new SampleRingBuffer(1024);
+        ObservationSegmenter segmenter = new ObservationSegmenter();
+        byte[] packet = new byte[1 + encoder.observationLength(window)];
+
+        long packets = 0;
+        long bytes = 0;
+        for (int i = 0; i < seconds * sampleRate; i++) {
+            samples.offer(i & 0xFFFF);
+            if (samples.size() >= window) {
+                encoder.encode(packet, 1, i / sampleRate, samples, window);
+                samples.consume(window);
+                segmenter.setObservation(packet);
+                ObservationSegmenter.Segments segments = segmenter.segmentsFor(mtu);
+                packets += segments.count();
+                for (int s = 0; s < segments.count(); s++) {
+                    bytes += segments.packet(s).length;
+                }
+            }
+        }
+
+        assertEquals(0, samples.getOverruns());
+        assertEquals(4L * seconds, packets);
+        // 93 bytes per notification, 372 bytes/s, far below what a 247-byte MTU link can carry
+        assertEquals(372L * seconds, bytes);
+    }
+}
@@ -0,0 +1,192 @@
+package com.welie.btserver;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+
+import com.welie.blessed.ConnectionPriority;
+import com.welie.blessed.PhyType;
+
+import org.jetbrains.annotations.NotNull;
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.concurrent.TimeUnit;
+
+public class ServerMetricsTest {
+
+    private final ServerMetrics metrics = new ServerMetrics();
+    private final CentralRegistry<String, String> centralRegistry = new CentralRegistry<>(central -> 23);
+    private final OutboundQueues<String, String> outboundQueues = new OutboundQueues<>((central, characteristic, value) -> !central.equals("refusing"), 1, 4, 16, OutboundQueue.DropPolicy.DROP_OLDEST);
+
+    private final LinkPolicy<String> linkPolicy = new LinkPolicy<>(new LinkPolicy.Link<String>() {
+        @Override
+        public boolean supportsRequests() {
+            return false;
+        }
+
+        @Override
+        public boolean requestConnectionPriority(@NotNull String central, @NotNull ConnectionPriority priority) {
+            return false;
+        }
+
+        @Override
+        public boolean setPreferredPhy(@NotNull String central, @NotNull PhyType phy) {
+            return false;
+        }
+    });
+
+    private static OutboundQueue.PacketTrain train(int count) {
+        return new OutboundQueue.PacketTrain() {
+            @Override
+            public int count() {
+                return count;
+            }
+
+            @Override
+            public byte[] packet(int index) {
+                return new byte[]{0, (byte) index};
+            }
+        };
+    }
+
+    private @NotNull ServerMetrics.Snapshot snapshot() {
+        return metrics.snapshot(centralRegistry, outboundQueues, linkPolicy, central -> central);
+    }
+
+    @Test
+    public void snapshot_readsPerCentralCountsFromTheQueues() {
+        centralRegistry.onCentralConnected("a");
+        centralRegistry.onCentralConnected("refusing");
+        centralRegistry.onSubscribed("a", "obs");
+        centralRegistry.onSubscribed("a", "schedule");
+        centralRegistry.onSubscribed("refusing", "obs");
+
+        outboundQueues.offerTrain("a", "obs", train(3), null);
+        outboundQueues.onNotificationSent("a", false);
+        outboundQueues.offerTrain("refusing", "obs", train(1), null);
+
+        final ServerMetrics.Snapshot snapshot = snapshot();
+        assertEquals(2, snapshot.connectedCentrals);
+        assertEquals(3, snapshot.subscriptions);
+        assertEquals(2, snapshot.centrals.size());
+        for (ServerMetrics.CentralStats central : snapshot.centrals) {
+            if (central.address.equals("a")) {
+                assertEquals(2, central.sent);
+                assertEquals(1, central.undelivered);
+                assertEquals(1, central.queued);
+            } else {
+                assertEquals(0, central.sent);
+                assertEquals(1, central.failed);
+            }
+        }
+        assertEquals(1, snapshot.getQueuedPackets());
+    }
+
+    @Test
+    public void recordCallback_keepsCountMeanMaxAndPercentiles() {
+        for (int i = 0; i < 99; i++) metrics.recordCallback(ServerMetrics.Operation.DESCRIPTOR_WRITE, TimeUnit.MICROSECONDS.toNanos(10));
+        metrics.recordCallback(ServerMetrics.Operation.DESCRIPTOR_WRITE, TimeUnit.MILLISECONDS.toNanos(5));
+
+        final ServerMetrics.OperationStats stats = snapshot().operation(ServerMetrics.Operation.DESCRIPTOR_WRITE);
+        assertEquals(100, stats.count);
+        assertEquals(TimeUnit.MILLISECONDS.toNanos(5), stats.maxNanos);
+        assertEquals((99 * 10_000L + 5_000_000L) / 100, stats.getMeanNanos());
+        assertEquals(16, stats.getPercentileMicros(50));
+        assertEquals(8192, stats.getPercentileMicros(100));
+        assertEquals(0, snapshot().operation(ServerMetrics.Operation.CHARACTERISTIC_READ).count);
+    }
+
+    @Test
+    public void recordSegments_countsObservationsPerTrainLength() {
+        metrics.recordSegments(1);
+        metrics.recordSegments(2);
+        metrics.recordSegments(2);
+        metrics.recordSegments(40);
+
+        final ServerMetrics.Snapshot snapshot = snapshot();
+        assertEquals(1, snapshot.getObservationsWithSegments(1));
+        assertEquals(2, snapshot.getObservationsWithSegments(2));
+        assertEquals(1, snapshot.getObservationsWithSegments(ServerMetrics.MAX_SEGMENTS_BUCKET));
+    }
+
+    @Test
+    public void schedulerTicks_compareActualWithScheduledInterval() {
+        final VirtualClock clock = new VirtualClock(0);
+        final PeriodicScheduler scheduler = new PeriodicScheduler(clock, PeriodicScheduler.DEFAULT_TICK_NANOS, PeriodicScheduler.DEFAULT_LATE_THRESHOLD_NANOS, new PeriodicScheduler.TickListener() {
+            @Override
+            public void onLateTick(@NotNull PeriodicScheduler.Job job, long latenessNanos, long missedTicks) {
+                metrics.recordLateTick(job.getName(), missedTicks);
+            }
+
+            @Override
+            public void onJobFailed(@NotNull PeriodicScheduler.Job job, @NotNull RuntimeException exception) {
+            }
+
+            @Override
+            public void onTick(@NotNull PeriodicScheduler.Job job, long intervalNanos) {
+                metrics.recordTick(job.getName(), job.getPeriodNanos(), intervalNanos);
+            }
+        });
+        scheduler.scheduleAtFixedRate("observations", () -> { }, 0, 250, TimeUnit.MILLISECONDS);
+        scheduler.runFor(10, TimeUnit.SECONDS);
+
+        final ServerMetrics.TickStats ticks = snapshot().ticks.get(0);
+        assertEquals("observations", ticks.job);
+        assertEquals(40, ticks.ticks);
+        assertEquals(TimeUnit.MILLISECONDS.toNanos(250), ticks.periodNanos);
+        assertEquals(TimeUnit.MILLISECONDS.toNanos(250), ticks.getMeanIntervalNanos());
+        assertEquals(0, ticks.lateTicks);
+    }
+
+    @Test
+    public void snapshot_readsThroughputFromTheLinkPolicy() {
+        centralRegistry.onCentralConnected("a");
+        outboundQueues.offerTrain("a", "obs", train(1), null);
+        linkPolicy.update("a", 23, 500, 0, 0, 0);
+        linkPolicy.update("a", 23, 500, 200, 0, TimeUnit.SECONDS.toNanos(1));
+
+        final ServerMetrics.CentralStats central = snapshot().centrals.get(0);
+        assertEquals(500, central.requiredBytesPerSecond);
+        assertEquals(200, central.achievedBytesPerSecond);
+        assertFalse(central.saturated);
+
+        final byte[] value = snapshot().toBytes();
+        final ByteBuffer buffer = ByteBuffer.wrap(value).order(ByteOrder.LITTLE_ENDIAN);
+        buffer.position(value.length - 10);
+        assertEquals(500, buffer.getInt());
+        assertEquals(200, buffer.getInt());
+        assertEquals(0, buffer.getShort());
+    }
+
+    @Test
+    public void toBytes_encodesTotalsOperationsAndJobs() {
+        centralRegistry.onCentralConnected("a");
+        centralRegistry.onSubscribed("a", "obs");
+        outboundQueues.offerTrain("a", "obs", train(1), null);
+        metrics.recordSegments(3);
+        metrics.recordSegments(4);
+        metrics.recordTick("observations", TimeUnit.SECONDS.toNanos(1), TimeUnit.SECONDS.toNanos(1));
+        metrics.recordCallback(ServerMetrics.Operation.CHARACTERISTIC_READ, TimeUnit.MICROSECONDS.toNanos(120));
+
+        final byte[] value = snapshot().toBytes();
+        final int operations = ServerMetrics.Operation.values().length;
+        assertEquals(33 + 1 + operations * 13 + 1 + 16 + 10, value.length);
+
+        final ByteBuffer buffer = ByteBuffer.wrap(value).order(ByteOrder.LITTLE_ENDIAN);
+        assertEquals(2, buffer.get());
+        assertEquals(1, buffer.getShort());
+        assertEquals(1, buffer.getShort());
+        assertEquals(1, buffer.getInt());
+        buffer.position(29);
+        assertEquals(350, buffer.getShort());
+        buffer.position(33);
+        assertEquals(operations, buffer.get());
+        assertEquals(ServerMetrics.Operation.CHARACTERISTIC_READ.ordinal(), buffer.get());
+        assertEquals(1, buffer.getInt());
+        assertEquals(120, buffer.getInt());
+        buffer.position(33 + 1 + operations * 13);
+        assertEquals(1, buffer.get());
+        assertEquals(1_000_000, buffer.getInt());
+    }
+}
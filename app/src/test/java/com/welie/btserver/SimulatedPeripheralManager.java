@@ -0,0 +1,398 @@
+package com.welie.btserver;
+
+import android.bluetooth.BluetoothGattCharacteristic;
+import android.bluetooth.BluetoothGattDescriptor;
+import android.bluetooth.BluetoothGattService;
+import android.bluetooth.le.AdvertiseData;
+import android.bluetooth.le.AdvertiseSettings;
+
+import com.welie.blessed.BluetoothCentral;
+import com.welie.blessed.BluetoothPeripheralManagerCallback;
+import com.welie.blessed.ConnectionPriority;
+import com.welie.blessed.GattStatus;
+import com.welie.blessed.PhyType;
+import com.welie.blessed.ReadResponse;
+import com.welie.blessed.SimulatedCentrals;
+
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.Locale;
+import java.util.Random;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Peripheral manager without Bluetooth, for running the whole server in unit tests and benchmarks.
+ * Virtual centrals connect, subscribe, read and write through the same callback blessed uses.
+ * Every central has its own link: packets are sent one after another, each taking the link's
+ * latency, and may be lost. High connection priority makes the latency three times shorter and the
+ * 2M PHY halves it. Notifications are completed with {@code onNotificationSent} when they
+ * leave the link, like the Android stack does.
+ * <p>
+ * Links are served by a job on the server's scheduler, so on a {@link VirtualClock} everything
+ * runs on the thread calling {@link PeriodicScheduler#runFor}.
+ */
+final class SimulatedPeripheralManager implements PeripheralManager {
+
+    static final long LINK_TICK_NANOS = TimeUnit.MILLISECONDS.toNanos(1);
+
+    interface Receiver {
+        /**
+         * A notification or indication arrived at {@code central}. The value is not shared.
+         */
+        void onValue(@NotNull Central central, @NotNull BluetoothGattCharacteristic characteristic, @NotNull byte[] value);
+    }
+
+    private static final class Packet {
+        final @NotNull byte[] value;
+        final @NotNull BluetoothGattCharacteristic characteristic;
+        final long dueAt;
+
+        Packet(@NotNull byte[] value, @NotNull BluetoothGattCharacteristic characteristic, long dueAt) {
+            this.value = value;
+            this.characteristic = characteristic;
+            this.dueAt = dueAt;
+        }
+    }
+
+    final class Central {
+        final @NotNull BluetoothCentral central;
+        private final long latencyNanos;
+        private final double lossRate;
+        private @Nullable Receiver receiver = null;
+        // Guarded by the manager
+        private final Set<BluetoothGattCharacteristic> subscriptions = Collections.newSetFromMap(new IdentityHashMap<>());
+        private final ArrayDeque<Packet> pending = new ArrayDeque<>();
+        private long linkFreeAt = Long.MIN_VALUE;
+        private @NotNull ConnectionPriority priority = ConnectionPriority.BALANCED;
+        private @NotNull PhyType phy = PhyType.LE_1M;
+        private boolean connected = true;
+        private long received = 0;
+        private long lost = 0;
+        private long unsolicited = 0;
+
+        private Central(@NotNull BluetoothCentral central, long latencyNanos, double lossRate) {
+            this.central = central;
+            this.latencyNanos = latencyNanos;
+            this.lossRate = lossRate;
+        }
+
+        void setReceiver(@Nullable Receiver receiver) {
+            this.receiver = receiver;
+        }
+
+        /**
+         * Write the CCC descriptor to enable notifications or indications.
+         */
+        void subscribe(@NotNull BluetoothGattCharacteristic characteristic) {
+            synchronized (SimulatedPeripheralManager.this) {
+                if (!connected || !subscriptions.add(characteristic)) return;
+            }
+            callback.onNotifyingEnabled(central, characteristic);
+        }
+
+        void unsubscribe(@NotNull BluetoothGattCharacteristic characteristic) {
+            synchronized (SimulatedPeripheralManager.this) {
+                if (!connected || !subscriptions.remove(characteristic)) return;
+            }
+            callback.onNotifyingDisabled(central, characteristic);
+        }
+
+        @NotNull ReadResponse read(@NotNull BluetoothGattCharacteristic characteristic) {
+            return callback.onCharacteristicRead(central, characteristic);
+        }
+
+        @NotNull GattStatus write(@NotNull BluetoothGattCharacteristic characteristic, @NotNull byte[] value) {
+            final GattStatus status = callback.onCharacteristicWrite(central, characteristic, value);
+            if (status == GattStatus.SUCCESS) callback.onCharacteristicWriteCompleted(central, characteristic, value);
+            return status;
+        }
+
+        @NotNull ReadResponse read(@NotNull BluetoothGattDescriptor descriptor) {
+            return callback.onDescriptorRead(central, descriptor);
+        }
+
+        @NotNull GattStatus write(@NotNull BluetoothGattDescriptor descriptor, @NotNull byte[] value) {
+            final GattStatus status = callback.onDescriptorWrite(central, descriptor, value);
+            if (status == GattStatus.SUCCESS) callback.onDescriptorWriteCompleted(central, descriptor, value);
+            return status;
+        }
+
+        /**
+         * Disconnect; packets still on the link are dropped.
+         */
+        void disconnect() {
+            synchronized (SimulatedPeripheralManager.this) {
+                if (!connected) return;
+                connected = false;
+                pending.clear();
+                subscriptions.clear();
+                centrals.remove(central.getAddress());
+            }
+            callback.onCentralDisconnected(central);
+        }
+
+        boolean isConnected() {
+            synchronized (SimulatedPeripheralManager.this) {
+                return connected;
+            }
+        }
+
+        boolean isSubscribed(@NotNull BluetoothGattCharacteristic characteristic) {
+            synchronized (SimulatedPeripheralManager.this) {
+                return subscriptions.contains(characteristic);
+            }
+        }
+
+        /**
+         * Packets that arrived at this central.
+         */
+        long getReceived() {
+            synchronized (SimulatedPeripheralManager.this) {
+                return received;
+            }
+        }
+
+        long getLost() {
+            synchronized (SimulatedPeripheralManager.this) {
+                return lost;
+            }
+        }
+
+        /**
+         * Packets that arrived for a characteristic this central did not subscribe to.
+         */
+        long getUnsolicited() {
+            synchronized (SimulatedPeripheralManager.this) {
+                return unsolicited;
+            }
+        }
+
+        int getQueuedPackets() {
+            synchronized (SimulatedPeripheralManager.this) {
+                return pending.size();
+            }
+        }
+
+        @NotNull ConnectionPriority getPriority() {
+            synchronized (SimulatedPeripheralManager.this) {
+                return priority;
+            }
+        }
+
+        @NotNull PhyType getPhy() {
+            synchronized (SimulatedPeripheralManager.this) {
+                return phy;
+            }
+        }
+
+        // Guarded by the manager
+        private long packetNanos() {
+            return latencyNanos / (priority == ConnectionPriority.HIGH ? 3 : 1) / (phy == PhyType.LE_2M ? 2 : 1);
+        }
+    }
+
+    private @NotNull final BluetoothPeripheralManagerCallback callback;
+    private @NotNull final Clock clock;
+    private @NotNull final Random random;
+    private @NotNull final ArrayList<BluetoothGattService> services = new ArrayList<>();
+    private @NotNull final HashMap<String, Central> centrals = new HashMap<>();
+    // Centrals with packets on their link
+    private @NotNull final ArrayList<Central> busy = new ArrayList<>();
+    // Only used by the link job
+    private @NotNull final ArrayList<Central> dueCentrals = new ArrayList<>();
+    private @NotNull final ArrayList<Packet> duePackets = new ArrayList<>();
+    private @NotNull final PeriodicScheduler.Job linkJob;
+    private int nextAddress = 1;
+    private boolean advertising = false;
+    private @Nullable AdvertiseData advertiseData;
+
+    SimulatedPeripheralManager(@NotNull BluetoothPeripheralManagerCallback callback, @NotNull Clock clock, @NotNull PeriodicScheduler scheduler, long seed) {
+        this.callback = callback;
+        this.clock = clock;
+        this.random = new Random(seed);
+        this.linkJob = scheduler.scheduleAtFixedRate("simulated-link", this::deliver, LINK_TICK_NANOS, LINK_TICK_NANOS, TimeUnit.NANOSECONDS);
+    }
+
+    /**
+     * Connect a new central.
+     *
+     * @param latency  time one packet takes on the link
+     * @param lossRate fraction of packets that never arrive, from 0 to 1
+     */
+    @NotNull Central connect(int mtu, long latency, @NotNull TimeUnit unit, double lossRate) {
+        final Central central;
+        synchronized (this) {
+            final int n = nextAddress++;
+            final String address = String.format(Locale.ENGLISH, "02:00:00:%02X:%02X:%02X", (n >> 16) & 0xFF, (n >> 8) & 0xFF, n & 0xFF);
+            central = new Central(SimulatedCentrals.create(address, "central-" + n, mtu), unit.toNanos(latency), lossRate);
+            centrals.put(address, central);
+        }
+        callback.onCentralConnected(central.central);
+        return central;
+    }
+
+    synchronized int getConnectedCount() {
+        return centrals.size();
+    }
+
+    synchronized boolean isAdvertising() {
+        return advertising;
+    }
+
+    /**
+     * Data of the last advertisement that was started.
+     */
+    synchronized @Nullable AdvertiseData getAdvertiseData() {
+        return advertiseData;
+    }
+
+    /**
+     * Find a characteristic of an added service.
+     */
+    synchronized @NotNull BluetoothGattCharacteristic characteristic(@NotNull UUID serviceUuid, @NotNull UUID characteristicUuid) {
+        for (BluetoothGattService service : services) {
+            if (service.getUuid().equals(serviceUuid)) {
+                final BluetoothGattCharacteristic characteristic = service.getCharacteristic(characteristicUuid);
+                if (characteristic != null) return characteristic;
+            }
+        }
+        throw new IllegalArgumentException("no characteristic " + characteristicUuid + " in service " + serviceUuid);
+    }
+
+    void close() {
+        linkJob.cancel();
+    }
+
+    @Override
+    public boolean add(@NotNull BluetoothGattService service) {
+        synchronized (this) {
+            services.add(service);
+        }
+        callback.onServiceAdded(GattStatus.SUCCESS, service);
+        return true;
+    }
+
+    @Override
+    public synchronized void removeAllServices() {
+        services.clear();
+    }
+
+    @Override
+    public void startAdvertising(@NotNull AdvertiseSettings settings, @NotNull AdvertiseData advertiseData, @NotNull AdvertiseData scanResponse) {
+        synchronized (this) {
+            advertising = true;
+            this.advertiseData = advertiseData;
+        }
+        callback.onAdvertisingStarted(settings);
+    }
+
+    @Override
+    public void stopAdvertising() {
+        synchronized (this) {
+            advertising = false;
+        }
+        callback.onAdvertisingStopped();
+    }
+
+    @Override
+    public synchronized boolean notifyCharacteristicChanged(@NotNull byte[] value, @NotNull BluetoothCentral central, @NotNull BluetoothGattCharacteristic characteristic) {
+        final Central target = centrals.get(central.getAddress());
+        if (target == null) return false;
+
+        final long sendAt = Math.max(clock.nanoTime(), target.linkFreeAt);
+        target.linkFreeAt = sendAt + target.packetNanos();
+        if (target.pending.isEmpty()) busy.add(target);
+        target.pending.add(new Packet(value.clone(), characteristic, target.linkFreeAt));
+        return true;
+    }
+
+    @Override
+    public synchronized boolean notifyCharacteristicChanged(@NotNull byte[] value, @NotNull BluetoothGattCharacteristic characteristic) {
+        boolean result = true;
+        for (Central central : centrals.values()) {
+            if (central.subscriptions.contains(characteristic)) {
+                result &= notifyCharacteristicChanged(value, central.central, characteristic);
+            }
+        }
+        return result;
+    }
+
+    @Override
+    public void cancelConnection(@NotNull BluetoothCentral central) {
+        final Central target;
+        synchronized (this) {
+            target = centrals.get(central.getAddress());
+        }
+        if (target != null) target.disconnect();
+    }
+
+    @Override
+    public boolean supportsLinkRequests() {
+        return true;
+    }
+
+    @Override
+    public synchronized boolean requestConnectionPriority(@NotNull BluetoothCentral central, @NotNull ConnectionPriority priority) {
+        final Central target = centrals.get(central.getAddress());
+        if (target == null) return false;
+        target.priority = priority;
+        return true;
+    }
+
+    @Override
+    public synchronized boolean setPreferredPhy(@NotNull BluetoothCentral central, @NotNull PhyType phy) {
+        final Central target = centrals.get(central.getAddress());
+        if (target == null) return false;
+        target.phy = phy;
+        return true;
+    }
+
+    // Runs on the scheduler thread: complete every packet whose time on the link is over
+    private void deliver() {
+        final long now = clock.nanoTime();
+        synchronized (this) {
+            for (int i = busy.size() - 1; i >= 0; i--) {
+                final Central central = busy.get(i);
+                Packet packet;
+                while ((packet = central.pending.peek()) != null && packet.dueAt <= now) {
+                    dueCentrals.add(central);
+                    duePackets.add(central.pending.poll());
+                }
+                if (central.pending.isEmpty()) {
+                    busy.set(i, busy.get(busy.size() - 1));
+                    busy.remove(busy.size() - 1);
+                }
+            }
+        }
+
+        // Callbacks run without the lock, the server sends the next packets from them
+        for (int i = 0; i < duePackets.size(); i++) {
+            final Central central = dueCentrals.get(i);
+            final Packet packet = duePackets.get(i);
+            final boolean lost;
+            final Receiver receiver;
+            synchronized (this) {
+                lost = central.lossRate > 0 && random.nextDouble() < central.lossRate;
+                if (lost) {
+                    central.lost++;
+                } else {
+                    central.received++;
+                    if (!central.subscriptions.contains(packet.characteristic)) central.unsolicited++;
+                }
+                receiver = central.receiver;
+            }
+            if (!lost && receiver != null) receiver.onValue(central, packet.characteristic, packet.value);
+            callback.onNotificationSent(central.central, packet.value, packet.characteristic, lost ? GattStatus.ERROR : GattStatus.SUCCESS);
+        }
+        dueCentrals.clear();
+        duePackets.clear();
+    }
+}
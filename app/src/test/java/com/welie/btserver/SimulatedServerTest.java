@@ -0,0 +1,502 @@
+package com.welie.btserver;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import android.bluetooth.BluetoothGattCharacteristic;
+import android.bluetooth.BluetoothGattDescriptor;
+import android.os.ParcelUuid;
+
+import com.welie.blessed.BluetoothBytesParser;
+import com.welie.blessed.BluetoothCentral;
+import com.welie.blessed.ConnectionPriority;
+import com.welie.blessed.GattStatus;
+import com.welie.blessed.PhyType;
+
+import org.jetbrains.annotations.NotNull;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.annotation.Config;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+
+@RunWith(RobolectricTestRunner.class)
+@Config(sdk = 28)
+public class SimulatedServerTest {
+
+    private static final UUID GHS_SERVICE_UUID = UUID.fromString("00007f44-0000-1000-8000-00805f9b34fb");
+    private static final UUID OBSERVATION_CHAR_UUID = UUID.fromString("00007f43-0000-1000-8000-00805f9b34fb");
+    private static final UUID GHS_FEATURES_CHAR_UUID = UUID.fromString("00007f41-0000-1000-8000-00805f9b34fb");
+    private static final UUID GHS_SCHEDULE_CHANGED_CHAR_UUID = UUID.fromString("00007f3f-0000-1000-8000-00805f9b34fb");
+    private static final UUID STORED_OBSERVATION_CHAR_UUID = UUID.fromString("00007f42-0000-1000-8000-00805f9b34fb");
+    private static final UUID RACP_CHAR_UUID = UUID.fromString("00002a52-0000-1000-8000-00805f9b34fb");
+    private static final UUID UDS_SERVICE_UUID = UUID.fromString("0000181C-0000-1000-8000-00805f9b34fb");
+    private static final UUID USER_CONTROL_POINT_CHARACTERISTIC_UUID = UUID.fromString("00002A9F-0000-1000-8000-00805f9b34fb");
+    private static final int[] MTUS = {23, 65, 185, 247};
+    // Of user 0, registered before the server starts
+    private static final int CONSENT_CODE = 1234;
+
+    private VirtualClock clock;
+    private File storeDirectory;
+    private ObservationStore store;
+    private BluetoothServer server;
+    private SimulatedPeripheralManager peripheralManager;
+    private BluetoothGattCharacteristic liveObservation;
+    private BluetoothGattCharacteristic controlPoint;
+    private BluetoothGattCharacteristic storedObservation;
+    private BluetoothGattCharacteristic racp;
+
+    // Checks the GHS segmentation of everything one central receives
+    private static final class Reassembler implements SimulatedPeripheralManager.Receiver {
+        int expectedCounter = -1;
+        boolean inObservation = false;
+        int observations = 0;
+        int errors = 0;
+
+        @Override
+        public void onValue(@NotNull SimulatedPeripheralManager.Central central, @NotNull BluetoothGattCharacteristic characteristic, @NotNull byte[] value) {
+            if (!characteristic.getUuid().equals(OBSERVATION_CHAR_UUID)) return;
+            final int header = value[0] & 0xFF;
+            final int counter = header >> 2;
+            final boolean first = (header & 0x01) != 0;
+            final boolean last = (header & 0x02) != 0;
+            if (expectedCounter >= 0 && counter != expectedCounter) errors++;
+            if (first == inObservation) errors++;
+            expectedCounter = (counter + 1) & 0x3F;
+            inObservation = !last;
+            if (last) observations++;
+        }
+    }
+
+    @Before
+    public void setUp() throws IOException {
+        clock = new VirtualClock(1_609_459_200_000L);
+        storeDirectory = Files.createTempDirectory("observations").toFile();
+        store = ObservationStore.open(storeDirectory);
+        server = new BluetoothServer(clock, Runnable::run);
+        final UserStore users = UserStore.inMemory();
+        users.register(CONSENT_CODE);
+        server.start(callback -> peripheralManager = new SimulatedPeripheralManager(callback, clock, server.getScheduler(), 42), store, users, false);
+        liveObservation = peripheralManager.characteristic(GHS_SERVICE_UUID, OBSERVATION_CHAR_UUID);
+        controlPoint = peripheralManager.characteristic(UDS_SERVICE_UUID, USER_CONTROL_POINT_CHARACTERISTIC_UUID);
+        storedObservation = peripheralManager.characteristic(GHS_SERVICE_UUID, STORED_OBSERVATION_CHAR_UUID);
+        racp = peripheralManager.characteristic(GHS_SERVICE_UUID, RACP_CHAR_UUID);
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        peripheralManager.close();
+        server.close();
+        store.close();
+        final File[] files = storeDirectory.listFiles();
+        if (files != null) {
+            for (File file : files) file.delete();
+        }
+        storeDirectory.delete();
+    }
+
+    private List<SimulatedPeripheralManager.Central> connect(int count, double lossRate, List<Reassembler> reassemblers) {
+        List<SimulatedPeripheralManager.Central> centrals = new ArrayList<>();
+        for (int i = 0; i < count; i++) {
+            SimulatedPeripheralManager.Central central = peripheralManager.connect(MTUS[i % MTUS.length], 1 + i % 5, TimeUnit.MILLISECONDS, lossRate);
+            Reassembler reassembler = new Reassembler();
+            central.setReceiver(reassembler);
+            consent(central);
+            reassemblers.add(reassembler);
+            centrals.add(central);
+        }
+        return centrals;
+    }
+
+    // Observations are only sent to centrals that gave consent for a user
+    private void consent(SimulatedPeripheralManager.Central central) {
+        central.subscribe(controlPoint);
+        assertEquals(GattStatus.SUCCESS, central.write(controlPoint, new byte[]{0x02, 0x00, (byte) CONSENT_CODE, (byte) (CONSENT_CODE >> 8)}));
+    }
+
+    @Test
+    public void hundredsOfCentrals_receiveCompleteObservations() {
+        List<Reassembler> reassemblers = new ArrayList<>();
+        List<SimulatedPeripheralManager.Central> centrals = connect(300, 0, reassemblers);
+        assertTrue(peripheralManager.isAdvertising());
+        for (SimulatedPeripheralManager.Central central : centrals) {
+            central.subscribe(liveObservation);
+        }
+
+        server.getScheduler().runFor(60, TimeUnit.SECONDS);
+
+        for (int i = 0; i < centrals.size(); i++) {
+            SimulatedPeripheralManager.Central central = centrals.get(i);
+            Reassembler reassembler = reassemblers.get(i);
+            assertEquals(0, reassembler.errors);
+            assertEquals(0, central.getUnsolicited());
+            // Numeric observations every second and the pleth waveform four times a second
+            assertTrue("central " + i + " got " + reassembler.observations, reassembler.observations >= 4 * 59);
+        }
+    }
+
+    @Test
+    public void advertisement_listsTheRegisteredUsers() {
+        final UserStore users = UserStore.inMemory();
+        users.register(1);
+        users.register(2);
+        users.register(3);
+        users.delete(1);
+        assertTrue(Arrays.equals(new byte[]{1, 0x04, 0x10, 2, 0, 2}, BluetoothServer.serviceData(users)));
+
+        for (int i = users.count(); i < UserStore.MAX_USERS; i++) users.register(4);
+        final byte[] full = BluetoothServer.serviceData(users);
+        assertEquals(BluetoothServer.MAX_ADVERTISED_USERS, full[3]);
+        assertEquals(4 + BluetoothServer.MAX_ADVERTISED_USERS, full.length);
+    }
+
+    private byte[] advertisedServiceData() {
+        return peripheralManager.getAdvertiseData().getServiceData().get(new ParcelUuid(GHS_SERVICE_UUID));
+    }
+
+    @Test
+    public void advertisement_isRestartedWhenUsersChange() {
+        assertTrue(Arrays.equals(new byte[]{1, 0x04, 0x10, 1, 0}, advertisedServiceData()));
+        final SimulatedPeripheralManager.Central central = peripheralManager.connect(23, 1, TimeUnit.MILLISECONDS, 0);
+        central.subscribe(controlPoint);
+
+        assertEquals(GattStatus.SUCCESS, central.write(controlPoint, new byte[]{0x01, 0x2E, 0x16}));
+        server.getScheduler().runFor(1, TimeUnit.SECONDS);
+        assertTrue(peripheralManager.isAdvertising());
+        assertTrue(Arrays.equals(new byte[]{1, 0x04, 0x10, 2, 0, 1}, advertisedServiceData()));
+
+        central.write(controlPoint, new byte[]{0x02, 0x01, 0x2E, 0x16});
+        central.write(controlPoint, new byte[]{0x05, 0x01});
+        server.getScheduler().runFor(1, TimeUnit.SECONDS);
+        assertTrue(Arrays.equals(new byte[]{1, 0x04, 0x10, 1, 0}, advertisedServiceData()));
+    }
+
+    @Test
+    public void lossyLink_doesNotStallTheOthers() {
+        List<Reassembler> reassemblers = new ArrayList<>();
+        List<SimulatedPeripheralManager.Central> lossy = connect(10, 0.2, reassemblers);
+        List<SimulatedPeripheralManager.Central> clean = connect(10, 0, reassemblers);
+        for (SimulatedPeripheralManager.Central central : lossy) central.subscribe(liveObservation);
+        for (SimulatedPeripheralManager.Central central : clean) central.subscribe(liveObservation);
+
+        server.getScheduler().runFor(30, TimeUnit.SECONDS);
+
+        for (SimulatedPeripheralManager.Central central : lossy) {
+            assertTrue(central.getLost() > 0);
+            assertTrue(central.getReceived() > 0);
+        }
+        for (int i = 10; i < 20; i++) {
+            assertEquals(0, reassemblers.get(i).errors);
+            assertTrue(reassemblers.get(i).observations >= 4 * 29);
+        }
+    }
+
+    @Test
+    public void disconnectedCentrals_stopReceiving() {
+        List<Reassembler> reassemblers = new ArrayList<>();
+        List<SimulatedPeripheralManager.Central> centrals = connect(20, 0, reassemblers);
+        for (SimulatedPeripheralManager.Central central : centrals) central.subscribe(liveObservation);
+        server.getScheduler().runFor(5, TimeUnit.SECONDS);
+
+        for (int i = 0; i < 10; i++) centrals.get(i).disconnect();
+        assertEquals(10, peripheralManager.getConnectedCount());
+        assertEquals(10, server.getCentralRegistry().subscribers(liveObservation).size());
+        final long before = centrals.get(0).getReceived();
+        server.getScheduler().runFor(5, TimeUnit.SECONDS);
+
+        assertEquals(before, centrals.get(0).getReceived());
+        assertFalse(centrals.get(0).isConnected());
+        assertTrue(reassemblers.get(19).observations >= 4 * 9);
+        assertEquals(0, reassemblers.get(19).errors);
+
+        // The last subscriber leaving stops the observation timer
+        for (int i = 10; i < 20; i++) centrals.get(i).unsubscribe(liveObservation);
+        server.getScheduler().runFor(2, TimeUnit.SECONDS);
+        final long idle = centrals.get(19).getReceived();
+        server.getScheduler().runFor(10, TimeUnit.SECONDS);
+        assertEquals(idle, centrals.get(19).getReceived());
+    }
+
+    @Test
+    public void centralsWithoutConsent_getNoObservations() {
+        List<Reassembler> reassemblers = new ArrayList<>();
+        SimulatedPeripheralManager.Central consenting = connect(1, 0, reassemblers).get(0);
+        SimulatedPeripheralManager.Central other = peripheralManager.connect(247, 1, TimeUnit.MILLISECONDS, 0);
+        Reassembler otherReassembler = new Reassembler();
+        other.setReceiver(otherReassembler);
+        other.subscribe(controlPoint);
+        other.write(controlPoint, new byte[]{0x02, 0x00, (byte) (CONSENT_CODE + 1), (byte) ((CONSENT_CODE + 1) >> 8)});
+        consenting.subscribe(liveObservation);
+        other.subscribe(liveObservation);
+
+        server.getScheduler().runFor(10, TimeUnit.SECONDS);
+        assertTrue(reassemblers.get(0).observations >= 4 * 9);
+        assertEquals(0, otherReassembler.observations);
+
+        // The session ends with the connection
+        consenting.disconnect();
+        SimulatedPeripheralManager.Central reconnected = peripheralManager.connect(247, 1, TimeUnit.MILLISECONDS, 0);
+        Reassembler reconnectedReassembler = new Reassembler();
+        reconnected.setReceiver(reconnectedReassembler);
+        reconnected.subscribe(liveObservation);
+        server.getScheduler().runFor(5, TimeUnit.SECONDS);
+        assertEquals(0, reconnectedReassembler.observations);
+        assertEquals(0, server.getCentralRegistry().consentSessions().count());
+    }
+
+    @Test
+    public void userControlPoint_registersConsentsListsAndDeletes() {
+        final List<byte[]> responses = new ArrayList<>();
+        final SimulatedPeripheralManager.Central central = peripheralManager.connect(23, 1, TimeUnit.MILLISECONDS, 0);
+        final SimulatedPeripheralManager.Central other = peripheralManager.connect(23, 1, TimeUnit.MILLISECONDS, 0);
+        central.setReceiver((c, characteristic, value) -> responses.add(value.clone()));
+
+        // Responses are indicated, so the central must subscribe first
+        assertEquals(GattStatus.CCCD_CFG_ERROR, central.write(controlPoint, new byte[]{0x01, 0x2E, 0x16}));
+        central.subscribe(controlPoint);
+        other.subscribe(controlPoint);
+
+        assertEquals(GattStatus.SUCCESS, central.write(controlPoint, new byte[]{0x01, 0x2E, 0x16}));
+        central.write(controlPoint, new byte[]{0x01, 0x10, 0x27});
+        central.write(controlPoint, new byte[]{0x02, 0x01, 0x2F, 0x16});
+        central.write(controlPoint, new byte[]{0x02, 0x01, 0x2E, 0x16});
+        central.write(controlPoint, new byte[]{0x04});
+        other.write(controlPoint, new byte[]{0x05, 0x01});
+        central.write(controlPoint, new byte[]{0x05, 0x00});
+        central.write(controlPoint, new byte[]{0x05, 0x01});
+        central.write(controlPoint, new byte[]{0x04});
+        central.write(controlPoint, new byte[]{0x03});
+        server.getScheduler().runFor(1, TimeUnit.SECONDS);
+
+        assertEquals(9, responses.size());
+        assertTrue(Arrays.equals(new byte[]{0x20, 0x01, 0x01, 0x01}, responses.get(0)));
+        // 10000 is not a valid consent code
+        assertTrue(Arrays.equals(new byte[]{0x20, 0x01, 0x03}, responses.get(1)));
+        assertTrue(Arrays.equals(new byte[]{0x20, 0x02, 0x05}, responses.get(2)));
+        assertTrue(Arrays.equals(new byte[]{0x20, 0x02, 0x01}, responses.get(3)));
+        assertTrue(Arrays.equals(new byte[]{0x20, 0x04, 0x01, 0x02, 0x00, 0x01}, responses.get(4)));
+        // Only the user the central gave consent for may be deleted
+        assertTrue(Arrays.equals(new byte[]{0x20, 0x05, 0x05}, responses.get(5)));
+        assertTrue(Arrays.equals(new byte[]{0x20, 0x05, 0x01, 0x01}, responses.get(6)));
+        assertTrue(Arrays.equals(new byte[]{0x20, 0x04, 0x01, 0x01, 0x00}, responses.get(7)));
+        assertTrue(Arrays.equals(new byte[]{0x20, 0x03, 0x02}, responses.get(8)));
+        // Deleting the user ended the session
+        assertEquals(0, server.getCentralRegistry().consentSessions().count());
+    }
+
+    @Test
+    public void scheduleStorm_costsAtMostTwoIndicationsPerCentral() {
+        final BluetoothGattCharacteristic scheduleChanged = peripheralManager.characteristic(GHS_SERVICE_UUID, GHS_SCHEDULE_CHANGED_CHAR_UUID);
+        final BluetoothGattDescriptor spo2Schedule = peripheralManager.characteristic(GHS_SERVICE_UUID, GHS_FEATURES_CHAR_UUID).getDescriptors().get(0);
+        final List<List<byte[]>> received = new ArrayList<>();
+        final List<SimulatedPeripheralManager.Central> centrals = new ArrayList<>();
+        for (int i = 0; i < 20; i++) {
+            final List<byte[]> values = new ArrayList<>();
+            final SimulatedPeripheralManager.Central central = peripheralManager.connect(MTUS[i % MTUS.length], 5, TimeUnit.MILLISECONDS, 0);
+            central.setReceiver((c, characteristic, value) -> {
+                if (characteristic.getUuid().equals(GHS_SCHEDULE_CHANGED_CHAR_UUID)) values.add(value.clone());
+            });
+            central.subscribe(scheduleChanged);
+            received.add(values);
+            centrals.add(central);
+        }
+
+        byte[] schedule = null;
+        for (int i = 0; i < 100; i++) {
+            final BluetoothBytesParser parser = new BluetoothBytesParser();
+            parser.setUInt32(GenericHealthService.MDC_PULS_OXIM_SAT_O2);
+            parser.setFloatValue(1.0f + i % 5, 1);
+            parser.setFloatValue(10.0f, 1);
+            schedule = parser.getValue();
+            assertEquals(GattStatus.SUCCESS, centrals.get(0).write(spo2Schedule, schedule));
+        }
+        server.getScheduler().runFor(1, TimeUnit.SECONDS);
+
+        // The writer is not told about its own change
+        assertTrue(received.get(0).isEmpty());
+        for (int i = 1; i < centrals.size(); i++) {
+            final List<byte[]> values = received.get(i);
+            assertTrue("central " + i + " got " + values.size(), values.size() >= 1 && values.size() <= 2);
+            assertTrue(Arrays.equals(schedule, values.get(values.size() - 1)));
+        }
+    }
+
+    @Test
+    public void slowLink_isSpedUpWhileStreamingAndRelaxedWhenIdle() {
+        List<Reassembler> reassemblers = new ArrayList<>();
+        SimulatedPeripheralManager.Central fast = connect(1, 0, reassemblers).get(0);
+        // 20 packets per second cannot carry the waveform at MTU 23
+        SimulatedPeripheralManager.Central slow = peripheralManager.connect(23, 50, TimeUnit.MILLISECONDS, 0);
+        slow.setReceiver(new Reassembler());
+        consent(slow);
+        fast.subscribe(liveObservation);
+        slow.subscribe(liveObservation);
+
+        server.getScheduler().runFor(10, TimeUnit.SECONDS);
+        assertEquals(PhyType.LE_2M, slow.getPhy());
+        assertEquals(ConnectionPriority.BALANCED, fast.getPriority());
+        assertEquals(PhyType.LE_1M, fast.getPhy());
+        for (LinkPolicy.Status<BluetoothCentral> status : server.getLinkStatus()) {
+            assertTrue(status.required > 0);
+            assertTrue(status.achieved > 0);
+            assertFalse(status.isSaturated());
+        }
+
+        slow.unsubscribe(liveObservation);
+        server.getScheduler().runFor(10, TimeUnit.SECONDS);
+        assertEquals(ConnectionPriority.BALANCED, slow.getPriority());
+        assertEquals(PhyType.LE_1M, slow.getPhy());
+
+        fast.disconnect();
+        assertEquals(1, server.getLinkStatus().size());
+    }
+
+    @Test
+    public void observationsAreStored_whileNoCentralIsConnected() {
+        server.getScheduler().runFor(10, TimeUnit.SECONDS);
+        final long stored = store.size();
+        // SpO2 and pulse rate every second, perfusion every five seconds
+        assertTrue("stored " + stored, stored >= 20);
+
+        final List<byte[]> responses = new ArrayList<>();
+        final int[] records = {0};
+        final SimulatedPeripheralManager.Central central = peripheralManager.connect(247, 1, TimeUnit.MILLISECONDS, 0);
+        consent(central);
+        central.setReceiver((c, characteristic, value) -> {
+            if (characteristic.getUuid().equals(STORED_OBSERVATION_CHAR_UUID)) records[0]++;
+            if (characteristic.getUuid().equals(RACP_CHAR_UUID)) responses.add(value.clone());
+        });
+        central.subscribe(storedObservation);
+        central.subscribe(racp);
+        assertEquals(GattStatus.SUCCESS, central.write(racp, new byte[]{RecordAccessControlPoint.REPORT_STORED_RECORDS, RecordAccessControlPoint.OPERATOR_ALL_RECORDS}));
+        server.getScheduler().runFor(1, TimeUnit.SECONDS);
+
+        assertTrue(records[0] >= stored);
+        assertEquals(1, responses.size());
+        assertTrue(Arrays.equals(RecordAccessControlPoint.responseCode(RecordAccessControlPoint.REPORT_STORED_RECORDS, RecordAccessControlPoint.SUCCESS), responses.get(0)));
+    }
+
+    @Test
+    public void storedAndLiveObservations_areTheSamplesPublishedOnTheBus() {
+        final List<float[]> published = new ArrayList<>();
+        final ObservationBus.Subscription subscription = server.getObservationBus().subscribe(null);
+        final SimulatedPeripheralManager.Central central = peripheralManager.connect(247, 1, TimeUnit.MILLISECONDS, 0);
+        consent(central);
+        final List<float[]> live = new ArrayList<>();
+        central.setReceiver((c, characteristic, value) -> {
+            if (!characteristic.getUuid().equals(OBSERVATION_CHAR_UUID)) return;
+            ObservationDecoder.decode(value, 1, value.length - 1, new ObservationDecoder.Handler() {
+                @Override
+                public void onNumeric(int mdcCode, long etsSeconds, float duration, int unitCode, float value) {
+                    live.add(new float[]{mdcCode, etsSeconds, value});
+                }
+
+                @Override
+                public void onSampleArray(int mdcCode, long etsSeconds, float duration, int unitCode, float scaleFactor, float offset, int samplesPerSecond,
+                                          int bytesPerSample, @NotNull byte[] samples, int samplesOffset, int count) {
+                }
+
+                @Override
+                public void onMalformed(int type, int length) {
+                    fail("malformed observation " + type);
+                }
+            });
+        });
+        central.subscribe(liveObservation);
+        server.getScheduler().runFor(10, TimeUnit.SECONDS);
+        subscription.poll((sequence, mdcCode, value, etsSeconds) -> published.add(new float[]{mdcCode, etsSeconds, value}), Integer.MAX_VALUE);
+
+        // Every sample is stored exactly as it was published
+        assertEquals(published.size(), store.size());
+        final ObservationStore.Record record = new ObservationStore.Record();
+        for (int i = 0; i < published.size(); i++) {
+            store.read(i, record);
+            assertEquals(published.get(i)[0], record.mdcCode, 0);
+            assertEquals(published.get(i)[1], record.timestamp, 0);
+            assertEquals(published.get(i)[2], record.value, 0);
+        }
+        // and live observations send those samples instead of taking new ones
+        assertFalse(live.isEmpty());
+        for (float[] observation : live) {
+            boolean found = false;
+            for (float[] sample : published) {
+                if (sample[0] == observation[0] && sample[1] == observation[1] && Math.abs(sample[2] - observation[2]) <= 0.1f) found = true;
+            }
+            assertTrue("not published: " + observation[0] + " at " + observation[1] + " = " + observation[2], found);
+        }
+    }
+
+    @Test
+    public void centralsWithoutConsent_cannotReportOrDeleteStoredRecords() {
+        server.getScheduler().runFor(5, TimeUnit.SECONDS);
+        final long stored = store.count(0, store.size());
+        assertTrue(stored > 0);
+
+        final List<byte[]> values = new ArrayList<>();
+        final SimulatedPeripheralManager.Central central = peripheralManager.connect(247, 1, TimeUnit.MILLISECONDS, 0);
+        central.setReceiver((c, characteristic, value) -> values.add(value.clone()));
+        central.subscribe(storedObservation);
+        central.subscribe(racp);
+        assertEquals(GattStatus.INSUFFICIENT_AUTHORIZATION, central.write(racp, new byte[]{RecordAccessControlPoint.REPORT_STORED_RECORDS, RecordAccessControlPoint.OPERATOR_ALL_RECORDS}));
+        assertEquals(GattStatus.INSUFFICIENT_AUTHORIZATION, central.write(racp, new byte[]{RecordAccessControlPoint.REPORT_NUMBER_OF_STORED_RECORDS, RecordAccessControlPoint.OPERATOR_ALL_RECORDS}));
+        assertEquals(GattStatus.INSUFFICIENT_AUTHORIZATION, central.write(racp, new byte[]{RecordAccessControlPoint.DELETE_STORED_RECORDS, RecordAccessControlPoint.OPERATOR_ALL_RECORDS}));
+        server.getScheduler().runFor(1, TimeUnit.SECONDS);
+
+        assertTrue(values.isEmpty());
+        assertTrue(store.count(0, store.size()) >= stored);
+    }
+
+    @Test
+    public void report_isCompleteUnderLiveLoad() {
+        server.getScheduler().runFor(30, TimeUnit.SECONDS);
+        final long stored = store.count(0, store.size());
+
+        // A slow link that is also streaming live observations, which keep its queue full
+        final List<Reassembler> reassemblers = new ArrayList<>();
+        final SimulatedPeripheralManager.Central central = connect(1, 0, reassemblers).get(0);
+        final SimulatedPeripheralManager.Central slow = peripheralManager.connect(23, 40, TimeUnit.MILLISECONDS, 0);
+        consent(slow);
+        final List<Long> recordNumbers = new ArrayList<>();
+        final List<byte[]> responses = new ArrayList<>();
+        final ObservationReassembler storedReassembler = new ObservationReassembler(new ObservationReassembler.Listener() {
+            @Override
+            public void onObservation(@NotNull byte[] buffer, int offset, int length) {
+                recordNumbers.add((buffer[offset] & 0xFFL) | (buffer[offset + 1] & 0xFFL) << 8 | (buffer[offset + 2] & 0xFFL) << 16 | (buffer[offset + 3] & 0xFFL) << 24);
+            }
+
+            @Override
+            public void onGap(int expectedCounter, int receivedCounter) {
+                recordNumbers.add(-1L);
+            }
+        });
+        slow.setReceiver((c, characteristic, value) -> {
+            if (characteristic.getUuid().equals(STORED_OBSERVATION_CHAR_UUID)) storedReassembler.onPacket(value);
+            if (characteristic.getUuid().equals(RACP_CHAR_UUID)) responses.add(value.clone());
+        });
+        central.subscribe(liveObservation);
+        slow.subscribe(liveObservation);
+        slow.subscribe(storedObservation);
+        slow.subscribe(racp);
+        assertEquals(GattStatus.SUCCESS, slow.write(racp, new byte[]{RecordAccessControlPoint.REPORT_STORED_RECORDS, RecordAccessControlPoint.OPERATOR_LESS_THAN_OR_EQUAL,
+                RecordAccessControlPoint.FILTER_SEQUENCE_NUMBER, (byte) stored, (byte) (stored >> 8), (byte) (stored >> 16), (byte) (stored >> 24)}));
+        server.getScheduler().runFor(60, TimeUnit.SECONDS);
+
+        assertEquals(1, responses.size());
+        assertTrue(Arrays.equals(RecordAccessControlPoint.responseCode(RecordAccessControlPoint.REPORT_STORED_RECORDS, RecordAccessControlPoint.SUCCESS), responses.get(0)));
+        assertEquals(stored, recordNumbers.size());
+        for (int i = 0; i < recordNumbers.size(); i++) assertEquals(i + 1, (long) recordNumbers.get(i));
+        assertEquals(0, reassemblers.get(0).errors);
+    }
+}
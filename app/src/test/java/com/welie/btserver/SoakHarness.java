@@ -0,0 +1,381 @@
+package com.welie.btserver;
+
+import android.bluetooth.BluetoothGattCharacteristic;
+import android.bluetooth.BluetoothGattDescriptor;
+
+import com.welie.blessed.BluetoothBytesParser;
+import com.welie.blessed.GattStatus;
+
+import org.HdrHistogram.Histogram;
+import org.jetbrains.annotations.NotNull;
+
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.Writer;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.Random;
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Drives the whole server with many simulated centrals on virtual time. Centrals connect and
+ * leave, subscribe and unsubscribe in storms, change schedules and give UDS consent while the
+ * server streams observations. Measures the latency from the observation tick to the last segment
+ * arriving at a central, throughput and heap use, and writes them as a JSON report.
+ * <p>
+ * Requests from different centrals in the same virtual second are interleaved, not run on
+ * separate threads, so a run is repeatable for a given seed.
+ */
+final class SoakHarness {
+
+    private static final UUID GHS_SERVICE_UUID = UUID.fromString("00007f44-0000-1000-8000-00805f9b34fb");
+    private static final UUID OBSERVATION_CHAR_UUID = UUID.fromString("00007f43-0000-1000-8000-00805f9b34fb");
+    private static final UUID GHS_FEATURES_CHAR_UUID = UUID.fromString("00007f41-0000-1000-8000-00805f9b34fb");
+    private static final UUID GHS_SCHEDULE_CHANGED_CHAR_UUID = UUID.fromString("00007f3f-0000-1000-8000-00805f9b34fb");
+    private static final UUID UDS_SERVICE_UUID = UUID.fromString("0000181C-0000-1000-8000-00805f9b34fb");
+    private static final UUID USER_CONTROL_POINT_CHARACTERISTIC_UUID = UUID.fromString("00002A9F-0000-1000-8000-00805f9b34fb");
+    private static final int[] MTUS = {23, 65, 185, 247};
+    private static final int[] SCHEDULED_TYPES = {GenericHealthService.MDC_PULS_OXIM_SAT_O2, GenericHealthService.MDC_PULS_OXIM_PULS_RATE, GenericHealthService.MDC_PULS_OXIM_PERF_REL};
+    // 2021-01-01 00:00 UTC, on a whole second so ticks fall on whole ETS seconds
+    private static final long START_MILLIS = 1_609_459_200_000L;
+    private static final int TICK_HISTORY = 1024;
+    private static final int[] CONSENT_CODES = {8, 16};
+
+    static final class Config {
+        int centrals = 50;
+        long seconds = 600;
+        long seed = 1;
+        // Chance per second that one central leaves and a new one connects
+        double churnPerSecond = 0.2;
+        // Every this many seconds half of the centrals unsubscribe and subscribe again
+        long stormIntervalSeconds = 120;
+        double scheduleWritesPerSecond = 0.05;
+        double consentWritesPerSecond = 0.2;
+        long heapSampleSeconds = 300;
+        int maxLatencyMillis = 1000;
+    }
+
+    // Reassembles and decodes the live observations of one central and measures their latency
+    private final class LiveReceiver implements SimulatedPeripheralManager.Receiver, ObservationReassembler.Listener, ObservationDecoder.Handler {
+        private final ObservationReassembler reassembler = new ObservationReassembler(this);
+        // Whether each consent written and not yet answered should be accepted
+        private final ArrayDeque<Boolean> pendingConsents = new ArrayDeque<>();
+        private boolean timed = false;
+
+        @Override
+        public void onValue(@NotNull SimulatedPeripheralManager.Central central, @NotNull BluetoothGattCharacteristic characteristic, @NotNull byte[] value) {
+            if (characteristic == userControlPoint) {
+                onConsentResponse(value);
+                return;
+            }
+            if (characteristic != liveObservation) {
+                if (characteristic == scheduleChanged) scheduleChangedIndications++;
+                return;
+            }
+
+            packets++;
+            final long discarded = reassembler.getDiscardedSegments();
+            reassembler.onPacket(value);
+            segmentationErrors += reassembler.getDiscardedSegments() - discarded;
+        }
+
+        private void onConsentResponse(@NotNull byte[] value) {
+            final Boolean correct = pendingConsents.poll();
+            if (correct == null || value.length != 3 || value[0] != UserDataService.RESPONSE_CODE || value[1] != UserDataService.CONSENT) return;
+            final boolean accepted = value[2] == UserDataService.SUCCESS;
+            if (accepted) consentsAccepted++;
+            if (accepted != correct) consentsRefusedWrongly++;
+        }
+
+        @Override
+        public void onObservation(@NotNull byte[] buffer, int offset, int length) {
+            observations++;
+            timed = false;
+            ObservationDecoder.decode(buffer, offset, length, this);
+        }
+
+        @Override
+        public void onGap(int expectedCounter, int receivedCounter) {
+            segmentationErrors++;
+        }
+
+        @Override
+        public void onNumeric(int mdcCode, long etsSeconds, float duration, int unitCode, float value) {
+            // A bundle is timed by its first observation
+            if (timed) return;
+            timed = true;
+            final int slot = (int) (etsSeconds % TICK_HISTORY);
+            if (tickEts[slot] == etsSeconds) {
+                latencyMicros.recordValue(Math.min(TimeUnit.NANOSECONDS.toMicros(clock.nanoTime() - tickNanos[slot]), latencyMicros.getHighestTrackableValue()));
+            } else {
+                unmatchedObservations++;
+            }
+        }
+
+        @Override
+        public void onSampleArray(int mdcCode, long etsSeconds, float duration, int unitCode, float scaleFactor, float offset, int samplesPerSecond,
+                                  int bytesPerSample, @NotNull byte[] samples, int samplesOffset, int count) {
+            // Waveform windows are timestamped by their first sample, not by a tick
+        }
+
+        @Override
+        public void onMalformed(int type, int length) {
+            segmentationErrors++;
+        }
+    }
+
+    private static final class SoakCentral {
+        final @NotNull SimulatedPeripheralManager.Central central;
+        final @NotNull LiveReceiver receiver;
+        boolean subscribed = false;
+
+        SoakCentral(@NotNull SimulatedPeripheralManager.Central central, @NotNull LiveReceiver receiver) {
+            this.central = central;
+            this.receiver = receiver;
+            central.setReceiver(receiver);
+        }
+    }
+
+    private final @NotNull Config config;
+    private final @NotNull Random random;
+    private final @NotNull VirtualClock clock = new VirtualClock(START_MILLIS);
+    private final @NotNull BluetoothServer server = new BluetoothServer(clock, Runnable::run);
+    private SimulatedPeripheralManager peripheralManager;
+    private BluetoothGattCharacteristic liveObservation;
+    private BluetoothGattCharacteristic scheduleChanged;
+    private List<BluetoothGattDescriptor> scheduleDescriptors;
+    private BluetoothGattCharacteristic userControlPoint;
+    private final @NotNull List<SoakCentral> centrals = new ArrayList<>();
+    private final @NotNull Histogram latencyMicros;
+    // Virtual time of the first observation tick in each ETS second
+    private final long[] tickEts = new long[TICK_HISTORY];
+    private final long[] tickNanos = new long[TICK_HISTORY];
+    private final @NotNull List<Long> heapSamples = new ArrayList<>();
+
+    private long observations = 0;
+    private long packets = 0;
+    private long segmentationErrors = 0;
+    private long unmatchedObservations = 0;
+    private long scheduleChangedIndications = 0;
+    private long connects = 0;
+    private long disconnects = 0;
+    private long subscribes = 0;
+    private long unsubscribes = 0;
+    private long scheduleWrites = 0;
+    private long scheduleWritesRejected = 0;
+    private long consentWrites = 0;
+    private long consentsAccepted = 0;
+    private long consentsRefusedWrongly = 0;
+    private long wallMillis = 0;
+
+    SoakHarness(@NotNull Config config) {
+        this.config = config;
+        this.random = new Random(config.seed);
+        this.latencyMicros = new Histogram(TimeUnit.SECONDS.toMicros(60), 3);
+    }
+
+    /**
+     * Run the soak and return the report.
+     */
+    @NotNull String run() {
+        final UserStore users = UserStore.inMemory();
+        for (int consentCode : CONSENT_CODES) users.register(consentCode);
+        server.start(callback -> peripheralManager = new SimulatedPeripheralManager(callback, clock, server.getScheduler(), config.seed), null, users, false);
+        liveObservation = peripheralManager.characteristic(GHS_SERVICE_UUID, OBSERVATION_CHAR_UUID);
+        scheduleChanged = peripheralManager.characteristic(GHS_SERVICE_UUID, GHS_SCHEDULE_CHANGED_CHAR_UUID);
+        scheduleDescriptors = peripheralManager.characteristic(GHS_SERVICE_UUID, GHS_FEATURES_CHAR_UUID).getDescriptors();
+        userControlPoint = peripheralManager.characteristic(UDS_SERVICE_UUID, USER_CONTROL_POINT_CHARACTERISTIC_UUID);
+        server.getObservationBus().subscribe(this::onTick);
+
+        try {
+            for (int i = 0; i < config.centrals; i++) {
+                subscribe(connect());
+            }
+            sampleHeap();
+
+            final long started = System.nanoTime();
+            for (long second = 1; second <= config.seconds; second++) {
+                if (random.nextDouble() < config.churnPerSecond) churn();
+                if (second % config.stormIntervalSeconds == 0) storm();
+                while (random.nextDouble() < config.scheduleWritesPerSecond) writeSchedule();
+                while (random.nextDouble() < config.consentWritesPerSecond) writeConsent();
+
+                server.getScheduler().runFor(1, TimeUnit.SECONDS);
+                if (second % config.heapSampleSeconds == 0) sampleHeap();
+            }
+            wallMillis = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - started);
+        } finally {
+            peripheralManager.close();
+            server.close();
+        }
+        return report();
+    }
+
+    long getSegmentationErrors() {
+        return segmentationErrors;
+    }
+
+    long getObservations() {
+        return observations;
+    }
+
+    long getConsentsRefusedWrongly() {
+        return consentsRefusedWrongly;
+    }
+
+    long getConsentsAccepted() {
+        return consentsAccepted;
+    }
+
+    @NotNull Histogram getLatencyMicros() {
+        return latencyMicros;
+    }
+
+    long getHeapGrowth() {
+        return heapSamples.get(heapSamples.size() - 1) - heapSamples.get(0);
+    }
+
+    void writeReport(@NotNull File file, @NotNull String report) throws IOException {
+        final File directory = file.getParentFile();
+        if (directory != null && !directory.isDirectory() && !directory.mkdirs()) throw new IOException("cannot create " + directory);
+        try (Writer writer = new FileWriter(file)) {
+            writer.write(report);
+        }
+    }
+
+    // Runs on every publish; the first one of an ETS second is the tick
+    private void onTick() {
+        final long etsSeconds = clock.etsSeconds();
+        final int slot = (int) (etsSeconds % TICK_HISTORY);
+        if (tickEts[slot] != etsSeconds) {
+            tickEts[slot] = etsSeconds;
+            tickNanos[slot] = clock.nanoTime();
+        }
+    }
+
+    private @NotNull SoakCentral connect() {
+        final int latencyMillis = 1 + random.nextInt(7);
+        final SoakCentral central = new SoakCentral(peripheralManager.connect(MTUS[random.nextInt(MTUS.length)], latencyMillis, TimeUnit.MILLISECONDS, 0), new LiveReceiver());
+        // Consent responses are indicated, and only centrals with consent get observations
+        central.central.subscribe(userControlPoint);
+        central.receiver.pendingConsents.add(true);
+        central.central.write(userControlPoint, consentValue(0, CONSENT_CODES[0]));
+        centrals.add(central);
+        connects++;
+        return central;
+    }
+
+    private void subscribe(@NotNull SoakCentral central) {
+        central.central.subscribe(liveObservation);
+        central.central.subscribe(scheduleChanged);
+        central.subscribed = true;
+        subscribes++;
+    }
+
+    private void unsubscribe(@NotNull SoakCentral central) {
+        central.central.unsubscribe(liveObservation);
+        central.central.unsubscribe(scheduleChanged);
+        central.subscribed = false;
+        unsubscribes++;
+    }
+
+    private void churn() {
+        if (!centrals.isEmpty()) {
+            centrals.remove(random.nextInt(centrals.size())).central.disconnect();
+            disconnects++;
+        }
+        subscribe(connect());
+    }
+
+    private void storm() {
+        final List<SoakCentral> stormers = new ArrayList<>();
+        for (SoakCentral central : centrals) {
+            if (central.subscribed && random.nextBoolean()) stormers.add(central);
+        }
+        for (SoakCentral central : stormers) unsubscribe(central);
+        for (SoakCentral central : stormers) subscribe(central);
+    }
+
+    private void writeSchedule() {
+        if (centrals.isEmpty()) return;
+        final int type = random.nextInt(SCHEDULED_TYPES.length);
+        // Whole seconds keep at most one tick per ETS second. Update intervals are multiples of the
+        // measurement period, so every update sends a fresh sample and latency is only the link's
+        final float measurementPeriod = 1 + random.nextInt(3);
+        final float updateInterval = measurementPeriod * (1 + random.nextInt(3));
+        final BluetoothBytesParser parser = new BluetoothBytesParser();
+        parser.setUInt32(SCHEDULED_TYPES[type]);
+        parser.setFloatValue(measurementPeriod, 1);
+        parser.setFloatValue(updateInterval, 1);
+
+        final SoakCentral writer = centrals.get(random.nextInt(centrals.size()));
+        scheduleWrites++;
+        if (writer.central.write(scheduleDescriptors.get(type), parser.getValue()) != GattStatus.SUCCESS) scheduleWritesRejected++;
+    }
+
+    private void writeConsent() {
+        if (centrals.isEmpty()) return;
+        // Users are registered in order, so user index i has CONSENT_CODES[i]
+        final int userIndex = random.nextInt(CONSENT_CODES.length);
+        final boolean correct = random.nextBoolean();
+        final int consentCode = CONSENT_CODES[userIndex] + (correct ? 0 : 1);
+        final byte[] value = consentValue(userIndex, consentCode);
+
+        final SoakCentral writer = centrals.get(random.nextInt(centrals.size()));
+        consentWrites++;
+        writer.receiver.pendingConsents.add(correct);
+        if (writer.central.write(userControlPoint, value) != GattStatus.SUCCESS) {
+            writer.receiver.pendingConsents.removeLast();
+            consentsRefusedWrongly++;
+        }
+    }
+
+    private static @NotNull byte[] consentValue(int userIndex, int consentCode) {
+        return new byte[]{UserDataService.CONSENT, (byte) userIndex, (byte) consentCode, (byte) (consentCode >> 8)};
+    }
+
+    private void sampleHeap() {
+        final Runtime runtime = Runtime.getRuntime();
+        System.gc();
+        heapSamples.add(runtime.totalMemory() - runtime.freeMemory());
+    }
+
+    private @NotNull String report() {
+        final StringBuilder json = new StringBuilder();
+        json.append("{\n");
+        field(json, "centrals", config.centrals);
+        field(json, "virtualSeconds", config.seconds);
+        field(json, "seed", config.seed);
+        field(json, "wallMillis", wallMillis);
+        field(json, "observations", observations);
+        json.append(String.format(Locale.ENGLISH, "  \"observationsPerSecond\": %.1f,\n", (double) observations / config.seconds));
+        field(json, "packets", packets);
+        field(json, "segmentationErrors", segmentationErrors);
+        field(json, "unmatchedObservations", unmatchedObservations);
+        json.append("  \"latencyMicros\": {");
+        json.append(String.format(Locale.ENGLISH, "\"count\": %d, \"mean\": %.1f, \"p50\": %d, \"p90\": %d, \"p99\": %d, \"p999\": %d, \"max\": %d},\n",
+                latencyMicros.getTotalCount(), latencyMicros.getMean(), latencyMicros.getValueAtPercentile(50), latencyMicros.getValueAtPercentile(90),
+                latencyMicros.getValueAtPercentile(99), latencyMicros.getValueAtPercentile(99.9), latencyMicros.getMaxValue()));
+        json.append("  \"events\": {");
+        json.append(String.format(Locale.ENGLISH, "\"connects\": %d, \"disconnects\": %d, \"subscribes\": %d, \"unsubscribes\": %d, ", connects, disconnects, subscribes, unsubscribes));
+        json.append(String.format(Locale.ENGLISH, "\"scheduleWrites\": %d, \"scheduleWritesRejected\": %d, \"scheduleChangedIndications\": %d, ", scheduleWrites, scheduleWritesRejected, scheduleChangedIndications));
+        json.append(String.format(Locale.ENGLISH, "\"consentWrites\": %d, \"consentsAccepted\": %d, \"consentsRefusedWrongly\": %d},\n", consentWrites, consentsAccepted, consentsRefusedWrongly));
+        json.append("  \"heapBytes\": [");
+        for (int i = 0; i < heapSamples.size(); i++) {
+            if (i > 0) json.append(", ");
+            json.append(heapSamples.get(i));
+        }
+        json.append("],\n");
+        json.append("  \"heapGrowthBytes\": ").append(getHeapGrowth()).append("\n");
+        json.append("}\n");
+        return json.toString();
+    }
+
+    private static void field(@NotNull StringBuilder json, @NotNull String name, long value) {
+        json.append("  \"").append(name).append("\": ").append(value).append(",\n");
+    }
+}
@@ -0,0 +1,41 @@
+package com.welie.btserver;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.annotation.Config;
+
+import java.io.File;
+
+/**
+ * Short soak by default. For a long one pass the size on the command line, for example
+ * {@code ./gradlew testDebugUnitTest --tests '*SoakTest' -Psoak.centrals=200 -Psoak.seconds=86400}.
+ */
+@RunWith(RobolectricTestRunner.class)
+@Config(sdk = 28)
+public class SoakTest {
+
+    @Test
+    public void soak_keepsSegmentationLatencyAndHeapInBounds() throws Exception {
+        final SoakHarness.Config config = new SoakHarness.Config();
+        config.centrals = Integer.getInteger("soak.centrals", 30);
+        config.seconds = Long.getLong("soak.seconds", 600L);
+        config.seed = Long.getLong("soak.seed", 1L);
+        config.heapSampleSeconds = Math.max(config.seconds / 4, 1);
+
+        final SoakHarness harness = new SoakHarness(config);
+        final String report = harness.run();
+        harness.writeReport(new File(System.getProperty("soak.report", "build/reports/soak/soak.json")), report);
+
+        assertEquals(0, harness.getSegmentationErrors());
+        assertEquals(0, harness.getConsentsRefusedWrongly());
+        assertTrue(harness.getConsentsAccepted() > 0);
+        assertTrue(harness.getObservations() > config.centrals * config.seconds / 5);
+        assertTrue(harness.getLatencyMicros().getValueAtPercentile(99) < config.maxLatencyMillis * 1000L);
+        // Nothing may pile up per observation; allow for class loading and JIT noise
+        assertTrue(harness.getHeapGrowth() < 32 * 1024 * 1024);
+    }
+}
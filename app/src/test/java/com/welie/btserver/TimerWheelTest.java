@@ -0,0 +1,77 @@
+package com.welie.btserver;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+public class TimerWheelTest {
+
+    private static final long TICK = 1_000_000L;
+
+    private final List<Long> firedAt = new ArrayList<>();
+
+    private static TimerWheel.Timeout timeout(long deadline) {
+        TimerWheel.Timeout timeout = new TimerWheel.Timeout();
+        timeout.deadline = deadline;
+        return timeout;
+    }
+
+    @Test
+    public void timeout_neverFiresBeforeDeadline() {
+        TimerWheel wheel = new TimerWheel(TICK, 8, 0);
+        wheel.schedule(timeout(2_500_000L));
+
+        for (long now = 0; now < 2_500_000L; now += 100_000L) {
+            assertEquals(0, wheel.advance(now, t -> firedAt.add(t.deadline)));
+        }
+        assertEquals(1, wheel.advance(3_000_000L, t -> firedAt.add(t.deadline)));
+        assertEquals(0, wheel.size());
+    }
+
+    @Test
+    public void timeoutsBeyondOneRotation_waitForTheirRound() {
+        TimerWheel wheel = new TimerWheel(TICK, 8, 0);
+        wheel.schedule(timeout(20 * TICK));
+
+        assertEquals(0, wheel.advance(19 * TICK, t -> firedAt.add(t.deadline)));
+        assertEquals(1, wheel.advance(20 * TICK, t -> firedAt.add(t.deadline)));
+    }
+
+    @Test
+    public void cancelledTimeout_doesNotFire() {
+        TimerWheel wheel = new TimerWheel(TICK, 8, 0);
+        TimerWheel.Timeout timeout = timeout(3 * TICK);
+        wheel.schedule(timeout);
+        assertTrue(timeout.isScheduled());
+
+        wheel.cancel(timeout);
+        assertFalse(timeout.isScheduled());
+        assertEquals(0, wheel.advance(10 * TICK, t -> firedAt.add(t.deadline)));
+        assertEquals(Long.MAX_VALUE, wheel.nextBusyTickTime());
+    }
+
+    @Test
+    public void rescheduledTimeout_staysOnAbsoluteGrid() {
+        TimerWheel wheel = new TimerWheel(TICK, 16, 0);
+        TimerWheel.Timeout timeout = timeout(10 * TICK);
+        wheel.schedule(timeout);
+
+        // Advance in uneven steps, rescheduling one period after the previous deadline
+        for (long now = 0; now <= 100 * TICK; now += 3 * TICK + 12_345L) {
+            wheel.advance(now, t -> {
+                firedAt.add(t.deadline);
+                t.deadline += 10 * TICK;
+                wheel.schedule(t);
+            });
+        }
+        for (int i = 0; i < firedAt.size(); i++) {
+            assertEquals((i + 1) * 10 * TICK, (long) firedAt.get(i));
+        }
+        assertEquals(9, firedAt.size());
+    }
+}
@@ -0,0 +1,77 @@
+package com.welie.btserver;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+public class TraceRingTest {
+
+    // 2021-01-01 00:00 UTC
+    private final VirtualClock clock = new VirtualClock(1_609_459_200_000L);
+
+    // Timestamp, header, and two data words of every record in a dump
+    private List<long[]> records(TraceRing trace) throws IOException {
+        final ByteArrayOutputStream dump = new ByteArrayOutputStream();
+        trace.writeTo(dump);
+        final DataInputStream in = new DataInputStream(new ByteArrayInputStream(dump.toByteArray()));
+        assertEquals(TraceRing.DUMP_MAGIC, in.readInt());
+        assertEquals(TraceRing.DUMP_VERSION, in.readInt());
+        assertEquals(clock.currentTimeMillis(), in.readLong());
+        assertEquals(clock.nanoTime(), in.readLong());
+        final List<long[]> records = new ArrayList<>();
+        for (int i = in.readInt(); i > 0; i--) {
+            final long[] record = new long[TraceRing.WORDS - 1];
+            for (int w = 0; w < record.length; w++) record[w] = in.readLong();
+            records.add(record);
+        }
+        assertEquals(-1, in.read());
+        return records;
+    }
+
+    @Test
+    public void record_packsEventCentralLengthAndData() throws IOException {
+        final TraceRing trace = new TraceRing(16, clock);
+        final long start = clock.nanoTime();
+        trace.recordCentral(TraceRing.CONNECTED, "02:00:00:00:00:2A");
+        clock.advance(1500, TimeUnit.MICROSECONDS);
+        trace.record(TraceRing.UDS_CONTROL_POINT, 42, new byte[]{0x02, 0x01, 0x08, 0x00}, 0, 4);
+        trace.record(TraceRing.OBSERVATION, TraceRing.NO_CENTRAL, new byte[20], 2, 18);
+
+        final List<long[]> records = records(trace);
+        assertEquals(3, records.size());
+        assertEquals(start, records.get(0)[0]);
+        // Address bytes, most significant first
+        assertEquals(0x2A0000000002L, records.get(0)[2]);
+        assertEquals(start + 1_500_000, records.get(1)[0]);
+        assertEquals(((long) TraceRing.UDS_CONTROL_POINT << 56) | (42L << 40) | TraceRing.HAS_DATA | 4, records.get(1)[1]);
+        assertEquals(0x00080102L, records.get(1)[2]);
+        assertEquals(((long) TraceRing.OBSERVATION << 56) | ((long) TraceRing.NO_CENTRAL << 40) | TraceRing.HAS_DATA | 18, records.get(2)[1]);
+    }
+
+    @Test
+    public void writeTo_keepsOnlyTheNewestRecordsOldestFirst() throws IOException {
+        final TraceRing trace = new TraceRing(4, clock);
+        for (int i = 0; i < 10; i++) trace.record(TraceRing.TRAIN_QUEUED, 7, i);
+
+        final List<long[]> records = records(trace);
+        assertEquals(10, trace.getRecorded());
+        assertEquals(4, records.size());
+        for (int i = 0; i < 4; i++) {
+            assertEquals(((long) TraceRing.TRAIN_QUEUED << 56) | (7L << 40) | (6 + i), records.get(i)[1]);
+        }
+    }
+
+    @Test
+    public void centralId_neverCollidesWithNoCentral() {
+        assertTrue(TraceRing.centralId("FF:FF:FF:FF:FF:FF") < TraceRing.NO_CENTRAL);
+    }
+}
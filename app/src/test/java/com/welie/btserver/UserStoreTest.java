@@ -0,0 +1,104 @@
+package com.welie.btserver;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.file.Files;
+
+public class UserStoreTest {
+
+    private File directory;
+    private File file;
+    private UserStore users;
+
+    @Before
+    public void setUp() throws IOException {
+        directory = Files.createTempDirectory("users").toFile();
+        file = new File(directory, "users.db");
+        users = UserStore.open(file);
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        users.close();
+        file.delete();
+        directory.delete();
+    }
+
+    @Test
+    public void register_usesTheLowestFreeIndex() {
+        assertEquals(0, users.register(1234));
+        assertEquals(1, users.register(0));
+        assertEquals(2, users.register(9999));
+        assertTrue(users.delete(1));
+        assertEquals(1, users.register(42));
+        assertEquals(3, users.count());
+    }
+
+    @Test
+    public void checkConsent_matchesOnlyTheRegisteredCode() {
+        final int userIndex = users.register(1234);
+        assertTrue(users.checkConsent(userIndex, 1234));
+        assertFalse(users.checkConsent(userIndex, 1235));
+        assertFalse(users.checkConsent(userIndex + 1, 0));
+        assertFalse(users.checkConsent(UserDataService.ALL_USERS, 0));
+        assertTrue(users.delete(userIndex));
+        assertFalse(users.checkConsent(userIndex, 1234));
+        assertFalse(users.delete(userIndex));
+    }
+
+    @Test
+    public void register_failsWhenAllIndexesAreTaken() {
+        for (int i = 0; i < UserStore.MAX_USERS; i++) assertEquals(i, users.register(i));
+        assertEquals(-1, users.register(1));
+        assertEquals(UserStore.MAX_USERS, users.count());
+    }
+
+    @Test
+    public void nextRegistered_skipsFreeIndexes() {
+        for (int i = 0; i < 5; i++) users.register(i);
+        users.delete(0);
+        users.delete(2);
+        assertEquals(1, users.nextRegistered(0));
+        assertEquals(3, users.nextRegistered(2));
+        assertEquals(-1, users.nextRegistered(5));
+    }
+
+    @Test
+    public void reopen_keepsUsers() throws IOException {
+        users.register(1234);
+        users.register(5678);
+        users.delete(0);
+        users.close();
+
+        users = UserStore.open(file);
+        assertEquals(1, users.count());
+        assertFalse(users.isRegistered(0));
+        assertTrue(users.checkConsent(1, 5678));
+    }
+
+    @Test
+    public void open_rejectsOtherFiles() throws IOException {
+        final File other = new File(directory, "other.db");
+        try (RandomAccessFile randomAccessFile = new RandomAccessFile(other, "rw")) {
+            randomAccessFile.writeInt(0x12345678);
+        }
+        try {
+            UserStore.open(other).close();
+            fail("foreign file accepted");
+        } catch (IOException expected) {
+            // expected
+        } finally {
+            other.delete();
+        }
+    }
+}
@@ -0,0 +1,33 @@
+package com.welie.btserver;
+
+import org.jetbrains.annotations.NotNull;
+
+import java.util.Locale;
+
+/**
+ * Stand-in for a connected central: an address and a negotiated MTU.
+ */
+final class BenchmarkCentral {
+
+    // Typical MTUs: the default, iOS, and the Android maximum
+    private static final int[] MIXED_MTUS = {23, 185, 247};
+
+    final @NotNull String address;
+    final int mtu;
+
+    BenchmarkCentral(int index, int mtu) {
+        this.address = String.format(Locale.ENGLISH, "02:00:00:00:%02X:%02X", (index >> 8) & 0xFF, index & 0xFF);
+        this.mtu = mtu;
+    }
+
+    /**
+     * @param mtu an MTU, or "mixed" to cycle through typical MTUs
+     */
+    static @NotNull BenchmarkCentral[] create(int count, @NotNull String mtu) {
+        final BenchmarkCentral[] centrals = new BenchmarkCentral[count];
+        for (int i = 0; i < count; i++) {
+            centrals[i] = new BenchmarkCentral(i, mtu.equals("mixed") ? MIXED_MTUS[i % MIXED_MTUS.length] : Integer.parseInt(mtu));
+        }
+        return centrals;
+    }
+}
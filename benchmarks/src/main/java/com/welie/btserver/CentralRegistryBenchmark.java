@@ -0,0 +1,74 @@
+package com.welie.btserver;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The MTU and subscriber queries every tick makes, and the cost of the copy-on-write updates when
+ * a central subscribes or leaves.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class CentralRegistryBenchmark {
+
+    @Param({"1", "10", "100"})
+    public int centrals;
+
+    private final Object liveObservation = new Object();
+    private final CentralRegistry<BenchmarkCentral, Object> centralRegistry = new CentralRegistry<>(central -> central.mtu);
+    private final BenchmarkCentral churn = new BenchmarkCentral(0xFFFF, 185);
+    private CentralRegistry.CentralSet<BenchmarkCentral> subscribers;
+
+    @Setup
+    public void setUp() {
+        for (BenchmarkCentral central : BenchmarkCentral.create(centrals, "mixed")) {
+            centralRegistry.onSubscribed(central, liveObservation);
+        }
+        subscribers = centralRegistry.subscribers(liveObservation);
+    }
+
+    @Benchmark
+    public int getMinMtu() {
+        return centralRegistry.getMinMtu();
+    }
+
+    @Benchmark
+    public int refreshMtu() {
+        centralRegistry.refreshMtu();
+        return centralRegistry.getMinMtu();
+    }
+
+    // What a tick does to find its receivers: look up the set and walk it by index
+    @Benchmark
+    public int subscriberSet() {
+        final List<BenchmarkCentral> allCentrals = centralRegistry.subscribers(liveObservation).get();
+        int mtuSum = 0;
+        for (int c = 0; c < allCentrals.size(); c++) {
+            mtuSum += allCentrals.get(c).mtu;
+        }
+        return mtuSum;
+    }
+
+    @Benchmark
+    public int subscribeAndLeave() {
+        centralRegistry.onSubscribed(churn, liveObservation);
+        centralRegistry.onCentralDisconnected(churn);
+        return subscribers.size();
+    }
+}
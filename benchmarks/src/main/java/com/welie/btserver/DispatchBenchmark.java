@@ -0,0 +1,87 @@
+package com.welie.btserver;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Routing a GATT request in {@code BluetoothServer}: find the attribute's handler in the dispatch
+ * table and run it in the service's mailbox, like {@code AttributeRoute.read}. The UUID scan is the
+ * lookup the callbacks did before the dispatch table, for comparison.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class DispatchBenchmark {
+
+    // About the number of characteristics and descriptors of DIS, GHS and UDS together
+    private static final int ATTRIBUTES = 24;
+
+    private interface Handler {
+        int handle(BenchmarkCentral central);
+    }
+
+    private static final class Attribute {
+        final UUID uuid = UUID.randomUUID();
+    }
+
+    @Param({"1", "10", "100"})
+    public int centrals;
+
+    private final Attribute[] attributes = new Attribute[ATTRIBUTES];
+    private final Handler[] handlers = new Handler[ATTRIBUTES];
+    private final ActorMailbox mailbox = new ActorMailbox(Runnable::run);
+    private DispatchTable<Attribute, Handler> routes;
+    private BenchmarkCentral[] requesters;
+    private int next = 0;
+
+    @Setup
+    public void setUp() {
+        final DispatchTable.Builder<Attribute, Handler> builder = new DispatchTable.Builder<>();
+        for (int i = 0; i < ATTRIBUTES; i++) {
+            final int index = i;
+            attributes[i] = new Attribute();
+            handlers[i] = central -> central.mtu + index;
+            builder.put(attributes[i], handlers[i]);
+        }
+        routes = builder.build();
+        requesters = BenchmarkCentral.create(centrals, "mixed");
+    }
+
+    @Benchmark
+    public int dispatchTable() {
+        final int request = next++;
+        final Attribute attribute = attributes[request % ATTRIBUTES];
+        final BenchmarkCentral central = requesters[request % requesters.length];
+        final Handler handler = routes.get(attribute);
+        return mailbox.call(() -> handler.handle(central));
+    }
+
+    @Benchmark
+    public int uuidScan() {
+        final int request = next++;
+        final UUID uuid = attributes[request % ATTRIBUTES].uuid;
+        final BenchmarkCentral central = requesters[request % requesters.length];
+        for (int i = 0; i < ATTRIBUTES; i++) {
+            if (attributes[i].uuid.equals(uuid)) {
+                final Handler handler = handlers[i];
+                return mailbox.call(() -> handler.handle(central));
+            }
+        }
+        return -1;
+    }
+}
@@ -0,0 +1,111 @@
+package com.welie.btserver;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.HashMap;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * One tick of {@code GenericHealthService.notifyLiveObservation}: encode, segment per MTU, queue
+ * the segments for every subscriber and complete them as the stack would. Measured per tick, so
+ * the cost per central is the score divided by {@code centrals}.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class NotificationFanOutBenchmark {
+
+    @Param({"1", "10", "100"})
+    public int centrals;
+
+    @Param({"23", "185", "247", "mixed"})
+    public String mtu;
+
+    private final Object liveObservation = new Object();
+    private final CentralRegistry<BenchmarkCentral, Object> centralRegistry = new CentralRegistry<>(central -> central.mtu);
+    private long sentPackets = 0;
+    private final OutboundQueues<BenchmarkCentral, Object> outboundQueues = new OutboundQueues<>((central, characteristic, value) -> {
+        sentPackets++;
+        return true;
+    });
+    private final HashMap<String, ObservationSegmenter.SegmentCounter> segmentCounters = new HashMap<>();
+    private final NumericObservationEncoder encoder = new NumericObservationEncoder(150456, 0x0220);
+    private final ObservationSegmenter segmenter = new ObservationSegmenter();
+    private final byte[] observationPacket = new byte[1 + NumericObservationEncoder.OBSERVATION_LENGTH];
+    private final ObservationBundler bundler = new ObservationBundler(ObservationBundler.MAX_SAMPLES);
+    private CentralRegistry.CentralSet<BenchmarkCentral> subscribers;
+    private long etsSeconds = 662_774_400L;
+
+    @Setup
+    public void setUp() {
+        for (BenchmarkCentral central : BenchmarkCentral.create(centrals, mtu)) {
+            centralRegistry.onCentralConnected(central);
+            centralRegistry.onSubscribed(central, liveObservation);
+            centralRegistry.consent(central, 0, ConsentSessions.SECURITY_UNAUTHENTICATED);
+            segmentCounters.put(central.address, new ObservationSegmenter.SegmentCounter());
+        }
+        subscribers = centralRegistry.subscribers(liveObservation);
+    }
+
+    @Benchmark
+    public long numericObservation() {
+        encoder.encode(observationPacket, 1, etsSeconds++, 1.0f, 96.5f);
+        segmenter.setObservation(observationPacket);
+        final CentralRegistry.Members<BenchmarkCentral> members = subscribers.members();
+        final long[] authorized = centralRegistry.consentSessions().authorized();
+        for (int c = 0; c < members.size(); c++) {
+            if (!ConsentSessions.isAuthorized(authorized, members.indexAt(c))) continue;
+            final BenchmarkCentral central = members.get(c);
+            outboundQueues.offerTrain(central, liveObservation, segmenter.segmentsFor(central.mtu), segmentCounters.get(central.address));
+        }
+        completeAll(members.centrals);
+        return sentPackets;
+    }
+
+    @Benchmark
+    public long bundledObservations() {
+        final long now = etsSeconds++;
+        bundler.clear();
+        bundler.add(encoder, now, 1.0f, 96.5f);
+        bundler.add(encoder, now, 1.0f, 72.0f);
+        bundler.add(encoder, now, 5.0f, 3.1f);
+        final CentralRegistry.Members<BenchmarkCentral> members = subscribers.members();
+        final long[] authorized = centralRegistry.consentSessions().authorized();
+        for (int c = 0; c < members.size(); c++) {
+            if (!ConsentSessions.isAuthorized(authorized, members.indexAt(c))) continue;
+            final BenchmarkCentral central = members.get(c);
+            final ObservationBundler.Bundles bundles = bundler.bundlesFor(central.mtu);
+            final ObservationSegmenter.SegmentCounter segmentCounter = segmentCounters.get(central.address);
+            for (int i = 0; i < bundles.count(); i++) {
+                outboundQueues.offerTrain(central, liveObservation, bundles.train(i), segmentCounter);
+            }
+        }
+        completeAll(members.centrals);
+        return sentPackets;
+    }
+
+    // The stack confirms every packet before the next tick
+    private void completeAll(List<BenchmarkCentral> allCentrals) {
+        for (int c = 0; c < allCentrals.size(); c++) {
+            final BenchmarkCentral central = allCentrals.get(c);
+            final OutboundQueue<BenchmarkCentral, Object> queue = outboundQueues.queueFor(central);
+            while (queue.inFlight() > 0) {
+                outboundQueues.onNotificationSent(central);
+            }
+        }
+    }
+}
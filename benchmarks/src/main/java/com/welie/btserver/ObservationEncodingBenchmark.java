@@ -0,0 +1,79 @@
+package com.welie.btserver;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Cost of creating one observation: a numeric observation, a bundle of the pulse oximeter types,
+ * and a 250 ms pleth waveform window.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ObservationEncodingBenchmark {
+
+    // Same codes as GenericHealthService, which cannot be compiled outside Android
+    private static final int MDC_PULS_OXIM_SAT_O2 = 150456;
+    private static final int MDC_PULS_OXIM_PULS_RATE = 149530;
+    private static final int MDC_PULS_OXIM_PERF_REL = 150488;
+    private static final int MDC_PULS_OXIM_PLETH = 150452;
+    private static final int MDC_DIM_PER_CENT = 0x0220;
+    private static final int MDC_DIM_BEAT_PER_MIN = 0x0AA0;
+    private static final int MDC_DIM_DIMLESS = 0x0200;
+    // 250 ms at 100 Hz
+    private static final int PLETH_WINDOW = 25;
+
+    private final NumericObservationEncoder spo2 = new NumericObservationEncoder(MDC_PULS_OXIM_SAT_O2, MDC_DIM_PER_CENT);
+    private final NumericObservationEncoder pulseRate = new NumericObservationEncoder(MDC_PULS_OXIM_PULS_RATE, MDC_DIM_BEAT_PER_MIN);
+    private final NumericObservationEncoder perfusion = new NumericObservationEncoder(MDC_PULS_OXIM_PERF_REL, MDC_DIM_PER_CENT);
+    private final byte[] observation = new byte[1 + NumericObservationEncoder.OBSERVATION_LENGTH];
+    private final ObservationBundler bundler = new ObservationBundler(ObservationBundler.MAX_SAMPLES);
+    private final SampleArrayObservationEncoder pleth = new SampleArrayObservationEncoder(MDC_PULS_OXIM_PLETH, MDC_DIM_DIMLESS, 1.0f, 0.0f, 0, 100, 2);
+    private final SampleRingBuffer samples = new SampleRingBuffer(1024);
+    private byte[] plethObservation;
+    private long etsSeconds = 662_774_400L;
+
+    @Setup
+    public void setUp() {
+        plethObservation = new byte[1 + pleth.observationLength(PLETH_WINDOW)];
+    }
+
+    @Benchmark
+    public byte[] numeric() {
+        spo2.encode(observation, 1, etsSeconds++, 1.0f, 96.5f);
+        return observation;
+    }
+
+    @Benchmark
+    public int bundle() {
+        bundler.clear();
+        final long now = etsSeconds++;
+        bundler.add(spo2, now, 1.0f, 96.5f);
+        bundler.add(pulseRate, now, 1.0f, 72.0f);
+        bundler.add(perfusion, now, 1.0f, 3.1f);
+        return bundler.bundlesFor(185).count();
+    }
+
+    @Benchmark
+    public byte[] sampleArray() {
+        for (int i = 0; i < PLETH_WINDOW; i++) {
+            samples.offer(2048 + i);
+        }
+        pleth.encode(plethObservation, 1, etsSeconds++, samples, PLETH_WINDOW);
+        samples.consume(PLETH_WINDOW);
+        return plethObservation;
+    }
+}
@@ -0,0 +1,121 @@
+package com.welie.btserver;
+
+import org.jetbrains.annotations.NotNull;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Cost of receiving one packet on the central side: reassembly and decoding of a stream that
+ * mixes single-segment bundles, segmented numeric observations and pleth waveform windows. A load
+ * harness needs well over 100 000 packets per second, that is 0.1 ops/us.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ReassemblyBenchmark implements ObservationReassembler.Listener, ObservationDecoder.Handler {
+
+    // Same codes as GenericHealthService, which cannot be compiled outside Android
+    private static final int MDC_PULS_OXIM_SAT_O2 = 150456;
+    private static final int MDC_PULS_OXIM_PULS_RATE = 149530;
+    private static final int MDC_PULS_OXIM_PLETH = 150452;
+    private static final int MDC_DIM_PER_CENT = 0x0220;
+    private static final int MDC_DIM_BEAT_PER_MIN = 0x0AA0;
+    private static final int MDC_DIM_DIMLESS = 0x0200;
+    // 250 ms at 100 Hz
+    private static final int PLETH_WINDOW = 25;
+
+    private final ObservationReassembler reassembler = new ObservationReassembler(this);
+    private byte[][] packets;
+    private int next = 0;
+    private long checksum = 0;
+
+    @Setup
+    public void setUp() {
+        final NumericObservationEncoder spo2 = new NumericObservationEncoder(MDC_PULS_OXIM_SAT_O2, MDC_DIM_PER_CENT);
+        final NumericObservationEncoder pulseRate = new NumericObservationEncoder(MDC_PULS_OXIM_PULS_RATE, MDC_DIM_BEAT_PER_MIN);
+        final SampleArrayObservationEncoder pleth = new SampleArrayObservationEncoder(MDC_PULS_OXIM_PLETH, MDC_DIM_DIMLESS, 1.0f, 0.0f, 0, 100, 2);
+        final SampleRingBuffer samples = new SampleRingBuffer(64);
+        final ObservationBundler bundler = new ObservationBundler(2);
+        final ObservationSegmenter segmenter = new ObservationSegmenter();
+        final ObservationSegmenter.SegmentCounter counter = new ObservationSegmenter.SegmentCounter();
+        final List<byte[]> stream = new ArrayList<>();
+
+        for (int i = 0; i < 64; i++) {
+            final long etsSeconds = 662_774_400L + i;
+            bundler.clear();
+            bundler.add(spo2, etsSeconds, 1.0f, 96.5f);
+            bundler.add(pulseRate, etsSeconds, 1.0f, 72.0f);
+            add(stream, bundler.bundlesFor(185).train(0), counter);
+
+            final byte[] numeric = new byte[1 + NumericObservationEncoder.OBSERVATION_LENGTH];
+            spo2.encode(numeric, 1, etsSeconds, 1.0f, 96.5f);
+            segmenter.setObservation(numeric);
+            add(stream, segmenter.segmentsFor(23), counter);
+
+            for (int s = 0; s < PLETH_WINDOW; s++) samples.offer(2048 + s);
+            final byte[] window = new byte[1 + pleth.observationLength(PLETH_WINDOW)];
+            pleth.encode(window, 1, etsSeconds, samples, PLETH_WINDOW);
+            samples.consume(PLETH_WINDOW);
+            segmenter.setObservation(window);
+            add(stream, segmenter.segmentsFor(65), counter);
+        }
+        packets = stream.toArray(new byte[0][]);
+    }
+
+    private static void add(@NotNull List<byte[]> stream, @NotNull OutboundQueue.PacketTrain train, @NotNull ObservationSegmenter.SegmentCounter counter) {
+        for (int i = 0; i < train.count(); i++) {
+            final byte[] packet = train.packet(i).clone();
+            packet[0] = ObservationSegmenter.header(counter.next(), i == 0, i == train.count() - 1);
+            stream.add(packet);
+        }
+    }
+
+    @Benchmark
+    public long receivePacket() {
+        reassembler.onPacket(packets[next]);
+        // The stream is a whole number of observations and 64 counter values long, so it loops without gaps
+        next = next + 1 == packets.length ? 0 : next + 1;
+        return checksum;
+    }
+
+    @Override
+    public void onObservation(@NotNull byte[] buffer, int offset, int length) {
+        ObservationDecoder.decode(buffer, offset, length, this);
+    }
+
+    @Override
+    public void onGap(int expectedCounter, int receivedCounter) {
+        throw new IllegalStateException("gap in a looping stream");
+    }
+
+    @Override
+    public void onNumeric(int mdcCode, long etsSeconds, float duration, int unitCode, float value) {
+        checksum += etsSeconds + Float.floatToRawIntBits(value);
+    }
+
+    @Override
+    public void onSampleArray(int mdcCode, long etsSeconds, float duration, int unitCode, float scaleFactor, float offset, int samplesPerSecond,
+                              int bytesPerSample, @NotNull byte[] samples, int samplesOffset, int count) {
+        checksum += samples[samplesOffset + count * bytesPerSample - 1];
+    }
+
+    @Override
+    public void onMalformed(int type, int length) {
+        throw new IllegalStateException("malformed observation " + type);
+    }
+}
@@ -0,0 +1,60 @@
+package com.welie.btserver;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Cost of recording a trace event on the notification path, alone and with four threads recording
+ * into the same ring. Should be a few nanoseconds and allocate nothing.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class TraceBenchmark {
+
+    // MonotonicClock reads Android's SystemClock; the trace only needs nanoTime
+    private static final Clock SYSTEM_CLOCK = new Clock() {
+        @Override
+        public long nanoTime() {
+            return System.nanoTime();
+        }
+
+        @Override
+        public long currentTimeMillis() {
+            return System.currentTimeMillis();
+        }
+    };
+
+    private final TraceRing trace = new TraceRing(4096, SYSTEM_CLOCK);
+    private final byte[] observation = new byte[1 + NumericObservationEncoder.OBSERVATION_LENGTH];
+    private final int central = TraceRing.centralId("02:00:00:00:00:01");
+
+    @Benchmark
+    public void recordTrain() {
+        trace.record(TraceRing.TRAIN_QUEUED, central, 2);
+    }
+
+    @Benchmark
+    public void recordObservation() {
+        trace.record(TraceRing.OBSERVATION, TraceRing.NO_CENTRAL, observation, 1, observation.length - 1);
+    }
+
+    @Benchmark
+    @Threads(4)
+    public void recordTrainContended() {
+        trace.record(TraceRing.TRAIN_QUEUED, central, 2);
+    }
+}
@@ -0,0 +1,101 @@
+package com.welie.btserver;
+
+import org.jetbrains.annotations.NotNull;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.Locale;
+import java.util.TimeZone;
+
+/**
+ * Renders a {@link TraceRing} dump as text, one line per event. A desktop tool, run through the
+ * {@code decodeTrace} task.
+ */
+final class TraceDecoder {
+
+    private static final String[] EVENT_NAMES = {
+            "?", "CONNECTED", "DISCONNECTED", "OBSERVATION", "BUNDLE", "TRAIN_QUEUED", "TRAIN_DROPPED", "UDS_CONTROL_POINT", "SCHEDULE_WRITE"
+    };
+
+    private TraceDecoder() {
+    }
+
+    /**
+     * Decode a dump from {@code in} and append the events to {@code out}.
+     */
+    static void decode(@NotNull InputStream in, @NotNull Appendable out) throws IOException {
+        final DataInputStream data = new DataInputStream(in);
+        if (data.readInt() != TraceRing.DUMP_MAGIC) throw new IOException("not a trace dump");
+        final int version = data.readInt();
+        if (version != TraceRing.DUMP_VERSION) throw new IOException("unsupported trace version " + version);
+        final long dumpMillis = data.readLong();
+        final long dumpNanos = data.readLong();
+        final int count = data.readInt();
+
+        final SimpleDateFormat format = new SimpleDateFormat("yyyy-MM-dd'T'HH:mm:ss.SSS'Z'", Locale.ENGLISH);
+        format.setTimeZone(TimeZone.getTimeZone("UTC"));
+        final HashMap<Integer, String> addresses = new HashMap<>();
+        long previousNanos = Long.MIN_VALUE;
+        for (int i = 0; i < count; i++) {
+            final long nanos = data.readLong();
+            final long header = data.readLong();
+            final long first = data.readLong();
+            final long second = data.readLong();
+
+            final int event = (int) (header >>> 56);
+            final int central = (int) ((header >>> 40) & 0xFFFF);
+            final int length = (int) header;
+            final byte[] bytes = new byte[(header & TraceRing.HAS_DATA) != 0 ? Math.min(Math.max(length, 0), TraceRing.DATA_BYTES) : 0];
+            for (int b = 0; b < bytes.length; b++) {
+                bytes[b] = (byte) (b < 8 ? first >>> (8 * b) : second >>> (8 * (b - 8)));
+            }
+            if (event == TraceRing.CONNECTED && bytes.length == 6) addresses.put(central, address(bytes));
+
+            final long wallMillis = dumpMillis - (dumpNanos - nanos) / 1_000_000;
+            out.append(format.format(new Date(wallMillis)));
+            out.append(String.format(Locale.ENGLISH, " %+11.3f ms ", previousNanos == Long.MIN_VALUE ? 0.0 : (nanos - previousNanos) / 1e6));
+            out.append(String.format(Locale.ENGLISH, "%-17s", event < EVENT_NAMES.length ? EVENT_NAMES[event] : "EVENT_" + event));
+            if (central == TraceRing.NO_CENTRAL) {
+                out.append(" central=-                ");
+            } else {
+                final String address = addresses.get(central);
+                out.append(String.format(Locale.ENGLISH, " central=%-17s", address != null ? address : "#" + central));
+            }
+            out.append(" len=").append(Integer.toString(length));
+            // Connect records carry the address, which is already shown
+            if (bytes.length > 0 && event != TraceRing.CONNECTED && event != TraceRing.DISCONNECTED) {
+                out.append(" data=");
+                for (byte b : bytes) out.append(String.format("%02X", b));
+                if (length > bytes.length) out.append("...");
+            }
+            out.append('\n');
+            previousNanos = nanos;
+        }
+    }
+
+    private static @NotNull String address(@NotNull byte[] bytes) {
+        final StringBuilder address = new StringBuilder();
+        for (int i = 0; i < bytes.length; i++) {
+            if (i > 0) address.append(':');
+            address.append(String.format("%02X", bytes[i]));
+        }
+        return address.toString();
+    }
+
+    /**
+     * Decode the dump in the file given as argument, or on standard input.
+     */
+    public static void main(String[] args) throws IOException {
+        try (InputStream in = new BufferedInputStream(args.length > 0 ? new FileInputStream(args[0]) : System.in)) {
+            final StringBuilder text = new StringBuilder();
+            decode(in, text);
+            System.out.print(text);
+        }
+    }
+}
@@ -0,0 +1,68 @@
+package com.welie.btserver;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+public class TraceDecoderTest {
+
+    // 2021-01-01 00:00 UTC
+    private static final long START_MILLIS = 1_609_459_200_000L;
+
+    private long nanos = 0;
+    private final Clock clock = new Clock() {
+        @Override
+        public long nanoTime() {
+            return nanos;
+        }
+
+        @Override
+        public long currentTimeMillis() {
+            return START_MILLIS + TimeUnit.NANOSECONDS.toMillis(nanos);
+        }
+    };
+
+    private String decode(TraceRing trace) throws IOException {
+        final ByteArrayOutputStream dump = new ByteArrayOutputStream();
+        trace.writeTo(dump);
+        final StringBuilder text = new StringBuilder();
+        TraceDecoder.decode(new ByteArrayInputStream(dump.toByteArray()), text);
+        return text.toString();
+    }
+
+    @Test
+    public void decode_rendersEventsWithAddressesAndData() throws IOException {
+        final TraceRing trace = new TraceRing(16, clock);
+        final String address = "02:00:00:00:00:2A";
+        trace.recordCentral(TraceRing.CONNECTED, address);
+        nanos += TimeUnit.MICROSECONDS.toNanos(1500);
+        trace.record(TraceRing.UDS_CONTROL_POINT, TraceRing.centralId(address), new byte[]{0x02, 0x01, 0x08, 0x00}, 0, 4);
+        trace.record(TraceRing.OBSERVATION, TraceRing.NO_CENTRAL, new byte[20], 2, 18);
+
+        final String[] lines = decode(trace).split("\n");
+        assertEquals(3, lines.length);
+        assertTrue(lines[0], lines[0].startsWith("2021-01-01T00:00:00.000Z"));
+        assertTrue(lines[0], lines[0].contains("CONNECTED") && lines[0].contains(address));
+        assertTrue(lines[1], lines[1].contains("+1.500 ms"));
+        assertTrue(lines[1], lines[1].contains("UDS_CONTROL_POINT central=" + address));
+        assertTrue(lines[1], lines[1].endsWith("len=4 data=02010800"));
+        assertTrue(lines[2], lines[2].contains("central=-"));
+        assertTrue(lines[2], lines[2].endsWith("len=18 data=" + "00000000000000000000000000000000..."));
+    }
+
+    @Test
+    public void decode_showsUnknownCentralsById() throws IOException {
+        final TraceRing trace = new TraceRing(4, clock);
+        trace.record(TraceRing.TRAIN_QUEUED, 7, 3);
+
+        final String[] lines = decode(trace).split("\n");
+        assertEquals(1, lines.length);
+        assertTrue(lines[0], lines[0].endsWith("TRAIN_QUEUED      central=#7                len=3"));
+    }
+}